@@ -3,7 +3,13 @@ package ratismal.drivebackup;
 import org.bukkit.Bukkit;
 import org.bukkit.command.CommandSender;
 
+import ratismal.drivebackup.archive.ArchiveFormat;
+import ratismal.drivebackup.archive.BackupManifest;
+import ratismal.drivebackup.archive.BufferPool;
+import ratismal.drivebackup.archive.ChecksumManifest;
+import ratismal.drivebackup.archive.ChunkRepository;
 import ratismal.drivebackup.uploaders.Authenticator;
+import ratismal.drivebackup.uploaders.HashMismatchException;
 import ratismal.drivebackup.uploaders.Uploader;
 import ratismal.drivebackup.uploaders.Authenticator.AuthenticationProvider;
 import ratismal.drivebackup.uploaders.dropbox.DropboxUploader;
@@ -15,6 +21,7 @@ import ratismal.drivebackup.uploaders.mysql.MySQLUploader;
 import ratismal.drivebackup.config.ConfigParser;
 import ratismal.drivebackup.config.Permissions;
 import ratismal.drivebackup.config.ConfigParser.Config;
+import ratismal.drivebackup.config.configSections.BackupStorage;
 import ratismal.drivebackup.config.configSections.BackupList.BackupListEntry;
 import ratismal.drivebackup.config.configSections.BackupList.BackupListEntry.PathBackupLocation;
 import ratismal.drivebackup.config.configSections.ExternalBackups.ExternalBackupSource;
@@ -23,19 +30,36 @@ import ratismal.drivebackup.config.configSections.ExternalBackups.ExternalMySQLS
 import ratismal.drivebackup.config.configSections.ExternalBackups.ExternalFTPSource.ExternalBackupListEntry;
 import ratismal.drivebackup.config.configSections.ExternalBackups.ExternalMySQLSource.MySQLDatabaseBackup;
 import ratismal.drivebackup.handler.listeners.PlayerListener;
+import ratismal.drivebackup.plugin.DriveBackup;
 import ratismal.drivebackup.plugin.Scheduler;
 import ratismal.drivebackup.util.*;
 import ratismal.drivebackup.util.Timer;
+import ratismal.drivebackup.util.FileUtil.BackupFileList;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.FileSystems;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.time.LocalDateTime;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.time.temporal.ChronoUnit;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 import com.google.api.client.util.Strings;
 
@@ -58,6 +82,16 @@ public class UploadThread implements Runnable {
          */
         NOT_RUNNING,
 
+        /**
+         * The backup thread is copying the files to be backed up into the staging folder
+         */
+        STAGING,
+
+        /**
+         * The backup thread is downloading the external backups, before backing them up with the backup list
+         */
+        EXTERNAL_BACKUPS,
+
         /**
          * The backup thread is compressing the files to be backed up
          */
@@ -69,29 +103,113 @@ public class UploadThread implements Runnable {
         UPLOADING
     }
 
+    /**
+     * A backup location to back up, along with its files once they are listed, and staged if enabled
+     */
+    private static final class PendingBackup {
+        private final String location;
+        private final BackupListEntry set;
+        private final int setIndex;
+        private BackupManifest manifest;
+        private BackupFileList fileList;
+        private ChunkRepository repository;
+        private ChunkRepository.Snapshot snapshot;
+        private ChecksumManifest checksums;
+        private boolean prepared;
+        private int threads;
+
+        /**
+         * What is being done with the backup location, reported by {@link UploadThread#getBackupStatus()}
+         */
+        private volatile BackupStatus status = BackupStatus.NOT_RUNNING;
+
+        private PendingBackup(String location, BackupListEntry set, int setIndex) {
+            this.location = location;
+            this.set = set;
+            this.setIndex = setIndex;
+            this.threads = ConfigParser.getConfig().backupStorage.compressionThreads;
+        }
+    }
+
     /**
      * List of {@code Uploaders} to upload the backups to
      */
     private ArrayList<Uploader> uploaders;
 
+    /**
+     * Runs the uploads to each {@code Uploader} in parallel
+     */
+    private ExecutorService uploadExecutor;
+
+    /**
+     * Uploads the backups once created, while the next backups are created, or {@code null} if pipelining is disabled
+     */
+    private ExecutorService pipelineExecutor;
+
+    /**
+     * The backups which can be created but not uploaded yet at once
+     */
+    private Semaphore pipelineSlots;
+
+    /**
+     * The uploads submitted to the pipeline executor
+     */
+    private final Queue<Future<?>> pipelinedUploads = new ConcurrentLinkedQueue<>();
+
     /**
      * The list of items to be backed up by the backup thread
      */
     private static List<BackupListEntry> backupList;
 
+    /**
+     * Taken by backups running at once while uploading, if an upload method can't upload several files at once
+     */
+    private final ReentrantLock uploadLock = new ReentrantLock();
+
+    /**
+     * The {@code Uploaders} which uploaded a file that didn't match, and couldn't upload it again
+     */
+    private final Set<Uploader> failedUploaders = ConcurrentHashMap.newKeySet();
+
     /**
      * The {@code BackupStatus} of the backup thread
      */
-    private static BackupStatus backupStatus = BackupStatus.NOT_RUNNING;
+    private static volatile BackupStatus backupStatus = BackupStatus.NOT_RUNNING;
+
+    /**
+     * The backup locations currently being backed up, each with its own {@code BackupStatus}
+     */
+    private static final List<PendingBackup> activeBackups = new CopyOnWriteArrayList<>();
     
     private static LocalDateTime nextIntervalBackupTime = null;
     private static boolean lastBackupSuccessful = true;
 
     /**
-     * The backup currently being backed up by the 
+     * The backup list entry currently being staged by the backup thread
      */
     private static int backupBackingUp = 0;
 
+    /**
+     * Number of slots in the buffer backups are streamed to the upload methods through
+     */
+    private static final int STREAM_BUFFER_SLOTS = 16;
+
+    /**
+     * Size of each slot in the buffer backups are streamed to the upload methods through
+     */
+    private static final int STREAM_BUFFER_SLOT_SIZE = 1024 * 1024;
+
+    /**
+     * Number of volumes of a backup uploaded at once to an upload method which supports it
+     */
+    private static final int VOLUME_UPLOAD_THREADS = 4;
+
+    /**
+     * Number of times a streamed backup is uploaded before giving up, if the uploaded file doesn't match, the same as
+     * the upload methods use for files
+     */
+    private static final int MAX_UPLOAD_ATTEMPTS = 3;
+
     public static abstract class UploadLogger implements Logger {
         public void broadcast(String input, String... placeholders) {
             MessageUtil.Builder()
@@ -221,6 +339,28 @@ public class UploadThread implements Runnable {
         logger.broadcast(intl("backup-start"));
         ServerUtil.setAutoSave(false);
 
+        BufferPool.configure(config.backupStorage.memoryCeiling, config.backupStorage.heapUsageThreshold);
+
+        uploadExecutor = createUploadExecutor(
+            uploaders.size(), 
+            config.backupStorage.concurrentBackups + config.backupStorage.pipelineDepth, 
+            config.backupStorage.threadPriority);
+
+        List<PendingBackup> backups = listBackups(0);
+        if (config.backupStorage.snapshotStaging) {
+            backups = stageBackups(backups);
+
+            // Everything is backed up from the staged copies, so the server doesn't have to wait for the backup
+            ServerUtil.setAutoSave(true);
+        }
+
+        // The external backups are added to the end of the backup list, and aren't staged, as nothing else writes to them
+        int externalSetIndex = backupList.size();
+
+        if (!externalBackupList.isEmpty()) {
+            backupStatus = BackupStatus.EXTERNAL_BACKUPS;
+        }
+
         for (ExternalBackupSource externalBackup : externalBackupList) {
             if (externalBackup instanceof ExternalFTPSource) {
                 makeExternalFileBackup((ExternalFTPSource) externalBackup);
@@ -229,14 +369,13 @@ public class UploadThread implements Runnable {
             }
         }
 
-        backupBackingUp = 0;
-        for (BackupListEntry set : backupList) {
-            for(Path folder : set.location.getPaths()) {
-                doSingleBackup(folder.toString(), set.formatter, set.create, Arrays.asList(set.blacklist), uploaders);
-            }
+        backups.addAll(listBackups(externalSetIndex));
+        doBackups(backups, uploaders);
 
-            backupBackingUp++;
-        }
+        uploadExecutor.shutdown();
+
+        // The pooled buffers aren't needed until the next backup
+        BufferPool.trim();
 
         FileUtil.deleteFolder(new File("external-backups"));
 
@@ -245,7 +384,7 @@ public class UploadThread implements Runnable {
         for (Uploader uploader : uploaders) {
             uploader.close();
 
-            if (uploader.isErrorWhileUploading()) {
+            if (uploader.isErrorWhileUploading() || failedUploaders.contains(uploader)) {
                 logger.log(
                     intl("backup-method-error-occurred"),
                     "diagnose-command", "/drivebackup test " + uploader.getId(),
@@ -271,7 +410,9 @@ public class UploadThread implements Runnable {
             PlayerListener.setAutoBackupsActive(false);
         }
 
-        ServerUtil.setAutoSave(true);
+        if (!config.backupStorage.snapshotStaging) {
+            ServerUtil.setAutoSave(true);
+        }
 
         lastBackupSuccessful = !errorOccurred;
 
@@ -320,240 +461,1410 @@ public class UploadThread implements Runnable {
     }
 
     /**
-     * Backs up a single backup location
-     * @param location Path to the folder
-     * @param formatter Save format configuration
-     * @param create Create the zip file or just upload it? ("True" / "False")
-     * @param blackList configured blacklist (with globs)
-     * @param uploaders All services to upload to
-     * @return True if any error occurred
+     * Lists the backup locations of the backup list entries, starting with the specified one
+     * <p>
+     * Each folder a glob location expands to is a separate backup location
+     * @param firstSetIndex the index of the first backup list entry
+     * @return the backup locations, in the order of the backup list
      */
-    private void doSingleBackup(String location, LocalDateTimeFormatter formatter, boolean create, List<String> blackList, List<Uploader> uploaders) {
-        logger.info(intl("backup-location-start"), "location", location);
+    private static List<PendingBackup> listBackups(int firstSetIndex) {
+        List<PendingBackup> backups = new ArrayList<>();
 
-        FileUtil fileUtil = new FileUtil(logger);
+        for (int setIndex = firstSetIndex; setIndex < backupList.size(); setIndex++) {
+            BackupListEntry set = backupList.get(setIndex);
 
-        if (create) {
-            backupStatus = BackupStatus.COMPRESSING;
+            for (Path folder : set.location.getPaths()) {
+                backups.add(new PendingBackup(folder.toString(), set, setIndex));
+            }
+        }
 
-            try {
-                fileUtil.makeBackup(location, formatter, blackList);
-            } catch (IllegalArgumentException exception) {
-                logger.log(intl("backup-failed-absolute-path"));
+        return backups;
+    }
 
-                return;
-            } catch (Exception exception) {
-                logger.log(intl("backup-local-failed"));
+    /**
+     * Lists and stages the files of the specified backup locations, so they can be backed up once the server saves 
+     * again
+     * @param backups the backup locations
+     * @return the backup locations with something to back up, in order
+     */
+    private List<PendingBackup> stageBackups(List<PendingBackup> backups) {
+        backupStatus = BackupStatus.STAGING;
 
-                return;
-            }
-        }
+        // Left behind by a backup which didn't finish
+        FileUtil.deleteFolder(FileUtil.getStagingFolder());
 
-        try {
-            backupStatus = BackupStatus.UPLOADING;
+        Timer timer = new Timer();
+        timer.start();
 
-            if (FileUtil.isBaseFolder(location)) {
-                location = "root";
-            }
+        FileUtil fileUtil = new FileUtil(logger);
+        List<PendingBackup> stagedBackups = new ArrayList<>();
 
-            File file = fileUtil
-                            .getLocalBackups(location, formatter)
-                            .descendingMap().firstEntry().getValue();
-            Timer timer = new Timer();
+        for (PendingBackup backup : backups) {
+            backupBackingUp = backup.setIndex;
 
-            for (Uploader uploader : uploaders) {
-                logger.info(
-                    intl("backup-method-uploading"),
-                    "upload-method",
-                    uploader.getName());
+            if (!prepareSingleBackup(backup)) {
+                continue;
+            }
 
-                timer.start();
-                uploader.uploadFile(file, location);
-                timer.end();
+            if (backup.fileList != null) {
+                try {
+                    fileUtil.stageBackup(backup.location, backup.fileList);
+                } catch (Exception exception) {
+                    logger.log(intl("backup-staging-failed"), "location", backup.location);
+                    MessageUtil.sendConsoleException(exception);
+                    backup.fileList.close();
 
-                if (!uploader.isErrorWhileUploading()) {
-                    logger.info(timer.getUploadTimeMessage(file));
-                } else {
-                    logger.info(intl("backup-method-upload-failed"));
+                    continue;
                 }
             }
 
-        } catch (Exception e) {
-
-            logger.info(intl("backup-method-upload-failed"));
-            MessageUtil.sendConsoleException(e);
+            stagedBackups.add(backup);
         }
-        fileUtil.pruneLocalBackups(location, formatter);
+
+        timer.end();
+        logger.info(
+            intl("backup-staging-complete"),
+            "staging-time", String.format(Locale.ENGLISH, "%.1f", timer.getTime() / 1000));
+
+        return stagedBackups;
     }
 
     /**
-     * Downloads files from a FTP server and stores them within the external-backups temporary folder, using the specified external backup settings
-     * @param externalBackup the external backup settings
+     * Backs up the specified backup locations, several at once if enabled
+     * <p>
+     * The compression threads are shared between the backups running at once. With more backup locations than run at 
+     * once, the ones whose last backup was the biggest start first, so a big backup started last doesn't keep the backup 
+     * running long after the others finished.
+     * <p>
+     * If pipelining is enabled, up to the pipeline depth of backups are uploaded while the next ones are created, 
+     * rather than each backup being uploaded before the next one is created
+     * @param backups the backup locations
+     * @param uploaders All services to upload to
      */
-    private void makeExternalFileBackup(ExternalFTPSource externalBackup) {
-        logger.info(
-            intl("external-ftp-backup-start"), 
-            "socked-addr", getSocketAddress(externalBackup));
+    private void doBackups(List<PendingBackup> backups, List<Uploader> uploaders) {
+        if (backups.isEmpty()) {
+            return;
+        }
 
-        FTPUploader ftpUploader = new FTPUploader(
-                logger,
-                externalBackup.hostname, 
-                externalBackup.port, 
-                externalBackup.username, 
-                externalBackup.password,
-                externalBackup.ftps,
-                externalBackup.sftp,
-                externalBackup.publicKey, 
-                externalBackup.passphrase,
-                "external-backups",
-                ".");
+        // Each backup running at once gets at least one of the compression threads, which are within the CPU budget
+        BackupStorage backupStorage = ConfigParser.getConfig().backupStorage;
+        int concurrentBackups = Math.min(Math.min(backupStorage.concurrentBackups, backups.size()), backupStorage.compressionThreads);
+        int threads = Math.max(1, backupStorage.compressionThreads / concurrentBackups);
+
+        if (concurrentBackups > 1) {
+            // Ordered by the size of their last backup, locations never backed up before go first as they could be big
+            File manifestFolder = getManifestFolder();
+            Map<PendingBackup, Long> sizes = new HashMap<>();
+            for (PendingBackup backup : backups) {
+                long size = backup.set.create ? BackupManifest.loadBackupSize(manifestFolder, backup.location) : 0L;
+                sizes.put(backup, size == -1 ? Long.MAX_VALUE : size);
+            }
 
-        for (ExternalBackupListEntry backup : externalBackup.backupList) {
-            ArrayList<BlacklistEntry> blacklist = new ArrayList<>();
+            backups.sort(Comparator.comparingLong((PendingBackup backup) -> sizes.get(backup)).reversed());
+        }
 
-            for (String blacklistGlob : backup.blacklist) {
-                BlacklistEntry blacklistEntry = new BlacklistEntry(
-                    blacklistGlob, 
-                    FileSystems.getDefault().getPathMatcher("glob:" + blacklistGlob)
-                    );
-    
-                blacklist.add(blacklistEntry);
-            }
+        backupStatus = BackupStatus.COMPRESSING;
 
-            String baseDirectory;
-            if (Strings.isNullOrEmpty(externalBackup.baseDirectory)) {
-                baseDirectory = backup.path;
-            } else {
-                baseDirectory = externalBackup.baseDirectory + "/" + backup.path;
-            }
+        int priority = Thread.currentThread().getPriority();
+        ExecutorService backupExecutor = createExecutor("DriveBackup-backup", concurrentBackups, priority);
 
-            for (String relativeFilePath : ftpUploader.getFiles(baseDirectory)) {
-                String filePath = baseDirectory + "/" + relativeFilePath;
+        if (backupStorage.pipelineDepth > 0) {
+            pipelineExecutor = createExecutor("DriveBackup-pipeline", backupStorage.pipelineDepth, priority);
+            pipelineSlots = new Semaphore(backupStorage.pipelineDepth);
+        }
+        List<Future<?>> running = new ArrayList<>();
 
-                for (BlacklistEntry blacklistEntry : blacklist) {
-                    if (blacklistEntry.getPathMatcher().matches(Paths.get(relativeFilePath))) {
-                        blacklistEntry.incBlacklistedFiles();
-    
-                        continue;
-                    } 
-                }
+        for (PendingBackup backup : backups) {
+            backup.threads = threads;
 
-                String parentFolder = new File(relativeFilePath).getParent();
-                String parentFolderPath;
-                if (parentFolder != null) {
-                    parentFolderPath = "/" + parentFolder;
-                } else {
-                    parentFolderPath = "";
+            running.add(backupExecutor.submit(() -> {
+                activeBackups.add(backup);
+
+                try {
+                    if (!backup.prepared) {
+                        backup.status = BackupStatus.COMPRESSING;
+
+                        if (!prepareSingleBackup(backup)) {
+                            return;
+                        }
+                    }
+
+                    if (!verifySingleBackup(backup)) {
+                        return;
+                    }
+
+                    doSingleBackup(backup, uploaders);
+                } finally {
+                    activeBackups.remove(backup);
                 }
+            }));
+        }
 
-                ftpUploader.downloadFile(filePath, getTempFolderName(externalBackup) + "/" + backup.path + parentFolderPath);
+        try {
+            awaitBackups(running);
+
+            // Every upload is submitted once every backup is created
+            awaitBackups(pipelinedUploads);
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        } finally {
+            backupExecutor.shutdownNow();
+
+            if (pipelineExecutor != null) {
+                pipelineExecutor.shutdownNow();
+                pipelineExecutor = null;
             }
+        }
+    }
 
-            for (BlacklistEntry blacklistEntry : blacklist) {
-                String globPattern = blacklistEntry.getGlobPattern();
-                int blacklistedFiles = blacklistEntry.getBlacklistedFiles();
-    
-                if (blacklistedFiles > 0) {
-                    logger.log(
-                        intl("external-ftp-backup-blacklisted"), 
-                        "blacklisted-files", String.valueOf(blacklistedFiles),
-                        "glob-pattern", globPattern);
-                }
+    /**
+     * Waits for all of the specified backups to finish
+     * @param backups the running backups
+     * @throws InterruptedException
+     */
+    private static void awaitBackups(Iterable<Future<?>> backups) throws InterruptedException {
+        for (Future<?> backup : backups) {
+            try {
+                backup.get();
+            } catch (ExecutionException exception) {
+                MessageUtil.sendConsoleException(exception);
             }
         }
+    }
 
-        ftpUploader.close();
+    /**
+     * Lists the files to back up in a single backup location
+     * @param backup the backup location
+     * @return whether there is anything to back up
+     */
+    private boolean prepareSingleBackup(PendingBackup backup) {
+        String location = backup.location;
+        BackupListEntry set = backup.set;
 
-        BackupListEntry backup = new BackupListEntry(
-            new PathBackupLocation("external-backups" + "/" + getTempFolderName(externalBackup)),
-            externalBackup.format,
-            true,
-            new String[0]
-        );
-        backupList.add(backup);
+        logger.info(intl("backup-location-start"), "location", location);
+        backup.prepared = true;
 
-        if (ftpUploader.isErrorWhileUploading()) {
-            logger.log(
-                intl("external-ftp-backup-failed"),
-                "socked-addr", getSocketAddress(externalBackup));
-        } else {
-            logger.info(
-                intl("external-ftp-backup-complete"),
-                "socked-addr", getSocketAddress(externalBackup));
+        if (!set.create) {
+            return true;
+        }
+
+        FileUtil fileUtil = new FileUtil(logger, backup.threads);
+
+        // The chunk repository already only stores what changed, so it doesn't need a manifest
+        if (set.incremental && !set.deduplicate) {
+            backup.manifest = loadManifest(location);
+        }
+
+        BackupFileList fileList;
+        try {
+            fileList = fileUtil.prepareBackup(
+                location,
+                Arrays.asList(set.blacklist),
+                backup.manifest,
+                backup.manifest == null || backup.manifest.isFullBackupDue(set.fullBackupInterval),
+                set.regionDeltas,
+                set.compactRegions,
+                set.transcodeRegions);
+        } catch (IllegalArgumentException exception) {
+            logger.log(intl("backup-failed-absolute-path"));
+
+            return false;
+        } catch (Exception exception) {
+            logger.log(intl("backup-local-failed"));
+
+            return false;
+        }
+
+        if (!fileList.hasChanges()) {
+            logger.info(intl("backup-location-unchanged"), "location", location);
+            fileList.close();
+
+            return false;
         }
+
+        backup.fileList = fileList;
+
+        return true;
     }
 
     /**
-     * Downloads databases from a MySQL server and stores them within the external-backups temporary folder, using the specified external backup settings
-     * @param externalBackup the external backup settings
+     * Leaves out the files of a single backup location which were rewritten with the same contents since the previous
+     * backup
+     * <p>
+     * Staged backups are verified against the staged copies, so the files are hashed once the server saves again
+     * @param backup the backup location, with the files to back up
+     * @return whether there is anything to back up
      */
-    private void makeExternalDatabaseBackup(ExternalMySQLSource externalBackup) {
-        logger.info(
-            intl("external-mysql-backup-start"), 
-            "socked-addr", getSocketAddress(externalBackup));
+    private boolean verifySingleBackup(PendingBackup backup) {
+        if (backup.fileList == null) {
+            return true;
+        }
 
-        MySQLUploader mysqlUploader = new MySQLUploader(
-                externalBackup.hostname, 
-                externalBackup.port, 
-                externalBackup.username, 
-                externalBackup.password,
-                externalBackup.ssl);
+        new FileUtil(logger, backup.threads).verifyBackup(backup.location, backup.fileList);
 
-        for (MySQLDatabaseBackup database : externalBackup.databaseList) {
-            for (String blacklistEntry : database.blacklist) {
-                logger.log(
-                    intl("external-mysql-backup-blacklisted"), 
-                    "blacklist-entry", blacklistEntry);
-            }
+        if (!backup.fileList.hasChanges()) {
+            logger.info(intl("backup-location-unchanged"), "location", backup.location);
+            backup.fileList.close();
+            backup.fileList = null;
 
-            mysqlUploader.downloadDatabase(database.name, getTempFolderName(externalBackup), Arrays.asList(database.blacklist));
+            return false;
         }
 
-        BackupListEntry backup = new BackupListEntry(
-            new PathBackupLocation("external-backups" + "/" + getTempFolderName(externalBackup)),
-            externalBackup.format,
-            true,
-            new String[0]
-        );
-        backupList.add(backup);
-
-        if (mysqlUploader.isErrorWhileUploading()) {
-            logger.log(
-                intl("external-mysql-backup-failed"), 
-                "socket-addr", getSocketAddress(externalBackup));
-        } else {
-            logger.info(
-                intl("external-mysql-backup-complete"),
-                "socked-addr", getSocketAddress(externalBackup));
-        }
+        return true;
     }
 
     /**
-     * Gets the current status of the backup thread
-     * @return the status of the backup thread as a {@code String}
+     * Backs up a single backup location
+     * <p>
+     * If pipelining is enabled, the backup is uploaded on the pipeline executor once created, so the next backup can 
+     * be created in the meantime
+     * @param backup the backup location, with the files to back up
+     * @param uploaders All services to upload to
      */
-    public static String getBackupStatus() {
-        Config config = ConfigParser.getConfig();
+    private void doSingleBackup(PendingBackup backup, List<Uploader> uploaders) {
+        BackupListEntry set = backup.set;
 
-        String message;
-        switch (backupStatus) {
-            case COMPRESSING:
-                message = intl("backup-status-compressing");
-                break;
-            case UPLOADING:
-                message = intl("backup-status-uploading");
-                break;
-            default:
-                return intl("backup-status-not-running");
+        if (set.create && !set.deduplicate && isStreamable(uploaders)) {
+            // The backup is uploaded while it's created, so it has to wait for its turn to upload before starting
+            boolean locked = lockUploads(uploaders);
+
+            boolean successful;
+            try {
+                successful = doStreamingBackup(backup, uploaders);
+            } finally {
+                if (locked) {
+                    uploadLock.unlock();
+                }
+
+                // Stops the scan if the backup failed before reading every file, and deletes the staged files
+                backup.fileList.close();
+            }
+
+            finishBackup(backup, successful);
+
+            return;
         }
 
-        BackupListEntry[] backupList = config.backupList.list;
-        String backupSetName = backupList[backupBackingUp].location.toString();
+        if (set.create) {
+            backup.status = BackupStatus.COMPRESSING;
+
+            boolean created;
+            try {
+                created = set.deduplicate ? createSnapshot(backup) : createLocalBackup(backup);
+            } finally {
+                backup.fileList.close();
+            }
+
+            if (!created) {
+                return;
+            }
+
+            if (set.reproducible && !set.deduplicate && discardIfUploaded(backup)) {
+                finishBackup(backup, true);
+
+                return;
+            }
+        }
+
+        if (pipelineExecutor == null) {
+            finishBackup(backup, uploadBackup(backup, uploaders));
+
+            return;
+        }
+
+        // Bounds the number of backups created but not uploaded yet, and so the disk space they take up
+        try {
+            pipelineSlots.acquire();
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+
+            return;
+        }
+
+        pipelinedUploads.add(pipelineExecutor.submit(() -> {
+            activeBackups.add(backup);
+
+            try {
+                finishBackup(backup, uploadBackup(backup, uploaders));
+            } finally {
+                activeBackups.remove(backup);
+                pipelineSlots.release();
+            }
+        }));
+    }
+
+    /**
+     * Uploads a single backup location once its backup is created
+     * @param backup the backup location
+     * @param uploaders All services to upload to
+     * @return whether the backup was uploaded successfully
+     */
+    private boolean uploadBackup(PendingBackup backup, List<Uploader> uploaders) {
+        backup.status = BackupStatus.UPLOADING;
+
+        if (backup.set.create && backup.set.deduplicate) {
+            return uploadSnapshot(backup, uploaders);
+        }
+
+        return uploadLocalBackup(backup, uploaders);
+    }
+
+    /**
+     * Records the files backed up in the manifest of a single backup location, if backed up successfully
+     * <p>
+     * The checksums of a reproducible backup are kept too, so the next backup can be compared to it, and the amount of
+     * data any backup read, so the biggest backups can be started first next time
+     * @param backup the backup location
+     * @param successful whether the backup was created and uploaded successfully
+     */
+    private void finishBackup(PendingBackup backup, boolean successful) {
+        // Recorded even if the upload failed, as it's only used to order the next backups
+        long size = backup.checksums != null ? backup.checksums.getFilesSize() : backup.snapshot != null ? backup.snapshot.getSize() : -1;
+        if (size != -1) {
+            try {
+                BackupManifest.saveBackupSize(getManifestFolder(), backup.location, size);
+            } catch (IOException exception) {
+                // Only used to order the backups
+            }
+        }
+
+        if (successful && backup.set.reproducible && backup.checksums != null) {
+            File checksumsFile = ChecksumManifest.getFile(getManifestFolder(), backup.location);
+
+            try {
+                checksumsFile.getParentFile().mkdirs();
+                backup.checksums.save(checksumsFile);
+            } catch (Exception exception) {
+                logger.log(intl("local-backup-checksums-save-failed"));
+                MessageUtil.sendConsoleException(exception);
+            }
+        }
+
+        BackupManifest manifest = backup.manifest;
+
+        if (manifest != null && successful) {
+            manifest.apply(backup.fileList.getChanges());
+
+            try {
+                manifest.save();
+            } catch (Exception exception) {
+                logger.log(intl("local-backup-manifest-save-failed"));
+                MessageUtil.sendConsoleException(exception);
+
+                return;
+            }
+
+            // The regions are only clean once the manifest they're compared to includes them
+            DirtyRegionTracker.Snapshot dirtyRegions = backup.fileList.getDirtyRegions();
+            if (dirtyRegions != null) {
+                DirtyRegionTracker.commit(dirtyRegions);
+            }
+        }
+    }
+
+    /**
+     * Creates a local backup archive of a single backup location
+     * @param backup the backup location, with the files to include in the archive
+     * @return whether the backup was created successfully
+     */
+    private boolean createLocalBackup(PendingBackup backup) {
+        try {
+            backup.checksums = new FileUtil(logger, backup.threads).makeBackup(
+                backup.location, 
+                backup.set.formatter, 
+                backup.fileList, 
+                backup.set.archiveFormat, 
+                backup.set.reproducible);
+        } catch (Exception exception) {
+            logger.log(intl("backup-local-failed"));
+
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Deletes the new local backup of a single backup location if it's identical to the last backup of it uploaded, 
+     * which happens when a reproducible backup location didn't change
+     * @param backup the backup location, with its new local backup
+     * @return whether the backup was identical, and so doesn't need to be uploaded
+     */
+    private boolean discardIfUploaded(PendingBackup backup) {
+        String location = backup.location;
+        String hash = backup.checksums.getArchiveHash();
+        File uploadedChecksumsFile = ChecksumManifest.getFile(getManifestFolder(), location);
+
+        if (hash == null || !uploadedChecksumsFile.exists()) {
+            return false;
+        }
+
+        try {
+            if (!hash.equals(ChecksumManifest.load(uploadedChecksumsFile).getArchiveHash())) {
+                return false;
+            }
+        } catch (Exception exception) {
+            // The backup is uploaded, and its checksums replace the unreadable ones
+            MessageUtil.sendConsoleException(exception);
+
+            return false;
+        }
+
+        logger.info(intl("backup-location-identical"), "location", location);
+
+        try {
+            String type = FileUtil.isBaseFolder(location) ? "root" : location;
+            List<File> files = new FileUtil(logger, backup.threads)
+                .getLocalBackups(type, backup.set.formatter)
+                .descendingMap().firstEntry().getValue();
+
+            for (File file : files) {
+                if (!file.delete()) {
+                    logger.log(
+                        intl("local-backup-file-failed-to-delete"),
+                        "local-backup-name", file.getName());
+                }
+            }
+        } catch (Exception exception) {
+            MessageUtil.sendConsoleException(exception);
+        }
+
+        return true;
+    }
+
+    /**
+     * Uploads the latest local backup of a single backup location, then deletes the oldest local backups past the 
+     * number to retain
+     * <p>
+     * The checksums of the backup are uploaded last, so only complete backups have checksums
+     * @param backup the backup location
+     * @param uploaders All services to upload to
+     * @return whether the backup was uploaded successfully
+     */
+    private boolean uploadLocalBackup(PendingBackup backup, List<Uploader> uploaders) {
+        String location = backup.location;
+        LocalDateTimeFormatter formatter = backup.set.formatter;
+        FileUtil fileUtil = new FileUtil(logger, backup.threads);
+
+        boolean successful;
+        try {
+            if (FileUtil.isBaseFolder(location)) {
+                location = "root";
+            }
+
+            List<File> files = new ArrayList<>(fileUtil
+                            .getLocalBackups(location, formatter)
+                            .descendingMap().firstEntry().getValue());
+
+            File checksums = null;
+            if (ArchiveFormat.isChecksums(files.get(files.size() - 1).getName())) {
+                checksums = files.remove(files.size() - 1);
+            }
+
+            if (files.size() == 1) {
+                successful = uploadToAll(files.get(0), location, uploaders);
+            } else {
+                successful = uploadVolumesToAll(files, location, uploaders);
+            }
+
+            if (successful && checksums != null) {
+                successful = uploadToAll(checksums, location, uploaders);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+
+            return false;
+        } catch (Exception e) {
+            for (Uploader uploader : uploaders) {
+                logger.info(
+                    intl("backup-method-upload-failed"),
+                    "upload-method", uploader.getName());
+            }
+            MessageUtil.sendConsoleException(e);
+
+            successful = false;
+        }
+        fileUtil.pruneLocalBackups(location, formatter);
+
+        return successful;
+    }
+
+    /**
+     * Adds a snapshot of a single backup location to its deduplicating chunk repository, along with a pack of the 
+     * chunks it added
+     * @param backup the backup location, with the files to include in the snapshot
+     * @return whether the snapshot was created successfully
+     */
+    private boolean createSnapshot(PendingBackup backup) {
+        try {
+            backup.repository = FileUtil.getRepository(backup.location, backup.set.zstdDictionary);
+            backup.snapshot = new FileUtil(logger, backup.threads).makeSnapshot(backup.location, backup.set.formatter, backup.fileList, backup.repository);
+        } catch (Exception exception) {
+            logger.log(intl("backup-local-failed"));
+            MessageUtil.sendConsoleException(exception);
+
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Uploads the new snapshot of a single backup location and the pack of chunks it added, then commits it to the 
+     * chunk repository
+     * <p>
+     * Once uploaded, the oldest snapshots past the number to retain are removed, along with the chunks and packs only
+     * they referenced, and the packs they mostly referenced are repacked
+     * @param backup the backup location, with its new snapshot
+     * @param uploaders All services to upload to
+     * @return whether the snapshot was uploaded and committed successfully
+     */
+    private boolean uploadSnapshot(PendingBackup backup, List<Uploader> uploaders) {
+        String location = backup.location;
+        ChunkRepository repository = backup.repository;
+        ChunkRepository.Snapshot snapshot = backup.snapshot;
+
+        List<File> files = new ArrayList<>();
+        if (snapshot.getDictionaryFile() != null) {
+            // Uploaded before any pack compressed with it
+            files.add(snapshot.getDictionaryFile());
+        }
+        if (snapshot.getPackFile() != null) {
+            // The pack goes first, so a snapshot is never uploaded without the chunks it refers to
+            files.add(snapshot.getPackFile());
+        }
+        files.add(snapshot.getSnapshotFile());
+
+        boolean successful = true;
+        try {
+            if (FileUtil.isBaseFolder(location)) {
+                location = "root";
+            }
+
+            for (File file : files) {
+                if (!uploadToAll(file, location, uploaders)) {
+                    successful = false;
+
+                    break;
+                }
+            }
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+
+            successful = false;
+        } catch (Exception exception) {
+            MessageUtil.sendConsoleException(exception);
+
+            successful = false;
+        }
+
+        if (!successful) {
+            // Don't leave behind a pack which no snapshot will ever be committed for
+            List<String> fileNames = new ArrayList<>();
+            for (File file : files) {
+                fileNames.add(file.getName());
+            }
+            deleteFromAll(fileNames, location, uploaders);
+            repository.abort(snapshot);
+
+            return false;
+        }
+
+        try {
+            repository.commit(snapshot);
+        } catch (Exception exception) {
+            logger.log(intl("backup-local-failed"));
+            MessageUtil.sendConsoleException(exception);
+
+            return false;
+        }
+
+        try {
+            List<String> removedFiles = repository.prune(ConfigParser.getConfig().backupStorage.keepCount);
+
+            if (!removedFiles.isEmpty()) {
+                logger.info(intl("repository-pruned"), "file-count", String.valueOf(removedFiles.size()));
+
+                deleteFromAll(removedFiles, location, uploaders);
+            }
+        } catch (Exception exception) {
+            logger.log(intl("local-backup-failed-to-delete"));
+            MessageUtil.sendConsoleException(exception);
+        }
+
+        repackRepository(repository, snapshot.getName() + "-repack", location, uploaders);
+
+        return true;
+    }
+
+    /**
+     * Moves the chunks which are still referenced out of the mostly unreferenced packs of a chunk repository into a 
+     * new pack, then deletes the old packs
+     * <p>
+     * The new pack is uploaded before the old packs are deleted, so every snapshot can always be restored
+     * @param repository the repository
+     * @param name the name of the new pack
+     * @param type the type of backup (ex. plugins, world)
+     * @param uploaders All services to upload to
+     */
+    private void repackRepository(ChunkRepository repository, String name, String type, List<Uploader> uploaders) {
+        ChunkRepository.Repack repack;
+        try {
+            repack = repository.repack(name);
+        } catch (Exception exception) {
+            logger.log(intl("repository-repack-failed"));
+            MessageUtil.sendConsoleException(exception);
+
+            return;
+        }
+
+        if (repack == null) {
+            return;
+        }
+
+        logger.info(
+            intl("repository-repacking"), 
+            "chunk-count", String.valueOf(repack.getChunkCount()), 
+            "pack-count", String.valueOf(repack.getPackCount()));
+
+        try {
+            if (uploadToAll(repack.getPackFile(), type, uploaders)) {
+                deleteFromAll(repository.commit(repack), type, uploaders);
+
+                return;
+            }
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        } catch (Exception exception) {
+            MessageUtil.sendConsoleException(exception);
+        }
+
+        logger.log(intl("repository-repack-failed"));
+        deleteFromAll(Collections.singletonList(repack.getPackFile().getName()), type, uploaders);
+        repository.abort(repack);
+    }
+
+    /**
+     * Backs up a single backup location, uploading the zip file while it is being created
+     * <p>
+     * The archive is streamed to every upload method at once through a fixed size buffer, 
+     * and is only saved locally if local backups are kept. The checksums of the archive are uploaded once it is.
+     * @param backup the backup location, with the files to include in the archive
+     * @param uploaders All services to upload to
+     * @return whether the backup was created and uploaded successfully
+     */
+    private boolean doStreamingBackup(PendingBackup backup, List<Uploader> uploaders) {
+        backup.status = BackupStatus.UPLOADING;
+
+        String location = backup.location;
+        LocalDateTimeFormatter formatter = backup.set.formatter;
+        ArchiveFormat format = backup.set.archiveFormat;
+        FileUtil fileUtil = new FileUtil(logger, backup.threads);
+        BroadcastRingBuffer buffer = new BroadcastRingBuffer(STREAM_BUFFER_SLOTS, STREAM_BUFFER_SLOT_SIZE);
+        List<Future<Boolean>> consumers = new ArrayList<>();
+
+        String type;
+        String fileName;
+        try {
+            type = FileUtil.isBaseFolder(location) ? "root" : location;
+            fileName = FileUtil.getBackupFileName(formatter, format);
+            File localFile = new File(FileUtil.getBackupFolder(location), fileName);
+
+            consumers.addAll(submitUploads(uploaders, buffer, fileName, -1, type, null));
+
+            if (ConfigParser.getConfig().backupStorage.localKeepCount != 0) {
+                InputStream stream = buffer.newReader();
+
+                consumers.add(uploadExecutor.submit(() -> {
+                    try (InputStream input = stream) {
+                        Files.copy(input, localFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    } catch (Exception exception) {
+                        localFile.delete();
+                        MessageUtil.sendConsoleException(exception);
+
+                        return false;
+                    }
+
+                    return true;
+                }));
+            }
+        } catch (Exception exception) {
+            // Stops the uploads already submitted, which returns the slots of the buffer to the pool
+            buffer.fail(new IOException("Failed to start the backup", exception));
+            logger.log(intl("backup-local-failed"));
+            MessageUtil.sendConsoleException(exception);
+
+            return false;
+        }
+
+        boolean backupCreated = false;
+        ChecksumManifest checksums = null;
+        try {
+            checksums = fileUtil.makeBackup(location, backup.fileList, format, backup.set.reproducible, buffer.getOutputStream());
+            buffer.getOutputStream().close();
+            backupCreated = true;
+            backup.checksums = checksums;
+        } catch (Exception exception) {
+            buffer.fail(new IOException("Failed to create the backup", exception));
+            logger.log(intl("backup-local-failed"));
+        }
+
+        boolean successful;
+        try {
+            successful = awaitAll(consumers);
+        } catch (InterruptedException exception) {
+            buffer.fail(new IOException("Backup interrupted", exception));
+            Thread.currentThread().interrupt();
+
+            return false;
+        }
+
+        if (backupCreated && !successful && ConfigParser.getConfig().backupStorage.localKeepCount != 0) {
+            logger.log(intl("backup-local-failed"));
+        }
+
+        if (backupCreated && successful) {
+            File checksumsFile = fileUtil.saveChecksums(location, fileName, checksums);
+
+            if (checksumsFile != null) {
+                try {
+                    successful = uploadToAll(checksumsFile, type, uploaders);
+                } catch (InterruptedException exception) {
+                    Thread.currentThread().interrupt();
+
+                    return false;
+                }
+            }
+        }
+
+        fileUtil.pruneLocalBackups(type, formatter);
+
+        return backupCreated && successful;
+    }
+
+    /**
+     * Gets whether backups are uploaded while they are being created, rather than once saved locally
+     * <p>
+     * Backups split into volumes are always saved locally first, so the volumes can be uploaded independently. So are
+     * backups uploaded to OneDrive, as its upload sessions need the total size with every chunk, which a backup being
+     * created doesn't have yet.
+     * @param uploaders All services to upload to
+     * @return whether backups are streamed to the upload methods
+     */
+    private static boolean isStreamable(List<Uploader> uploaders) {
+        BackupStorage backupStorage = ConfigParser.getConfig().backupStorage;
+
+        if (!backupStorage.streamingUploads || backupStorage.volumeSize != 0 || uploaders.isEmpty()) {
+            return false;
+        }
+
+        for (Uploader uploader : uploaders) {
+            if (uploader instanceof OneDriveUploader) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Gets the folder the manifests of the backup locations are saved to
+     * @return the folder
+     */
+    private static File getManifestFolder() {
+        return new File(DriveBackup.getInstance().getDataFolder(), "manifests");
+    }
+
+    /**
+     * Loads the manifest of the previous backup of the specified backup location
+     * @param location Path to the folder
+     * @return the manifest, which is empty if it couldn't be loaded
+     */
+    private BackupManifest loadManifest(String location) {
+        File manifestFolder = getManifestFolder();
+
+        try {
+            return BackupManifest.load(manifestFolder, location);
+        } catch (Exception exception) {
+            logger.log(intl("local-backup-manifest-load-failed"));
+            MessageUtil.sendConsoleException(exception);
+
+            return new BackupManifest(BackupManifest.getFile(manifestFolder, location));
+        }
+    }
+
+    /**
+     * Uploads the data written to the specified buffer to each of the specified upload methods on the upload executor, 
+     * reporting how long each upload took once done
+     * <p>
+     * If an upload method uploaded a file which doesn't match the data, it's uploaded again from the specified local 
+     * file, up to {@link #MAX_UPLOAD_ATTEMPTS} attempts in total, or fails if there is none, as the data can't be read
+     * again
+     * @param uploaders the upload methods
+     * @param buffer the buffer the backup will be written to
+     * @param fileName the name of the backup file
+     * @param length the length of the backup, or -1 if unknown
+     * @param type the type of backup (ex. plugins, world)
+     * @param retryFile the local file the data is read from, or {@code null} if there is none
+     * @return the pending uploads, which result in whether they were successful
+     */
+    private List<Future<Boolean>> submitUploads(List<Uploader> uploaders, BroadcastRingBuffer buffer, String fileName, long length, String type, File retryFile) {
+        List<Future<Boolean>> uploads = new ArrayList<>();
+
+        for (Uploader uploader : uploaders) {
+            InputStream stream = buffer.newReader();
+
+            uploads.add(uploadExecutor.submit(() -> {
+                logger.info(
+                    intl("backup-method-uploading"),
+                    "upload-method",
+                    uploader.getName());
+
+                Timer timer = new Timer();
+                timer.start();
+
+                boolean uploaded = false;
+                for (int attempt = 1; ; attempt++) {
+                    // The streamed upload is the first attempt, the local file is read again for the rest
+                    try (InputStream input = attempt == 1 ? stream : new FileInputStream(retryFile)) {
+                        uploader.uploadFile(input, fileName, length, type);
+                        uploaded = !uploader.isErrorWhileUploading();
+
+                        break;
+                    } catch (HashMismatchException exception) {
+                        MessageUtil.sendConsoleException(exception);
+
+                        if (retryFile == null || attempt == MAX_UPLOAD_ATTEMPTS) {
+                            logger.log(
+                                intl("backup-method-hash-mismatch"),
+                                "file-name", fileName,
+                                "upload-method", uploader.getName());
+
+                            failedUploaders.add(uploader);
+
+                            break;
+                        }
+
+                        logger.log(
+                            intl("backup-method-hash-mismatch-retrying"),
+                            "file-name", fileName,
+                            "upload-method", uploader.getName());
+                    } catch (Exception exception) {
+                        MessageUtil.sendConsoleException(exception);
+
+                        break;
+                    }
+                }
+
+                timer.end();
+
+                if (uploaded) {
+                    logger.info(
+                        timer.getUploadTimeMessage(buffer.getTotalBytes()),
+                        "upload-method", uploader.getName());
+                } else {
+                    logger.info(
+                        intl("backup-method-upload-failed"),
+                        "upload-method", uploader.getName());
+                }
+
+                return uploaded;
+            }));
+        }
+
+        return uploads;
+    }
+
+    /**
+     * Uploads the specified file to each of the specified upload methods
+     * <p>
+     * The file is read once, and shared between all of the upload methods
+     * @param file the file
+     * @param type the type of backup (ex. plugins, world)
+     * @param uploaders the upload methods
+     * @return whether all of the uploads were successful
+     * @throws InterruptedException
+     */
+    private boolean uploadToAll(File file, String type, List<Uploader> uploaders) throws InterruptedException {
+        if (uploaders.isEmpty()) {
+            return true;
+        }
+
+        boolean locked = lockUploads(uploaders);
+        try {
+            BroadcastRingBuffer buffer = new BroadcastRingBuffer(STREAM_BUFFER_SLOTS, STREAM_BUFFER_SLOT_SIZE);
+            List<Future<Boolean>> uploads = submitUploads(uploaders, buffer, file.getName(), file.length(), type, file);
+
+            try {
+                Files.copy(file.toPath(), buffer.getOutputStream());
+                buffer.getOutputStream().close();
+            } catch (IOException exception) {
+                buffer.fail(exception);
+                MessageUtil.sendConsoleException(exception);
+            }
+
+            return awaitAll(uploads);
+        } finally {
+            if (locked) {
+                uploadLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Uploads the volumes and index of a backup split into volumes to each of the specified upload methods
+     * <p>
+     * The upload methods upload in parallel with each other. Those which support it upload several volumes at once, 
+     * after the first one, which creates the folder they are uploaded to. The index is uploaded once every volume is, 
+     * so only complete backups have an index.
+     * @param files the volumes, in order, followed by the index
+     * @param type the type of backup (ex. plugins, world)
+     * @param uploaders the upload methods
+     * @return whether all of the uploads were successful
+     * @throws InterruptedException
+     */
+    private boolean uploadVolumesToAll(List<File> files, String type, List<Uploader> uploaders) throws InterruptedException {
+        boolean locked = lockUploads(uploaders);
+        try {
+            return awaitAll(submitVolumeUploads(files, type, uploaders));
+        } finally {
+            if (locked) {
+                uploadLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Uploads the volumes and index of a backup split into volumes to each of the specified upload methods on the 
+     * upload executor, reporting how long each upload took once done
+     * @param files the volumes, in order, followed by the index
+     * @param type the type of backup (ex. plugins, world)
+     * @param uploaders the upload methods
+     * @return the pending uploads, which result in whether they were successful
+     */
+    private List<Future<Boolean>> submitVolumeUploads(List<File> files, String type, List<Uploader> uploaders) {
+        List<Future<Boolean>> uploads = new ArrayList<>();
+
+        for (Uploader uploader : uploaders) {
+            uploads.add(uploadExecutor.submit(() -> {
+                logger.info(
+                    intl("backup-method-uploading"),
+                    "upload-method",
+                    uploader.getName());
+
+                Timer timer = new Timer();
+                timer.start();
+
+                boolean uploaded = uploadVolumes(uploader, files, type);
+
+                timer.end();
+
+                if (uploaded) {
+                    long totalBytes = 0;
+                    for (File file : files) {
+                        totalBytes += file.length();
+                    }
+
+                    logger.info(
+                        timer.getUploadTimeMessage(totalBytes),
+                        "upload-method", uploader.getName());
+                } else {
+                    logger.info(
+                        intl("backup-method-upload-failed"),
+                        "upload-method", uploader.getName());
+                }
+
+                return uploaded;
+            }));
+        }
+
+        return uploads;
+    }
+
+    /**
+     * Uploads the volumes and index of a backup split into volumes to the specified upload method
+     * @param uploader the upload method
+     * @param files the volumes, in order, followed by the index
+     * @param type the type of backup (ex. plugins, world)
+     * @return whether all of the files were uploaded successfully
+     * @throws InterruptedException
+     */
+    private boolean uploadVolumes(Uploader uploader, List<File> files, String type) throws InterruptedException {
+        if (!uploadFile(uploader, files.get(0), type)) {
+            return false;
+        }
+
+        List<File> remainingVolumes = new ArrayList<>();
+        File index = null;
+        for (File file : files.subList(1, files.size())) {
+            if (ArchiveFormat.isIndex(file.getName())) {
+                index = file;
+            } else {
+                remainingVolumes.add(file);
+            }
+        }
+
+        if (uploader.supportsConcurrentUploads() && remainingVolumes.size() > 1) {
+            ExecutorService volumeExecutor = createExecutor(
+                "DriveBackup-upload-" + uploader.getId(),
+                Math.min(VOLUME_UPLOAD_THREADS, remainingVolumes.size()),
+                Thread.currentThread().getPriority());
+
+            try {
+                List<Future<Boolean>> uploads = new ArrayList<>();
+                for (File volume : remainingVolumes) {
+                    uploads.add(volumeExecutor.submit(() -> uploadFile(uploader, volume, type)));
+                }
+
+                if (!awaitAll(uploads)) {
+                    return false;
+                }
+            } finally {
+                volumeExecutor.shutdownNow();
+            }
+        } else {
+            for (File volume : remainingVolumes) {
+                if (!uploadFile(uploader, volume, type)) {
+                    return false;
+                }
+            }
+        }
+
+        return index == null || uploadFile(uploader, index, type);
+    }
+
+    /**
+     * Uploads the specified file to the specified upload method
+     * @param uploader the upload method
+     * @param file the file
+     * @param type the type of backup (ex. plugins, world)
+     * @return whether the file was uploaded successfully
+     */
+    private static boolean uploadFile(Uploader uploader, File file, String type) {
+        try {
+            uploader.uploadFile(file, type);
+        } catch (Exception exception) {
+            MessageUtil.sendConsoleException(exception);
+
+            return false;
+        }
+
+        return !uploader.isErrorWhileUploading();
+    }
+
+    /**
+     * Deletes the files with the specified names from each of the specified upload methods
+     * @param fileNames the names of the files
+     * @param type the type of backup (ex. plugins, world)
+     * @param uploaders the upload methods
+     */
+    private void deleteFromAll(List<String> fileNames, String type, List<Uploader> uploaders) {
+        boolean locked = lockUploads(uploaders);
+        try {
+            for (Uploader uploader : uploaders) {
+                try {
+                    for (String fileName : fileNames) {
+                        uploader.deleteFile(fileName, type);
+                    }
+                } catch (Exception exception) {
+                    logger.log(intl("backup-method-prune-failed"));
+                    MessageUtil.sendConsoleException(exception);
+                }
+            }
+        } finally {
+            if (locked) {
+                uploadLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Waits for the turn of this backup to upload, if any of the specified upload methods can't upload several files 
+     * at once, such as over a single FTP connection
+     * <p>
+     * Backups running at once take turns uploading to all of the upload methods, rather than to each of them, as two 
+     * streamed backups could otherwise each wait for an upload method the other one is using
+     * @param uploaders the upload methods
+     * @return whether this backup took its turn, which it has to end by unlocking {@link #uploadLock}
+     */
+    private boolean lockUploads(List<Uploader> uploaders) {
+        for (Uploader uploader : uploaders) {
+            if (!uploader.supportsConcurrentUploads()) {
+                uploadLock.lock();
+
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Waits for all of the specified uploads to finish
+     * @param uploads the pending uploads
+     * @return whether all of the uploads were successful
+     * @throws InterruptedException
+     */
+    private static boolean awaitAll(List<Future<Boolean>> uploads) throws InterruptedException {
+        boolean successful = true;
+
+        for (Future<Boolean> upload : uploads) {
+            try {
+                successful &= upload.get();
+            } catch (ExecutionException exception) {
+                MessageUtil.sendConsoleException(exception);
+                successful = false;
+            }
+        }
+
+        return successful;
+    }
+
+    /**
+     * Creates the executor the uploads are run on
+     * <p>
+     * There is a thread for each upload method and one for saving streamed backups locally, for each backup uploading
+     * at once, as every reader of a streamed backup has to run at the same time
+     * @param uploaderCount the number of upload methods
+     * @param concurrentUploads the number of backups uploading at once
+     * @param priority the priority of the threads
+     * @return the executor
+     */
+    private static ExecutorService createUploadExecutor(int uploaderCount, int concurrentUploads, int priority) {
+        return createExecutor("DriveBackup-upload", (uploaderCount + 1) * concurrentUploads, priority);
+    }
+
+    /**
+     * Creates an executor with a fixed number of daemon threads
+     * @param name the name of the threads, which are numbered
+     * @param threads the number of threads
+     * @param priority the priority of the threads
+     * @return the executor
+     */
+    private static ExecutorService createExecutor(String name, int threads, int priority) {
+        AtomicInteger threadNumber = new AtomicInteger();
+
+        return Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setPriority(priority);
+
+            return thread;
+        });
+    }
+
+    /**
+     * Downloads files from a FTP server and stores them within the external-backups temporary folder, using the specified external backup settings
+     * @param externalBackup the external backup settings
+     */
+    private void makeExternalFileBackup(ExternalFTPSource externalBackup) {
+        logger.info(
+            intl("external-ftp-backup-start"), 
+            "socked-addr", getSocketAddress(externalBackup));
+
+        FTPUploader ftpUploader = new FTPUploader(
+                logger,
+                externalBackup.hostname, 
+                externalBackup.port, 
+                externalBackup.username, 
+                externalBackup.password,
+                externalBackup.ftps,
+                externalBackup.sftp,
+                externalBackup.publicKey, 
+                externalBackup.passphrase,
+                "external-backups",
+                ".");
+
+        for (ExternalBackupListEntry backup : externalBackup.backupList) {
+            ArrayList<BlacklistEntry> blacklist = new ArrayList<>();
+
+            for (String blacklistGlob : backup.blacklist) {
+                BlacklistEntry blacklistEntry = new BlacklistEntry(
+                    blacklistGlob, 
+                    FileSystems.getDefault().getPathMatcher("glob:" + blacklistGlob)
+                    );
+    
+                blacklist.add(blacklistEntry);
+            }
+
+            String baseDirectory;
+            if (Strings.isNullOrEmpty(externalBackup.baseDirectory)) {
+                baseDirectory = backup.path;
+            } else {
+                baseDirectory = externalBackup.baseDirectory + "/" + backup.path;
+            }
+
+            for (String relativeFilePath : ftpUploader.getFiles(baseDirectory)) {
+                String filePath = baseDirectory + "/" + relativeFilePath;
+
+                for (BlacklistEntry blacklistEntry : blacklist) {
+                    if (blacklistEntry.getPathMatcher().matches(Paths.get(relativeFilePath))) {
+                        blacklistEntry.incBlacklistedFiles();
+    
+                        continue;
+                    } 
+                }
+
+                String parentFolder = new File(relativeFilePath).getParent();
+                String parentFolderPath;
+                if (parentFolder != null) {
+                    parentFolderPath = "/" + parentFolder;
+                } else {
+                    parentFolderPath = "";
+                }
+
+                ftpUploader.downloadFile(filePath, getTempFolderName(externalBackup) + "/" + backup.path + parentFolderPath);
+            }
+
+            for (BlacklistEntry blacklistEntry : blacklist) {
+                String globPattern = blacklistEntry.getGlobPattern();
+                int blacklistedFiles = blacklistEntry.getBlacklistedFiles();
+    
+                if (blacklistedFiles > 0) {
+                    logger.log(
+                        intl("external-ftp-backup-blacklisted"), 
+                        "blacklisted-files", String.valueOf(blacklistedFiles),
+                        "glob-pattern", globPattern);
+                }
+            }
+        }
+
+        ftpUploader.close();
+
+        BackupListEntry backup = new BackupListEntry(
+            new PathBackupLocation("external-backups" + "/" + getTempFolderName(externalBackup)),
+            externalBackup.format,
+            true,
+            new String[0],
+            false,
+            0,
+            false,
+            ArchiveFormat.ZIP_DEFLATE,
+            false,
+            false,
+            false,
+            false,
+            false
+        );
+        backupList.add(backup);
+
+        if (ftpUploader.isErrorWhileUploading()) {
+            logger.log(
+                intl("external-ftp-backup-failed"),
+                "socked-addr", getSocketAddress(externalBackup));
+        } else {
+            logger.info(
+                intl("external-ftp-backup-complete"),
+                "socked-addr", getSocketAddress(externalBackup));
+        }
+    }
+
+    /**
+     * Downloads databases from a MySQL server and stores them within the external-backups temporary folder, using the specified external backup settings
+     * @param externalBackup the external backup settings
+     */
+    private void makeExternalDatabaseBackup(ExternalMySQLSource externalBackup) {
+        logger.info(
+            intl("external-mysql-backup-start"), 
+            "socked-addr", getSocketAddress(externalBackup));
+
+        MySQLUploader mysqlUploader = new MySQLUploader(
+                externalBackup.hostname, 
+                externalBackup.port, 
+                externalBackup.username, 
+                externalBackup.password,
+                externalBackup.ssl);
+
+        for (MySQLDatabaseBackup database : externalBackup.databaseList) {
+            for (String blacklistEntry : database.blacklist) {
+                logger.log(
+                    intl("external-mysql-backup-blacklisted"), 
+                    "blacklist-entry", blacklistEntry);
+            }
+
+            mysqlUploader.downloadDatabase(database.name, getTempFolderName(externalBackup), Arrays.asList(database.blacklist));
+        }
+
+        BackupListEntry backup = new BackupListEntry(
+            new PathBackupLocation("external-backups" + "/" + getTempFolderName(externalBackup)),
+            externalBackup.format,
+            true,
+            new String[0],
+            false,
+            0,
+            false,
+            ArchiveFormat.ZIP_DEFLATE,
+            false,
+            false,
+            false,
+            false,
+            false
+        );
+        backupList.add(backup);
+
+        if (mysqlUploader.isErrorWhileUploading()) {
+            logger.log(
+                intl("external-mysql-backup-failed"), 
+                "socket-addr", getSocketAddress(externalBackup));
+        } else {
+            logger.info(
+                intl("external-mysql-backup-complete"),
+                "socked-addr", getSocketAddress(externalBackup));
+        }
+    }
+
+    /**
+     * Gets the current status of the backup thread
+     * <p>
+     * If several backup locations are backed up at once, the status of each backup list entry they belong to is on a
+     * separate line
+     * @return the status of the backup thread as a {@code String}
+     */
+    public static String getBackupStatus() {
+        if (backupStatus == BackupStatus.STAGING) {
+            return formatBackupStatus(intl("backup-status-staging"), backupBackingUp);
+        }
+        if (backupStatus == BackupStatus.EXTERNAL_BACKUPS) {
+            return intl("backup-status-external");
+        }
+
+        // Several folders of a glob location can be backed up at once
+        Set<String> messages = new LinkedHashSet<>();
+        for (PendingBackup backup : activeBackups) {
+            switch (backup.status) {
+                case COMPRESSING:
+                    messages.add(formatBackupStatus(intl("backup-status-compressing"), backup.setIndex));
+                    break;
+                case UPLOADING:
+                    messages.add(formatBackupStatus(intl("backup-status-uploading"), backup.setIndex));
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        if (messages.isEmpty()) {
+            return intl("backup-status-not-running");
+        }
+
+        return String.join("\n", messages);
+    }
+
+    /**
+     * Fills in the backup list entry in the specified backup status message
+     * <p>
+     * Includes the external backups added to the backup list by the backup thread
+     * @param message the message
+     * @param setIndex the index of the backup list entry
+     * @return the message
+     */
+    private static String formatBackupStatus(String message, int setIndex) {
+        List<BackupListEntry> backupList = UploadThread.backupList;
 
         return message
-            .replace("<set-name>", backupSetName)
-            .replace("<set-num>", String.valueOf(backupBackingUp + 1))
-            .replace("<set-count>", String.valueOf(backupList.length));
+            .replace("<set-name>", backupList.get(setIndex).location.toString())
+            .replace("<set-num>", String.valueOf(setIndex + 1))
+            .replace("<set-count>", String.valueOf(backupList.size()));
     }
 
     /**
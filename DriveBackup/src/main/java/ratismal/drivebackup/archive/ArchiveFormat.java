@@ -0,0 +1,238 @@
+package ratismal.drivebackup.archive;
+
+import java.util.regex.Pattern;
+
+/**
+ * The archive formats a backup can be created in
+ */
+public enum ArchiveFormat {
+    ZIP_DEFLATE("zip-deflate", ".zip", "application/zip"),
+    TAR_ZSTD("tar.zst", ".tar.zst", "application/zstd"),
+    TAR_LZ4("tar.lz4", ".tar.lz4", "application/x-lz4");
+
+    /**
+     * The extension of the index of a backup split into volumes, appended to the name of the backup
+     */
+    public static final String INDEX_EXTENSION = ".index";
+
+    /**
+     * The extension of the checksums saved next to a backup, appended to the name of the backup
+     */
+    public static final String CHECKSUMS_EXTENSION = ".checksums";
+
+    private static final String VOLUME_MIME_TYPE = "application/octet-stream";
+    private static final String INDEX_MIME_TYPE = "text/plain";
+    private static final Pattern VOLUME_EXTENSION = Pattern.compile("\\.[0-9]{3,}$");
+
+    private final String name;
+    private final String extension;
+    private final String mimeType;
+
+    ArchiveFormat(String name, String extension, String mimeType) {
+        this.name = name;
+        this.extension = extension;
+        this.mimeType = mimeType;
+    }
+
+    /**
+     * Gets the name of the format, as used in the {@code config.yml}
+     * @return the name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Gets the file extension of archives in this format
+     * @return the extension, including the leading {@code .}
+     */
+    public String getExtension() {
+        return extension;
+    }
+
+    /**
+     * Gets the MIME type of archives in this format
+     * @return the MIME type
+     */
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    /**
+     * Gets the MIME type of the backup with the specified file name
+     * <p>
+     * Volumes aren't valid archives on their own, so they are uploaded as plain binary data
+     * @param fileName the file name
+     * @return the MIME type, defaulting to that of zip archives
+     */
+    public static String getMimeType(String fileName) {
+        if (isVolume(fileName)) {
+            return VOLUME_MIME_TYPE;
+        }
+        if (isIndex(fileName) || isChecksums(fileName)) {
+            return INDEX_MIME_TYPE;
+        }
+
+        ArchiveFormat format = fromFileName(fileName);
+
+        return (format == null ? ZIP_DEFLATE : format).mimeType;
+    }
+
+    /**
+     * Gets the name of a backup in this format, replacing the {@code .zip} extension of the specified name
+     * <p>
+     * Backup file names are configured with a {@code .zip} extension, so the names of zip backups are left unchanged
+     * @param fileName the file name, as configured
+     * @return the file name
+     */
+    public String toFileName(String fileName) {
+        if (this == ZIP_DEFLATE || !fileName.endsWith(ZIP_DEFLATE.extension)) {
+            return fileName;
+        }
+
+        return fileName.substring(0, fileName.length() - ZIP_DEFLATE.extension.length()) + extension;
+    }
+
+    /**
+     * Gets the format with the specified name
+     * @param name the name, as used in the {@code config.yml}
+     * @return the format
+     * @throws IllegalArgumentException if there is no format with the specified name
+     */
+    public static ArchiveFormat fromName(String name) throws IllegalArgumentException {
+        for (ArchiveFormat format : values()) {
+            if (format.name.equalsIgnoreCase(name)) {
+                return format;
+            }
+        }
+
+        throw new IllegalArgumentException("Unknown archive format " + name);
+    }
+
+    /**
+     * Gets the format of the backup with the specified file name
+     * @param fileName the file name, which can be that of a volume or index of the backup
+     * @return the format, or {@code null} if the file isn't a backup archive
+     */
+    public static ArchiveFormat fromFileName(String fileName) {
+        fileName = getBackupName(fileName);
+
+        for (ArchiveFormat format : values()) {
+            if (fileName.endsWith(format.extension)) {
+                return format;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Gets whether the file with the specified name is a backup archive in any format, or part of one split into volumes
+     * @param fileName the file name
+     * @return whether the file is a backup archive
+     */
+    public static boolean isArchive(String fileName) {
+        return fromFileName(fileName) != null;
+    }
+
+    /**
+     * Gets the name the backup with the specified file name was configured with, with its {@code .zip} extension
+     * <p>
+     * The inverse of {@link #toFileName(String)}, so the date can be parsed from the name
+     * @param fileName the file name, which can be that of a volume or index of the backup
+     * @return the file name, as configured
+     */
+    public static String toConfiguredFileName(String fileName) {
+        fileName = getBackupName(fileName);
+
+        ArchiveFormat format = fromFileName(fileName);
+        if (format == null || format == ZIP_DEFLATE) {
+            return fileName;
+        }
+
+        return fileName.substring(0, fileName.length() - format.extension.length()) + ZIP_DEFLATE.extension;
+    }
+
+    /**
+     * Gets the file name of the specified volume of a backup split into volumes
+     * @param fileName the file name of the backup
+     * @param volume the number of the volume, starting at 1
+     * @return the file name of the volume
+     */
+    public static String getVolumeFileName(String fileName, int volume) {
+        return String.format("%s.%03d", fileName, volume);
+    }
+
+    /**
+     * Gets the file name of the index of a backup split into volumes
+     * @param fileName the file name of the backup
+     * @return the file name of the index
+     */
+    public static String getIndexFileName(String fileName) {
+        return fileName + INDEX_EXTENSION;
+    }
+
+    /**
+     * Gets the file name of the checksums saved next to a backup
+     * @param fileName the file name of the backup
+     * @return the file name of the checksums
+     */
+    public static String getChecksumsFileName(String fileName) {
+        return fileName + CHECKSUMS_EXTENSION;
+    }
+
+    /**
+     * Gets the file name of the backup the file with the specified name belongs to
+     * <p>
+     * The volumes and index of a backup split into volumes, and the checksums of a backup, all belong to the same
+     * backup, so they are kept, or pruned, together
+     * @param fileName the file name
+     * @return the file name of the backup, which is the specified name if it isn't a volume, index or checksums
+     */
+    public static String getBackupName(String fileName) {
+        String backupName;
+        if (fileName.endsWith(INDEX_EXTENSION)) {
+            backupName = fileName.substring(0, fileName.length() - INDEX_EXTENSION.length());
+        } else if (fileName.endsWith(CHECKSUMS_EXTENSION)) {
+            backupName = fileName.substring(0, fileName.length() - CHECKSUMS_EXTENSION.length());
+        } else {
+            backupName = VOLUME_EXTENSION.matcher(fileName).replaceFirst("");
+        }
+
+        // A file that merely ends with a number isn't a volume
+        for (ArchiveFormat format : values()) {
+            if (backupName.endsWith(format.extension)) {
+                return backupName;
+            }
+        }
+
+        return fileName;
+    }
+
+    /**
+     * Gets whether the file with the specified name is a volume of a backup split into volumes
+     * @param fileName the file name
+     * @return whether the file is a volume
+     */
+    public static boolean isVolume(String fileName) {
+        return !fileName.endsWith(INDEX_EXTENSION) && !fileName.endsWith(CHECKSUMS_EXTENSION) && !getBackupName(fileName).equals(fileName);
+    }
+
+    /**
+     * Gets whether the file with the specified name is the index of a backup split into volumes
+     * @param fileName the file name
+     * @return whether the file is an index
+     */
+    public static boolean isIndex(String fileName) {
+        return fileName.endsWith(INDEX_EXTENSION) && !getBackupName(fileName).equals(fileName);
+    }
+
+    /**
+     * Gets whether the file with the specified name is the checksums saved next to a backup
+     * @param fileName the file name
+     * @return whether the file is the checksums of a backup
+     */
+    public static boolean isChecksums(String fileName) {
+        return fileName.endsWith(CHECKSUMS_EXTENSION) && !getBackupName(fileName).equals(fileName);
+    }
+}
@@ -0,0 +1,98 @@
+package ratismal.drivebackup.archive;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes the files of a backup into an archive
+ */
+public interface ArchiveWriter extends Closeable {
+
+    /**
+     * Name of the entry listing the entries whose files couldn't be read part way through, one per line
+     * <p>
+     * Those entries are already in the archive under their own names by the time the file fails, with the rest of their
+     * contents filled with zeros or cut off, so they mustn't be restored. The entry is only added if any failed.
+     */
+    public static final String INCOMPLETE_ENTRIES_ENTRY = ".drivebackup-incomplete";
+
+    /**
+     * Handles a file that couldn't be included in the archive
+     */
+    public interface FailureHandler {
+        public void onFileFailed(File file, IOException exception);
+    }
+
+    /**
+     * The contents of an entry generated from a file, which are written to the archive as they're generated rather
+     * than held in memory
+     */
+    public interface EntryContent extends Closeable {
+
+        /**
+         * Gets the file the contents are generated from, which is reported if it can't be read part way through
+         * @return the file
+         */
+        public File getFile();
+
+        /**
+         * Gets the size of the contents, which has to be known before they're written
+         * @return the size, in bytes
+         */
+        public long getSize();
+
+        /**
+         * Writes the contents, which have to be exactly the size returned by {@link #getSize()}
+         * @param out the stream to write the contents to
+         * @throws IOException if the file couldn't be read, or writing the contents failed
+         */
+        public void writeTo(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Adds the specified file to the archive
+     * @param file the file
+     * @param entryName the path of the file inside the archive
+     * @throws IOException if writing the archive failed
+     */
+    public void addFile(File file, String entryName) throws IOException;
+
+    /**
+     * Adds the specified data to the archive
+     * @param data the contents of the entry
+     * @param entryName the path of the entry inside the archive
+     * @param lastModified the time the entry was last modified, in milliseconds since the epoch
+     * @throws IOException if writing the archive failed
+     */
+    public void addData(byte[] data, String entryName, long lastModified) throws IOException;
+
+    /**
+     * Adds the specified contents to the archive, writing them as they're generated
+     * <p>
+     * The contents are written before this returns, so they can be closed afterwards. If the file they're generated
+     * from can't be read part way through, it's reported to the failure handler, as with {@link #addFile}.
+     * @param content the contents of the entry
+     * @param entryName the path of the entry inside the archive
+     * @param lastModified the time the entry was last modified, in milliseconds since the epoch
+     * @throws IOException if writing the archive failed
+     */
+    public void addContent(EntryContent content, String entryName, long lastModified) throws IOException;
+
+    /**
+     * Writes the end of the archive, preceded by the {@link #INCOMPLETE_ENTRIES_ENTRY} if any entries are incomplete
+     * <p>
+     * Doesn't close the underlying stream
+     * @throws IOException
+     */
+    public void finish() throws IOException;
+
+    /**
+     * Gets the checksums of the files added to the archive, recorded as they were read
+     * <p>
+     * Only complete once the archive is finished. Files which couldn't be read completely aren't included.
+     * @return the checksums
+     */
+    public ChecksumManifest getChecksums();
+}
@@ -0,0 +1,485 @@
+package ratismal.drivebackup.archive;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The state of the files in a backup location as of its last backup, used to only back up the files which changed since
+ * <p>
+ * A file is unchanged if its size and modification time match the manifest. Files whose modification time changed are
+ * hashed, so files which were rewritten with the same contents aren't backed up again.
+ * <p>
+ * If region deltas are enabled, the header of each region file in the last full backup is recorded too, so incremental
+ * backups can only include the chunks saved since, see {@link RegionDelta}.
+ */
+public class BackupManifest {
+    private static final String HEADER = "DriveBackupV2 manifest 1";
+    private static final String BACKUPS_SINCE_FULL = "backups-since-full";
+    private static final String REGION = "region";
+    private static final String NO_HASH = "-";
+    private static final String SIZE_EXTENSION = ".size";
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final File file;
+    private Map<String, FileState> files = new HashMap<>();
+    private int backupsSinceFull;
+
+    /**
+     * Creates an instance of an empty {@code BackupManifest} object
+     * @param file the file the manifest is saved to
+     */
+    public BackupManifest(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Loads the manifest of the specified backup location from the specified folder
+     * <p>
+     * If the location hasn't been backed up before, an empty manifest is returned
+     * @param folder the folder containing the manifests
+     * @param location the location of the file or folder being backed up
+     * @return the manifest
+     * @throws IOException if the manifest couldn't be read
+     */
+    public static BackupManifest load(File folder, String location) throws IOException {
+        BackupManifest manifest = new BackupManifest(getFile(folder, location));
+        if (!manifest.file.exists()) {
+            return manifest;
+        }
+
+        try (BufferedReader reader = Files.newBufferedReader(manifest.file.toPath(), StandardCharsets.UTF_8)) {
+            if (!HEADER.equals(reader.readLine())) {
+                throw new IOException("Unsupported manifest " + manifest.file.getPath());
+            }
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", 4);
+
+                try {
+                    if (fields.length == 2 && fields[0].equals(BACKUPS_SINCE_FULL)) {
+                        manifest.backupsSinceFull = Integer.parseInt(fields[1]);
+                    } else if (fields.length == 4 && fields[0].equals(REGION)) {
+                        // Follows the line of the file it's about
+                        FileState state = manifest.files.get(fields[3]);
+                        if (state == null) {
+                            throw new IOException("Malformed manifest line in " + manifest.file.getPath());
+                        }
+
+                        RegionDelta.Base region = new RegionDelta.Base(Long.parseLong(fields[1]), Long.parseLong(fields[2], 16));
+                        manifest.files.put(fields[3], new FileState(state.size, state.lastModified, state.hash, region));
+                    } else if (fields.length == 4) {
+                        String hash = fields[2].equals(NO_HASH) ? null : fields[2];
+                        manifest.files.put(fields[3], new FileState(Long.parseLong(fields[0]), Long.parseLong(fields[1]), hash, null));
+                    } else {
+                        throw new IOException("Malformed manifest line in " + manifest.file.getPath());
+                    }
+                } catch (NumberFormatException exception) {
+                    throw new IOException("Malformed manifest line in " + manifest.file.getPath(), exception);
+                }
+            }
+        }
+
+        return manifest;
+    }
+
+    /**
+     * Saves the manifest, replacing the previous one
+     * @throws IOException
+     */
+    public void save() throws IOException {
+        file.getParentFile().mkdirs();
+        File tempFile = new File(file.getPath() + ".tmp");
+
+        try (BufferedWriter writer = Files.newBufferedWriter(tempFile.toPath(), StandardCharsets.UTF_8)) {
+            writer.write(HEADER);
+            writer.newLine();
+            writer.write(BACKUPS_SINCE_FULL + "\t" + backupsSinceFull);
+            writer.newLine();
+
+            for (Map.Entry<String, FileState> entry : files.entrySet()) {
+                FileState state = entry.getValue();
+
+                writer.write(state.size + "\t" + state.lastModified + "\t" + (state.hash == null ? NO_HASH : state.hash) + "\t" + entry.getKey());
+                writer.newLine();
+
+                if (state.region != null) {
+                    writer.write(REGION + "\t" + state.region.getNewestTimestamp() + "\t" + Long.toHexString(state.region.getCrc()) + "\t" + entry.getKey());
+                    writer.newLine();
+                }
+            }
+        }
+
+        try {
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException exception) {
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Gets whether the next backup should include all files
+     * @param fullBackupInterval the number of backups between full backups
+     * @return whether a full backup is due
+     */
+    public boolean isFullBackupDue(int fullBackupInterval) {
+        return files.isEmpty() || backupsSinceFull + 1 >= fullBackupInterval;
+    }
+
+    /**
+     * Compares the specified files to the state recorded in the manifest
+     * <p>
+     * Only the sizes and modification times of the files are compared, the files whose size or modification time
+     * changed are hashed, and the region files of a full backup read, by {@link Changes#verify(File)}, so that can be
+     * done on copies of the files once the server saves again
+     * @param folder the folder the file paths are relative to
+     * @param paths the paths of the files currently in the backup location
+     * @param full whether all files should be backed up, regardless of whether they changed
+     * @param regionDeltas whether incremental backups should only include the chunks of region files saved since the 
+     * last full backup
+     * @param assumedUnchanged the paths of files known to not have been written to since the previous backup, which 
+     * aren't stat-ed if they're in the manifest, and are otherwise compared like the other files
+     * @return the changes, which may include files which turn out to be unchanged until they're verified
+     */
+    public Changes compare(File folder, List<String> paths, boolean full, boolean regionDeltas, Set<String> assumedUnchanged) {
+        Map<String, FileState> newFiles = new HashMap<>((paths.size() + assumedUnchanged.size()) * 2);
+        List<String> changedFiles = new ArrayList<>();
+        List<String> unverifiedFiles = new ArrayList<>();
+        boolean modified = files.isEmpty();
+
+        List<String> comparedPaths = paths;
+        if (!assumedUnchanged.isEmpty()) {
+            comparedPaths = new ArrayList<>(paths);
+
+            for (String path : assumedUnchanged) {
+                FileState oldState = files.get(path);
+                if (oldState != null) {
+                    newFiles.put(path, oldState);
+                } else {
+                    comparedPaths.add(path);
+                }
+            }
+        }
+
+        for (String path : comparedPaths) {
+            File file = new File(folder, path);
+            long size = file.length();
+            long lastModified = file.lastModified();
+            FileState oldState = files.get(path);
+            boolean isRegion = regionDeltas && RegionDelta.isRegionFile(path);
+
+            boolean unchanged = oldState != null && oldState.size == size && oldState.lastModified == lastModified;
+
+            if (full) {
+                // The base of a region file is read once the files are verified
+                newFiles.put(path, new FileState(size, lastModified, unchanged ? oldState.hash : null, null));
+                changedFiles.add(path);
+                if (isRegion) {
+                    unverifiedFiles.add(path);
+                }
+                modified |= !unchanged;
+
+                continue;
+            }
+
+            RegionDelta.Base region = isRegion && oldState != null ? oldState.region : null;
+
+            if (unchanged) {
+                newFiles.put(path, oldState.region == region ? oldState : new FileState(size, lastModified, oldState.hash, region));
+
+                continue;
+            }
+
+            // Hashed once the files are verified
+            newFiles.put(path, new FileState(size, lastModified, null, region));
+            changedFiles.add(path);
+            unverifiedFiles.add(path);
+        }
+
+        List<String> deletedFiles = new ArrayList<>();
+        for (String path : files.keySet()) {
+            if (!newFiles.containsKey(path)) {
+                deletedFiles.add(path);
+            }
+        }
+        Collections.sort(deletedFiles);
+
+        if (full) {
+            // A full backup doesn't need the deletions, as it replaces everything before it
+            modified |= !deletedFiles.isEmpty();
+            deletedFiles.clear();
+        } else {
+            modified = !changedFiles.isEmpty() || !deletedFiles.isEmpty();
+        }
+
+        return new Changes(full, modified, changedFiles, deletedFiles, newFiles, files, unverifiedFiles);
+    }
+
+    /**
+     * Records the specified changes as backed up
+     * @param changes the changes
+     */
+    public void apply(Changes changes) {
+        files = changes.newFiles;
+        backupsSinceFull = changes.full ? 0 : backupsSinceFull + 1;
+    }
+
+    /**
+     * Loads the amount of data the last backup of the specified backup location read, so the biggest backups can be
+     * started first without listing the files of each location beforehand
+     * @param folder the folder containing the manifests
+     * @param location the location of the file or folder being backed up
+     * @return the size, in bytes, or -1 if it wasn't recorded
+     */
+    public static long loadBackupSize(File folder, String location) {
+        File file = getFile(folder, location, SIZE_EXTENSION);
+
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String line = reader.readLine();
+
+            return line == null ? -1 : Long.parseLong(line.trim());
+        } catch (IOException | NumberFormatException exception) {
+            return -1;
+        }
+    }
+
+    /**
+     * Saves the amount of data the backup of the specified backup location just created read, replacing the previous
+     * one
+     * @param folder the folder containing the manifests
+     * @param location the location of the file or folder being backed up
+     * @param size the size, in bytes
+     * @throws IOException
+     */
+    public static void saveBackupSize(File folder, String location, long size) throws IOException {
+        folder.mkdirs();
+        File file = getFile(folder, location, SIZE_EXTENSION);
+        File tempFile = new File(file.getPath() + ".tmp");
+
+        Files.write(tempFile.toPath(), String.valueOf(size).getBytes(StandardCharsets.UTF_8));
+
+        try {
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException exception) {
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Gets the file the manifest of the specified backup location is saved to
+     * @param folder the folder containing the manifests
+     * @param location the location of the file or folder being backed up
+     * @return the file
+     */
+    public static File getFile(File folder, String location) {
+        return getFile(folder, location, ".manifest");
+    }
+
+    /**
+     * Gets the file something about the specified backup location is saved to, named after the location
+     * @param folder the folder containing the file
+     * @param location the location of the file or folder being backed up
+     * @param extension the extension of the file
+     * @return the file
+     */
+    static File getFile(File folder, String location, String extension) {
+        String normalizedLocation = Paths.get(location).normalize().toString();
+        if (normalizedLocation.isEmpty() || normalizedLocation.equals(".")) {
+            normalizedLocation = "root";
+        }
+
+        try {
+            return new File(folder, URLEncoder.encode(normalizedLocation, "UTF-8") + extension);
+        } catch (UnsupportedEncodingException exception) {
+            throw new IllegalStateException(exception);
+        }
+    }
+
+    /**
+     * Calculates the SHA-256 hash of the specified file
+     * @param file the file
+     * @return the hash as a hex string, or {@code null} if the file couldn't be read
+     */
+    private static String hash(File file) {
+        try (InputStream stream = Files.newInputStream(file.toPath())) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[64 * 1024];
+
+            int read;
+            while ((read = stream.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+
+            return toHex(digest.digest());
+        } catch (IOException | NoSuchAlgorithmException exception) {
+            return null;
+        }
+    }
+
+    /**
+     * Converts the specified bytes to a lowercase hex string
+     * @param bytes the bytes
+     * @return the hex string
+     */
+    public static String toHex(byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xF];
+            hex[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xF];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * The size, modification time and hash of a file, and the version in the last full backup of a region file
+     */
+    private static final class FileState {
+        private final long size;
+        private final long lastModified;
+        private final String hash;
+        private final RegionDelta.Base region;
+
+        private FileState(long size, long lastModified, String hash, RegionDelta.Base region) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hash = hash;
+            this.region = region;
+        }
+    }
+
+    /**
+     * The differences between the files in a backup location and a {@code BackupManifest}
+     */
+    public static final class Changes {
+        private final boolean full;
+        private boolean modified;
+        private List<String> changedFiles;
+        private final List<String> deletedFiles;
+        private final Map<String, FileState> newFiles;
+        private final Map<String, FileState> oldFiles;
+        private List<String> unverifiedFiles;
+
+        private Changes(boolean full, boolean modified, List<String> changedFiles, List<String> deletedFiles, Map<String, FileState> newFiles, Map<String, FileState> oldFiles, List<String> unverifiedFiles) {
+            this.full = full;
+            this.modified = modified;
+            this.changedFiles = changedFiles;
+            this.deletedFiles = deletedFiles;
+            this.newFiles = newFiles;
+            this.oldFiles = oldFiles;
+            this.unverifiedFiles = unverifiedFiles;
+        }
+
+        /**
+         * Hashes the files whose size or modification time changed, leaving out those whose contents didn't, and reads
+         * the bases of the region files of a full backup
+         * <p>
+         * The files can be read from copies made when the files were compared, as long as the copies kept their
+         * modification times, so the server doesn't have to wait for the files to be read
+         * @param folder the folder the file paths are relative to
+         */
+        public void verify(File folder) {
+            if (unverifiedFiles.isEmpty()) {
+                return;
+            }
+
+            Set<String> unchangedFiles = new HashSet<>();
+            for (String path : unverifiedFiles) {
+                File file = new File(folder, path);
+                FileState state = newFiles.get(path);
+
+                if (full) {
+                    newFiles.put(path, new FileState(state.size, state.lastModified, state.hash, RegionDelta.readBase(file)));
+
+                    continue;
+                }
+
+                String hash = hash(file);
+                newFiles.put(path, new FileState(state.size, state.lastModified, hash, state.region));
+
+                FileState oldState = oldFiles.get(path);
+                if (oldState != null && oldState.size == state.size && hash != null && hash.equals(oldState.hash)) {
+                    unchangedFiles.add(path);
+                }
+            }
+            unverifiedFiles = Collections.emptyList();
+
+            if (unchangedFiles.isEmpty()) {
+                return;
+            }
+
+            List<String> files = new ArrayList<>(changedFiles.size() - unchangedFiles.size());
+            for (String path : changedFiles) {
+                if (!unchangedFiles.contains(path)) {
+                    files.add(path);
+                }
+            }
+            changedFiles = files;
+            modified = !changedFiles.isEmpty() || !deletedFiles.isEmpty();
+        }
+
+        /**
+         * Gets whether all files should be backed up
+         * @return whether this is a full backup
+         */
+        public boolean isFull() {
+            return full;
+        }
+
+        /**
+         * Gets the paths of the files which are new or changed, or of all files if this is a full backup
+         * <p>
+         * Until the changes are {@link #verify(File) verified}, this includes files which were rewritten with the same
+         * contents
+         * @return the file paths
+         */
+        public List<String> getChangedFiles() {
+            return changedFiles;
+        }
+
+        /**
+         * Gets the paths of the files which were deleted since the last backup
+         * @return the file paths
+         */
+        public List<String> getDeletedFiles() {
+            return deletedFiles;
+        }
+
+        /**
+         * Gets whether anything changed since the last backup
+         * @return whether any files were added, changed or deleted
+         */
+        public boolean hasChanges() {
+            return modified;
+        }
+
+        /**
+         * Gets the version of the specified region file a delta of it should be made against
+         * @param path the path of the file
+         * @return the base, or {@code null} if the whole file should be backed up
+         */
+        public RegionDelta.Base getRegionBase(String path) {
+            FileState state = newFiles.get(path);
+
+            return full || state == null ? null : state.region;
+        }
+    }
+}
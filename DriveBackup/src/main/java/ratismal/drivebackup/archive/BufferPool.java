@@ -0,0 +1,228 @@
+package ratismal.drivebackup.archive;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+/**
+ * A pool of heap buffers shared by everything backups do, so large buffers are reused rather than allocated for every
+ * block, chunk or upload
+ * <p>
+ * The memory taken up by the buffers in use and the buffers kept for reuse is kept within a ceiling. Buffers are
+ * always allocated, so nothing waits for memory, but a buffer released while over the ceiling is left to be garbage
+ * collected, and writers hold back on taking more buffers, see {@link #isOverCeiling()}.
+ * <p>
+ * If the heap is still nearly full after a garbage collection, the pooled buffers are dropped and the ceiling is
+ * halved until the heap usage drops again, so backups don't cause long garbage collection pauses on the server.
+ * <p>
+ * Safe to use from multiple threads
+ */
+public class BufferPool {
+    private static final long DEFAULT_CEILING = 256L * 1024 * 1024;
+    private static final long MIN_CEILING = 16L * 1024 * 1024;
+    private static final long RESTORE_CHECK_INTERVAL = 1000;
+
+    private static final Map<Integer, Queue<ByteBuffer>> pooled = new ConcurrentHashMap<>();
+    private static final AtomicLong takenBytes = new AtomicLong();
+    private static final AtomicLong pooledBytes = new AtomicLong();
+
+    private static volatile long configuredCeiling = DEFAULT_CEILING;
+    private static volatile long ceiling = DEFAULT_CEILING;
+    private static volatile long lastRestoreCheck;
+
+    private static MemoryPoolMXBean heapPool;
+    private static NotificationListener listener;
+    private static long previousThreshold;
+    private static volatile long heapThreshold;
+
+    private BufferPool() {
+    }
+
+    /**
+     * Sets the memory ceiling, and the heap usage at which it is lowered
+     * @param ceiling the most memory the buffers can take up, in bytes
+     * @param heapUsageThreshold the percentage of the heap still in use after a garbage collection at which the pooled
+     * buffers are dropped and the ceiling lowered
+     */
+    public static synchronized void configure(long ceiling, int heapUsageThreshold) {
+        configuredCeiling = ceiling;
+        BufferPool.ceiling = ceiling;
+
+        if (heapPool == null) {
+            heapPool = findOldGeneration();
+            if (heapPool == null) {
+                return;
+            }
+
+            listener = (Notification notification, Object handback) -> {
+                if (!notification.getType().equals(MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED)) {
+                    return;
+                }
+
+                MemoryNotificationInfo info = MemoryNotificationInfo.from((CompositeData) notification.getUserData());
+                if (info.getPoolName().equals(heapPool.getName()) && info.getUsage().getUsed() >= heapThreshold) {
+                    shrink();
+                }
+            };
+            ((NotificationEmitter) ManagementFactory.getMemoryMXBean()).addNotificationListener(listener, null, null);
+
+            previousThreshold = heapPool.getCollectionUsageThreshold();
+        }
+
+        heapThreshold = heapPool.getUsage().getMax() * heapUsageThreshold / 100;
+
+        // The threshold is shared with anything else watching the heap, so only ever lower it
+        long currentThreshold = heapPool.getCollectionUsageThreshold();
+        if (currentThreshold == 0 || currentThreshold > heapThreshold) {
+            heapPool.setCollectionUsageThreshold(heapThreshold);
+        }
+    }
+
+    /**
+     * Stops watching the heap usage, restoring the threshold it had before, and drops the pooled buffers, such as when
+     * the plugin is disabled, so nothing is left registered with the JVM
+     */
+    public static synchronized void shutdown() {
+        trim();
+
+        if (heapPool == null) {
+            return;
+        }
+
+        try {
+            ((NotificationEmitter) ManagementFactory.getMemoryMXBean()).removeNotificationListener(listener);
+        } catch (ListenerNotFoundException exception) {
+            // Already removed
+        }
+        heapPool.setCollectionUsageThreshold(previousThreshold);
+
+        heapPool = null;
+        listener = null;
+        ceiling = configuredCeiling;
+    }
+
+    /**
+     * Takes a buffer from the pool, allocating a new one if none of the specified size are available
+     * @param size the size of the buffer, in bytes
+     * @return the buffer, cleared
+     */
+    public static ByteBuffer acquire(int size) {
+        restoreCeiling();
+
+        takenBytes.addAndGet(size);
+
+        Queue<ByteBuffer> buffers = pooled.get(size);
+        ByteBuffer buffer = buffers == null ? null : buffers.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocate(size);
+        }
+
+        pooledBytes.addAndGet(-size);
+        buffer.clear();
+
+        return buffer;
+    }
+
+    /**
+     * Returns the specified buffer to the pool, unless the pool is over the ceiling
+     * <p>
+     * The buffer mustn't be used once released
+     * @param buffer a buffer taken from this pool
+     */
+    public static void release(ByteBuffer buffer) {
+        int size = buffer.capacity();
+
+        long taken = takenBytes.addAndGet(-size);
+        if (taken + pooledBytes.get() + size > ceiling) {
+            return;
+        }
+
+        pooledBytes.addAndGet(size);
+        pooled.computeIfAbsent(size, key -> new ConcurrentLinkedQueue<>()).offer(buffer);
+    }
+
+    /**
+     * Gets whether the buffers in use and kept for reuse take up more memory than the ceiling
+     * <p>
+     * Writers which can work with fewer buffers, at the cost of less parallelism, should hold back while this is the
+     * case
+     * @return whether the pool is over the ceiling
+     */
+    public static boolean isOverCeiling() {
+        return takenBytes.get() + pooledBytes.get() > ceiling;
+    }
+
+    /**
+     * Drops the buffers kept for reuse, such as once a backup is done, so they can be garbage collected
+     */
+    public static void trim() {
+        for (Queue<ByteBuffer> buffers : pooled.values()) {
+            ByteBuffer buffer;
+            while ((buffer = buffers.poll()) != null) {
+                pooledBytes.addAndGet(-buffer.capacity());
+            }
+        }
+    }
+
+    /**
+     * Drops the pooled buffers and halves the ceiling, as the heap is nearly full
+     */
+    private static void shrink() {
+        ceiling = Math.max(MIN_CEILING, ceiling / 2);
+        trim();
+    }
+
+    /**
+     * Restores the configured ceiling once the heap usage dropped below the threshold again, checking at most once a
+     * second
+     */
+    private static void restoreCeiling() {
+        if (ceiling == configuredCeiling || heapPool == null) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        if (now - lastRestoreCheck < RESTORE_CHECK_INTERVAL) {
+            return;
+        }
+        lastRestoreCheck = now;
+
+        if (heapPool.getCollectionUsage().getUsed() < heapThreshold) {
+            ceiling = configuredCeiling;
+        }
+    }
+
+    /**
+     * Finds the heap memory pool long-lived objects end up in, which is the largest one whose usage after a garbage
+     * collection can be watched
+     * @return the memory pool, or {@code null} if there is none
+     */
+    private static MemoryPoolMXBean findOldGeneration() {
+        MemoryPoolMXBean oldGeneration = null;
+
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() != MemoryType.HEAP || !pool.isCollectionUsageThresholdSupported() || pool.getUsage().getMax() <= 0) {
+                continue;
+            }
+
+            if (oldGeneration == null || pool.getUsage().getMax() > oldGeneration.getUsage().getMax()) {
+                oldGeneration = pool;
+            }
+        }
+
+        return oldGeneration;
+    }
+}
@@ -0,0 +1,210 @@
+package ratismal.drivebackup.archive;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The checksums of a backup archive and of each file in it, saved next to the backup so it can be verified without
+ * being extracted
+ * <p>
+ * The checksums are recorded while the archive is written, the CRC-32 of each file by the archive writer as it reads
+ * the file, and the SHA-256 hash of the archive as it is written out, so creating them doesn't read anything twice.
+ */
+public class ChecksumManifest {
+    private static final String HEADER = "DriveBackupV2 checksums 1";
+    private static final String ARCHIVE = "archive";
+
+    private final List<FileChecksum> files = new ArrayList<>();
+    private long archiveSize = -1;
+    private String archiveHash;
+
+    /**
+     * Records the checksum of a file added to the archive
+     * @param name the path of the file inside the archive
+     * @param size the size of the file, in bytes
+     * @param crc the CRC-32 of the file
+     */
+    void addFile(String name, long size, long crc) {
+        files.add(new FileChecksum(name, size, crc));
+    }
+
+    /**
+     * Records the size and hash of the archive, once it's complete
+     * @param size the size of the archive, in bytes
+     * @param hash the SHA-256 hash of the archive
+     */
+    public void setArchive(long size, byte[] hash) {
+        archiveSize = size;
+        archiveHash = BackupManifest.toHex(hash);
+    }
+
+    /**
+     * Gets the size of the archive
+     * @return the size, in bytes, or -1 if it wasn't recorded
+     */
+    public long getArchiveSize() {
+        return archiveSize;
+    }
+
+    /**
+     * Gets the SHA-256 hash of the archive
+     * <p>
+     * The hash of a backup split into volumes is that of the volumes concatenated in order
+     * @return the hash, as a hexadecimal string, or {@code null} if it wasn't recorded
+     */
+    public String getArchiveHash() {
+        return archiveHash;
+    }
+
+    /**
+     * Gets the checksums of the files in the archive, in the order they were added
+     * <p>
+     * Files which couldn't be read completely aren't included
+     * @return the checksums
+     */
+    public List<FileChecksum> getFiles() {
+        return Collections.unmodifiableList(files);
+    }
+
+    /**
+     * Gets the total size of the files in the archive
+     * <p>
+     * Files which couldn't be read completely aren't included
+     * @return the size, in bytes
+     */
+    public long getFilesSize() {
+        long size = 0;
+        for (FileChecksum checksum : files) {
+            size += checksum.size;
+        }
+
+        return size;
+    }
+
+    /**
+     * Gets the file the checksums of the last backup of the specified backup location uploaded are kept in, so a
+     * reproducible backup identical to it doesn't need to be uploaded again
+     * @param folder the folder containing the manifests
+     * @param location the location of the file or folder being backed up
+     * @return the file
+     */
+    public static File getFile(File folder, String location) {
+        return BackupManifest.getFile(folder, location, ArchiveFormat.CHECKSUMS_EXTENSION);
+    }
+
+    /**
+     * Loads the checksums saved in the specified file
+     * @param file the file
+     * @return the checksums
+     * @throws IOException if the file couldn't be read, or isn't a checksum manifest
+     */
+    public static ChecksumManifest load(File file) throws IOException {
+        ChecksumManifest manifest = new ChecksumManifest();
+
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            if (!HEADER.equals(reader.readLine())) {
+                throw new IOException("Unsupported checksum manifest " + file.getPath());
+            }
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", 3);
+
+                try {
+                    if (fields.length == 3 && fields[0].equals(ARCHIVE)) {
+                        manifest.archiveSize = Long.parseLong(fields[1]);
+                        manifest.archiveHash = fields[2];
+                    } else if (fields.length == 3) {
+                        manifest.addFile(fields[2], Long.parseLong(fields[0]), Long.parseLong(fields[1], 16));
+                    } else {
+                        throw new IOException("Malformed checksum manifest line in " + file.getPath());
+                    }
+                } catch (NumberFormatException exception) {
+                    throw new IOException("Malformed checksum manifest line in " + file.getPath(), exception);
+                }
+            }
+        }
+
+        return manifest;
+    }
+
+    /**
+     * Saves the checksums to the specified file, replacing it if it exists
+     * <p>
+     * The file is only replaced once it's completely written, so it's never left half written
+     * @param file the file
+     * @throws IOException
+     */
+    public void save(File file) throws IOException {
+        File tempFile = new File(file.getPath() + ".tmp");
+
+        try (BufferedWriter writer = Files.newBufferedWriter(tempFile.toPath(), StandardCharsets.UTF_8)) {
+            writer.write(HEADER);
+            writer.newLine();
+
+            if (archiveHash != null) {
+                writer.write(ARCHIVE + "\t" + archiveSize + "\t" + archiveHash);
+                writer.newLine();
+            }
+
+            for (FileChecksum checksum : files) {
+                writer.write(checksum.size + "\t" + String.format("%08x", checksum.crc) + "\t" + checksum.name);
+                writer.newLine();
+            }
+        }
+
+        try {
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException exception) {
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * The checksum of a file in the archive
+     */
+    public static final class FileChecksum {
+        private final String name;
+        private final long size;
+        private final long crc;
+
+        private FileChecksum(String name, long size, long crc) {
+            this.name = name;
+            this.size = size;
+            this.crc = crc;
+        }
+
+        /**
+         * Gets the path of the file inside the archive
+         * @return the path
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Gets the size of the file
+         * @return the size, in bytes
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * Gets the CRC-32 of the file
+         * @return the CRC-32
+         */
+        public long getCrc() {
+            return crc;
+        }
+    }
+}
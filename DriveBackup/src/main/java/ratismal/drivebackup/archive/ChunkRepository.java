@@ -0,0 +1,1123 @@
+package ratismal.drivebackup.archive;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdDictCompress;
+import com.github.luben.zstd.ZstdDictDecompress;
+import com.github.luben.zstd.ZstdDictTrainer;
+
+/**
+ * A deduplicating backup repository, which stores each unique chunk of the backed up files once
+ * <p>
+ * Files are split into content-defined chunks, which are compressed and stored locally under the SHA-256 hash of their
+ * contents. Each backup writes a snapshot, listing the chunks of every file, and a pack containing only the chunks
+ * which weren't uploaded by a previous backup. The snapshot and pack are what gets uploaded.
+ * <p>
+ * Layout of the repository folder:
+ * <ul>
+ * <li>{@code chunks/<first two hash digits>/<hash>} the raw deflate compressed chunks</li>
+ * <li>{@code snapshots/<name>.snapshot} the snapshots</li>
+ * <li>{@code packs/<name>.index} the hashes of the chunks in each uploaded pack</li>
+ * <li>{@code dictionaries/<dictionary ID>.dict} the zstd dictionaries trained for the repository</li>
+ * </ul>
+ * A pack file starts with {@link #PACK_MAGIC}, followed by each chunk as its 32 byte hash, its uncompressed length, its
+ * compressed length and its compressed data.
+ * <p>
+ * If dictionaries are enabled, small chunks, which are mostly whole small files such as player data, are compressed
+ * with zstd and a dictionary trained on the small chunks of an earlier snapshot instead, as they're too small to
+ * compress well on their own. Such a chunk is a zstd frame, which a raw deflate stream can never start like, and the
+ * frame header holds the ID of its dictionary. A new dictionary is uploaded as {@code <name>.dict} along with the
+ * snapshot it was trained on, before any pack uses it, and is retrained every {@link #RETRAIN_INTERVAL} snapshots.
+ * <p>
+ * Once most of the chunks in a pack are no longer referenced, the rest are {@link #repack(String) repacked}, so the pack
+ * can be deleted. A snapshot is {@link #restore(File, File, File, ArchiveWriter.FailureHandler) restored} from the
+ * packs and dictionaries uploaded along with it.
+ */
+public class ChunkRepository {
+    public static final String SNAPSHOT_EXTENSION = ".snapshot";
+    public static final String PACK_EXTENSION = ".pack";
+    public static final String DICTIONARY_EXTENSION = ".dict";
+
+    private static final String SNAPSHOT_HEADER = "DriveBackupV2 snapshot 1";
+    private static final String PACK_INDEX_HEADER = "DriveBackupV2 pack index 1";
+    private static final String PACK_INDEX_EXTENSION = ".index";
+    private static final byte[] PACK_MAGIC = "DBV2PACK".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] ZSTD_MAGIC = { 0x28, (byte) 0xB5, 0x2F, (byte) 0xFD };
+    private static final int HASH_LENGTH = 32;
+    private static final String NO_CHUNKS = "-";
+
+    /**
+     * Size below which chunks are compressed with the dictionary, the smallest a chunk that isn't the end of a file can be
+     */
+    private static final int SMALL_CHUNK_SIZE = ContentDefinedChunker.MIN_CHUNK_SIZE;
+    private static final int DICTIONARY_SIZE = 112 * 1024;
+    private static final int SAMPLE_BUFFER_SIZE = 8 * 1024 * 1024;
+    private static final int MIN_SAMPLE_COUNT = 100;
+
+    /**
+     * Number of snapshots after which the dictionary is trained again, so it follows the files as they change
+     */
+    private static final int RETRAIN_INTERVAL = 20;
+
+    /**
+     * Fraction of the chunks in a pack which have to still be referenced for the pack to be kept as it is
+     */
+    private static final double REPACK_THRESHOLD = 0.5;
+
+    private final File folder;
+    private final File chunkFolder;
+    private final File snapshotFolder;
+    private final File packFolder;
+    private final File dictionaryFolder;
+    private final int level;
+    private final boolean dictionaries;
+    private final int dictionaryLevel;
+
+    /**
+     * The dictionary small chunks are compressed with, if any
+     */
+    private byte[] dictionary;
+    private File dictionaryFile;
+
+    /**
+     * Hashes of the chunks in packs which were uploaded
+     */
+    private final Set<String> packedChunks = new HashSet<>();
+
+    /**
+     * Opens the repository in the specified folder, creating it if it doesn't exist
+     * @param folder the folder
+     * @param level the deflate compression level of new chunks
+     * @param dictionaries whether to train dictionaries and compress small chunks with them
+     * @param dictionaryLevel the zstd compression level of small chunks
+     * @throws IOException if the repository couldn't be read
+     */
+    public ChunkRepository(File folder, int level, boolean dictionaries, int dictionaryLevel) throws IOException {
+        this.folder = folder;
+        this.chunkFolder = new File(folder, "chunks");
+        this.snapshotFolder = new File(folder, "snapshots");
+        this.packFolder = new File(folder, "packs");
+        this.dictionaryFolder = new File(folder, "dictionaries");
+        this.level = level;
+        this.dictionaries = dictionaries;
+        this.dictionaryLevel = dictionaryLevel;
+
+        chunkFolder.mkdirs();
+        snapshotFolder.mkdirs();
+        packFolder.mkdirs();
+
+        for (File packIndex : listFiles(packFolder, PACK_INDEX_EXTENSION)) {
+            packedChunks.addAll(readPackIndex(packIndex));
+        }
+
+        if (dictionaries) {
+            // The newest dictionary is the current one, the older ones are only kept to read the chunks using them
+            for (File file : listFiles(dictionaryFolder, DICTIONARY_EXTENSION)) {
+                if (dictionaryFile == null || file.lastModified() > dictionaryFile.lastModified()) {
+                    dictionaryFile = file;
+                }
+            }
+
+            if (dictionaryFile != null) {
+                dictionary = Files.readAllBytes(dictionaryFile.toPath());
+            }
+        }
+    }
+
+    /**
+     * Creates a snapshot of the specified files, storing any new chunks
+     * <p>
+     * The snapshot only becomes part of the repository once it's {@link #commit(Snapshot) committed}
+     * @param name the name of the snapshot
+     * @param inputFolder the folder the file paths are relative to
+     * @param paths the paths of the files, which are only iterated over once
+     * @param failureHandler what to do with files that can't be read
+     * @return the snapshot
+     * @throws IOException if the repository couldn't be written to
+     */
+    public Snapshot createSnapshot(String name, File inputFolder, Iterable<String> paths, ArchiveWriter.FailureHandler failureHandler) throws IOException {
+        Snapshot snapshot = new Snapshot(
+            name, 
+            new File(snapshotFolder, name + SNAPSHOT_EXTENSION), 
+            new File(folder, name + PACK_EXTENSION), 
+            new File(folder, name + DICTIONARY_EXTENSION));
+        File tempSnapshotFile = new File(snapshot.snapshotFile.getPath() + ".tmp");
+
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException exception) {
+            throw new IOException(exception);
+        }
+
+        Deflater deflater = new Deflater(level, true);
+        byte[] compressed = new byte[ContentDefinedChunker.MAX_CHUNK_SIZE + (ContentDefinedChunker.MAX_CHUNK_SIZE >> 8) + 64];
+
+        ZstdDictCompress dictionaryCompressor = dictionary == null ? null : new ZstdDictCompress(dictionary, dictionaryLevel);
+        ZstdDictTrainer trainer = dictionaries && isTrainingDue() ? new ZstdDictTrainer(SAMPLE_BUFFER_SIZE, DICTIONARY_SIZE) : null;
+        boolean sampling = trainer != null;
+        int sampleCount = 0;
+
+        try (
+            DataOutputStream pack = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(snapshot.packFile), 64 * 1024));
+            BufferedWriter writer = Files.newBufferedWriter(tempSnapshotFile.toPath(), StandardCharsets.UTF_8)
+        ) {
+            pack.write(PACK_MAGIC);
+            writer.write(SNAPSHOT_HEADER);
+            writer.newLine();
+
+            for (String path : paths) {
+                File file = new File(inputFolder, path);
+                long lastModified = file.lastModified();
+                long size = 0;
+                StringBuilder hashes = new StringBuilder();
+
+                try (InputStream stream = new FileInputStream(file)) {
+                    ContentDefinedChunker chunker = new ContentDefinedChunker(stream);
+
+                    int length;
+                    while ((length = chunker.nextChunk()) > 0) {
+                        byte[] chunk = chunker.getBuffer();
+                        size += length;
+
+                        digest.update(chunk, 0, length);
+                        byte[] hashBytes = digest.digest();
+                        String hash = BackupManifest.toHex(hashBytes);
+
+                        if (hashes.length() > 0) {
+                            hashes.append(',');
+                        }
+                        hashes.append(hash);
+                        snapshot.chunkCount++;
+
+                        if (sampling && length < SMALL_CHUNK_SIZE) {
+                            // Stops once the sample buffer is full
+                            sampling = trainer.addSample(Arrays.copyOf(chunk, length));
+                            if (sampling) {
+                                sampleCount++;
+                            }
+                        }
+
+                        boolean packed = packedChunks.contains(hash) || snapshot.newChunks.contains(hash);
+                        File chunkFile = getChunkFile(hash);
+                        if (packed && chunkFile.exists()) {
+                            continue;
+                        }
+
+                        int compressedLength = compress(deflater, dictionaryCompressor, chunk, length, compressed);
+                        if (!chunkFile.exists()) {
+                            writeChunk(chunkFile, compressed, compressedLength);
+                        }
+
+                        if (!packed) {
+                            pack.write(hashBytes);
+                            pack.writeInt(length);
+                            pack.writeInt(compressedLength);
+                            pack.write(compressed, 0, compressedLength);
+
+                            snapshot.newChunks.add(hash);
+                            snapshot.newBytes += compressedLength;
+                        }
+                    }
+                } catch (IOException exception) {
+                    failureHandler.onFileFailed(file, exception);
+
+                    continue;
+                }
+
+                writer.write(size + "\t" + lastModified + "\t" + (hashes.length() == 0 ? NO_CHUNKS : hashes) + "\t" + path);
+                writer.newLine();
+                snapshot.size += size;
+            }
+        } catch (IOException | RuntimeException exception) {
+            tempSnapshotFile.delete();
+            snapshot.packFile.delete();
+
+            throw exception;
+        } finally {
+            deflater.end();
+
+            if (dictionaryCompressor != null) {
+                dictionaryCompressor.close();
+            }
+        }
+
+        move(tempSnapshotFile, snapshot.snapshotFile);
+
+        if (trainer != null) {
+            train(trainer, sampleCount, snapshot);
+        }
+
+        if (snapshot.newChunks.isEmpty()) {
+            snapshot.packFile.delete();
+        }
+
+        return snapshot;
+    }
+
+    /**
+     * Records the specified snapshot and its pack as uploaded, so later snapshots can reuse its chunks
+     * @param snapshot the snapshot
+     * @throws IOException
+     */
+    public void commit(Snapshot snapshot) throws IOException {
+        if (snapshot.dictionary != null) {
+            File newDictionaryFile = new File(dictionaryFolder, (Zstd.getDictIdFromDict(snapshot.dictionary) & 0xFFFFFFFFL) + DICTIONARY_EXTENSION);
+            dictionaryFolder.mkdirs();
+            move(snapshot.dictionaryFile, newDictionaryFile);
+
+            dictionary = snapshot.dictionary;
+            dictionaryFile = newDictionaryFile;
+        }
+
+        if (!snapshot.newChunks.isEmpty()) {
+            File packIndex = new File(packFolder, snapshot.name + PACK_INDEX_EXTENSION);
+            File tempPackIndex = new File(packIndex.getPath() + ".tmp");
+
+            try (BufferedWriter writer = Files.newBufferedWriter(tempPackIndex.toPath(), StandardCharsets.UTF_8)) {
+                writer.write(PACK_INDEX_HEADER);
+                writer.newLine();
+
+                for (String hash : snapshot.newChunks) {
+                    writer.write(hash);
+                    writer.newLine();
+                }
+            }
+
+            move(tempPackIndex, packIndex);
+            packedChunks.addAll(snapshot.newChunks);
+        }
+
+        snapshot.packFile.delete();
+    }
+
+    /**
+     * Discards the specified snapshot, its new chunks are removed by the next {@link #prune(int) prune}
+     * @param snapshot the snapshot
+     */
+    public void abort(Snapshot snapshot) {
+        snapshot.snapshotFile.delete();
+        snapshot.packFile.delete();
+        snapshot.dictionaryFile.delete();
+    }
+
+    /**
+     * Deletes the oldest snapshots past the number to retain, then garbage collects the chunks and packs which are no
+     * longer referenced by any snapshot
+     * <p>
+     * A pack is only removed once none of its chunks are referenced, a pack which is partially referenced stays until
+     * it's {@link #repack(String) repacked}
+     * @param keepCount the number of snapshots to retain, or {@code -1} to retain all of them
+     * @return the names of the removed snapshot and pack files, which should also be deleted remotely
+     * @throws IOException
+     */
+    public List<String> prune(int keepCount) throws IOException {
+        List<String> removedFiles = new ArrayList<>();
+        if (keepCount == -1) {
+            return removedFiles;
+        }
+
+        List<File> snapshots = listFiles(snapshotFolder, SNAPSHOT_EXTENSION);
+        if (snapshots.size() <= keepCount) {
+            return removedFiles;
+        }
+
+        // Oldest first
+        Collections.sort(snapshots, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                int comparison = Long.compare(a.lastModified(), b.lastModified());
+                return comparison != 0 ? comparison : a.getName().compareTo(b.getName());
+            }
+        });
+
+        while (snapshots.size() > keepCount) {
+            File snapshot = snapshots.remove(0);
+            if (!snapshot.delete()) {
+                throw new IOException("Couldn't delete " + snapshot.getPath());
+            }
+
+            removedFiles.add(snapshot.getName());
+        }
+
+        Set<String> referencedChunks = getReferencedChunks();
+
+        for (File packIndex : listFiles(packFolder, PACK_INDEX_EXTENSION)) {
+            List<String> chunks = readPackIndex(packIndex);
+            if (!Collections.disjoint(chunks, referencedChunks)) {
+                continue;
+            }
+
+            if (!packIndex.delete()) {
+                throw new IOException("Couldn't delete " + packIndex.getPath());
+            }
+
+            packedChunks.removeAll(chunks);
+
+            String indexName = packIndex.getName();
+            removedFiles.add(indexName.substring(0, indexName.length() - PACK_INDEX_EXTENSION.length()) + PACK_EXTENSION);
+        }
+
+        File[] prefixFolders = chunkFolder.listFiles();
+        if (prefixFolders != null) {
+            for (File prefixFolder : prefixFolders) {
+                File[] chunkFiles = prefixFolder.listFiles();
+                if (chunkFiles == null) {
+                    continue;
+                }
+
+                for (File chunkFile : chunkFiles) {
+                    if (!referencedChunks.contains(chunkFile.getName())) {
+                        chunkFile.delete();
+                    }
+                }
+            }
+        }
+
+        return removedFiles;
+    }
+
+    /**
+     * Writes the chunks which are still referenced from the packs which are mostly unreferenced into a new pack, so
+     * those packs can be deleted
+     * <p>
+     * The chunks are read from the local copies kept of every referenced chunk. The new pack only replaces the old
+     * ones once the repack is {@link #commit(Repack) committed}.
+     * @param name the name of the new pack
+     * @return the repack, or {@code null} if no pack needs repacking
+     * @throws IOException if the repository couldn't be read, or a chunk is missing
+     */
+    public Repack repack(String name) throws IOException {
+        Set<String> referencedChunks = getReferencedChunks();
+        Repack repack = new Repack(name, new File(folder, name + PACK_EXTENSION));
+
+        for (File packIndex : listFiles(packFolder, PACK_INDEX_EXTENSION)) {
+            List<String> chunks = readPackIndex(packIndex);
+
+            List<String> liveChunks = new ArrayList<>();
+            for (String chunk : chunks) {
+                if (referencedChunks.contains(chunk)) {
+                    liveChunks.add(chunk);
+                }
+            }
+
+            // Packs without any referenced chunks are removed by prune instead
+            if (liveChunks.isEmpty() || liveChunks.size() >= chunks.size() * REPACK_THRESHOLD) {
+                continue;
+            }
+
+            repack.packIndexes.add(packIndex);
+            repack.chunks.addAll(liveChunks);
+        }
+
+        if (repack.packIndexes.isEmpty()) {
+            return null;
+        }
+
+        Map<Long, ZstdDictDecompress> dictionaries = loadDictionaries(dictionaryFolder);
+        Inflater inflater = new Inflater(true);
+        byte[] uncompressed = new byte[ContentDefinedChunker.MAX_CHUNK_SIZE];
+
+        try (DataOutputStream pack = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(repack.packFile), 64 * 1024))) {
+            pack.write(PACK_MAGIC);
+
+            for (String hash : repack.chunks) {
+                File chunkFile = getChunkFile(hash);
+                if (!chunkFile.exists()) {
+                    throw new IOException("Missing chunk " + chunkFile.getPath());
+                }
+
+                byte[] compressed = Files.readAllBytes(chunkFile.toPath());
+                int length = decompress(compressed, compressed.length, uncompressed, inflater, dictionaries);
+
+                pack.write(fromHex(hash));
+                pack.writeInt(length);
+                pack.writeInt(compressed.length);
+                pack.write(compressed);
+
+                repack.bytes += compressed.length;
+            }
+        } catch (IOException | RuntimeException exception) {
+            repack.packFile.delete();
+
+            throw exception;
+        } finally {
+            inflater.end();
+            closeDictionaries(dictionaries);
+        }
+
+        return repack;
+    }
+
+    /**
+     * Records the specified repack as uploaded, replacing the packs it was made from
+     * @param repack the repack
+     * @return the names of the replaced pack files, which should also be deleted remotely
+     * @throws IOException
+     */
+    public List<String> commit(Repack repack) throws IOException {
+        File packIndex = new File(packFolder, repack.name + PACK_INDEX_EXTENSION);
+        File tempPackIndex = new File(packIndex.getPath() + ".tmp");
+
+        try (BufferedWriter writer = Files.newBufferedWriter(tempPackIndex.toPath(), StandardCharsets.UTF_8)) {
+            writer.write(PACK_INDEX_HEADER);
+            writer.newLine();
+
+            for (String hash : repack.chunks) {
+                writer.write(hash);
+                writer.newLine();
+            }
+        }
+
+        move(tempPackIndex, packIndex);
+
+        List<String> removedFiles = new ArrayList<>();
+        for (File oldPackIndex : repack.packIndexes) {
+            if (!oldPackIndex.delete()) {
+                throw new IOException("Couldn't delete " + oldPackIndex.getPath());
+            }
+
+            String indexName = oldPackIndex.getName();
+            removedFiles.add(indexName.substring(0, indexName.length() - PACK_INDEX_EXTENSION.length()) + PACK_EXTENSION);
+        }
+
+        // A chunk of a replaced pack may also be in another pack
+        packedChunks.clear();
+        for (File remainingPackIndex : listFiles(packFolder, PACK_INDEX_EXTENSION)) {
+            packedChunks.addAll(readPackIndex(remainingPackIndex));
+        }
+
+        repack.packFile.delete();
+
+        return removedFiles;
+    }
+
+    /**
+     * Discards the specified repack, keeping the packs it would have replaced
+     * @param repack the repack
+     */
+    public void abort(Repack repack) {
+        repack.packFile.delete();
+    }
+
+    /**
+     * Restores the files in the specified snapshot from the packs and dictionaries uploaded along with it
+     * <p>
+     * Each chunk is checked against its hash, a file with a missing or corrupt chunk isn't restored
+     * @param snapshotFile the snapshot
+     * @param packFolder the folder containing the {@code .pack} and {@code .dict} files uploaded up to the snapshot
+     * @param targetFolder the folder to restore the files to
+     * @param failureHandler what to do with files that can't be restored
+     * @return the number of files restored
+     * @throws IOException if the snapshot or packs couldn't be read
+     */
+    public static int restore(File snapshotFile, File packFolder, File targetFolder, ArchiveWriter.FailureHandler failureHandler) throws IOException {
+        Map<String, PackedChunk> chunks = new HashMap<>();
+        for (File pack : listFiles(packFolder, PACK_EXTENSION)) {
+            readPack(pack, chunks);
+        }
+
+        Map<Long, ZstdDictDecompress> dictionaries = loadDictionaries(packFolder);
+        Map<File, RandomAccessFile> openPacks = new HashMap<>();
+        Inflater inflater = new Inflater(true);
+        byte[] compressed = new byte[ContentDefinedChunker.MAX_CHUNK_SIZE + (ContentDefinedChunker.MAX_CHUNK_SIZE >> 8) + 64];
+        byte[] uncompressed = new byte[ContentDefinedChunker.MAX_CHUNK_SIZE];
+        Path targetPath = targetFolder.toPath().normalize();
+        int restored = 0;
+
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException exception) {
+            throw new IOException(exception);
+        }
+
+        try (BufferedReader reader = Files.newBufferedReader(snapshotFile.toPath(), StandardCharsets.UTF_8)) {
+            if (!SNAPSHOT_HEADER.equals(reader.readLine())) {
+                throw new IOException("Unsupported snapshot " + snapshotFile.getPath());
+            }
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", 4);
+                if (fields.length != 4) {
+                    throw new IOException("Malformed snapshot line in " + snapshotFile.getPath());
+                }
+
+                // A single file is backed up with an empty path
+                File file = fields[3].isEmpty() ? targetFolder : new File(targetFolder, fields[3]);
+                if (!file.toPath().normalize().startsWith(targetPath)) {
+                    failureHandler.onFileFailed(file, new IOException("Path outside of the target folder"));
+
+                    continue;
+                }
+
+                file.getAbsoluteFile().getParentFile().mkdirs();
+
+                try (OutputStream stream = new BufferedOutputStream(new FileOutputStream(file), 64 * 1024)) {
+                    if (!fields[2].equals(NO_CHUNKS)) {
+                        for (String hash : fields[2].split(",")) {
+                            PackedChunk chunk = chunks.get(hash);
+                            if (chunk == null) {
+                                throw new IOException("Missing chunk " + hash);
+                            }
+
+                            RandomAccessFile pack = openPacks.get(chunk.pack);
+                            if (pack == null) {
+                                pack = new RandomAccessFile(chunk.pack, "r");
+                                openPacks.put(chunk.pack, pack);
+                            }
+
+                            pack.seek(chunk.offset);
+                            pack.readFully(compressed, 0, chunk.compressedLength);
+
+                            int length = decompress(compressed, chunk.compressedLength, uncompressed, inflater, dictionaries);
+                            digest.update(uncompressed, 0, length);
+                            if (length != chunk.length || !BackupManifest.toHex(digest.digest()).equals(hash)) {
+                                throw new IOException("Corrupt chunk " + hash);
+                            }
+
+                            stream.write(uncompressed, 0, length);
+                        }
+                    }
+                } catch (IOException exception) {
+                    digest.reset();
+                    file.delete();
+                    failureHandler.onFileFailed(file, exception);
+
+                    continue;
+                }
+
+                file.setLastModified(Long.parseLong(fields[1]));
+                restored++;
+            }
+        } catch (NumberFormatException exception) {
+            throw new IOException("Malformed snapshot line in " + snapshotFile.getPath(), exception);
+        } finally {
+            inflater.end();
+            closeDictionaries(dictionaries);
+
+            for (RandomAccessFile pack : openPacks.values()) {
+                pack.close();
+            }
+        }
+
+        return restored;
+    }
+
+    /**
+     * Adds where each chunk in the specified pack is to the specified map
+     * @param pack the pack
+     * @param chunks the map of chunk hashes to add to
+     * @throws IOException if the pack couldn't be read, or isn't a pack
+     */
+    private static void readPack(File pack, Map<String, PackedChunk> chunks) throws IOException {
+        try (DataInputStream stream = new DataInputStream(new BufferedInputStream(new FileInputStream(pack), 64 * 1024))) {
+            byte[] magic = new byte[PACK_MAGIC.length];
+            stream.readFully(magic);
+            if (!Arrays.equals(magic, PACK_MAGIC)) {
+                throw new IOException("Unsupported pack " + pack.getPath());
+            }
+
+            long offset = PACK_MAGIC.length;
+            byte[] hash = new byte[HASH_LENGTH];
+            while (true) {
+                int read = stream.read(hash);
+                if (read == -1) {
+                    break;
+                }
+                stream.readFully(hash, read, HASH_LENGTH - read);
+
+                int length = stream.readInt();
+                int compressedLength = stream.readInt();
+                offset += HASH_LENGTH + 8;
+
+                if (length < 0 || length > ContentDefinedChunker.MAX_CHUNK_SIZE || compressedLength < 0) {
+                    throw new IOException("Malformed pack " + pack.getPath());
+                }
+
+                chunks.put(BackupManifest.toHex(hash), new PackedChunk(pack, offset, length, compressedLength));
+
+                int skipped = stream.skipBytes(compressedLength);
+                if (skipped != compressedLength) {
+                    throw new EOFException("Truncated pack " + pack.getPath());
+                }
+                offset += compressedLength;
+            }
+        }
+    }
+
+    /**
+     * Decompresses the specified chunk, which is either a zstd frame compressed with a dictionary, or raw deflate
+     * compressed
+     * @param data the compressed chunk
+     * @param length the compressed length
+     * @param output the buffer to write the chunk to, which fits any chunk
+     * @param inflater the inflater to decompress deflate compressed chunks with
+     * @param dictionaries the dictionaries, by ID
+     * @return the length of the chunk
+     * @throws IOException if the chunk is corrupt, or its dictionary is missing
+     */
+    private static int decompress(byte[] data, int length, byte[] output, Inflater inflater, Map<Long, ZstdDictDecompress> dictionaries) throws IOException {
+        if (length >= ZSTD_MAGIC.length && Arrays.equals(Arrays.copyOf(data, ZSTD_MAGIC.length), ZSTD_MAGIC)) {
+            byte[] frame = Arrays.copyOf(data, length);
+            long dictionaryId = Zstd.getDictIdFromFrame(frame) & 0xFFFFFFFFL;
+
+            ZstdDictDecompress dictionary = dictionaries.get(dictionaryId);
+            if (dictionary == null) {
+                throw new IOException("Missing dictionary " + dictionaryId);
+            }
+
+            long outputLength = Zstd.decompressFastDict(output, 0, frame, 0, length, dictionary);
+            if (Zstd.isError(outputLength)) {
+                throw new IOException("Corrupt chunk: " + Zstd.getErrorName(outputLength));
+            }
+
+            return (int) outputLength;
+        }
+
+        inflater.reset();
+        inflater.setInput(data, 0, length);
+
+        int outputLength = 0;
+        try {
+            while (!inflater.finished()) {
+                int inflated = inflater.inflate(output, outputLength, output.length - outputLength);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary() || outputLength == output.length)) {
+                    throw new IOException("Corrupt chunk");
+                }
+
+                outputLength += inflated;
+            }
+        } catch (DataFormatException exception) {
+            throw new IOException("Corrupt chunk", exception);
+        }
+
+        return outputLength;
+    }
+
+    /**
+     * Loads the dictionaries in the specified folder
+     * @param folder the folder
+     * @return the dictionaries, by ID
+     * @throws IOException
+     */
+    private static Map<Long, ZstdDictDecompress> loadDictionaries(File folder) throws IOException {
+        Map<Long, ZstdDictDecompress> dictionaries = new HashMap<>();
+
+        for (File file : listFiles(folder, DICTIONARY_EXTENSION)) {
+            byte[] dictionary = Files.readAllBytes(file.toPath());
+            ZstdDictDecompress previous = dictionaries.put(Zstd.getDictIdFromDict(dictionary) & 0xFFFFFFFFL, new ZstdDictDecompress(dictionary));
+
+            if (previous != null) {
+                previous.close();
+            }
+        }
+
+        return dictionaries;
+    }
+
+    private static void closeDictionaries(Map<Long, ZstdDictDecompress> dictionaries) {
+        for (ZstdDictDecompress dictionary : dictionaries.values()) {
+            dictionary.close();
+        }
+    }
+
+    /**
+     * Gets the hashes of the chunks referenced by any snapshot
+     * @return the hashes
+     * @throws IOException
+     */
+    private Set<String> getReferencedChunks() throws IOException {
+        Set<String> referencedChunks = new HashSet<>();
+        for (File snapshot : listFiles(snapshotFolder, SNAPSHOT_EXTENSION)) {
+            referencedChunks.addAll(readSnapshotChunks(snapshot));
+        }
+
+        return referencedChunks;
+    }
+
+    /**
+     * Gets the file the chunk with the specified hash is stored in
+     * @param hash the hash of the chunk
+     * @return the file
+     */
+    private File getChunkFile(String hash) {
+        return new File(new File(chunkFolder, hash.substring(0, 2)), hash);
+    }
+
+    /**
+     * Gets whether a new dictionary should be trained, because there is none yet, or it's outdated
+     * @return whether to train a dictionary
+     */
+    private boolean isTrainingDue() {
+        if (dictionaryFile == null) {
+            return true;
+        }
+
+        int newerSnapshots = 0;
+        for (File snapshot : listFiles(snapshotFolder, SNAPSHOT_EXTENSION)) {
+            if (snapshot.lastModified() > dictionaryFile.lastModified()) {
+                newerSnapshots++;
+            }
+        }
+
+        return newerSnapshots >= RETRAIN_INTERVAL;
+    }
+
+    /**
+     * Trains a dictionary from the samples collected, and saves it to be uploaded along with the specified snapshot
+     * <p>
+     * If there are too few samples, training fails, or the dictionary can't be saved, the current dictionary is kept
+     * @param trainer the trainer, with the samples
+     * @param sampleCount the number of samples
+     * @param snapshot the snapshot the samples are from
+     */
+    private static void train(ZstdDictTrainer trainer, int sampleCount, Snapshot snapshot) {
+        if (sampleCount < MIN_SAMPLE_COUNT) {
+            return;
+        }
+
+        byte[] dictionary;
+        try {
+            dictionary = trainer.trainSamples();
+        } catch (RuntimeException exception) {
+            // Samples too alike, or too different, to train with
+            return;
+        }
+
+        File tempFile = new File(snapshot.dictionaryFile.getPath() + ".tmp");
+        try {
+            try (FileOutputStream stream = new FileOutputStream(tempFile)) {
+                stream.write(dictionary);
+            }
+            move(tempFile, snapshot.dictionaryFile);
+        } catch (IOException exception) {
+            tempFile.delete();
+
+            return;
+        }
+
+        snapshot.dictionary = dictionary;
+        snapshot.sampleCount = sampleCount;
+    }
+
+    /**
+     * Compresses the specified chunk, with the dictionary if it's small and there is one
+     * @param deflater the deflater to compress other chunks with
+     * @param dictionary the dictionary, or {@code null} if there is none
+     * @param chunk the chunk
+     * @param length the length of the chunk
+     * @param output the buffer to write the compressed chunk to, which fits any chunk
+     * @return the compressed length
+     */
+    private static int compress(Deflater deflater, ZstdDictCompress dictionary, byte[] chunk, int length, byte[] output) {
+        if (dictionary != null && length < SMALL_CHUNK_SIZE) {
+            long compressedLength = Zstd.compressFastDict(output, 0, chunk, 0, length, dictionary);
+            if (!Zstd.isError(compressedLength)) {
+                return (int) compressedLength;
+            }
+        }
+
+        return deflate(deflater, chunk, length, output);
+    }
+
+    /**
+     * Compresses the specified chunk
+     * @param deflater the deflater to compress with
+     * @param chunk the chunk
+     * @param length the length of the chunk
+     * @param output the buffer to write the compressed chunk to, which fits any chunk
+     * @return the compressed length
+     */
+    private static int deflate(Deflater deflater, byte[] chunk, int length, byte[] output) {
+        deflater.reset();
+        deflater.setInput(chunk, 0, length);
+        deflater.finish();
+
+        int outputLength = 0;
+        while (!deflater.finished()) {
+            outputLength += deflater.deflate(output, outputLength, output.length - outputLength);
+        }
+
+        return outputLength;
+    }
+
+    /**
+     * Writes a chunk to the specified file, so that the file either contains the whole chunk or doesn't exist
+     * @param chunkFile the file
+     * @param data the compressed chunk
+     * @param length the compressed length
+     * @throws IOException
+     */
+    private static void writeChunk(File chunkFile, byte[] data, int length) throws IOException {
+        chunkFile.getParentFile().mkdirs();
+        File tempFile = new File(chunkFile.getPath() + ".tmp");
+
+        try (FileOutputStream stream = new FileOutputStream(tempFile)) {
+            stream.write(data, 0, length);
+        }
+
+        move(tempFile, chunkFile);
+    }
+
+    private static byte[] fromHex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+
+    private static void move(File source, File target) throws IOException {
+        try {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException exception) {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static List<File> listFiles(File folder, final String extension) {
+        File[] files = folder.listFiles((dir, name) -> name.endsWith(extension));
+
+        return files == null ? new ArrayList<File>() : new ArrayList<>(Arrays.asList(files));
+    }
+
+    private static List<String> readPackIndex(File packIndex) throws IOException {
+        List<String> chunks = new ArrayList<>();
+
+        try (BufferedReader reader = Files.newBufferedReader(packIndex.toPath(), StandardCharsets.UTF_8)) {
+            if (!PACK_INDEX_HEADER.equals(reader.readLine())) {
+                throw new IOException("Unsupported pack index " + packIndex.getPath());
+            }
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    chunks.add(line);
+                }
+            }
+        }
+
+        return chunks;
+    }
+
+    private static Set<String> readSnapshotChunks(File snapshot) throws IOException {
+        Set<String> chunks = new HashSet<>();
+
+        try (BufferedReader reader = Files.newBufferedReader(snapshot.toPath(), StandardCharsets.UTF_8)) {
+            if (!SNAPSHOT_HEADER.equals(reader.readLine())) {
+                throw new IOException("Unsupported snapshot " + snapshot.getPath());
+            }
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", 4);
+                if (fields.length != 4) {
+                    throw new IOException("Malformed snapshot line in " + snapshot.getPath());
+                }
+
+                if (!fields[2].equals(NO_CHUNKS)) {
+                    Collections.addAll(chunks, fields[2].split(","));
+                }
+            }
+        }
+
+        return chunks;
+    }
+
+    /**
+     * A snapshot of the files in a backup location, and the pack of chunks it added to the repository
+     */
+    public static final class Snapshot {
+        private final String name;
+        private final File snapshotFile;
+        private final File packFile;
+        private final File dictionaryFile;
+        private final Set<String> newChunks = new LinkedHashSet<>();
+        private int chunkCount;
+        private long size;
+        private long newBytes;
+        private byte[] dictionary;
+        private int sampleCount;
+
+        private Snapshot(String name, File snapshotFile, File packFile, File dictionaryFile) {
+            this.name = name;
+            this.snapshotFile = snapshotFile;
+            this.packFile = packFile;
+            this.dictionaryFile = dictionaryFile;
+        }
+
+        /**
+         * Gets the name of the snapshot
+         * @return the name
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Gets the snapshot file, which lists the chunks of each file
+         * @return the file
+         */
+        public File getSnapshotFile() {
+            return snapshotFile;
+        }
+
+        /**
+         * Gets the pack file containing the new chunks, which is deleted once the snapshot is committed
+         * @return the file, or {@code null} if there are no new chunks
+         */
+        public File getPackFile() {
+            return newChunks.isEmpty() ? null : packFile;
+        }
+
+        /**
+         * Gets the dictionary trained on the small chunks of this snapshot, which is moved into the repository once the
+         * snapshot is committed
+         * @return the file, or {@code null} if no dictionary was trained
+         */
+        public File getDictionaryFile() {
+            return dictionary == null ? null : dictionaryFile;
+        }
+
+        /**
+         * Gets the number of small chunks the dictionary was trained on
+         * @return the number of chunks
+         */
+        public int getSampleCount() {
+            return sampleCount;
+        }
+
+        /**
+         * Gets the number of chunks the files were split into
+         * @return the number of chunks
+         */
+        public int getChunkCount() {
+            return chunkCount;
+        }
+
+        /**
+         * Gets the number of chunks which weren't already in the repository
+         * @return the number of chunks
+         */
+        public int getNewChunkCount() {
+            return newChunks.size();
+        }
+
+        /**
+         * Gets the total size of the files in the snapshot
+         * @return the size, in bytes
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * Gets the compressed size of the chunks which weren't already in the repository
+         * @return the size, in bytes
+         */
+        public long getNewBytes() {
+            return newBytes;
+        }
+    }
+
+    /**
+     * The chunks of the mostly unreferenced packs which are still referenced, and the pack they're written to
+     */
+    public static final class Repack {
+        private final String name;
+        private final File packFile;
+        private final List<File> packIndexes = new ArrayList<>();
+        private final Set<String> chunks = new LinkedHashSet<>();
+        private long bytes;
+
+        private Repack(String name, File packFile) {
+            this.name = name;
+            this.packFile = packFile;
+        }
+
+        /**
+         * Gets the pack file containing the repacked chunks, which is deleted once the repack is committed
+         * @return the file
+         */
+        public File getPackFile() {
+            return packFile;
+        }
+
+        /**
+         * Gets the number of packs the chunks are repacked from
+         * @return the number of packs
+         */
+        public int getPackCount() {
+            return packIndexes.size();
+        }
+
+        /**
+         * Gets the number of chunks repacked
+         * @return the number of chunks
+         */
+        public int getChunkCount() {
+            return chunks.size();
+        }
+
+        /**
+         * Gets the compressed size of the chunks repacked
+         * @return the size, in bytes
+         */
+        public long getBytes() {
+            return bytes;
+        }
+    }
+
+    /**
+     * Where a chunk is in a pack
+     */
+    private static final class PackedChunk {
+        private final File pack;
+        private final long offset;
+        private final int length;
+        private final int compressedLength;
+
+        private PackedChunk(File pack, long offset, int length, int compressedLength) {
+            this.pack = pack;
+            this.offset = offset;
+            this.length = length;
+            this.compressedLength = compressedLength;
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package ratismal.drivebackup.archive;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Splits a stream into variable size chunks whose boundaries depend only on the nearby content (FastCDC-style gear hash)
+ * <p>
+ * Inserting or changing a few bytes only changes the chunks around the edit, the chunks before and after it stay the
+ * same, so they can be deduplicated against earlier backups
+ */
+public class ContentDefinedChunker {
+
+    /**
+     * Smallest chunk that is cut, unless the stream ends first
+     */
+    public static final int MIN_CHUNK_SIZE = 16 * 1024;
+
+    /**
+     * Size chunks are normalized around
+     */
+    public static final int AVERAGE_CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * Largest chunk that is cut, regardless of the content
+     */
+    public static final int MAX_CHUNK_SIZE = 256 * 1024;
+
+    /**
+     * Mask used before the average chunk size, with more bits than the average size to make early cuts less likely
+     */
+    private static final long MASK_SMALL = mask(18);
+
+    /**
+     * Mask used after the average chunk size, with fewer bits than the average size to make late cuts more likely
+     */
+    private static final long MASK_LARGE = mask(14);
+
+    /**
+     * Random values for each byte value, generated from a fixed seed so chunk boundaries never change between versions
+     */
+    private static final long[] GEAR = new long[256];
+
+    static {
+        long seed = 0x4472697665426B32L;
+        for (int i = 0; i < GEAR.length; i++) {
+            // SplitMix64
+            seed += 0x9E3779B97F4A7C15L;
+            long value = seed;
+            value = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+            value = (value ^ (value >>> 27)) * 0x94D049BB133111EBL;
+            GEAR[i] = value ^ (value >>> 31);
+        }
+    }
+
+    private final InputStream stream;
+    private final byte[] buffer = new byte[MAX_CHUNK_SIZE];
+
+    private int bufferLength;
+    private int chunkLength;
+    private boolean endOfStream;
+
+    /**
+     * Creates an instance of the {@code ContentDefinedChunker} object
+     * @param stream the stream to split
+     */
+    public ContentDefinedChunker(InputStream stream) {
+        this.stream = stream;
+    }
+
+    /**
+     * Reads the next chunk
+     * @return the number of bytes in the chunk, or {@code 0} if the end of the stream was reached
+     * @throws IOException
+     */
+    public int nextChunk() throws IOException {
+        // Move the data after the previous chunk to the start of the buffer
+        bufferLength -= chunkLength;
+        System.arraycopy(buffer, chunkLength, buffer, 0, bufferLength);
+
+        while (!endOfStream && bufferLength < buffer.length) {
+            int read = stream.read(buffer, bufferLength, buffer.length - bufferLength);
+            if (read == -1) {
+                endOfStream = true;
+            } else {
+                bufferLength += read;
+            }
+        }
+
+        chunkLength = findCutPoint(buffer, bufferLength);
+        return chunkLength;
+    }
+
+    /**
+     * Gets the buffer containing the current chunk, starting at index {@code 0}
+     * <p>
+     * The buffer is reused for every chunk
+     * @return the buffer
+     */
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Finds the end of the chunk at the start of the specified data
+     * @param data the data
+     * @param length the number of bytes of data available
+     * @return the length of the chunk
+     */
+    private static int findCutPoint(byte[] data, int length) {
+        if (length <= MIN_CHUNK_SIZE) {
+            return length;
+        }
+
+        int normalSize = Math.min(AVERAGE_CHUNK_SIZE, length);
+        long hash = 0;
+        int i = MIN_CHUNK_SIZE;
+
+        for (; i < normalSize; i++) {
+            hash = (hash << 1) + GEAR[data[i] & 0xFF];
+            if ((hash & MASK_SMALL) == 0) {
+                return i + 1;
+            }
+        }
+
+        for (; i < length; i++) {
+            hash = (hash << 1) + GEAR[data[i] & 0xFF];
+            if ((hash & MASK_LARGE) == 0) {
+                return i + 1;
+            }
+        }
+
+        return length;
+    }
+
+    /**
+     * Creates a mask of the specified number of bits, taken from the top of the hash as they depend on the most bytes
+     * @param bits the number of bits
+     * @return the mask
+     */
+    private static long mask(int bits) {
+        return -1L << (64 - bits);
+    }
+}
@@ -0,0 +1,1558 @@
+package ratismal.drivebackup.archive;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a standard ZIP archive, compressing its entries on a pool of worker threads
+ * <p>
+ * Small files are compressed as a whole by a single worker, large files are split into fixed size blocks which are
+ * compressed independently (pigz-style, each block primed with the previous 32 KB as its dictionary and ended with a
+ * sync flush) and then reassembled in order into a single deflate stream. Generated contents are split into blocks the
+ * same way as they're generated.
+ * <p>
+ * Files which are already compressed, recognized by their extension or by the entropy of their data, are stored
+ * as is, as deflating them again costs a lot of time and saves almost nothing. Large ones are written as stored deflate
+ * blocks instead, as an entry whose size is only known once all its blocks are written needs a data descriptor, which
+ * readers only accept for deflated entries.
+ * <p>
+ * The blocks are the same size however many threads compress them, so the archive only depends on the entries added,
+ * the compression level and the block size. If reproducible, entries are also given a fixed modification time, so the
+ * same files always result in the same archive.
+ * <p>
+ * Once all of an entry's blocks are written, the entry and its blocks are reused for the entries added after it, so
+ * adding a file allocates little more than opening it and recording it in the central directory and checksums does.
+ */
+public class ParallelZipWriter implements ArchiveWriter {
+
+    /**
+     * Default size of the blocks large files are split into
+     */
+    public static final int DEFAULT_BLOCK_SIZE = 256 * 1024;
+
+    /**
+     * Amount of preceding data used to prime the compressor of each block
+     */
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+
+    /**
+     * Number of blocks queued per worker thread before waiting on the oldest one
+     */
+    private static final int BLOCKS_IN_FLIGHT_PER_THREAD = 4;
+
+    /**
+     * An empty, final, fixed Huffman deflate block, used to terminate entries which failed part way through
+     */
+    private static final byte[] EMPTY_FINAL_BLOCK = { 0x03, 0x00 };
+
+    /**
+     * Extensions of files which are already compressed, such as region files, whose chunks are zlib compressed
+     */
+    private static final String[] STORED_EXTENSIONS = {
+        "mca", "mcr", "mcc",
+        "jar", "zip", "gz", "tgz", "xz", "bz2", "zst", "lz4", "7z", "rar",
+        "png", "jpg", "jpeg", "gif", "webp",
+        "ogg", "mp3", "mp4", "webm" };
+
+    /**
+     * Number of bytes at the start of a block sampled to decide whether it's already compressed, smaller blocks are
+     * always deflated
+     */
+    private static final int SAMPLE_SIZE = 64 * 1024;
+
+    /**
+     * Entropy, in bits per byte, above which a sampled file is considered already compressed
+     */
+    private static final double STORED_ENTROPY = 7.5;
+
+    /**
+     * Options files are opened with, shared so opening a file doesn't allocate a new set
+     */
+    private static final Set<StandardOpenOption> READ_OPTIONS = Collections.singleton(StandardOpenOption.READ);
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int DATA_DESCRIPTOR_SIGNATURE = 0x08074b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int END_SIGNATURE = 0x06054b50;
+
+    private static final int FLAG_DATA_DESCRIPTOR = 1 << 3;
+    private static final int FLAG_UTF8 = 1 << 11;
+    private static final int METHOD_STORED = 0;
+    private static final int METHOD_DEFLATED = 8;
+    private static final int VERSION_DEFAULT = 20;
+    private static final int VERSION_ZIP64 = 45;
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+    private static final int ZIP64_MAGIC_COUNT = 0xFFFF;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+
+    /**
+     * The MS-DOS date/time of 1980-01-01 00:00, the earliest a ZIP entry can have
+     */
+    private static final long MIN_DOS_TIME = (1 << 21) | (1 << 16);
+
+    private final CountingOutputStream out;
+    private final ThreadPoolExecutor executor;
+    private final int level;
+    private final int blockSize;
+    private final int threads;
+    private final int maxBlocksInFlight;
+    private final boolean reproducible;
+    private final int outputBufferSize;
+    private final ThreadLocal<Worker> workers = new ThreadLocal<>();
+    private final FailureHandler failureHandler;
+
+    private final ArrayDeque<Block> pending = new ArrayDeque<>();
+    private final ArrayDeque<Block> freeBlocks = new ArrayDeque<>();
+    private final ArrayDeque<Entry> freeEntries = new ArrayDeque<>();
+    private final TimeZone timeZone = TimeZone.getDefault();
+    private final ByteArrayOutputStream centralDirectory = new ByteArrayOutputStream();
+    private final ChecksumManifest checksums = new ChecksumManifest();
+    private final StringBuilder incompleteEntries = new StringBuilder();
+    private final byte[] scratch = new byte[8];
+    private final long[] crcEven = new long[32];
+    private final long[] crcOdd = new long[32];
+    private long entryCount;
+    private long storedBytes;
+    private long deflatedBytes;
+    private long deflatedCompressedBytes;
+    private boolean finished;
+    private volatile boolean closed;
+
+    /**
+     * Creates an instance of the {@code ParallelZipWriter} object
+     * @param out the stream to write the archive to
+     * @param level the deflate compression level
+     * @param threads the number of worker threads to compress with
+     * @param blockSize the size of the blocks large files are split into, which is also the size of the read buffers
+     * @param reproducible whether to give every entry the same modification time
+     * @param failureHandler what to do with files that can't be read
+     */
+    public ParallelZipWriter(OutputStream out, int level, int threads, final int blockSize, boolean reproducible, FailureHandler failureHandler) {
+        this.out = new CountingOutputStream(new BufferedOutputStream(out, 64 * 1024));
+        this.level = level;
+        this.blockSize = blockSize;
+        this.threads = threads;
+        this.maxBlocksInFlight = threads * BLOCKS_IN_FLIGHT_PER_THREAD;
+        this.reproducible = reproducible;
+        this.failureHandler = failureHandler;
+
+        this.outputBufferSize = getMaxCompressedSize(blockSize);
+
+        final int priority = Thread.currentThread().getPriority();
+        final AtomicInteger threadNumber = new AtomicInteger(1);
+
+        // No more blocks than are in flight are ever queued, and an array backed queue doesn't allocate for each one
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(maxBlocksInFlight), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                // Each thread returns its own worker's buffer once it exits, even if that's after the writer is closed
+                Runnable releasingRunnable = () -> {
+                    try {
+                        runnable.run();
+                    } finally {
+                        releaseWorker();
+                    }
+                };
+
+                Thread thread = new Thread(releasingRunnable, "DriveBackup-compressor-" + threadNumber.getAndIncrement());
+                thread.setDaemon(true);
+                thread.setPriority(priority);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Queues the specified file to be compressed and added to the archive
+     * @param file the file
+     * @param entryName the path of the file inside the archive
+     * @throws IOException if writing already compressed entries failed
+     */
+    @Override
+    public void addFile(File file, String entryName) throws IOException {
+        if (finished) {
+            throw new IllegalStateException("Archive already finished");
+        }
+
+        long size = file.length();
+        int blockCount = getBlockCount(size);
+
+        // Opened once, the workers then read their blocks from it at their own positions
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(file.toPath(), READ_OPTIONS);
+        } catch (IOException exception) {
+            failureHandler.onFileFailed(file, exception);
+            return;
+        }
+
+        addEntry(takeEntry(file, channel, null, entryName, getDosTime(file.lastModified()), blockCount), size);
+    }
+
+    /**
+     * Queues the specified data to be compressed and added to the archive
+     * @param data the contents of the entry
+     * @param entryName the path of the entry inside the archive
+     * @param lastModified the time the entry was last modified, in milliseconds since the epoch
+     * @throws IOException if writing already compressed entries failed
+     */
+    @Override
+    public void addData(byte[] data, String entryName, long lastModified) throws IOException {
+        if (finished) {
+            throw new IllegalStateException("Archive already finished");
+        }
+
+        int blockCount = getBlockCount(data.length);
+        addEntry(takeEntry(null, null, data, entryName, getDosTime(lastModified), blockCount), data.length);
+    }
+
+    /**
+     * Queues the specified contents to be compressed and added to the archive
+     * <p>
+     * The contents are generated on this thread, into buffers which are queued to be compressed as each block fills up
+     * @param content the contents of the entry
+     * @param entryName the path of the entry inside the archive
+     * @param lastModified the time the entry was last modified, in milliseconds since the epoch
+     * @throws IOException if writing already compressed entries failed
+     */
+    @Override
+    public void addContent(EntryContent content, String entryName, long lastModified) throws IOException {
+        if (finished) {
+            throw new IllegalStateException("Archive already finished");
+        }
+
+        long size = content.getSize();
+        int blockCount = getBlockCount(size);
+        Entry entry = takeEntry(content.getFile(), null, null, entryName, getDosTime(lastModified), blockCount);
+
+        ContentStream stream = new ContentStream(entry, size);
+        try {
+            content.writeTo(stream);
+            stream.finish();
+        } catch (IOException exception) {
+            if (stream.writeFailure != null) {
+                throw stream.writeFailure;
+            }
+
+            stream.fail(exception);
+        } finally {
+            stream.release();
+            endQueueing(entry);
+        }
+    }
+
+    /**
+     * Splits the specified entry into blocks and queues them to be compressed
+     * @param entry the entry
+     * @param size the size of the entry's contents
+     * @throws IOException if writing already compressed entries failed
+     */
+    private void addEntry(Entry entry, long size) throws IOException {
+        int blockCount = entry.blockCount;
+
+        try {
+            for (int i = 0; i < blockCount; i++) {
+                long offset = (long) i * blockSize;
+                int length = (int) Math.min(blockSize, Math.max(0, size - offset));
+                submit(takeBlock(entry, i, offset, length, null, 0, null));
+            }
+        } finally {
+            endQueueing(entry);
+        }
+    }
+
+    /**
+     * Queues the specified block to be compressed, first writing the oldest blocks if too many are queued
+     * @param block the block
+     * @throws IOException if writing already compressed entries failed
+     */
+    private void submit(Block block) throws IOException {
+        try {
+            // Over the memory ceiling, only keep enough blocks queued for the workers to stay busy
+            while (pending.size() >= maxBlocksInFlight || (pending.size() >= threads && BufferPool.isOverCeiling())) {
+                writeBlock(pending.poll());
+            }
+        } catch (IOException exception) {
+            if (block.input != null) {
+                BufferPool.release(block.input);
+            }
+
+            throw exception;
+        }
+
+        block.entry.pendingBlocks++;
+        pending.add(block);
+        executor.execute(block);
+    }
+
+    /**
+     * Takes an entry from the ones already written, or creates one if there are none
+     * @param file the file the entry's contents are read or generated from, if any
+     * @param channel the opened file to read the entry's contents from, if they're read from a file
+     * @param data the entry's contents, if they're in memory
+     * @param name the path of the entry inside the archive
+     * @param dosTime the MS-DOS date/time the entry was last modified
+     * @param blockCount the number of blocks the entry is split into
+     * @return the entry
+     */
+    private Entry takeEntry(File file, FileChannel channel, byte[] data, String name, long dosTime, int blockCount) {
+        Entry entry = freeEntries.poll();
+        if (entry == null) {
+            entry = new Entry();
+        }
+
+        entry.init(file, channel, data, name, dosTime, blockCount, hasStoredExtension(name), mayNeedZip64(blockCount));
+        return entry;
+    }
+
+    /**
+     * Marks all of the specified entry's blocks as queued, and reuses it if they're all already written, such as when it
+     * failed before any were queued
+     * @param entry the entry
+     */
+    private void endQueueing(Entry entry) {
+        entry.queued = true;
+
+        if (entry.pendingBlocks == 0) {
+            recycle(entry);
+        }
+    }
+
+    /**
+     * Closes the file of the specified entry, whose blocks are all written, and keeps the entry to be reused
+     * @param entry the entry
+     */
+    private void recycle(Entry entry) {
+        closeChannel(entry);
+        entry.clear();
+        freeEntries.add(entry);
+    }
+
+    /**
+     * Closes the file the specified entry is read from, if any
+     * @param entry the entry
+     */
+    private static void closeChannel(Entry entry) {
+        if (entry.channel == null) {
+            return;
+        }
+
+        try {
+            entry.channel.close();
+        } catch (IOException exception) {
+            // Only read from, so nothing is lost
+        }
+    }
+
+    /**
+     * Takes a block from the ones already written, or creates one if there are none
+     * @param entry the entry the block is part of
+     * @param index the index of the block in the entry
+     * @param offset the position of the block in the entry
+     * @param length the number of bytes of data in the block
+     * @param input the buffer of generated contents the block is already in, after its dictionary, if any
+     * @param dictionaryLength the number of bytes of dictionary at the start of the input
+     * @param failure the reason the entry failed at this block, if it did
+     * @return the block
+     */
+    private Block takeBlock(Entry entry, int index, long offset, int length, ByteBuffer input, int dictionaryLength, IOException failure) {
+        Block block = freeBlocks.poll();
+        if (block == null) {
+            block = new Block();
+        }
+
+        block.init(entry, index, offset, length, input, dictionaryLength, failure);
+        return block;
+    }
+
+    /**
+     * Gets whether the file or entry with the specified name has the extension of an already compressed file
+     * @param name the name
+     * @return whether it's already compressed
+     */
+    private static boolean hasStoredExtension(String name) {
+        int extensionStart = name.lastIndexOf('.') + 1;
+        if (extensionStart == 0) {
+            return false;
+        }
+
+        // Compared in place, so no substring is allocated for every entry
+        int extensionLength = name.length() - extensionStart;
+        for (String extension : STORED_EXTENSIONS) {
+            if (extension.length() == extensionLength && name.regionMatches(true, extensionStart, extension, 0, extensionLength)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Calculates the Shannon entropy of the distribution of byte values in the specified data
+     * @param histogram the worker's reusable histogram
+     * @param data the data
+     * @param offset the index of the first byte
+     * @param length the number of bytes of data
+     * @return the entropy, in bits per byte
+     */
+    private static double getEntropy(int[] histogram, byte[] data, int offset, int length) {
+        if (length == 0) {
+            return 0;
+        }
+
+        Arrays.fill(histogram, 0);
+        for (int i = offset; i < offset + length; i++) {
+            histogram[data[i] & 0xFF]++;
+        }
+
+        double entropy = 0;
+        for (int count : histogram) {
+            if (count > 0) {
+                double probability = (double) count / length;
+                entropy -= probability * Math.log(probability);
+            }
+        }
+
+        return entropy / Math.log(2);
+    }
+
+    /**
+     * Gets the number of blocks an entry of the specified size is split into
+     * @param size the size of the entry, in bytes
+     * @return the number of blocks
+     */
+    private int getBlockCount(long size) {
+        return (int) Math.max(1, (size + blockSize - 1) / blockSize);
+    }
+
+    /**
+     * Gets the largest size a block of the specified size can be deflated to, including the sync flush
+     * @param blockSize the size of the block, in bytes
+     * @return the size, in bytes
+     */
+    private static int getMaxCompressedSize(int blockSize) {
+        return blockSize + (blockSize >> 8) + 64;
+    }
+
+    /**
+     * Waits for all queued files to be compressed, writes the list of incomplete entries if there are any, then the end
+     * of the archive
+     * <p>
+     * Doesn't close the underlying stream
+     * @throws IOException
+     */
+    @Override
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+
+        while (!pending.isEmpty()) {
+            writeBlock(pending.poll());
+        }
+
+        // Which entries failed is only known once all of them are written
+        if (incompleteEntries.length() > 0) {
+            addData(incompleteEntries.toString().getBytes(StandardCharsets.UTF_8), INCOMPLETE_ENTRIES_ENTRY, System.currentTimeMillis());
+
+            while (!pending.isEmpty()) {
+                writeBlock(pending.poll());
+            }
+        }
+
+        writeCentralDirectory();
+        out.flush();
+        finished = true;
+    }
+
+    /**
+     * Stops any compression still in progress, returns the buffers to the pool and closes the underlying stream
+     * <p>
+     * The buffers of blocks which are still being compressed are returned by the workers once they're done, so none are
+     * lost if a worker takes longer to stop than the writer waits for
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        List<Runnable> notStarted = executor.shutdownNow();
+
+        for (Block block : pending) {
+            if (notStarted.contains(block) || block.isDone()) {
+                block.release();
+            }
+            closeChannel(block.entry);
+        }
+        pending.clear();
+
+        try {
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        }
+
+        out.close();
+    }
+
+    /**
+     * Gets the compression state of the current worker thread, creating it on first use
+     * @return the worker
+     */
+    private Worker getWorker() {
+        Worker worker = workers.get();
+        if (worker == null) {
+            worker = new Worker(blockSize);
+            workers.set(worker);
+        }
+
+        return worker;
+    }
+
+    /**
+     * Returns the buffer of the current worker thread to the pool, as it exits
+     */
+    private void releaseWorker() {
+        Worker worker = workers.get();
+        if (worker != null) {
+            BufferPool.release(worker.input);
+            worker.deflater.end();
+            workers.remove();
+        }
+    }
+
+    @Override
+    public ChecksumManifest getChecksums() {
+        return checksums;
+    }
+
+    /**
+     * Gets the number of bytes of already compressed data which was stored as is
+     * @return the number of bytes
+     */
+    public long getStoredBytes() {
+        return storedBytes;
+    }
+
+    /**
+     * Gets the number of bytes of files which were deflated, before compression
+     * @return the number of bytes
+     */
+    public long getDeflatedBytes() {
+        return deflatedBytes;
+    }
+
+    /**
+     * Gets the number of bytes the deflated files were compressed to
+     * @return the number of bytes
+     */
+    public long getDeflatedCompressedBytes() {
+        return deflatedCompressedBytes;
+    }
+
+    /**
+     * Waits for the specified block to be compressed, then appends it to the archive and keeps the block, and its entry
+     * once all of the entry's blocks are written, to be reused
+     * @param block the block
+     * @throws IOException
+     */
+    private void writeBlock(Block block) throws IOException {
+        try {
+            block.await();
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while compressing", exception);
+        } finally {
+            if (block.isDone()) {
+                // The writer returns the buffers from here on, even if it's closed before the worker sees it wasn't
+                block.released.set(true);
+
+                if (block.input != null) {
+                    BufferPool.release(block.input);
+                }
+            }
+        }
+
+        Entry entry = block.entry;
+
+        try {
+            if (block.error != null) {
+                throw new IOException("Compression failed", block.error);
+            }
+
+            writeBlock(entry, block);
+        } finally {
+            if (block.buffer != null) {
+                BufferPool.release(block.buffer);
+            }
+        }
+
+        block.clear();
+        freeBlocks.add(block);
+
+        entry.pendingBlocks--;
+        if (entry.queued && entry.pendingBlocks == 0) {
+            recycle(entry);
+        }
+    }
+
+    /**
+     * Appends the specified compressed block of the specified entry to the archive
+     * @param entry the entry
+     * @param block the block
+     * @throws IOException
+     */
+    private void writeBlock(Entry entry, Block block) throws IOException {
+        if (entry.failed) {
+            return;
+        }
+
+        if (block.exception != null) {
+            entry.failed = true;
+            failureHandler.onFileFailed(entry.file, block.exception);
+
+            if (entry.headerWritten) {
+                incompleteEntries.append(entry.name).append('\n');
+
+                // Close off the data already written, so the archive stays valid
+                if (!entry.stored) {
+                    out.write(EMPTY_FINAL_BLOCK);
+                    entry.compressedSize += EMPTY_FINAL_BLOCK.length;
+                }
+                endEntry(entry);
+            }
+
+            return;
+        }
+
+        if (!entry.headerWritten) {
+            if (entry.blockCount == 1) {
+                entry.stored = block.stored;
+                entry.crc = block.crc;
+                entry.compressedSize = block.compressedLength;
+                entry.size = block.length;
+            } else {
+                entry.flags |= FLAG_DATA_DESCRIPTOR;
+            }
+
+            writeLocalHeader(entry);
+        }
+
+        out.write(block.compressed, 0, block.compressedLength);
+
+        if (block.stored) {
+            storedBytes += block.length;
+        } else {
+            deflatedBytes += block.length;
+            deflatedCompressedBytes += block.compressedLength;
+        }
+
+        if (entry.blockCount > 1) {
+            entry.crc = block.index == 0 ? block.crc : crc32Combine(entry.crc, block.crc, block.length);
+            entry.compressedSize += block.compressedLength;
+            entry.size += block.length;
+        }
+
+        if (block.index == entry.blockCount - 1) {
+            endEntry(entry);
+
+            // The CRC-32 was calculated by the workers while compressing, so the entry is complete and can be recorded
+            checksums.addFile(entry.name, entry.size, entry.crc);
+        }
+    }
+
+    /**
+     * Gets whether an entry split into the specified number of blocks may need ZIP64 sizes, which has to be known
+     * before its local header is written
+     * <p>
+     * The size of an entry is fixed when it's added, as the blocks never read past it, so this only depends on how
+     * large the compressed blocks can get
+     * @param blockCount the number of blocks
+     * @return whether the sizes may be 4 GB or more
+     */
+    private boolean mayNeedZip64(int blockCount) {
+        return (long) blockCount * outputBufferSize >= ZIP64_MAGIC;
+    }
+
+    /**
+     * Writes the local file header of the specified entry
+     * @param entry the entry
+     * @throws IOException
+     */
+    private void writeLocalHeader(Entry entry) throws IOException {
+        entry.offset = out.getCount();
+        entry.headerWritten = true;
+        boolean descriptor = (entry.flags & FLAG_DATA_DESCRIPTOR) != 0;
+
+        writeInt(LOCAL_HEADER_SIGNATURE);
+        writeShort(entry.zip64 ? VERSION_ZIP64 : VERSION_DEFAULT);
+        writeShort(entry.flags);
+        writeShort(entry.stored ? METHOD_STORED : METHOD_DEFLATED);
+        writeInt(entry.dosTime);
+        writeInt(descriptor ? 0 : entry.crc);
+        if (entry.zip64) {
+            // The sizes are in the ZIP64 extra field, and only known once the data descriptor is written
+            writeInt(ZIP64_MAGIC);
+            writeInt(ZIP64_MAGIC);
+        } else {
+            writeInt(descriptor ? 0 : entry.compressedSize);
+            writeInt(descriptor ? 0 : entry.size);
+        }
+        writeShort(entry.nameLength);
+        writeShort(entry.zip64 ? 20 : 0);
+        out.write(entry.nameBytes, 0, entry.nameLength);
+
+        if (entry.zip64) {
+            writeShort(ZIP64_EXTRA_ID);
+            writeShort(16);
+            writeLong(0);
+            writeLong(0);
+        }
+    }
+
+    /**
+     * Writes the data descriptor of the specified entry, if it needs one, and records it in the central directory
+     * @param entry the entry
+     * @throws IOException
+     */
+    private void endEntry(Entry entry) throws IOException {
+        if ((entry.flags & FLAG_DATA_DESCRIPTOR) != 0) {
+            writeInt(DATA_DESCRIPTOR_SIGNATURE);
+            writeInt(entry.crc);
+
+            // Readers expect 8 byte sizes if, and only if, the local header has a ZIP64 extra field
+            if (entry.zip64) {
+                writeLong(entry.compressedSize);
+                writeLong(entry.size);
+            } else {
+                writeInt(entry.compressedSize);
+                writeInt(entry.size);
+            }
+        }
+
+        writeCentralHeader(entry);
+        entryCount++;
+    }
+
+    /**
+     * Appends the central directory record of the specified entry to the in-memory central directory
+     * @param entry the entry
+     */
+    private void writeCentralHeader(Entry entry) {
+        boolean zip64Size = entry.size >= ZIP64_MAGIC;
+        boolean zip64CompressedSize = entry.compressedSize >= ZIP64_MAGIC;
+        boolean zip64Offset = entry.offset >= ZIP64_MAGIC;
+
+        int extraLength = 0;
+        if (zip64Size) extraLength += 8;
+        if (zip64CompressedSize) extraLength += 8;
+        if (zip64Offset) extraLength += 8;
+        if (extraLength > 0) extraLength += 4;
+
+        ByteArrayOutputStream cen = centralDirectory;
+        putInt(cen, CENTRAL_HEADER_SIGNATURE);
+        putShort(cen, extraLength > 0 ? VERSION_ZIP64 : VERSION_DEFAULT);
+        putShort(cen, extraLength > 0 ? VERSION_ZIP64 : VERSION_DEFAULT);
+        putShort(cen, entry.flags);
+        putShort(cen, entry.stored ? METHOD_STORED : METHOD_DEFLATED);
+        putInt(cen, entry.dosTime);
+        putInt(cen, entry.crc);
+        putInt(cen, zip64CompressedSize ? ZIP64_MAGIC : entry.compressedSize);
+        putInt(cen, zip64Size ? ZIP64_MAGIC : entry.size);
+        putShort(cen, entry.nameLength);
+        putShort(cen, extraLength);
+        putShort(cen, 0); // comment length
+        putShort(cen, 0); // disk number
+        putShort(cen, 0); // internal attributes
+        putInt(cen, 0); // external attributes
+        putInt(cen, zip64Offset ? ZIP64_MAGIC : entry.offset);
+        cen.write(entry.nameBytes, 0, entry.nameLength);
+
+        if (extraLength > 0) {
+            putShort(cen, ZIP64_EXTRA_ID);
+            putShort(cen, extraLength - 4);
+            if (zip64Size) putLong(cen, entry.size);
+            if (zip64CompressedSize) putLong(cen, entry.compressedSize);
+            if (zip64Offset) putLong(cen, entry.offset);
+        }
+    }
+
+    /**
+     * Writes the central directory and the end of central directory record(s)
+     * @throws IOException
+     */
+    private void writeCentralDirectory() throws IOException {
+        long centralDirectoryOffset = out.getCount();
+        centralDirectory.writeTo(out);
+        long centralDirectorySize = out.getCount() - centralDirectoryOffset;
+
+        boolean zip64 = entryCount >= ZIP64_MAGIC_COUNT
+            || centralDirectoryOffset >= ZIP64_MAGIC
+            || centralDirectorySize >= ZIP64_MAGIC;
+
+        if (zip64) {
+            long zip64EndOffset = out.getCount();
+
+            writeInt(ZIP64_END_SIGNATURE);
+            writeLong(44);
+            writeShort(VERSION_ZIP64);
+            writeShort(VERSION_ZIP64);
+            writeInt(0);
+            writeInt(0);
+            writeLong(entryCount);
+            writeLong(entryCount);
+            writeLong(centralDirectorySize);
+            writeLong(centralDirectoryOffset);
+
+            writeInt(ZIP64_LOCATOR_SIGNATURE);
+            writeInt(0);
+            writeLong(zip64EndOffset);
+            writeInt(1);
+        }
+
+        writeInt(END_SIGNATURE);
+        writeShort(0);
+        writeShort(0);
+        writeShort((int) Math.min(entryCount, ZIP64_MAGIC_COUNT));
+        writeShort((int) Math.min(entryCount, ZIP64_MAGIC_COUNT));
+        writeInt(Math.min(centralDirectorySize, ZIP64_MAGIC));
+        writeInt(Math.min(centralDirectoryOffset, ZIP64_MAGIC));
+        writeShort(0);
+    }
+
+    /**
+     * A block of an entry, compressed on a worker thread and then appended to the archive by the writer, which reuses it
+     * for a later block once written
+     * <p>
+     * A block finished after the writer is closed returns its own buffers, as nothing will write it
+     */
+    private final class Block implements Runnable {
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Entry entry;
+        private int index;
+        private long offset;
+
+        /**
+         * The number of bytes of data in the block, which ends up shorter once compressed if the file shrank
+         */
+        private int length;
+
+        /**
+         * The buffer of generated contents the block is already in, after its dictionary, which the writer returns to
+         * the pool once the block is written
+         */
+        private ByteBuffer input;
+        private int dictionaryLength;
+
+        private ByteBuffer buffer;
+        private byte[] compressed;
+        private int compressedLength;
+        private long crc;
+        private boolean stored;
+
+        /**
+         * The reason the entry failed at this block, if reading it failed or it's queued to fail the entry once the
+         * blocks before it are written
+         */
+        private IOException exception;
+
+        /**
+         * The unexpected error compressing the block failed with, if any
+         */
+        private Throwable error;
+
+        private boolean done;
+
+        private void init(Entry entry, int index, long offset, int length, ByteBuffer input, int dictionaryLength, IOException failure) {
+            this.entry = entry;
+            this.index = index;
+            this.offset = offset;
+            this.length = length;
+            this.input = input;
+            this.dictionaryLength = dictionaryLength;
+            this.exception = failure;
+            released.set(false);
+        }
+
+        /**
+         * Drops the references to the entry, its data and the buffers, once the block is written
+         */
+        private void clear() {
+            entry = null;
+            input = null;
+            buffer = null;
+            compressed = null;
+            exception = null;
+            error = null;
+            stored = false;
+            crc = 0;
+            compressedLength = 0;
+            done = false;
+        }
+
+        @Override
+        public void run() {
+            try {
+                compress();
+            } catch (IOException exception) {
+                this.exception = exception;
+            } catch (RuntimeException | Error error) {
+                this.error = error;
+            } finally {
+                complete();
+            }
+        }
+
+        /**
+         * Marks the block as compressed, waking up the writer if it's waiting for it
+         * <p>
+         * Whether the writer is closed is checked while holding the lock, as once it isn't, the writer may already be
+         * reusing the block for another one
+         */
+        private void complete() {
+            boolean writerClosed;
+            synchronized (this) {
+                done = true;
+                writerClosed = closed;
+                notifyAll();
+            }
+
+            // Either this or close sees the other, and only the first to release does
+            if (writerClosed) {
+                release();
+            }
+        }
+
+        /**
+         * Waits for the block to be compressed
+         * @throws InterruptedException
+         */
+        private synchronized void await() throws InterruptedException {
+            while (!done) {
+                wait();
+            }
+        }
+
+        private synchronized boolean isDone() {
+            return done;
+        }
+
+        /**
+         * Returns the buffers of a block which won't be written to the pool, only the first time it's called
+         */
+        private void release() {
+            if (!released.compareAndSet(false, true)) {
+                return;
+            }
+
+            if (buffer != null) {
+                BufferPool.release(buffer);
+            }
+            if (input != null) {
+                BufferPool.release(input);
+            }
+        }
+
+        /**
+         * Reads, or takes the generated contents of, the block and compresses it
+         * @throws IOException if the file couldn't be read
+         */
+        private void compress() throws IOException {
+            if (entry.failed || exception != null) {
+                return;
+            }
+
+            Worker worker = getWorker();
+            buffer = BufferPool.acquire(outputBufferSize);
+
+            byte[] input;
+            int dictionaryLength;
+            int inputLength;
+
+            if (this.input != null) {
+                input = this.input.array();
+                dictionaryLength = this.dictionaryLength;
+                inputLength = length;
+            } else if (entry.compressed && entry.blockCount == 1) {
+                // Stored entries are read straight into the output buffer
+                inputLength = read(buffer, offset, length);
+                crc = crc(worker.crc, buffer.array(), 0, inputLength);
+                store(inputLength);
+
+                return;
+            } else {
+                // Already compressed blocks are only wrapped in stored deflate blocks, which don't need the preceding
+                // data
+                dictionaryLength = entry.compressed ? 0 : (int) Math.min(DICTIONARY_SIZE, offset);
+                int inputEnd = read(worker.input, offset - dictionaryLength, dictionaryLength + length);
+                inputLength = Math.max(0, inputEnd - dictionaryLength);
+                dictionaryLength = Math.min(dictionaryLength, inputEnd);
+                input = worker.input.array();
+            }
+
+            crc = crc(worker.crc, input, dictionaryLength, inputLength);
+
+            // Sampled here rather than when the entry is added, so reading and scanning the data is done in parallel
+            boolean incompressible = entry.compressed
+                || inputLength >= SAMPLE_SIZE && getEntropy(worker.histogram, input, dictionaryLength, SAMPLE_SIZE) >= STORED_ENTROPY;
+
+            if (incompressible && entry.blockCount == 1) {
+                // The local header is only written once this block is done, so the entry can still be stored
+                System.arraycopy(input, dictionaryLength, buffer.array(), 0, inputLength);
+                store(inputLength);
+
+                return;
+            }
+
+            length = inputLength;
+            stored = incompressible;
+            deflate(worker.deflater, input, incompressible ? Deflater.NO_COMPRESSION : level, dictionaryLength, inputLength, index == entry.blockCount - 1);
+        }
+
+        /**
+         * Uses the data at the start of the block's output buffer as is
+         * @param length the number of bytes of data
+         */
+        private void store(int length) {
+            this.length = length;
+            stored = true;
+            compressed = buffer.array();
+            compressedLength = length;
+        }
+
+        /**
+         * Calculates the CRC-32 of the specified data
+         * @param crc the worker's reusable checksum
+         * @param data the data
+         * @param offset the index of the first byte
+         * @param length the number of bytes
+         * @return the CRC-32
+         */
+        private long crc(CRC32 crc, byte[] data, int offset, int length) {
+            crc.reset();
+            crc.update(data, offset, length);
+            return crc.getValue();
+        }
+
+        /**
+         * Reads the contents of the entry at the specified position into the start of the specified buffer
+         * @param buffer the buffer
+         * @param position the position in the entry to start reading at
+         * @param length the number of bytes to read
+         * @return the number of bytes read, less than requested if the file shrank while being read
+         * @throws IOException
+         */
+        private int read(ByteBuffer buffer, long position, int length) throws IOException {
+            buffer.clear();
+            buffer.limit(length);
+
+            if (entry.data != null) {
+                int count = (int) Math.max(0, Math.min(length, entry.data.length - position));
+                buffer.put(entry.data, (int) position, count);
+                return count;
+            }
+
+            // Positional reads, so the workers can share the entry's file
+            FileChannel channel = entry.channel;
+            while (buffer.hasRemaining()) {
+                int read = channel.read(buffer, position);
+                if (read < 0) {
+                    // File shrank while being read, compress what we got
+                    break;
+                }
+                position += read;
+            }
+
+            return buffer.position();
+        }
+
+        /**
+         * Deflates the specified data into the block
+         * @param deflater the worker's reusable deflater
+         * @param input the dictionary, followed by the data to compress
+         * @param level the deflate compression level
+         * @param dictionaryLength the number of bytes at the start of the input to use as the dictionary
+         * @param inputLength the number of bytes after the dictionary to compress
+         * @param last whether this is the last block of the entry
+         */
+        private void deflate(Deflater deflater, byte[] input, int level, int dictionaryLength, int inputLength, boolean last) {
+            deflater.reset();
+            deflater.setLevel(level);
+
+            if (dictionaryLength > 0) {
+                deflater.setDictionary(input, 0, dictionaryLength);
+            }
+            deflater.setInput(input, dictionaryLength, inputLength);
+
+            byte[] output = buffer.array();
+            int outputLength = 0;
+
+            if (last) {
+                deflater.finish();
+            }
+
+            while (true) {
+                if (outputLength == output.length) {
+                    // Can't happen with the pool's buffer size, but the output mustn't be cut off if it does
+                    output = Arrays.copyOf(output, output.length * 2);
+                }
+
+                int available = output.length - outputLength;
+                int written = last
+                    ? deflater.deflate(output, outputLength, available)
+                    : deflater.deflate(output, outputLength, available, Deflater.SYNC_FLUSH);
+                outputLength += written;
+
+                // A level change is applied by a call which may return early, so only stop once all input is consumed
+                if (last ? deflater.finished() : deflater.needsInput() && written < available) {
+                    break;
+                }
+            }
+
+            compressed = output;
+            compressedLength = outputLength;
+        }
+    }
+
+    /**
+     * Splits generated contents into blocks as they're written, and queues each block to be compressed once full
+     * <p>
+     * Each block's buffer starts with the end of the preceding contents, as the dictionary to prime its compressor with.
+     * Failures writing the archive are recorded, so they aren't mistaken for failures generating the contents.
+     */
+    private final class ContentStream extends OutputStream {
+        private final Entry entry;
+        private long remaining;
+        private int index;
+        private ByteBuffer input;
+        private int dictionaryLength;
+        private IOException writeFailure;
+
+        private ContentStream(Entry entry, long size) {
+            this.entry = entry;
+            this.remaining = size;
+            this.input = BufferPool.acquire(DICTIONARY_SIZE + blockSize);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len > remaining) {
+                throw new IOException("Contents of " + entry.file.getPath() + " larger than expected");
+            }
+
+            while (len > 0) {
+                int count = Math.min(len, dictionaryLength + blockSize - input.position());
+                input.put(b, off, count);
+                off += count;
+                len -= count;
+                remaining -= count;
+
+                // The last block is only queued once all the contents are written
+                if (input.position() == dictionaryLength + blockSize && remaining > 0) {
+                    submitBlock();
+                }
+            }
+        }
+
+        /**
+         * Queues the last block, once all the contents are written
+         * @throws IOException if the contents are shorter than expected, or writing already compressed entries failed
+         */
+        private void finish() throws IOException {
+            if (remaining > 0) {
+                throw new IOException("Contents of " + entry.file.getPath() + " shorter than expected");
+            }
+
+            submitBlock();
+        }
+
+        /**
+         * Queues the block in the current buffer to be compressed, and starts the next one with the end of it
+         * @throws IOException if writing already compressed entries failed
+         */
+        private void submitBlock() throws IOException {
+            ByteBuffer filled = input;
+            int length = filled.position() - dictionaryLength;
+            input = null;
+
+            if (remaining > 0) {
+                int nextDictionaryLength = Math.min(DICTIONARY_SIZE, filled.position());
+                input = BufferPool.acquire(DICTIONARY_SIZE + blockSize);
+                input.put(filled.array(), filled.position() - nextDictionaryLength, nextDictionaryLength);
+                dictionaryLength = nextDictionaryLength;
+            }
+
+            try {
+                submit(takeBlock(entry, index++, 0, length, filled, filled.position() - length, null));
+            } catch (IOException exception) {
+                writeFailure = exception;
+                throw exception;
+            }
+        }
+
+        /**
+         * Fails the entry, after the contents couldn't be generated part way through
+         * @param exception the reason
+         * @throws IOException if writing already compressed entries failed
+         */
+        private void fail(IOException exception) throws IOException {
+            if (index == 0) {
+                // Nothing was queued, so nothing was written
+                failureHandler.onFileFailed(entry.file, exception);
+                return;
+            }
+
+            submit(takeBlock(entry, index, 0, 0, null, 0, exception));
+        }
+
+        /**
+         * Returns the buffer of the block being filled to the pool, if any
+         */
+        private void release() {
+            if (input != null) {
+                BufferPool.release(input);
+                input = null;
+            }
+        }
+    }
+
+    /**
+     * Per-thread compression state, reused between blocks
+     */
+    private static final class Worker {
+        private final ByteBuffer input;
+        private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        private final CRC32 crc = new CRC32();
+        private final int[] histogram = new int[256];
+
+        private Worker(int blockSize) {
+            input = BufferPool.acquire(DICTIONARY_SIZE + blockSize);
+        }
+    }
+
+    /**
+     * A file or in-memory data being written to the archive, reused for a later one once all its blocks are written
+     */
+    private static final class Entry {
+        private File file;
+        private FileChannel channel;
+        private byte[] data;
+        private String name;
+        private byte[] nameBytes = new byte[256];
+        private int nameLength;
+        private long dosTime;
+        private int blockCount;
+        private boolean compressed;
+        private boolean zip64;
+
+        /**
+         * Whether the entry is written with the stored method, which single block entries decide once compressed
+         */
+        private boolean stored;
+
+        private int flags;
+        private long offset;
+        private long crc;
+        private long compressedSize;
+        private long size;
+        private boolean headerWritten;
+        private volatile boolean failed;
+
+        /**
+         * The number of the entry's blocks which are queued but not yet written
+         */
+        private int pendingBlocks;
+
+        /**
+         * Whether all of the entry's blocks are queued
+         */
+        private boolean queued;
+
+        private void init(File file, FileChannel channel, byte[] data, String name, long dosTime, int blockCount, boolean compressed, boolean zip64) {
+            this.file = file;
+            this.channel = channel;
+            this.data = data;
+            this.dosTime = dosTime;
+            this.blockCount = blockCount;
+            this.compressed = compressed;
+            this.stored = compressed && blockCount == 1;
+            this.zip64 = zip64;
+
+            flags = 0;
+            offset = 0;
+            crc = 0;
+            compressedSize = 0;
+            size = 0;
+            headerWritten = false;
+            failed = false;
+            pendingBlocks = 0;
+            queued = false;
+
+            setName(name);
+        }
+
+        /**
+         * Drops the references to the file and data, once the entry is written
+         */
+        private void clear() {
+            file = null;
+            channel = null;
+            data = null;
+            name = null;
+        }
+
+        /**
+         * Sets the name of the entry, encoding it as UTF-8 into the reused name buffer
+         * <p>
+         * Unpaired surrogates are replaced with {@code ?}, as {@link String#getBytes} does
+         * @param name the path of the entry inside the archive
+         */
+        private void setName(String name) {
+            this.name = name;
+
+            // No character takes up more than 3 bytes, as only surrogate pairs take up 4
+            if (nameBytes.length < name.length() * 3) {
+                nameBytes = new byte[name.length() * 3];
+            }
+
+            byte[] bytes = nameBytes;
+            int length = 0;
+
+            for (int i = 0; i < name.length(); i++) {
+                char c = name.charAt(i);
+
+                if (c < 0x80) {
+                    bytes[length++] = (byte) c;
+                } else if (c < 0x800) {
+                    bytes[length++] = (byte) (0xC0 | c >> 6);
+                    bytes[length++] = (byte) (0x80 | c & 0x3F);
+                } else if (Character.isHighSurrogate(c) && i + 1 < name.length() && Character.isLowSurrogate(name.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, name.charAt(++i));
+                    bytes[length++] = (byte) (0xF0 | codePoint >> 18);
+                    bytes[length++] = (byte) (0x80 | codePoint >> 12 & 0x3F);
+                    bytes[length++] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+                    bytes[length++] = (byte) (0x80 | codePoint & 0x3F);
+                } else if (Character.isSurrogate(c)) {
+                    bytes[length++] = '?';
+                } else {
+                    bytes[length++] = (byte) (0xE0 | c >> 12);
+                    bytes[length++] = (byte) (0x80 | c >> 6 & 0x3F);
+                    bytes[length++] = (byte) (0x80 | c & 0x3F);
+                }
+            }
+
+            nameLength = length;
+
+            if (length != name.length()) {
+                flags |= FLAG_UTF8;
+            }
+        }
+    }
+
+    /**
+     * Combines the CRC-32 of two consecutive pieces of data, as done by zlib's {@code crc32_combine}
+     * @param crc1 the CRC-32 of the first piece
+     * @param crc2 the CRC-32 of the second piece
+     * @param length2 the length of the second piece
+     * @return the CRC-32 of both pieces
+     */
+    private long crc32Combine(long crc1, long crc2, long length2) {
+        if (length2 <= 0) {
+            return crc1;
+        }
+
+        long[] even = crcEven;
+        long[] odd = crcOdd;
+
+        odd[0] = 0xEDB88320L;
+        long row = 1;
+        for (int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+
+        gf2MatrixSquare(even, odd);
+        gf2MatrixSquare(odd, even);
+
+        do {
+            gf2MatrixSquare(even, odd);
+            if ((length2 & 1) != 0) {
+                crc1 = gf2MatrixTimes(even, crc1);
+            }
+            length2 >>= 1;
+
+            if (length2 == 0) {
+                break;
+            }
+
+            gf2MatrixSquare(odd, even);
+            if ((length2 & 1) != 0) {
+                crc1 = gf2MatrixTimes(odd, crc1);
+            }
+            length2 >>= 1;
+        } while (length2 != 0);
+
+        return crc1 ^ crc2;
+    }
+
+    private static long gf2MatrixTimes(long[] matrix, long vector) {
+        long sum = 0;
+        for (int i = 0; vector != 0; i++, vector >>>= 1) {
+            if ((vector & 1) != 0) {
+                sum ^= matrix[i];
+            }
+        }
+        return sum;
+    }
+
+    private static void gf2MatrixSquare(long[] square, long[] matrix) {
+        for (int n = 0; n < 32; n++) {
+            square[n] = gf2MatrixTimes(matrix, matrix[n]);
+        }
+    }
+
+    /**
+     * Gets the modification time to give an entry, which is fixed if the archive is reproducible
+     * @param time the time the entry was last modified, in milliseconds since the epoch
+     * @return the MS-DOS date/time
+     */
+    private long getDosTime(long time) {
+        return reproducible ? MIN_DOS_TIME : toDosTime(time);
+    }
+
+    /**
+     * Converts the specified time to the MS-DOS date/time format used by ZIP files, in the default time zone
+     * <p>
+     * The date is worked out arithmetically, as done by Howard Hinnant's {@code civil_from_days}, so converting doesn't
+     * allocate a {@code Calendar} for every entry
+     * @param time the time, in milliseconds since the epoch
+     * @return the MS-DOS date/time
+     */
+    private long toDosTime(long time) {
+        long localTime = time + timeZone.getOffset(time);
+        long days = Math.floorDiv(localTime, 86400000L);
+        int secondOfDay = (int) (Math.floorMod(localTime, 86400000L) / 1000);
+
+        // Days since 0000-03-01, so leap days fall at the end of each year
+        long shiftedDays = days + 719468;
+        long era = Math.floorDiv(shiftedDays, 146097);
+        int dayOfEra = (int) (shiftedDays - era * 146097);
+        int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        int shiftedMonth = (5 * dayOfYear + 2) / 153;
+        int day = dayOfYear - (153 * shiftedMonth + 2) / 5 + 1;
+        int month = shiftedMonth < 10 ? shiftedMonth + 3 : shiftedMonth - 9;
+        long year = era * 400 + yearOfEra + (month <= 2 ? 1 : 0);
+
+        if (year < 1980) {
+            return MIN_DOS_TIME;
+        }
+
+        return (year - 1980) << 25
+            | month << 21
+            | day << 16
+            | (secondOfDay / 3600) << 11
+            | (secondOfDay / 60 % 60) << 5
+            | (secondOfDay % 60) >> 1;
+    }
+
+    private void writeShort(int value) throws IOException {
+        scratch[0] = (byte) value;
+        scratch[1] = (byte) (value >>> 8);
+        out.write(scratch, 0, 2);
+    }
+
+    private void writeInt(long value) throws IOException {
+        scratch[0] = (byte) value;
+        scratch[1] = (byte) (value >>> 8);
+        scratch[2] = (byte) (value >>> 16);
+        scratch[3] = (byte) (value >>> 24);
+        out.write(scratch, 0, 4);
+    }
+
+    private void writeLong(long value) throws IOException {
+        writeInt(value);
+        writeInt(value >>> 32);
+    }
+
+    private static void putShort(ByteArrayOutputStream stream, int value) {
+        stream.write(value);
+        stream.write(value >>> 8);
+    }
+
+    private static void putInt(ByteArrayOutputStream stream, long value) {
+        putShort(stream, (int) value);
+        putShort(stream, (int) (value >>> 16));
+    }
+
+    private static void putLong(ByteArrayOutputStream stream, long value) {
+        putInt(stream, value);
+        putInt(stream, value >>> 32);
+    }
+
+    /**
+     * An {@code OutputStream} which keeps track of the number of bytes written to it
+     */
+    private static final class CountingOutputStream extends OutputStream {
+        private final OutputStream out;
+        private long count;
+
+        private CountingOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+
+        private long getCount() {
+            return count;
+        }
+    }
+}
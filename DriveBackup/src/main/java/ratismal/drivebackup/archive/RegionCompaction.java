@@ -0,0 +1,144 @@
+package ratismal.drivebackup.archive;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import ratismal.drivebackup.archive.ArchiveWriter.EntryContent;
+
+/**
+ * Compacts Minecraft region files as they're put in a backup, so the sectors the server no longer uses aren't read,
+ * compressed and uploaded
+ * <p>
+ * The server allocates a new run of sectors whenever a chunk outgrows its old one, leaving the old sectors free, and
+ * only reuses them for chunks that fit. A compacted region file has its chunks one after another, in the order they
+ * were in, each keeping its sector count and timestamp, so it's a valid region file the server loads as is.
+ * <p>
+ * The live file is only ever read.
+ */
+public class RegionCompaction {
+
+    private RegionCompaction() {
+    }
+
+    /**
+     * Creates a compacted copy of the specified region file
+     * <p>
+     * Only the header and the length of each chunk are read up front, the chunks are read as the copy is written
+     * @param file the region file
+     * @return the contents of the compacted region file, which have to be closed
+     * @throws IOException if the file couldn't be read, or isn't a valid region file
+     */
+    public static EntryContent compact(File file) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            ByteBuffer header = RegionDelta.readHeader(channel, file);
+
+            List<Long> chunks = new ArrayList<>();
+            long sectorCount = RegionDelta.HEADER_SIZE / RegionDelta.SECTOR_SIZE;
+            for (int i = 0; i < RegionDelta.CHUNK_COUNT; i++) {
+                int location = header.getInt(i * 4);
+                if (location == 0) {
+                    continue;
+                }
+
+                // Sorted by offset, then index
+                chunks.add((long) (location >>> 8) << 10 | i);
+                sectorCount += location & 0xFF;
+            }
+            Collections.sort(chunks);
+
+            // Only possible if chunks overlap, or are past the end of the file
+            if (sectorCount * RegionDelta.SECTOR_SIZE > channel.size()) {
+                throw new IOException("Corrupt header in region file " + file.getPath());
+            }
+
+            ByteBuffer newHeader = ByteBuffer.wrap(header.array().clone());
+            int[] chunkLengths = new int[chunks.size()];
+
+            int sector = RegionDelta.HEADER_SIZE / RegionDelta.SECTOR_SIZE;
+            for (int i = 0; i < chunks.size(); i++) {
+                int index = (int) (chunks.get(i) & 0x3FF);
+                int location = header.getInt(index * 4);
+                chunkLengths[i] = RegionDelta.readChunkLength(channel, location, file);
+
+                newHeader.putInt(index * 4, sector << 8 | location & 0xFF);
+                sector += location & 0xFF;
+            }
+
+            return new Compacted(file, channel, header, newHeader, chunks, chunkLengths, sectorCount * RegionDelta.SECTOR_SIZE);
+        } catch (IOException exception) {
+            channel.close();
+
+            throw exception;
+        }
+    }
+
+    /**
+     * A compacted copy of a region file, written as the chunks are read
+     */
+    private static final class Compacted implements EntryContent {
+        private final File file;
+        private final FileChannel channel;
+        private final ByteBuffer header;
+        private final ByteBuffer newHeader;
+        private final List<Long> chunks;
+        private final int[] chunkLengths;
+        private final long size;
+
+        private Compacted(File file, FileChannel channel, ByteBuffer header, ByteBuffer newHeader, List<Long> chunks, int[] chunkLengths, long size) {
+            this.file = file;
+            this.channel = channel;
+            this.header = header;
+            this.newHeader = newHeader;
+            this.chunks = chunks;
+            this.chunkLengths = chunkLengths;
+            this.size = size;
+        }
+
+        @Override
+        public File getFile() {
+            return file;
+        }
+
+        @Override
+        public long getSize() {
+            return size;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            out.write(newHeader.array(), 0, RegionDelta.HEADER_SIZE);
+
+            byte[] padding = new byte[RegionDelta.SECTOR_SIZE];
+            for (int i = 0; i < chunks.size(); i++) {
+                int location = header.getInt((int) (chunks.get(i) & 0x3FF) * 4);
+                byte[] data = RegionDelta.readChunk(channel, location, file);
+                if (data.length != chunkLengths[i]) {
+                    throw new IOException("Region file " + file.getPath() + " changed while being read");
+                }
+
+                out.write(data);
+
+                // Each chunk keeps its sector count, so is padded to the end of its last sector
+                int paddingLength = (location & 0xFF) * RegionDelta.SECTOR_SIZE - data.length;
+                while (paddingLength > 0) {
+                    int length = Math.min(paddingLength, padding.length);
+                    out.write(padding, 0, length);
+                    paddingLength -= length;
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
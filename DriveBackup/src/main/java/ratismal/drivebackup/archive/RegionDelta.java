@@ -0,0 +1,447 @@
+package ratismal.drivebackup.archive;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import ratismal.drivebackup.archive.ArchiveWriter.EntryContent;
+import ratismal.drivebackup.archive.ArchiveWriter.FailureHandler;
+
+/**
+ * The chunks of a Minecraft region file saved since the version of it in the last full backup, so an incremental
+ * backup doesn't need the whole file
+ * <p>
+ * A region file starts with an 8 KB header, a table of where each of its 1024 chunks is stored, in 4 KB sectors,
+ * followed by a table of when each chunk was last saved. The server saves a chunk by rewriting it along with its
+ * timestamp, so the chunks saved since the base version are those at least as recent as the newest chunk in the base.
+ * A delta contains the current header and those chunks, and is identified by the CRC-32 of the base's header, so it's
+ * only ever rebuilt on top of the version it was made from. Where the chunks are stored is left out of the CRC, other
+ * than whether each one exists, so the base can be a {@link RegionCompaction compacted} or
+ * {@link RegionTranscoding restored} copy of it.
+ * <p>
+ * Deltas are made against the last full backup rather than the previous backup, so restoring only needs the deltas in
+ * the latest backup, which replace any extracted from earlier ones.
+ */
+public class RegionDelta {
+
+    /**
+     * Extension added to the path of a region file to name its delta
+     */
+    public static final String EXTENSION = ".delta";
+
+    private static final int MAGIC = 0x44425244;
+    private static final int VERSION = 1;
+    static final int SECTOR_SIZE = 4096;
+    static final int HEADER_SIZE = 2 * SECTOR_SIZE;
+    static final int CHUNK_COUNT = 1024;
+    private static final int MAX_SECTOR_COUNT = 255;
+
+    private RegionDelta() {
+    }
+
+    /**
+     * Gets whether the file at the specified path is a region file
+     * @param path the path of the file
+     * @return whether it's a region file
+     */
+    public static boolean isRegionFile(String path) {
+        return path.endsWith(".mca");
+    }
+
+    /**
+     * Reads the header of the specified region file, to make deltas against it once backed up
+     * @param file the region file
+     * @return the base, or {@code null} if the file isn't a valid region file
+     */
+    static Base readBase(File file) {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = readHeader(channel, file);
+
+            long newestTimestamp = 0;
+            for (int i = 0; i < CHUNK_COUNT; i++) {
+                newestTimestamp = Math.max(newestTimestamp, getTimestamp(header, i));
+            }
+
+            return new Base(newestTimestamp, getCrc(header));
+        } catch (IOException exception) {
+            return null;
+        }
+    }
+
+    /**
+     * Creates a delta of the specified region file against the specified base
+     * <p>
+     * Only the header and the length of each saved chunk are read up front, the chunks are read as the delta is written
+     * @param file the region file
+     * @param base the version of the region file in the last full backup
+     * @return the delta, which has to be closed
+     * @throws IOException if the file couldn't be read, or isn't a valid region file
+     */
+    public static EntryContent create(File file, Base base) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            ByteBuffer header = readHeader(channel, file);
+
+            List<Integer> savedChunks = new ArrayList<>();
+            List<Integer> chunkLengths = new ArrayList<>();
+            long size = 4 + 1 + 4 + HEADER_SIZE + 4;
+            for (int i = 0; i < CHUNK_COUNT; i++) {
+                int location = header.getInt(i * 4);
+                if (location != 0 && getTimestamp(header, i) >= base.newestTimestamp) {
+                    int length = readChunkLength(channel, location, file);
+
+                    savedChunks.add(i);
+                    chunkLengths.add(length);
+                    size += 2 + 4 + length;
+                }
+            }
+
+            return new Delta(file, channel, header, base, savedChunks, chunkLengths, size);
+        } catch (IOException exception) {
+            channel.close();
+
+            throw exception;
+        }
+    }
+
+    /**
+     * Rebuilds the complete region file from the specified delta, replacing the base, and deletes the delta
+     * @param regionFile the version of the region file the delta was made against
+     * @param deltaFile the delta
+     * @throws IOException if the delta is invalid, or wasn't made against the region file
+     */
+    public static void rebuild(File regionFile, File deltaFile) throws IOException {
+        int baseCrc;
+        byte[] header = new byte[HEADER_SIZE];
+        Map<Integer, byte[]> savedChunks = new HashMap<>();
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(deltaFile.toPath())))) {
+            if (in.readInt() != MAGIC || in.readUnsignedByte() != VERSION) {
+                throw new IOException("Unsupported region delta " + deltaFile.getPath());
+            }
+
+            baseCrc = in.readInt();
+            in.readFully(header);
+
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                int index = in.readUnsignedShort();
+                byte[] chunk = new byte[in.readInt()];
+                in.readFully(chunk);
+
+                savedChunks.put(index, chunk);
+            }
+        } catch (EOFException exception) {
+            throw new IOException("Truncated region delta " + deltaFile.getPath(), exception);
+        }
+
+        File rebuiltFile = new File(regionFile.getPath() + ".tmp");
+
+        try (
+            FileChannel base = FileChannel.open(regionFile.toPath(), StandardOpenOption.READ);
+            FileChannel out = FileChannel.open(rebuiltFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)
+            ) {
+            ByteBuffer baseHeader = readHeader(base, regionFile);
+            if ((int) getCrc(baseHeader) != baseCrc) {
+                throw new IOException(regionFile.getPath() + " isn't the version " + deltaFile.getPath() + " was made against");
+            }
+
+            // The chunks are laid out again one after another, as those in the delta may not fit where they were
+            ByteBuffer newHeader = ByteBuffer.wrap(header);
+            int sector = HEADER_SIZE / SECTOR_SIZE;
+            for (int i = 0; i < CHUNK_COUNT; i++) {
+                if (newHeader.getInt(i * 4) == 0) {
+                    continue;
+                }
+
+                byte[] chunk = savedChunks.get(i);
+                if (chunk == null) {
+                    chunk = readChunk(base, baseHeader.getInt(i * 4), regionFile);
+                }
+
+                int sectorCount = (chunk.length + SECTOR_SIZE - 1) / SECTOR_SIZE;
+                writeFully(out, ByteBuffer.wrap(chunk), (long) sector * SECTOR_SIZE);
+
+                newHeader.putInt(i * 4, sector << 8 | sectorCount);
+                sector += sectorCount;
+            }
+
+            // Pads the last sector
+            if (out.size() < (long) sector * SECTOR_SIZE) {
+                writeFully(out, ByteBuffer.allocate(1), (long) sector * SECTOR_SIZE - 1);
+            }
+
+            newHeader.clear();
+            writeFully(out, newHeader, 0);
+        } catch (IOException exception) {
+            rebuiltFile.delete();
+
+            throw exception;
+        }
+
+        try {
+            Files.move(rebuiltFile.toPath(), regionFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException exception) {
+            Files.move(rebuiltFile.toPath(), regionFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        Files.delete(deltaFile.toPath());
+    }
+
+    /**
+     * Rebuilds every region file in the specified folder, and its subfolders, which has a delta or a transcoded copy
+     * next to it
+     * <p>
+     * This is how a backup with deltas, or transcoded region files, is restored, once the last full backup and each
+     * incremental backup since are extracted, in order, into the folder. The transcoded copies are restored first, as
+     * they can be the base of a delta.
+     * @param folder the folder
+     * @param failureHandler what to do with deltas and transcoded copies which couldn't be rebuilt, which are left in 
+     * place
+     * @return the number of region files rebuilt
+     * @throws IOException if the folder couldn't be listed
+     */
+    public static int rebuildAll(File folder, FailureHandler failureHandler) throws IOException {
+        List<Path> deltas = new ArrayList<>();
+        List<Path> transcodedFiles = new ArrayList<>();
+        Files.walkFileTree(folder.toPath(), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(EXTENSION) && isRegionFile(name.substring(0, name.length() - EXTENSION.length()))) {
+                    deltas.add(file);
+                } else if (name.endsWith(RegionTranscoding.EXTENSION) && isRegionFile(name.substring(0, name.length() - RegionTranscoding.EXTENSION.length()))) {
+                    transcodedFiles.add(file);
+                }
+
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+        Set<File> rebuilt = new HashSet<>();
+        for (Path transcodedFile : transcodedFiles) {
+            String transcodedPath = transcodedFile.toString();
+            File regionFile = new File(transcodedPath.substring(0, transcodedPath.length() - RegionTranscoding.EXTENSION.length()));
+
+            try {
+                RegionTranscoding.restore(transcodedFile.toFile(), regionFile);
+                rebuilt.add(regionFile);
+            } catch (IOException exception) {
+                failureHandler.onFileFailed(transcodedFile.toFile(), exception);
+            }
+        }
+
+        for (Path delta : deltas) {
+            String deltaPath = delta.toString();
+            File regionFile = new File(deltaPath.substring(0, deltaPath.length() - EXTENSION.length()));
+
+            try {
+                if (!regionFile.exists()) {
+                    throw new IOException("No region file to rebuild " + deltaPath + " on top of");
+                }
+
+                rebuild(regionFile, delta.toFile());
+                rebuilt.add(regionFile);
+            } catch (IOException exception) {
+                failureHandler.onFileFailed(delta.toFile(), exception);
+            }
+        }
+
+        return rebuilt.size();
+    }
+
+    /**
+     * Reads the header of the specified region file
+     * @param channel the region file, opened for reading
+     * @param file the region file, used in error messages
+     * @return the header
+     * @throws IOException if the file is too short to be a region file
+     */
+    static ByteBuffer readHeader(FileChannel channel, File file) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(channel, header, 0, file);
+
+        return header;
+    }
+
+    /**
+     * Reads the stored data of a chunk, which is its length followed by its compression type and compressed data
+     * @param channel the region file, opened for reading
+     * @param location the location of the chunk, from the header
+     * @param file the region file, used in error messages
+     * @return the data
+     * @throws IOException if the chunk isn't stored in the file
+     */
+    static byte[] readChunk(FileChannel channel, int location, File file) throws IOException {
+        ByteBuffer data = ByteBuffer.allocate(readChunkLength(channel, location, file));
+        readFully(channel, data, (long) (location >>> 8) * SECTOR_SIZE, file);
+
+        return data.array();
+    }
+
+    /**
+     * Reads the length of the stored data of a chunk, without reading the data itself
+     * @param channel the region file, opened for reading
+     * @param location the location of the chunk, from the header
+     * @param file the region file, used in error messages
+     * @return the length of the stored data, including the length itself
+     * @throws IOException if the chunk isn't stored in the file
+     */
+    static int readChunkLength(FileChannel channel, int location, File file) throws IOException {
+        long offset = (long) (location >>> 8) * SECTOR_SIZE;
+        int sectorCount = location & 0xFF;
+        if (location == 0 || offset < HEADER_SIZE) {
+            throw new IOException("Missing chunk in region file " + file.getPath());
+        }
+
+        ByteBuffer length = ByteBuffer.allocate(4);
+        readFully(channel, length, offset, file);
+
+        int dataLength = length.getInt(0) + 4;
+        if (dataLength <= 4 || dataLength > sectorCount * SECTOR_SIZE || sectorCount > MAX_SECTOR_COUNT) {
+            throw new IOException("Corrupt chunk in region file " + file.getPath());
+        }
+
+        return dataLength;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position, File file) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read == -1) {
+                throw new IOException("Truncated region file " + file.getPath());
+            }
+        }
+    }
+
+    static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+
+    private static long getTimestamp(ByteBuffer header, int index) {
+        return header.getInt(SECTOR_SIZE + index * 4) & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Gets the CRC-32 of the specified header, with the location of each chunk replaced by whether it exists
+     * @param header the header
+     * @return the CRC
+     */
+    private static long getCrc(ByteBuffer header) {
+        byte[] data = header.array().clone();
+        ByteBuffer locations = ByteBuffer.wrap(data);
+        for (int i = 0; i < CHUNK_COUNT; i++) {
+            locations.putInt(i * 4, locations.getInt(i * 4) == 0 ? 0 : 1);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, HEADER_SIZE);
+
+        return crc.getValue();
+    }
+
+    /**
+     * A delta, written as the saved chunks are read
+     */
+    private static final class Delta implements EntryContent {
+        private final File file;
+        private final FileChannel channel;
+        private final ByteBuffer header;
+        private final Base base;
+        private final List<Integer> savedChunks;
+        private final List<Integer> chunkLengths;
+        private final long size;
+
+        private Delta(File file, FileChannel channel, ByteBuffer header, Base base, List<Integer> savedChunks, List<Integer> chunkLengths, long size) {
+            this.file = file;
+            this.channel = channel;
+            this.header = header;
+            this.base = base;
+            this.savedChunks = savedChunks;
+            this.chunkLengths = chunkLengths;
+            this.size = size;
+        }
+
+        @Override
+        public File getFile() {
+            return file;
+        }
+
+        @Override
+        public long getSize() {
+            return size;
+        }
+
+        @Override
+        public void writeTo(OutputStream stream) throws IOException {
+            DataOutputStream out = new DataOutputStream(stream);
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeInt((int) base.crc);
+            out.write(header.array());
+            out.writeInt(savedChunks.size());
+
+            for (int i = 0; i < savedChunks.size(); i++) {
+                int index = savedChunks.get(i);
+                byte[] chunk = readChunk(channel, header.getInt(index * 4), file);
+                if (chunk.length != chunkLengths.get(i)) {
+                    throw new IOException("Region file " + file.getPath() + " changed while being read");
+                }
+
+                out.writeShort(index);
+                out.writeInt(chunk.length);
+                out.write(chunk);
+            }
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * The version of a region file deltas are made against, identified by its header
+     */
+    public static final class Base {
+        private final long newestTimestamp;
+        private final long crc;
+
+        Base(long newestTimestamp, long crc) {
+            this.newestTimestamp = newestTimestamp;
+            this.crc = crc;
+        }
+
+        long getNewestTimestamp() {
+            return newestTimestamp;
+        }
+
+        long getCrc() {
+            return crc;
+        }
+    }
+}
@@ -0,0 +1,315 @@
+package ratismal.drivebackup.archive;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import ratismal.drivebackup.archive.ArchiveWriter.EntryContent;
+
+/**
+ * A Minecraft region file with the chunks decompressed, so an archive compressed as a whole, such as a tar.zst, can
+ * find the redundancy between chunks, which compressing each chunk on its own hides
+ * <p>
+ * A transcoded region file contains the header of the region file, followed by each chunk, in the order they were in,
+ * with its compression type and whether it was decompressed. Only zlib compressed chunks, the default, are
+ * decompressed, the others are kept as they were. Restoring compresses the decompressed chunks again, which gives the
+ * same chunks, though not necessarily the same bytes, and lays them out one after another.
+ * <p>
+ * The live file is only ever read. The size of a transcoded copy has to be known before it's written, so each chunk is
+ * decompressed twice, once to measure it and once as it's written, rather than holding the whole copy in memory.
+ */
+public class RegionTranscoding {
+
+    /**
+     * Extension added to the path of a region file to name its transcoded copy
+     */
+    public static final String EXTENSION = ".raw";
+
+    private static final int MAGIC = 0x44425254;
+    private static final int VERSION = 1;
+    private static final int COMPRESSION_ZLIB = 2;
+    private static final int MAX_SECTOR_COUNT = 255;
+
+    private RegionTranscoding() {
+    }
+
+    /**
+     * Creates a transcoded copy of the specified region file
+     * @param file the region file
+     * @return the contents of the transcoded copy, which have to be closed
+     * @throws IOException if the file couldn't be read, or isn't a valid region file
+     */
+    public static EntryContent transcode(File file) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            ByteBuffer header = RegionDelta.readHeader(channel, file);
+
+            int[] chunkLengths = new int[RegionDelta.CHUNK_COUNT];
+            int[] inflatedLengths = new int[RegionDelta.CHUNK_COUNT];
+            long size = 4 + 1 + RegionDelta.HEADER_SIZE + 2;
+
+            Inflater inflater = new Inflater();
+            byte[] buffer = new byte[64 * 1024];
+            try {
+                for (int i = 0; i < RegionDelta.CHUNK_COUNT; i++) {
+                    int location = header.getInt(i * 4);
+                    if (location == 0) {
+                        continue;
+                    }
+
+                    // The length, then the compression type, then the compressed data
+                    byte[] chunk = RegionDelta.readChunk(channel, location, file);
+                    int compression = chunk[4] & 0xFF;
+
+                    chunkLengths[i] = chunk.length;
+                    inflatedLengths[i] = compression == COMPRESSION_ZLIB ? inflate(inflater, chunk, buffer, null) : -1;
+
+                    // Corrupt, or not zlib compressed, chunks are kept as they were
+                    size += 2 + 1 + 1 + 4 + (inflatedLengths[i] != -1 ? inflatedLengths[i] : chunk.length - 5);
+                }
+            } finally {
+                inflater.end();
+            }
+
+            return new Transcoded(file, channel, header, chunkLengths, inflatedLengths, size);
+        } catch (IOException exception) {
+            channel.close();
+
+            throw exception;
+        }
+    }
+
+    /**
+     * Restores the region file from the specified transcoded copy, and deletes the copy
+     * @param transcodedFile the transcoded copy
+     * @param regionFile the region file to create, or replace
+     * @throws IOException if the transcoded copy is invalid
+     */
+    public static void restore(File transcodedFile, File regionFile) throws IOException {
+        File restoredFile = new File(regionFile.getPath() + ".tmp");
+
+        Deflater deflater = new Deflater();
+        try (
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(transcodedFile.toPath())));
+            FileChannel out = FileChannel.open(restoredFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)
+            ) {
+            if (in.readInt() != MAGIC || in.readUnsignedByte() != VERSION) {
+                throw new IOException("Unsupported transcoded region file " + transcodedFile.getPath());
+            }
+
+            ByteBuffer header = ByteBuffer.allocate(RegionDelta.HEADER_SIZE);
+            in.readFully(header.array());
+
+            byte[] buffer = new byte[64 * 1024];
+            int sector = RegionDelta.HEADER_SIZE / RegionDelta.SECTOR_SIZE;
+            int index;
+            while ((index = in.readShort()) != -1) {
+                if (index < 0 || index >= RegionDelta.CHUNK_COUNT) {
+                    throw new IOException("Corrupt transcoded region file " + transcodedFile.getPath());
+                }
+
+                int compression = in.readUnsignedByte();
+                boolean inflated = in.readBoolean();
+                byte[] data = new byte[in.readInt()];
+                in.readFully(data);
+
+                ByteArrayOutputStream chunk = new ByteArrayOutputStream(data.length + 5);
+                DataOutputStream chunkOut = new DataOutputStream(chunk);
+                chunkOut.writeInt(0);
+                chunkOut.writeByte(compression);
+                if (inflated) {
+                    deflate(deflater, data, buffer, chunkOut);
+                } else {
+                    chunkOut.write(data);
+                }
+
+                byte[] chunkData = chunk.toByteArray();
+                ByteBuffer.wrap(chunkData).putInt(0, chunkData.length - 4);
+
+                int sectorCount = (chunkData.length + RegionDelta.SECTOR_SIZE - 1) / RegionDelta.SECTOR_SIZE;
+                if (sectorCount > MAX_SECTOR_COUNT) {
+                    throw new IOException("Chunk too large to restore in " + transcodedFile.getPath());
+                }
+
+                RegionDelta.writeFully(out, ByteBuffer.wrap(chunkData), (long) sector * RegionDelta.SECTOR_SIZE);
+
+                header.putInt(index * 4, sector << 8 | sectorCount);
+                sector += sectorCount;
+            }
+
+            // Pads the last sector
+            if (out.size() < (long) sector * RegionDelta.SECTOR_SIZE) {
+                RegionDelta.writeFully(out, ByteBuffer.allocate(1), (long) sector * RegionDelta.SECTOR_SIZE - 1);
+            }
+
+            header.clear();
+            RegionDelta.writeFully(out, header, 0);
+        } catch (EOFException exception) {
+            restoredFile.delete();
+
+            throw new IOException("Truncated transcoded region file " + transcodedFile.getPath(), exception);
+        } catch (IOException exception) {
+            restoredFile.delete();
+
+            throw exception;
+        } finally {
+            deflater.end();
+        }
+
+        try {
+            Files.move(restoredFile.toPath(), regionFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException exception) {
+            Files.move(restoredFile.toPath(), regionFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        Files.delete(transcodedFile.toPath());
+    }
+
+    /**
+     * Decompresses the zlib compressed data of the specified chunk
+     * @param inflater the inflater to use, which is reset
+     * @param chunk the stored data of the chunk
+     * @param buffer a buffer to decompress into
+     * @param out the stream to write the decompressed data to, or {@code null} to only measure it
+     * @return the length of the decompressed data, or -1 if the chunk is corrupt
+     * @throws IOException if writing the decompressed data failed
+     */
+    private static int inflate(Inflater inflater, byte[] chunk, byte[] buffer, OutputStream out) throws IOException {
+        inflater.reset();
+        inflater.setInput(chunk, 5, chunk.length - 5);
+
+        long inflatedLength = 0;
+        try {
+            while (!inflater.finished()) {
+                int length = inflater.inflate(buffer);
+                if (length == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    return -1;
+                }
+
+                if (out != null) {
+                    out.write(buffer, 0, length);
+                }
+                inflatedLength += length;
+            }
+        } catch (DataFormatException exception) {
+            return -1;
+        }
+
+        // Can't be stored, so is kept as it was
+        return inflatedLength > Integer.MAX_VALUE ? -1 : (int) inflatedLength;
+    }
+
+    /**
+     * Compresses the specified data with zlib, as the server does
+     * @param deflater the deflater to use, which is reset
+     * @param data the data
+     * @param buffer a buffer to compress into
+     * @param out the stream to write the compressed data to
+     * @throws IOException
+     */
+    private static void deflate(Deflater deflater, byte[] data, byte[] buffer, DataOutputStream out) throws IOException {
+        deflater.reset();
+        deflater.setInput(data);
+        deflater.finish();
+
+        while (!deflater.finished()) {
+            int length = deflater.deflate(buffer);
+            out.write(buffer, 0, length);
+        }
+    }
+
+    /**
+     * A transcoded copy of a region file, written as the chunks are read and decompressed again
+     */
+    private static final class Transcoded implements EntryContent {
+        private final File file;
+        private final FileChannel channel;
+        private final ByteBuffer header;
+        private final int[] chunkLengths;
+        private final int[] inflatedLengths;
+        private final long size;
+
+        private Transcoded(File file, FileChannel channel, ByteBuffer header, int[] chunkLengths, int[] inflatedLengths, long size) {
+            this.file = file;
+            this.channel = channel;
+            this.header = header;
+            this.chunkLengths = chunkLengths;
+            this.inflatedLengths = inflatedLengths;
+            this.size = size;
+        }
+
+        @Override
+        public File getFile() {
+            return file;
+        }
+
+        @Override
+        public long getSize() {
+            return size;
+        }
+
+        @Override
+        public void writeTo(OutputStream stream) throws IOException {
+            DataOutputStream out = new DataOutputStream(stream);
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.write(header.array());
+
+            Inflater inflater = new Inflater();
+            byte[] buffer = new byte[64 * 1024];
+            try {
+                for (int i = 0; i < RegionDelta.CHUNK_COUNT; i++) {
+                    int location = header.getInt(i * 4);
+                    if (location == 0) {
+                        continue;
+                    }
+
+                    byte[] chunk = RegionDelta.readChunk(channel, location, file);
+                    if (chunk.length != chunkLengths[i]) {
+                        throw new IOException("Region file " + file.getPath() + " changed while being read");
+                    }
+
+                    out.writeShort(i);
+                    out.writeByte(chunk[4] & 0xFF);
+
+                    if (inflatedLengths[i] != -1) {
+                        out.writeBoolean(true);
+                        out.writeInt(inflatedLengths[i]);
+
+                        if (inflate(inflater, chunk, buffer, out) != inflatedLengths[i]) {
+                            throw new IOException("Region file " + file.getPath() + " changed while being read");
+                        }
+                    } else {
+                        out.writeBoolean(false);
+                        out.writeInt(chunk.length - 5);
+                        out.write(chunk, 5, chunk.length - 5);
+                    }
+                }
+            } finally {
+                inflater.end();
+            }
+
+            out.writeShort(-1);
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
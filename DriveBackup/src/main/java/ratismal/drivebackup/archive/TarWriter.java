@@ -0,0 +1,371 @@
+package ratismal.drivebackup.archive;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+
+import com.github.luben.zstd.ZstdOutputStream;
+
+import net.jpountz.lz4.LZ4FrameOutputStream;
+
+/**
+ * Writes a tar archive, compressed as a single Zstandard or LZ4 frame stream
+ * <p>
+ * Unlike zip entries, a tar stream is compressed as a whole, so Zstandard spreads the work over its own worker
+ * threads instead of compressing each file separately
+ * <p>
+ * If reproducible, entries are given a fixed modification time and no owner, so the same files always result in the
+ * same archive
+ */
+public class TarWriter implements ArchiveWriter {
+
+    /**
+     * The modification time given to the entries of reproducible archives, 1980-01-01T00:00:00Z
+     */
+    private static final long REPRODUCIBLE_TIME = 315532800000L;
+
+    private final OutputStream out;
+    private final OutputStream compressedStream;
+    private final TarArchiveOutputStream tar;
+    private final FailureHandler failureHandler;
+    private final ByteBuffer buffer;
+    private final CRC32 crc = new CRC32();
+    private final ChecksumManifest checksums = new ChecksumManifest();
+    private final StringBuilder incompleteEntries = new StringBuilder();
+    private final boolean reproducible;
+    private boolean finished;
+
+    /**
+     * Creates an instance of the {@code TarWriter} object
+     * @param out the stream to write the archive to
+     * @param format the compression of the archive, either {@link ArchiveFormat#TAR_ZSTD} or {@link ArchiveFormat#TAR_LZ4}
+     * @param level the Zstandard compression level, unused for LZ4
+     * @param threads the number of worker threads to compress with, unused for LZ4
+     * @param bufferSize the size of the buffer files are read through
+     * @param reproducible whether to give every entry the same modification time and no owner
+     * @param failureHandler what to do with files that can't be read
+     * @throws IOException
+     */
+    public TarWriter(OutputStream out, ArchiveFormat format, int level, int threads, int bufferSize, boolean reproducible, FailureHandler failureHandler) throws IOException {
+        this.out = out;
+        this.failureHandler = failureHandler;
+        this.reproducible = reproducible;
+
+        // Finishing the compression stream mustn't close the underlying stream
+        OutputStream unclosableStream = new FilterOutputStream(out) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                flush();
+            }
+        };
+
+        OutputStream compressedStream;
+        switch (format) {
+            case TAR_ZSTD:
+                ZstdOutputStream zstdStream = new ZstdOutputStream(unclosableStream, level);
+                if (threads > 1) {
+                    zstdStream.setWorkers(threads);
+                } else if (reproducible) {
+                    // The output is the same with any number of workers, but not without any
+                    zstdStream.setWorkers(1);
+                }
+                compressedStream = zstdStream;
+                break;
+            case TAR_LZ4:
+                compressedStream = new LZ4FrameOutputStream(unclosableStream, LZ4FrameOutputStream.BLOCKSIZE.SIZE_4MB);
+                break;
+            default:
+                throw new IllegalArgumentException("Not a tar archive format: " + format.getName());
+        }
+
+        this.compressedStream = compressedStream;
+        tar = new TarArchiveOutputStream(new BufferedOutputStream(compressedStream, 64 * 1024), StandardCharsets.UTF_8.name());
+        tar.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+        tar.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX);
+
+        // Taken last, so it's only taken if the writer is created and will be closed
+        buffer = BufferPool.acquire(bufferSize);
+    }
+
+    /**
+     * Adds the specified file to the archive
+     * <p>
+     * The size is recorded before the file is read, if the file shrinks or can't be read part way through, the rest of
+     * the entry is filled with zeros so the archive stays valid, and the entry is listed as incomplete
+     * @param file the file
+     * @param entryName the path of the file inside the archive
+     * @throws IOException if writing the archive failed
+     */
+    @Override
+    public void addFile(File file, String entryName) throws IOException {
+        if (finished) {
+            throw new IllegalStateException("Archive already finished");
+        }
+
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        } catch (IOException exception) {
+            failureHandler.onFileFailed(file, exception);
+
+            return;
+        }
+
+        IOException readFailure = null;
+        try {
+            TarArchiveEntry entry = createEntry(entryName, file.length(), file.lastModified());
+            tar.putArchiveEntry(entry);
+
+            byte[] data = buffer.array();
+            long remaining = entry.getSize();
+            crc.reset();
+            while (remaining > 0) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), remaining));
+
+                int read;
+                try {
+                    read = channel.read(buffer);
+                } catch (IOException exception) {
+                    readFailure = exception;
+                    break;
+                }
+
+                if (read == -1) {
+                    break;
+                }
+
+                tar.write(data, 0, read);
+                crc.update(data, 0, read);
+                remaining -= read;
+            }
+
+            writeZeros(remaining);
+
+            tar.closeArchiveEntry();
+
+            if (readFailure == null) {
+                checksums.addFile(entryName, entry.getSize(), crc.getValue());
+            } else {
+                incompleteEntries.append(entryName).append('\n');
+            }
+        } finally {
+            channel.close();
+        }
+
+        if (readFailure != null) {
+            failureHandler.onFileFailed(file, readFailure);
+        }
+    }
+
+    @Override
+    public void addData(byte[] data, String entryName, long lastModified) throws IOException {
+        if (finished) {
+            throw new IllegalStateException("Archive already finished");
+        }
+
+        TarArchiveEntry entry = createEntry(entryName, data.length, lastModified);
+
+        tar.putArchiveEntry(entry);
+        tar.write(data);
+        tar.closeArchiveEntry();
+
+        crc.reset();
+        crc.update(data);
+        checksums.addFile(entryName, data.length, crc.getValue());
+    }
+
+    /**
+     * Adds the specified contents to the archive
+     * <p>
+     * If the file they're generated from can't be read part way through, the rest of the entry is filled with zeros so
+     * the archive stays valid, and the entry is listed as incomplete
+     * @param content the contents of the entry
+     * @param entryName the path of the entry inside the archive
+     * @param lastModified the time the entry was last modified, in milliseconds since the epoch
+     * @throws IOException if writing the archive failed
+     */
+    @Override
+    public void addContent(EntryContent content, String entryName, long lastModified) throws IOException {
+        if (finished) {
+            throw new IllegalStateException("Archive already finished");
+        }
+
+        TarArchiveEntry entry = createEntry(entryName, content.getSize(), lastModified);
+        tar.putArchiveEntry(entry);
+
+        EntryStream stream = new EntryStream(entry.getSize());
+        IOException readFailure = null;
+        crc.reset();
+        try {
+            content.writeTo(stream);
+
+            if (stream.remaining > 0) {
+                readFailure = new IOException("Contents of " + content.getFile().getPath() + " shorter than expected");
+            }
+        } catch (IOException exception) {
+            if (stream.writeFailure != null) {
+                throw stream.writeFailure;
+            }
+
+            readFailure = exception;
+        }
+
+        writeZeros(stream.remaining);
+
+        tar.closeArchiveEntry();
+
+        if (readFailure == null) {
+            checksums.addFile(entryName, entry.getSize(), crc.getValue());
+        } else {
+            incompleteEntries.append(entryName).append('\n');
+            failureHandler.onFileFailed(content.getFile(), readFailure);
+        }
+    }
+
+    /**
+     * Fills the rest of the current entry with zeros, after its file couldn't be read completely
+     * @param remaining the number of bytes left in the entry
+     * @throws IOException
+     */
+    private void writeZeros(long remaining) throws IOException {
+        if (remaining <= 0) {
+            return;
+        }
+
+        byte[] data = buffer.array();
+        Arrays.fill(data, (byte) 0);
+
+        while (remaining > 0) {
+            int length = (int) Math.min(data.length, remaining);
+            tar.write(data, 0, length);
+            crc.update(data, 0, length);
+            remaining -= length;
+        }
+    }
+
+    /**
+     * Creates the header of an entry, with a fixed modification time and no owner if the archive is reproducible
+     * @param entryName the path of the entry inside the archive
+     * @param size the size of the entry's contents
+     * @param modTime the time the entry was last modified, in milliseconds since the epoch
+     * @return the header
+     */
+    private TarArchiveEntry createEntry(String entryName, long size, long modTime) {
+        TarArchiveEntry entry = new TarArchiveEntry(entryName);
+        entry.setSize(size);
+
+        if (reproducible) {
+            entry.setModTime(REPRODUCIBLE_TIME);
+            // Defaults to the user the server runs as
+            entry.setUserName("");
+        } else {
+            entry.setModTime(modTime);
+        }
+
+        return entry;
+    }
+
+    /**
+     * Writes the list of incomplete entries if there are any, then the end of the archive and of the compressed stream
+     * <p>
+     * Doesn't close the underlying stream
+     * @throws IOException
+     */
+    @Override
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+
+        if (incompleteEntries.length() > 0) {
+            addData(incompleteEntries.toString().getBytes(StandardCharsets.UTF_8), INCOMPLETE_ENTRIES_ENTRY, System.currentTimeMillis());
+        }
+
+        // Closing the tar stream ends the compressed frame, which only flushes the underlying stream
+        tar.close();
+        finished = true;
+    }
+
+    @Override
+    public ChecksumManifest getChecksums() {
+        return checksums;
+    }
+
+    /**
+     * Closes the underlying stream, and returns the read buffer to the pool
+     * <p>
+     * If the archive wasn't finished, the compression stream is closed without writing the end of the archive, so its
+     * native context and worker threads are freed right away
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (!finished) {
+                try {
+                    compressedStream.close();
+                } catch (IOException exception) {
+                    // The archive is discarded anyway
+                }
+            }
+
+            out.close();
+        } finally {
+            BufferPool.release(buffer);
+        }
+    }
+
+    /**
+     * Writes contents to the current entry, keeping track of their CRC-32
+     * <p>
+     * Failures writing the archive are recorded, so they aren't mistaken for failures reading the file the contents
+     * are generated from
+     */
+    private final class EntryStream extends OutputStream {
+        private long remaining;
+        private IOException writeFailure;
+
+        private EntryStream(long size) {
+            remaining = size;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len > remaining) {
+                throw new IOException("Contents larger than expected");
+            }
+
+            try {
+                tar.write(b, off, len);
+            } catch (IOException exception) {
+                writeFailure = exception;
+                throw exception;
+            }
+
+            crc.update(b, off, len);
+            remaining -= len;
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package ratismal.drivebackup.archive;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes a backup archive as a series of fixed size volumes, followed by an index listing them
+ * <p>
+ * Each volume is a separate file, so it can be uploaded, and fetched again, independently of and in parallel with the
+ * others. The archive is the volumes concatenated in order. The index records the size and SHA-256 hash of each
+ * volume, and is written last, so a backup with an index is complete.
+ */
+public class VolumeOutputStream extends OutputStream {
+    private static final String INDEX_HEADER = "DriveBackupV2 volume index 1";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File folder;
+    private final String fileName;
+    private final long volumeSize;
+    private final MessageDigest digest;
+    private final List<File> volumes = new ArrayList<>();
+    private final List<String> hashes = new ArrayList<>();
+    private File index;
+
+    private OutputStream volume;
+    private long volumeLength;
+    private boolean closed;
+
+    /**
+     * Creates an instance of the {@code VolumeOutputStream} object
+     * @param folder the folder to create the volumes and index in
+     * @param fileName the file name of the backup, which the names of the volumes and index are based on
+     * @param volumeSize the size of each volume, except for the last one, in bytes
+     */
+    public VolumeOutputStream(File folder, String fileName, long volumeSize) {
+        if (volumeSize <= 0) {
+            throw new IllegalArgumentException("Volume size must be positive");
+        }
+
+        this.folder = folder;
+        this.fileName = fileName;
+        this.volumeSize = volumeSize;
+
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException exception) {
+            throw new IllegalStateException(exception);
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+
+        while (len > 0) {
+            if (volume == null || volumeLength == volumeSize) {
+                nextVolume();
+            }
+
+            int length = (int) Math.min(len, volumeSize - volumeLength);
+            volume.write(b, off, length);
+            digest.update(b, off, length);
+
+            volumeLength += length;
+            off += length;
+            len -= length;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (volume != null) {
+            volume.flush();
+        }
+    }
+
+    /**
+     * Finishes the last volume, then writes the index
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        // An empty archive still has a volume, so the backup isn't just an index
+        if (volume == null) {
+            nextVolume();
+        }
+        finishVolume();
+
+        index = new File(folder, ArchiveFormat.getIndexFileName(fileName));
+        try (BufferedWriter writer = Files.newBufferedWriter(index.toPath(), StandardCharsets.UTF_8)) {
+            writer.write(INDEX_HEADER);
+            writer.newLine();
+
+            for (int i = 0; i < volumes.size(); i++) {
+                writer.write(volumes.get(i).length() + "\t" + hashes.get(i) + "\t" + volumes.get(i).getName());
+                writer.newLine();
+            }
+        }
+    }
+
+    /**
+     * Deletes the volumes and index written so far, such as when creating the backup failed
+     */
+    public void delete() {
+        try {
+            if (volume != null) {
+                volume.close();
+            }
+        } catch (IOException exception) {
+            // Being deleted anyway
+        }
+        closed = true;
+
+        for (File file : getFiles()) {
+            file.delete();
+        }
+    }
+
+    /**
+     * Gets the files written, the volumes in order, followed by the index once closed
+     * @return the files
+     */
+    public List<File> getFiles() {
+        List<File> files = new ArrayList<>(volumes);
+        if (index != null) {
+            files.add(index);
+        }
+
+        return files;
+    }
+
+    /**
+     * Finishes the current volume, if any, and starts the next one
+     * @throws IOException
+     */
+    private void nextVolume() throws IOException {
+        finishVolume();
+
+        File file = new File(folder, ArchiveFormat.getVolumeFileName(fileName, volumes.size() + 1));
+        volume = new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE);
+        volumes.add(file);
+        volumeLength = 0;
+    }
+
+    /**
+     * Closes the current volume, if any, recording its hash
+     * @throws IOException
+     */
+    private void finishVolume() throws IOException {
+        if (volume == null) {
+            return;
+        }
+
+        volume.close();
+        volume = null;
+        hashes.add(BackupManifest.toHex(digest.digest()));
+    }
+}
@@ -9,6 +9,7 @@ import java.util.Map;
 
 import org.bukkit.configuration.file.FileConfiguration;
 
+import ratismal.drivebackup.archive.ArchiveFormat;
 import ratismal.drivebackup.util.Logger;
 import ratismal.drivebackup.config.configSections.BackupList.BackupListEntry.BackupLocation;
 import ratismal.drivebackup.util.FileUtil;
@@ -59,21 +60,53 @@ public class BackupList {
         public final LocalDateTimeFormatter formatter;
         public final boolean create;
         public final String[] blacklist;
+        public final boolean incremental;
+        public final int fullBackupInterval;
+        public final boolean deduplicate;
+        public final ArchiveFormat archiveFormat;
+        public final boolean reproducible;
+        public final boolean regionDeltas;
+        public final boolean compactRegions;
+        public final boolean transcodeRegions;
+        public final boolean zstdDictionary;
         
         public BackupListEntry(
             BackupLocation location,
             LocalDateTimeFormatter formatter, 
             boolean create, 
-            String[] blacklist
+            String[] blacklist,
+            boolean incremental,
+            int fullBackupInterval,
+            boolean deduplicate,
+            ArchiveFormat archiveFormat,
+            boolean reproducible,
+            boolean regionDeltas,
+            boolean compactRegions,
+            boolean transcodeRegions,
+            boolean zstdDictionary
             ) {
 
             this.location = location;
             this.formatter = formatter;
             this.create = create;
             this.blacklist = blacklist;
+            this.incremental = incremental;
+            this.fullBackupInterval = fullBackupInterval;
+            this.deduplicate = deduplicate;
+            this.archiveFormat = archiveFormat;
+            this.reproducible = reproducible;
+            this.regionDeltas = regionDeltas;
+            this.compactRegions = compactRegions;
+            this.transcodeRegions = transcodeRegions;
+            this.zstdDictionary = zstdDictionary;
         }
     }
 
+    /**
+     * Number of backups between full backups of incremental backup list entries, if not specified
+     */
+    private static final int DEFAULT_FULL_BACKUP_INTERVAL = 24;
+
     public final BackupListEntry[] list;
 
     public BackupList(
@@ -133,8 +166,101 @@ public class BackupList {
                     logger.log(intl("backup-list-blacklist-invalid"), "entry", entryIndex);
                 }
             }
+
+            boolean incremental = false;
+            try {
+                incremental = (boolean) (Boolean) rawListEntry.get("incremental");
+            } catch (Exception e) { 
+                // Do nothing, assume false
+            }
+
+            int fullBackupInterval = DEFAULT_FULL_BACKUP_INTERVAL;
+            if (rawListEntry.containsKey("full-backup-interval")) {
+                try {
+                    fullBackupInterval = (int) (Integer) rawListEntry.get("full-backup-interval");
+                    if (fullBackupInterval < 1) {
+                        throw new IllegalArgumentException();
+                    }
+                } catch (Exception e) {
+                    logger.log(intl("backup-list-full-backup-interval-invalid"), "entry", entryIndex);
+                    fullBackupInterval = DEFAULT_FULL_BACKUP_INTERVAL;
+                }
+            }
+
+            boolean deduplicate = false;
+            try {
+                deduplicate = (boolean) (Boolean) rawListEntry.get("deduplicate");
+            } catch (Exception e) { 
+                // Do nothing, assume false
+            }
+
+            ArchiveFormat archiveFormat = ArchiveFormat.ZIP_DEFLATE;
+            if (rawListEntry.containsKey("archive-format")) {
+                try {
+                    archiveFormat = ArchiveFormat.fromName((String) rawListEntry.get("archive-format"));
+                } catch (Exception e) {
+                    logger.log(intl("backup-list-archive-format-invalid"), "entry", entryIndex);
+                }
+            }
+
+            boolean reproducible = false;
+            try {
+                reproducible = (boolean) (Boolean) rawListEntry.get("reproducible");
+            } catch (Exception e) { 
+                // Do nothing, assume false
+            }
+
+            boolean regionDeltas = false;
+            try {
+                regionDeltas = (boolean) (Boolean) rawListEntry.get("region-deltas");
+            } catch (Exception e) { 
+                // Do nothing, assume false
+            }
+
+            if (regionDeltas && (!incremental || deduplicate)) {
+                logger.log(intl("backup-list-region-deltas-not-incremental"), "entry", entryIndex);
+                regionDeltas = false;
+            }
+
+            boolean compactRegions = false;
+            try {
+                compactRegions = (boolean) (Boolean) rawListEntry.get("compact-regions");
+            } catch (Exception e) { 
+                // Do nothing, assume false
+            }
+
+            if (compactRegions && deduplicate) {
+                logger.log(intl("backup-list-compact-regions-deduplicate"), "entry", entryIndex);
+                compactRegions = false;
+            }
+
+            boolean transcodeRegions = false;
+            try {
+                transcodeRegions = (boolean) (Boolean) rawListEntry.get("transcode-regions");
+            } catch (Exception e) { 
+                // Do nothing, assume false
+            }
+
+            // Zip archives compress each file on its own, so there is no redundancy between chunks to find
+            if (transcodeRegions && (deduplicate || archiveFormat == ArchiveFormat.ZIP_DEFLATE)) {
+                logger.log(intl("backup-list-transcode-regions-not-tar"), "entry", entryIndex);
+                transcodeRegions = false;
+            }
+
+            boolean zstdDictionary = false;
+            try {
+                zstdDictionary = (boolean) (Boolean) rawListEntry.get("zstd-dictionary");
+            } catch (Exception e) { 
+                // Do nothing, assume false
+            }
+
+            // Archive formats have no way to refer to a dictionary, only the chunks of a repository can use one
+            if (zstdDictionary && !deduplicate) {
+                logger.log(intl("backup-list-zstd-dictionary-not-deduplicated"), "entry", entryIndex);
+                zstdDictionary = false;
+            }
             
-            list.add(new BackupListEntry(location, formatter, create, blacklist));
+            list.add(new BackupListEntry(location, formatter, create, blacklist, incremental, fullBackupInterval, deduplicate, archiveFormat, reproducible, regionDeltas, compactRegions, transcodeRegions, zstdDictionary));
         }
 
         return new BackupList(list.toArray(new BackupListEntry[0]));
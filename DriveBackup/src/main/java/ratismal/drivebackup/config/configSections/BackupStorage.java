@@ -5,18 +5,36 @@ import java.util.zip.Deflater;
 import org.bukkit.configuration.Configuration;
 import org.bukkit.configuration.file.FileConfiguration;
 
+import ratismal.drivebackup.util.CpuUtil;
 import ratismal.drivebackup.util.Logger;
 
 import static ratismal.drivebackup.config.Localization.intl;
 
 public class BackupStorage {
+    private static final int MIN_ZSTD_LEVEL = 1;
+    private static final int MAX_ZSTD_LEVEL = 22;
+    private static final int MIN_BLOCK_SIZE_KB = 64;
+    private static final int MAX_BLOCK_SIZE_KB = 4096;
+    private static final int DEFAULT_HEAP_USAGE_THRESHOLD = 85;
+
     public final long delay;
     public final int threadPriority;
     public final int keepCount;
     public final int localKeepCount;
     public final int zipCompression;
+    public final int zstdCompression;
+    public final int compressionThreads;
+    public final int concurrentBackups;
+    public final int pipelineDepth;
+    public final int compressionBlockSize;
+    public final long volumeSize;
+    public final long memoryCeiling;
+    public final int heapUsageThreshold;
+    public final boolean streamingUploads;
     public final boolean backupsRequirePlayers;
     public final boolean disableSavingDuringBackups;
+    public final boolean snapshotStaging;
+    public final boolean trackDirtyRegions;
     public final String localDirectory;
     public final String remoteDirectory;
 
@@ -26,8 +44,19 @@ public class BackupStorage {
         int keepCount, 
         int localKeepCount,
         int zipCompression,
+        int zstdCompression,
+        int compressionThreads,
+        int concurrentBackups,
+        int pipelineDepth,
+        int compressionBlockSize,
+        long volumeSize,
+        long memoryCeiling,
+        int heapUsageThreshold,
+        boolean streamingUploads,
         boolean backupsRequirePlayers,
         boolean disableSavingDuringBackups,
+        boolean snapshotStaging,
+        boolean trackDirtyRegions,
         String localDirectory,
         String remoteDirectory
         ) {
@@ -37,8 +66,19 @@ public class BackupStorage {
         this.keepCount = keepCount;
         this.localKeepCount = localKeepCount;
         this.zipCompression = zipCompression;
+        this.zstdCompression = zstdCompression;
+        this.compressionThreads = compressionThreads;
+        this.concurrentBackups = concurrentBackups;
+        this.pipelineDepth = pipelineDepth;
+        this.compressionBlockSize = compressionBlockSize;
+        this.volumeSize = volumeSize;
+        this.memoryCeiling = memoryCeiling;
+        this.heapUsageThreshold = heapUsageThreshold;
+        this.streamingUploads = streamingUploads;
         this.backupsRequirePlayers = backupsRequirePlayers;
         this.disableSavingDuringBackups = disableSavingDuringBackups;
+        this.snapshotStaging = snapshotStaging;
+        this.trackDirtyRegions = trackDirtyRegions;
         this.localDirectory = localDirectory;
         this.remoteDirectory = remoteDirectory;
     }
@@ -82,12 +122,130 @@ public class BackupStorage {
             zipCompression = Deflater.BEST_COMPRESSION;
         }
 
+        int zstdCompression = config.getInt("zstd-compression");
+        if (zstdCompression < MIN_ZSTD_LEVEL) {
+            logger.log(intl("zstd-compression-too-low"));
+            zstdCompression = MIN_ZSTD_LEVEL;
+        } else if (zstdCompression > MAX_ZSTD_LEVEL) {
+            logger.log(intl("zstd-compression-too-high"));
+            zstdCompression = MAX_ZSTD_LEVEL;
+        }
+
+        double availableCores = CpuUtil.getAvailableCores();
+        int cpuBudget = parseCpuBudget(config.getString("cpu-budget"), availableCores);
+        if (cpuBudget < 0) {
+            logger.log(intl("cpu-budget-invalid"));
+            cpuBudget = parseCpuBudget("0", availableCores);
+        }
+
+        // The compression threads of every backup running at once are within the CPU budget
+        int compressionThreads = config.getInt("compression-threads");
+        if (compressionThreads < 0) {
+            logger.log(intl("compression-threads-invalid"));
+            compressionThreads = 0;
+        }
+        if (compressionThreads == 0 || compressionThreads > cpuBudget) {
+            compressionThreads = cpuBudget;
+        }
+
+        // The compression threads are shared between the backups running at once
+        int concurrentBackups = config.getInt("concurrent-backups");
+        if (concurrentBackups < 1) {
+            logger.log(intl("concurrent-backups-invalid"));
+            concurrentBackups = 1;
+        }
+
+        // The number of backups uploaded while the next ones are created, 0 uploads each backup before the next one
+        int pipelineDepth = config.getInt("pipeline-depth");
+        if (pipelineDepth < 0) {
+            logger.log(intl("pipeline-depth-invalid"));
+            pipelineDepth = 0;
+        }
+
+        int compressionBlockSize = config.getInt("compression-block-size");
+        if (compressionBlockSize < MIN_BLOCK_SIZE_KB) {
+            logger.log(intl("compression-block-size-too-low"));
+            compressionBlockSize = MIN_BLOCK_SIZE_KB;
+        } else if (compressionBlockSize > MAX_BLOCK_SIZE_KB) {
+            logger.log(intl("compression-block-size-too-high"));
+            compressionBlockSize = MAX_BLOCK_SIZE_KB;
+        }
+        compressionBlockSize *= 1024;
+
+        // In MB, 0 doesn't split backups into volumes
+        long volumeSize = config.getLong("volume-size");
+        if (volumeSize < 0) {
+            logger.log(intl("volume-size-invalid"));
+            volumeSize = 0;
+        }
+        volumeSize *= 1024 * 1024;
+
+        // In MB, the most memory the buffers of backups can take up, 0 uses an eighth of the maximum heap size
+        long memoryCeiling = config.getLong("memory-ceiling");
+        if (memoryCeiling < 0) {
+            logger.log(intl("memory-ceiling-invalid"));
+            memoryCeiling = 0;
+        }
+        memoryCeiling *= 1024 * 1024;
+        if (memoryCeiling == 0) {
+            memoryCeiling = Runtime.getRuntime().maxMemory() / 8;
+        }
+
+        // The percentage of the heap in use after a garbage collection at which backups use less memory
+        int heapUsageThreshold = config.getInt("heap-usage-threshold");
+        if (heapUsageThreshold < 1 || heapUsageThreshold > 100) {
+            logger.log(intl("heap-usage-threshold-invalid"));
+            heapUsageThreshold = DEFAULT_HEAP_USAGE_THRESHOLD;
+        }
+
+        boolean streamingUploads = config.getBoolean("streaming-uploads");
         boolean backupsRequirePlayers = config.getBoolean("backups-require-players");
         boolean disableSavingDuringBackups = config.getBoolean("disable-saving-during-backups");
+        boolean snapshotStaging = config.getBoolean("snapshot-staging");
+        boolean trackDirtyRegions = config.getBoolean("track-dirty-regions");
 
         String localDirectory = config.getString("local-save-directory");
         String remoteDirectory = config.getString("remote-save-directory");
 
-        return new BackupStorage(delay, threadPriority, keepCount, localKeepCount, zipCompression, backupsRequirePlayers, disableSavingDuringBackups, localDirectory, remoteDirectory);
+        return new BackupStorage(delay, threadPriority, keepCount, localKeepCount, zipCompression, zstdCompression, compressionThreads, concurrentBackups, pipelineDepth, compressionBlockSize, volumeSize, memoryCeiling, heapUsageThreshold, streamingUploads, backupsRequirePlayers, disableSavingDuringBackups, snapshotStaging, trackDirtyRegions, localDirectory, remoteDirectory);
+    }
+
+    /**
+     * Parses the number of threads backups can use for work which keeps a core busy, such as compression
+     * @param cpuBudget the number of cores, or a percentage of the cores the server can use, or 0 to use all but one
+     * core, which is left for the main server thread
+     * @param availableCores the number of cores the server can use, including the CPU quota of its container
+     * @return the number of threads, at least one, or -1 if the budget is invalid
+     */
+    private static int parseCpuBudget(String cpuBudget, double availableCores) {
+        if (cpuBudget == null) {
+            return -1;
+        }
+        cpuBudget = cpuBudget.trim();
+
+        double cores;
+        try {
+            if (cpuBudget.endsWith("%")) {
+                double percentage = Double.parseDouble(cpuBudget.substring(0, cpuBudget.length() - 1).trim());
+                if (percentage <= 0 || percentage > 100) {
+                    return -1;
+                }
+
+                cores = availableCores * percentage / 100;
+            } else {
+                cores = Double.parseDouble(cpuBudget);
+                if (cores < 0) {
+                    return -1;
+                }
+
+                if (cores == 0) {
+                    cores = availableCores - 1;
+                }
+            }
+        } catch (NumberFormatException exception) {
+            return -1;
+        }
+
+        return (int) Math.max(1, Math.floor(Math.min(cores, availableCores)));
     }
-} 
\ No newline at end of file
+}
\ No newline at end of file
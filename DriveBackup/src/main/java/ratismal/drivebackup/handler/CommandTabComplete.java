@@ -41,6 +41,8 @@ public class CommandTabComplete implements TabCompleter {
                 if (player.hasPermission("drivebackup.backup")) commandList.add("backup");
                 if (player.hasPermission("drivebackup.backup")) commandList.add("test");
                 if (player.hasPermission("drivebackup.backup")) commandList.add("update");
+                if (player.hasPermission("drivebackup.backup")) commandList.add("rebuildregions");
+                if (player.hasPermission("drivebackup.backup")) commandList.add("restoresnapshot");
                     
                 return commandList;
             } else if (args[0].equalsIgnoreCase("linkaccount") && args.length == 2) {
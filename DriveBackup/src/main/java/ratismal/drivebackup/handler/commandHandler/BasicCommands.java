@@ -7,6 +7,8 @@ import net.kyori.adventure.text.Component;
 import net.kyori.adventure.text.TextComponent.Builder;
 import net.kyori.adventure.text.format.NamedTextColor;
 import net.kyori.adventure.text.minimessage.MiniMessage;
+import ratismal.drivebackup.archive.ChunkRepository;
+import ratismal.drivebackup.archive.RegionDelta;
 import ratismal.drivebackup.config.ConfigParser;
 import ratismal.drivebackup.config.ConfigParser.Config;
 import ratismal.drivebackup.config.configSections.BackupList.BackupListEntry;
@@ -16,6 +18,8 @@ import ratismal.drivebackup.util.MessageUtil;
 
 import static ratismal.drivebackup.config.Localization.intl;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -126,6 +130,69 @@ public class BasicCommands {
         MessageUtil.Builder().mmText(intl("brief-backup-list-help")).toConsole(false).to(player).send();
     }
 
+    /**
+     * Rebuilds the region files in the specified folder from the region deltas next to them, telling the specified 
+     * player how it went
+     * <p>
+     * Reads and writes every region file with a delta, so shouldn't be run on the server thread
+     * @param player the player to send the messages to
+     * @param folder the folder a backup with region deltas was extracted to
+     */
+    public static void rebuildRegions(CommandSender player, File folder) {
+        MessageUtil.Builder().mmText(intl("region-rebuild-start"), "folder", folder.getPath()).to(player).send();
+
+        int rebuilt;
+        try {
+            rebuilt = RegionDelta.rebuildAll(folder, (File file, IOException exception) -> {
+                MessageUtil.Builder().mmText(intl("region-rebuild-file-failed"), "file-path", file.getPath()).to(player).send();
+                MessageUtil.sendConsoleException(exception);
+            });
+        } catch (IOException exception) {
+            MessageUtil.Builder().mmText(intl("region-rebuild-failed"), "folder", folder.getPath()).to(player).send();
+            MessageUtil.sendConsoleException(exception);
+
+            return;
+        }
+
+        MessageUtil.Builder().mmText(intl("region-rebuild-complete"), "rebuilt-count", String.valueOf(rebuilt)).to(player).send();
+    }
+
+    /**
+     * Restores the files in the specified snapshot of a deduplicated backup, from the packs and dictionaries next to 
+     * it, telling the specified player how it went
+     * <p>
+     * The files are restored to a folder named after the snapshot, next to it. Reads every pack, so shouldn't be run on
+     * the server thread
+     * @param player the player to send the messages to
+     * @param snapshotFile the snapshot, downloaded along with every pack and dictionary uploaded up to it
+     */
+    public static void restoreSnapshot(CommandSender player, File snapshotFile) {
+        String snapshotName = snapshotFile.getName();
+        if (snapshotName.endsWith(ChunkRepository.SNAPSHOT_EXTENSION)) {
+            snapshotName = snapshotName.substring(0, snapshotName.length() - ChunkRepository.SNAPSHOT_EXTENSION.length());
+        }
+
+        File folder = snapshotFile.getAbsoluteFile().getParentFile();
+        File targetFolder = new File(folder, snapshotName);
+
+        MessageUtil.Builder().mmText(intl("snapshot-restore-start"), "snapshot", snapshotFile.getPath(), "folder", targetFolder.getPath()).to(player).send();
+
+        int restored;
+        try {
+            restored = ChunkRepository.restore(snapshotFile, folder, targetFolder, (File file, IOException exception) -> {
+                MessageUtil.Builder().mmText(intl("snapshot-restore-file-failed"), "file-path", file.getPath()).to(player).send();
+                MessageUtil.sendConsoleException(exception);
+            });
+        } catch (IOException exception) {
+            MessageUtil.Builder().mmText(intl("snapshot-restore-failed"), "snapshot", snapshotFile.getPath()).to(player).send();
+            MessageUtil.sendConsoleException(exception);
+
+            return;
+        }
+
+        MessageUtil.Builder().mmText(intl("snapshot-restore-complete"), "restored-count", String.valueOf(restored)).to(player).send();
+    }
+
     /**
      * Tells the specified player they don't have permissions to run a command
      * @param player the player to send the message to
@@ -14,6 +14,9 @@ import ratismal.drivebackup.util.MessageUtil;
 
 import static ratismal.drivebackup.config.Localization.intl;
 
+import java.io.File;
+import java.util.Arrays;
+
 /**
  * Created by Ratismal on 2016-01-20.
  */
@@ -121,6 +124,30 @@ public class CommandHandler implements CommandExecutor {
                 if (!Permissions.hasPerm(sender, Permissions.BACKUP)) break;
 
                 DriveBackup.updater.runUpdater(sender);
+                break;
+            case "rebuildregions":
+                if (args.length < 2) {
+                    BasicCommands.sendHelp(sender);
+                    break;
+                }
+
+                if (!Permissions.hasPerm(sender, Permissions.BACKUP)) break;
+
+                File folder = new File(String.join(" ", Arrays.copyOfRange(args, 1, args.length)));
+                new Thread(() -> BasicCommands.rebuildRegions(sender, folder)).start();
+
+                break;
+            case "restoresnapshot":
+                if (args.length < 2) {
+                    BasicCommands.sendHelp(sender);
+                    break;
+                }
+
+                if (!Permissions.hasPerm(sender, Permissions.BACKUP)) break;
+
+                File snapshotFile = new File(String.join(" ", Arrays.copyOfRange(args, 1, args.length)));
+                new Thread(() -> BasicCommands.restoreSnapshot(sender, snapshotFile)).start();
+
                 break;
             default:
                 BasicCommands.sendHelp(sender);
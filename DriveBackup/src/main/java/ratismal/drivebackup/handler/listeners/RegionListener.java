@@ -0,0 +1,37 @@
+package ratismal.drivebackup.handler.listeners;
+
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.world.ChunkLoadEvent;
+import org.bukkit.event.world.ChunkUnloadEvent;
+import org.bukkit.event.world.WorldLoadEvent;
+import org.bukkit.event.world.WorldSaveEvent;
+
+import ratismal.drivebackup.config.ConfigParser;
+import ratismal.drivebackup.util.DirtyRegionTracker;
+
+public class RegionListener implements Listener {
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onWorldLoad(WorldLoadEvent event) {
+        if (ConfigParser.getConfig().backupStorage.trackDirtyRegions) {
+            DirtyRegionTracker.startTracking(event.getWorld());
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onChunkLoad(ChunkLoadEvent event) {
+        DirtyRegionTracker.chunkLoaded(event.getWorld(), event.getChunk().getX(), event.getChunk().getZ());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onChunkUnload(ChunkUnloadEvent event) {
+        DirtyRegionTracker.chunkUnloaded(event.getWorld(), event.getChunk().getX(), event.getChunk().getZ());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onWorldSave(WorldSaveEvent event) {
+        DirtyRegionTracker.save(event.getWorld());
+    }
+}
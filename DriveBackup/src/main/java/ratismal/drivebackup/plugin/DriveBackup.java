@@ -4,6 +4,7 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 
+import org.bukkit.World;
 import org.bukkit.command.CommandSender;
 import org.bukkit.configuration.file.FileConfiguration;
 import org.bukkit.plugin.PluginManager;
@@ -11,6 +12,7 @@ import org.bukkit.plugin.java.JavaPlugin;
 
 import net.kyori.adventure.platform.bukkit.BukkitAudiences;
 import okhttp3.OkHttpClient;
+import ratismal.drivebackup.archive.BufferPool;
 import ratismal.drivebackup.config.ConfigMigrator;
 import ratismal.drivebackup.config.ConfigParser;
 import ratismal.drivebackup.config.Localization;
@@ -20,6 +22,7 @@ import ratismal.drivebackup.handler.commandHandler.CommandHandler;
 import ratismal.drivebackup.handler.listeners.*;
 import ratismal.drivebackup.plugin.updater.*;
 import ratismal.drivebackup.util.CustomConfig;
+import ratismal.drivebackup.util.DirtyRegionTracker;
 import ratismal.drivebackup.util.HttpLogger;
 import ratismal.drivebackup.util.MessageUtil;
 
@@ -92,6 +95,13 @@ public class DriveBackup extends JavaPlugin {
         PluginManager pm = getServer().getPluginManager();
         pm.registerEvents(new PlayerListener(), plugin);
         pm.registerEvents(new ChatInputListener(), plugin);
+        pm.registerEvents(new RegionListener(), plugin);
+
+        if (ConfigParser.getConfig().backupStorage.trackDirtyRegions) {
+            for (World world : getServer().getWorlds()) {
+                DirtyRegionTracker.startTracking(world);
+            }
+        }
 
         Scheduler.startBackupThread();
 
@@ -106,6 +116,8 @@ public class DriveBackup extends JavaPlugin {
      */
     public void onDisable() {
         Scheduler.stopBackupThread();
+        DirtyRegionTracker.saveAll();
+        BufferPool.shutdown();
 
         MessageUtil.Builder().mmText(intl("plugin-stop")).send();
     }
@@ -0,0 +1,112 @@
+package ratismal.drivebackup.uploaders;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.nio.ByteBuffer;
+
+import ratismal.drivebackup.archive.BufferPool;
+
+/**
+ * Splits a stream of unknown length into fixed size chunks for upload, detecting which chunk is the last one
+ * <p>
+ * The chunk buffer is taken from the {@link BufferPool}, closing the reader returns it, but doesn't close the stream
+ */
+public class ChunkReader implements Closeable {
+    private final PushbackInputStream stream;
+    private final ByteBuffer pooledBuffer;
+    private final byte[] buffer;
+
+    private int chunkLength;
+    private long offset;
+    private long nextOffset;
+    private boolean finished;
+    private boolean closed;
+
+    /**
+     * Creates an instance of the {@code ChunkReader} object
+     * @param stream the stream to read from
+     * @param chunkSize the size of each chunk, in bytes
+     */
+    public ChunkReader(InputStream stream, int chunkSize) {
+        this.stream = new PushbackInputStream(stream, 1);
+        pooledBuffer = BufferPool.acquire(chunkSize);
+        buffer = pooledBuffer.array();
+    }
+
+    /**
+     * Reads the next chunk, filling the buffer unless the end of the stream is reached
+     * @return the number of bytes in the chunk
+     * @throws IOException
+     */
+    public int readChunk() throws IOException {
+        offset = nextOffset;
+        chunkLength = 0;
+
+        while (chunkLength < buffer.length) {
+            int read = stream.read(buffer, chunkLength, buffer.length - chunkLength);
+            if (read == -1) {
+                break;
+            }
+
+            chunkLength += read;
+        }
+
+        nextOffset = offset + chunkLength;
+
+        int next = stream.read();
+        if (next == -1) {
+            finished = true;
+        } else {
+            stream.unread(next);
+        }
+
+        return chunkLength;
+    }
+
+    /**
+     * Gets the buffer containing the current chunk
+     * <p>
+     * The buffer is reused for every chunk
+     * @return the buffer
+     */
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Gets the number of bytes in the current chunk
+     * @return the number of bytes
+     */
+    public int getChunkLength() {
+        return chunkLength;
+    }
+
+    /**
+     * Gets the position of the first byte of the current chunk in the stream
+     * @return the position
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * Gets whether the current chunk is the last one in the stream
+     * @return whether the end of the stream was reached
+     */
+    public boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * Returns the chunk buffer to the pool, the buffer mustn't be used afterwards
+     */
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            BufferPool.release(pooledBuffer);
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package ratismal.drivebackup.uploaders;
+
+/**
+ * Thrown to indicate that the hash an upload method reported for an uploaded file doesn't match the hash of the data
+ * sent to it, so the file was corrupted on the way
+ * <p>
+ * The uploaded file is deleted before this is thrown. As the data was read as it was sent, only the caller can send it
+ * again.
+ */
+public class HashMismatchException extends Exception {
+    /**
+     * Constructs a {@code HashMismatchException} for the specified file
+     *
+     * @param fileName the name of the file
+     * @param expectedHash the hash of the data sent
+     * @param actualHash the hash reported by the upload method
+     */
+    public HashMismatchException(String fileName, String expectedHash, String actualHash) {
+        super("Uploaded file " + fileName + " has hash " + actualHash + ", expected " + expectedHash);
+    }
+}
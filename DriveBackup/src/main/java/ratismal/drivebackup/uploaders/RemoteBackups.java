@@ -0,0 +1,35 @@
+package ratismal.drivebackup.uploaders;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import ratismal.drivebackup.archive.ArchiveFormat;
+
+/**
+ * Groups the backup files stored by an upload method into the backups they belong to
+ * <p>
+ * The volumes and index of a backup split into volumes count as a single backup, so they are kept, or pruned, together
+ */
+public class RemoteBackups {
+    private RemoteBackups() {
+    }
+
+    /**
+     * Groups the specified backup files by the backup they belong to
+     * @param files the backup files, oldest first
+     * @param getFileName gets the name of a file
+     * @return the backups, each a list of its files, ordered by their oldest file
+     */
+    public static <T> List<List<T>> groupByBackup(Iterable<T> files, Function<T, String> getFileName) {
+        Map<String, List<T>> backups = new LinkedHashMap<>();
+
+        for (T file : files) {
+            backups.computeIfAbsent(ArchiveFormat.getBackupName(getFileName.apply(file)), name -> new ArrayList<>()).add(file);
+        }
+
+        return new ArrayList<>(backups.values());
+    }
+}
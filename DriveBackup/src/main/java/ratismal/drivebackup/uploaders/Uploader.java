@@ -8,7 +8,10 @@ public interface Uploader {
     public AuthenticationProvider getAuthProvider();
     public boolean isAuthenticated();
     public boolean isErrorWhileUploading();
+    public boolean supportsConcurrentUploads();
     public void test(java.io.File testFile);
     public void uploadFile(java.io.File file, String type) throws Exception;
+    public void uploadFile(java.io.InputStream stream, String fileName, long length, String type) throws Exception;
+    public void deleteFile(String fileName, String type) throws Exception;
     public void close();
 }
\ No newline at end of file
@@ -0,0 +1,73 @@
+package ratismal.drivebackup.uploaders.dropbox;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Calculates the hash Dropbox reports as the {@code content_hash} of a file
+ * <p>
+ * The data is split into 4 MB blocks, and the hash is the SHA-256 hash of the SHA-256 hashes of each block
+ */
+class DropboxContentHash extends MessageDigest {
+    private static final int BLOCK_SIZE = 4 * 1024 * 1024;
+
+    private final MessageDigest blockDigest = newSha256();
+    private final MessageDigest overallDigest = newSha256();
+    private int blockLength;
+
+    DropboxContentHash() {
+        super("Dropbox-Content-Hash");
+    }
+
+    @Override
+    protected void engineUpdate(byte input) {
+        engineUpdate(new byte[] { input }, 0, 1);
+    }
+
+    @Override
+    protected void engineUpdate(byte[] input, int offset, int length) {
+        while (length > 0) {
+            int count = Math.min(length, BLOCK_SIZE - blockLength);
+            blockDigest.update(input, offset, count);
+            blockLength += count;
+            offset += count;
+            length -= count;
+
+            if (blockLength == BLOCK_SIZE) {
+                finishBlock();
+            }
+        }
+    }
+
+    @Override
+    protected byte[] engineDigest() {
+        if (blockLength > 0) {
+            finishBlock();
+        }
+
+        byte[] hash = overallDigest.digest();
+        engineReset();
+
+        return hash;
+    }
+
+    @Override
+    protected void engineReset() {
+        blockDigest.reset();
+        overallDigest.reset();
+        blockLength = 0;
+    }
+
+    private void finishBlock() {
+        overallDigest.update(blockDigest.digest());
+        blockLength = 0;
+    }
+
+    private static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException exception) {
+            throw new IllegalStateException(exception);
+        }
+    }
+}
@@ -1,9 +1,14 @@
 package ratismal.drivebackup.uploaders.dropbox;
 
+import ratismal.drivebackup.archive.ArchiveFormat;
+import ratismal.drivebackup.archive.BackupManifest;
 import ratismal.drivebackup.util.MessageUtil;
 import ratismal.drivebackup.util.NetUtil;
 import ratismal.drivebackup.uploaders.Authenticator;
+import ratismal.drivebackup.uploaders.ChunkReader;
+import ratismal.drivebackup.uploaders.HashMismatchException;
 import ratismal.drivebackup.uploaders.Obfusticate;
+import ratismal.drivebackup.uploaders.RemoteBackups;
 import ratismal.drivebackup.uploaders.Uploader;
 import ratismal.drivebackup.uploaders.Authenticator.AuthenticationProvider;
 import ratismal.drivebackup.UploadThread.UploadLogger;
@@ -13,6 +18,12 @@ import ratismal.drivebackup.plugin.DriveBackup;
 
 import java.io.DataInputStream;
 import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 import org.json.JSONArray;
@@ -39,6 +50,16 @@ public class DropboxUploader implements Uploader {
     private String accessToken = "";
     private String refreshToken;
 
+    /**
+     * Size of the file chunks to upload to Dropbox
+     */
+    private static final int CHUNKED_UPLOAD_CHUNK_SIZE = 10 * 1024 * 1024;
+
+    /**
+     * Number of times a file is uploaded before giving up, if the uploaded file doesn't match
+     */
+    private static final int MAX_UPLOAD_ATTEMPTS = 3;
+
     /**
      * Tests the Dropbox account by uploading a small file
      *  @param testFile the file to upload during the test
@@ -102,123 +123,167 @@ public class DropboxUploader implements Uploader {
     /**
      * Uploads the specified file to the authenticated user's Dropbox inside a
      * folder for the specified file type
+     * <p>
+     * If the uploaded file doesn't match, it's uploaded again
      * 
      * @param file the file
      * @param type the type of file (ex. plugins, world)
      */
     public void uploadFile(final java.io.File file, final String type) {
+        for (int attempt = 1; ; attempt++) {
+            try (FileInputStream stream = new FileInputStream(file)) {
+                uploadFile(stream, file.getName(), file.length(), type);
+
+                return;
+            } catch (HashMismatchException exception) {
+                MessageUtil.sendConsoleException(exception);
+
+                if (attempt == MAX_UPLOAD_ATTEMPTS) {
+                    logger.log(intl("backup-method-hash-mismatch"), "file-name", file.getName(), "upload-method", getName());
+                    setErrorOccurred(true);
+
+                    return;
+                }
+
+                logger.log(intl("backup-method-hash-mismatch-retrying"), "file-name", file.getName(), "upload-method", getName());
+            } catch (IOException exception) {
+                MessageUtil.sendConsoleException(exception);
+                setErrorOccurred(true);
+
+                return;
+            }
+        }
+    }
+
+    /**
+     * Uploads the data read from the specified stream to the authenticated user's
+     * Dropbox inside a folder for the specified file type
+     * <p>
+     * Data which fits in a single chunk is sent in one request, anything larger is
+     * sent using an upload session. The content hash of the data is calculated as
+     * it's sent, and compared to the one Dropbox reports for the uploaded file.
+     * 
+     * @param stream the stream
+     * @param fileName the name of the file to create
+     * @param length the length of the data, or -1 if unknown
+     * @param type the type of file (ex. plugins, world)
+     * @throws HashMismatchException if the uploaded file doesn't match, in which case it was deleted
+     */
+    public void uploadFile(final InputStream stream, final String fileName, final long length, final String type) throws HashMismatchException {
         String destination = ConfigParser.getConfig().backupStorage.remoteDirectory;
-        int fileSize = (int) file.length();
         MediaType OCTET_STREAM = MediaType.parse("application/octet-stream");
 
         String folder = type.replaceAll("\\.{1,2}\\/", "");
 
-        try (DataInputStream dis = new DataInputStream(new FileInputStream(file))) {
-            if (fileSize > 150000000 /* 150MB */) {
-                // Chunked upload
+        DropboxContentHash contentHash = new DropboxContentHash();
 
-                final int CHUNKED_UPLOAD_CHUNK_SIZE = (1024 * 1024 * 10); //10 MB chunk
-                int uploaded = 0;
-                byte[] buff = new byte[CHUNKED_UPLOAD_CHUNK_SIZE];
-                String sessionId = null;
+        try (ChunkReader chunks = new ChunkReader(new DigestInputStream(stream, contentHash), CHUNKED_UPLOAD_CHUNK_SIZE)) {
+            chunks.readChunk();
 
-                // (1) Start
-                if (sessionId == null) {
+            Response response;
 
-                    dis.readFully(buff);
-                    RequestBody requestBody = RequestBody.create(buff, OCTET_STREAM);
+            JSONObject dropboxCommit = new JSONObject();
+            dropboxCommit.put("path", "/" + destination + "/" + folder + "/" + fileName);
 
-                    Request request = new Request.Builder()
-                        .addHeader("Authorization", "Bearer " + accessToken)
-                        .post(requestBody)
-                        .url("https://content.dropboxapi.com/2/files/upload_session/start")
-                        .build();
+            if (chunks.isFinished()) {
+                // Single upload
+                RequestBody requestBody = RequestBody.create(chunks.getBuffer(), OCTET_STREAM, 0, chunks.getChunkLength());
 
-                    Response response = DriveBackup.httpClient.newCall(request).execute();
-                    JSONObject parsedResponse = new JSONObject(response.body().string());
-                    sessionId = parsedResponse.getString("session_id");
-                    response.close();
-                    uploaded += CHUNKED_UPLOAD_CHUNK_SIZE;
-                }
+                Request request = new Request.Builder()
+                    .addHeader("Authorization", "Bearer " + accessToken)
+                    .addHeader("Dropbox-API-Arg", dropboxCommit.toString())
+                    .url("https://content.dropboxapi.com/2/files/upload")
+                    .post(requestBody)
+                    .build();
+
+                response = execute(request);
+            } else {
+                // Chunked upload
+
+                // (1) Start
+                RequestBody requestBody = RequestBody.create(chunks.getBuffer(), OCTET_STREAM, 0, chunks.getChunkLength());
+
+                Request request = new Request.Builder()
+                    .addHeader("Authorization", "Bearer " + accessToken)
+                    .post(requestBody)
+                    .url("https://content.dropboxapi.com/2/files/upload_session/start")
+                    .build();
+
+                response = execute(request);
+                JSONObject parsedResponse = new JSONObject(response.body().string());
+                String sessionId = parsedResponse.getString("session_id");
+                response.close();
 
                 // (2) Append
-                while (fileSize - uploaded > CHUNKED_UPLOAD_CHUNK_SIZE) {
-                    dis.readFully(buff);
-                    RequestBody requestBody = RequestBody.create(buff, OCTET_STREAM);
+                chunks.readChunk();
+                while (!chunks.isFinished()) {
+                    requestBody = RequestBody.create(chunks.getBuffer(), OCTET_STREAM, 0, chunks.getChunkLength());
 
                     JSONObject dropbox_cursor = new JSONObject();
                     dropbox_cursor.put("session_id", sessionId);
-                    dropbox_cursor.put("offset", uploaded);
+                    dropbox_cursor.put("offset", chunks.getOffset());
 
                     JSONObject dropbox_json = new JSONObject();
                     dropbox_json.put("cursor", dropbox_cursor);
                     String dropbox_arg = dropbox_json.toString();
 
-                    Request request = new Request.Builder()
+                    request = new Request.Builder()
                         .addHeader("Dropbox-API-Arg", dropbox_arg)
                         .addHeader("Authorization", "Bearer " + accessToken)
                         .post(requestBody)
                         .url("https://content.dropboxapi.com/2/files/upload_session/append_v2")
                         .build();
 
-                    Response response = DriveBackup.httpClient.newCall(request).execute();
-                    response.close();
-                    uploaded += CHUNKED_UPLOAD_CHUNK_SIZE;
+                    execute(request).close();
+                    chunks.readChunk();
                 }
 
                 // (3) Finish
-                byte[] remaining = new byte[fileSize - uploaded];
-                dis.readFully(remaining);
-                RequestBody requestBody = RequestBody.create(remaining, OCTET_STREAM);
+                requestBody = RequestBody.create(chunks.getBuffer(), OCTET_STREAM, 0, chunks.getChunkLength());
 
                 JSONObject dropboxCursor = new JSONObject();
                 dropboxCursor.put("session_id", sessionId);
-                dropboxCursor.put("offset", uploaded);
-
-                JSONObject dropboxCommit = new JSONObject();
-                dropboxCommit.put("path", "/" + destination + "/" + folder + "/" + file.getName());
+                dropboxCursor.put("offset", chunks.getOffset());
 
                 JSONObject dropboxJson = new JSONObject();
                 dropboxJson.put("cursor", dropboxCursor);
                 dropboxJson.put("commit", dropboxCommit);
                 String dropbox_arg = dropboxJson.toString();
 
-                Request request = new Request.Builder()
+                request = new Request.Builder()
                     .addHeader("Dropbox-API-Arg", dropbox_arg)
                     .addHeader("Authorization", "Bearer " + accessToken)
                     .post(requestBody)
                     .url("https://content.dropboxapi.com/2/files/upload_session/finish")
                     .build();
 
-                Response response = DriveBackup.httpClient.newCall(request).execute();
-                response.close();
-            } else {
-                // Single upload
+                response = execute(request);
+            }
 
-                byte[] content = new byte[fileSize];
-                dis.readFully(content);
-                RequestBody requestBody = RequestBody.create(content, OCTET_STREAM);
+            // Both the upload and the end of the upload session respond with the metadata of the uploaded file
+            String uploadedHash = new JSONObject(response.body().string()).optString("content_hash", null);
+            response.close();
 
-                JSONObject dropbox_json = new JSONObject();
-                dropbox_json.put("path", "/" + destination + "/" + folder + "/" + file.getName());
-                String dropbox_arg = dropbox_json.toString();
+            String hash = BackupManifest.toHex(contentHash.digest());
+            if (uploadedHash != null && !uploadedHash.equals(hash)) {
+                deleteFile(fileName, type);
 
-                Request request = new Request.Builder()
-                    .addHeader("Authorization", "Bearer " + accessToken)
-                    .addHeader("Dropbox-API-Arg", dropbox_arg)
-                    .url("https://content.dropboxapi.com/2/files/upload")
-                    .post(requestBody)
-                    .build();
+                throw new HashMismatchException(fileName, hash, uploadedHash);
+            }
 
-                Response response = DriveBackup.httpClient.newCall(request).execute();
-                response.close();
+            // The index of a backup split into volumes is uploaded last, so it is pruned once all of it is uploaded
+            if (ArchiveFormat.isVolume(fileName)) {
+                return;
             }
+
             try {
                 pruneBackups(folder);
             } catch (Exception e) {
                 logger.log(intl("backup-method-prune-failed"));
                 throw e;
             }
+        } catch (HashMismatchException exception) {
+            throw exception;
         } catch (Exception exception) {
             NetUtil.catchException(exception, "api.dropboxapi.com", logger);
             MessageUtil.sendConsoleException(exception);
@@ -226,6 +291,49 @@ public class DropboxUploader implements Uploader {
         }
     }
 
+    /**
+     * Deletes the file with the specified name from the folder for the specified file type in the authenticated user's
+     * Dropbox
+     * 
+     * @param fileName the name of the file
+     * @param type the type of file (ex. plugins, world)
+     * @throws Exception
+     */
+    public void deleteFile(String fileName, String type) throws Exception {
+        String destination = ConfigParser.getConfig().backupStorage.remoteDirectory;
+        String folder = type.replaceAll("\\.{1,2}\\/", "");
+
+        JSONObject json = new JSONObject();
+        json.put("path", "/" + destination + "/" + folder + "/" + fileName);
+
+        Request request = new Request.Builder()
+            .addHeader("Authorization", "Bearer " + accessToken)
+            .url("https://api.dropboxapi.com/2/files/delete_v2")
+            .post(RequestBody.create(json.toString(), MediaType.parse("application/json; charset=utf-8")))
+            .build();
+
+        execute(request).close();
+    }
+
+    /**
+     * Executes the specified request to the Dropbox API
+     * 
+     * @param request the request
+     * @return the response, which must be closed by the caller
+     * @throws Exception if the request wasn't successful
+     */
+    private Response execute(Request request) throws Exception {
+        Response response = DriveBackup.httpClient.newCall(request).execute();
+
+        if (!response.isSuccessful()) {
+            String message = response.body().string();
+            response.close();
+            throw new Exception("Dropbox API request failed with status " + response.code() + ": " + message);
+        }
+
+        return response;
+    }
+
     /**
      * Deletes the oldest files past the number to retain from the FTP server inside
      * the specified folder for the file type
@@ -258,19 +366,37 @@ public class DropboxUploader implements Uploader {
 
         Response response = DriveBackup.httpClient.newCall(request).execute();
         JSONObject parsedResponse = new JSONObject(response.body().string());
-        JSONArray files = parsedResponse.getJSONArray("entries");
+        JSONArray entries = parsedResponse.getJSONArray("entries");
         response.close();
 
-        if (files.length() > fileLimit) {
+        // Other files, such as the chunk repository's snapshots and packs, aren't pruned by count
+        List<JSONObject> files = new ArrayList<>();
+        for (int i = 0; i < entries.length(); i++) {
+            if (ArchiveFormat.isArchive(entries.getJSONObject(i).getString("name"))) {
+                files.add(entries.getJSONObject(i));
+            }
+        }
+
+        // Dropbox doesn't list files in any particular order, its ISO 8601 dates sort the same as text
+        files.sort(Comparator.comparing(file -> file.getString("server_modified")));
+
+        List<List<JSONObject>> backups = RemoteBackups.groupByBackup(files, file -> file.getString("name"));
+
+        if (backups.size() > fileLimit) {
             logger.info(
                 intl("backup-method-limit-reached"), 
-                "file-count", String.valueOf(files.length()),
+                "file-count", String.valueOf(backups.size()),
                 "upload-method", getName(),
                 "file-limit", String.valueOf(fileLimit));
 
-            while (files.length() > fileLimit) {
+            List<JSONObject> filesToDelete = new ArrayList<>();
+            for (List<JSONObject> backup : backups.subList(0, backups.size() - fileLimit)) {
+                filesToDelete.addAll(backup);
+            }
+
+            for (JSONObject file : filesToDelete) {
                 JSONObject deleteJson = new JSONObject();
-                deleteJson.put("path", "/" + destination + "/" + type + "/" + files.getJSONObject(0).get("name"));
+                deleteJson.put("path", "/" + destination + "/" + type + "/" + file.get("name"));
                 RequestBody deleteRequestBody = RequestBody.create(deleteJson.toString(), JSON);
 
                 Request deleteRequest = new Request.Builder()
@@ -281,8 +407,6 @@ public class DropboxUploader implements Uploader {
 
                 Response deleteResponse = DriveBackup.httpClient.newCall(deleteRequest).execute();
                 deleteResponse.close();
-                
-                files.remove(0);
             }
         }
     }
@@ -335,6 +459,15 @@ public class DropboxUploader implements Uploader {
         return this.errorOccurred;
     }
 
+    /**
+     * Gets whether files can be uploaded to the authenticated user's Dropbox in parallel
+     * @return whether files can be uploaded concurrently
+     */
+    public boolean supportsConcurrentUploads() {
+        // Dropbox rejects concurrent commits to the same folder with too_many_write_operations
+        return false;
+    }
+
     /**
      * closes any remaining connectionsretrieveNewAccessToken
      */
@@ -5,6 +5,8 @@ import org.apache.commons.net.ftp.FTPClient;
 import org.apache.commons.net.ftp.FTPFile;
 import org.apache.commons.net.ftp.FTPSClient;
 
+import ratismal.drivebackup.archive.ArchiveFormat;
+import ratismal.drivebackup.uploaders.RemoteBackups;
 import ratismal.drivebackup.uploaders.Uploader;
 import ratismal.drivebackup.uploaders.Authenticator.AuthenticationProvider;
 import ratismal.drivebackup.UploadThread.UploadLogger;
@@ -17,6 +19,7 @@ import ratismal.drivebackup.util.NetUtil;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.*;
 import java.util.concurrent.TimeUnit;
@@ -199,11 +202,28 @@ public class FTPUploader implements Uploader {
      * @param type the type of file (ex. plugins, world)
      */
     public void uploadFile(File file, String type) {
+        try (FileInputStream fs = new FileInputStream(file)) {
+            uploadFile(fs, file.getName(), file.length(), type);
+        } catch (Exception exception) {
+            NetUtil.catchException(exception, host, logger);
+            MessageUtil.sendConsoleException(exception);
+            setErrorOccurred(true);
+        }
+    }
+
+    /**
+     * Uploads the data read from the specified stream to the (S)FTP server inside a folder for the specified file type
+     * @param stream the stream
+     * @param fileName the name of the file to create
+     * @param length the length of the data, or -1 if unknown
+     * @param type the type of file (ex. plugins, world)
+     */
+    public void uploadFile(InputStream stream, String fileName, long length, String type) {
         try {
             type = type.replace(".."  + sep(), "");
 
             if (sftpClient != null) {
-                sftpClient.uploadFile(file, type);
+                sftpClient.uploadFile(stream, fileName, type);
                 return;
             }
 
@@ -211,9 +231,14 @@ public class FTPUploader implements Uploader {
             createThenEnter(_remoteBaseFolder);
             createThenEnter(type);
 
-            FileInputStream fs = new FileInputStream(file);
-            ftpClient.storeFile(file.getName(), fs);
-            fs.close();
+            if (!ftpClient.storeFile(fileName, stream)) {
+                throw new Exception("Couldn't store " + fileName + ": " + ftpClient.getReplyString());
+            }
+
+            // The index of a backup split into volumes is uploaded last, so it is pruned once all of it is uploaded
+            if (ArchiveFormat.isVolume(fileName)) {
+                return;
+            }
 
             try {
                 pruneBackups(type);
@@ -229,6 +254,29 @@ public class FTPUploader implements Uploader {
         }
     }
 
+    /**
+     * Deletes the file with the specified name from the (S)FTP server inside the folder for the specified file type
+     * @param fileName the name of the file
+     * @param type the type of file (ex. plugins, world)
+     * @throws Exception
+     */
+    public void deleteFile(String fileName, String type) throws Exception {
+        type = type.replace(".."  + sep(), "");
+
+        if (sftpClient != null) {
+            sftpClient.deleteFile(fileName, type);
+            return;
+        }
+
+        resetWorkingDirectory();
+        createThenEnter(_remoteBaseFolder);
+        createThenEnter(type);
+
+        if (!ftpClient.deleteFile(fileName)) {
+            throw new Exception("Couldn't delete " + fileName + ": " + ftpClient.getReplyString());
+        }
+    }
+
     /**
      * Downloads the specifed file from the (S)FTP server into a folder for the specified file type
      * @param filePath the path of the file
@@ -301,6 +349,15 @@ public class FTPUploader implements Uploader {
         return this._errorOccurred;
     }
 
+    /**
+     * Gets whether files can be uploaded to the (S)FTP server in parallel
+     * @return whether files can be uploaded concurrently
+     */
+    public boolean supportsConcurrentUploads() {
+        // A single session with a working directory is shared by every upload
+        return false;
+    }
+
     /**
      * Gets the name of this upload service
      * @return name of upload service
@@ -333,35 +390,39 @@ public class FTPUploader implements Uploader {
         if (fileLimit == -1) {
             return;
         }
-        TreeMap<Date, FTPFile> files = getZipFiles();
+        List<List<FTPFile>> backups = RemoteBackups.groupByBackup(getZipFiles(), FTPFile::getName);
 
-        if (files.size() > fileLimit) {
+        if (backups.size() > fileLimit) {
             logger.info(
                 intl("backup-method-limit-reached"), 
-                "file-count", String.valueOf(files.size()),
+                "file-count", String.valueOf(backups.size()),
                 "upload-method", getName(),
                 "file-limit", String.valueOf(fileLimit));
 
-            while (files.size() > fileLimit) {
-                ftpClient.deleteFile(files.firstEntry().getValue().getName());
-                files.remove(files.firstKey());
+            for (List<FTPFile> backup : backups.subList(0, backups.size() - fileLimit)) {
+                for (FTPFile file : backup) {
+                    ftpClient.deleteFile(file.getName());
+                }
             }
         }
     }
 
     /**
-     * Returns a list of ZIP files and their modification dates inside the current working directory
+     * Returns a list of the backup files inside the current working directory, ordered by modification date
      * @return the list of files
      * @throws Exception
      */
-    private TreeMap<Date, FTPFile> getZipFiles() throws Exception {
-        TreeMap<Date, FTPFile> files = new TreeMap<>();
+    private List<FTPFile> getZipFiles() throws Exception {
+        List<FTPFile> files = new ArrayList<>();
 
         for (FTPFile file : ftpClient.mlistDir()) {
-            if (file.getName().endsWith(".zip"))
-                files.put(file.getTimestamp().getTime(), file);
+            if (ArchiveFormat.isArchive(file.getName()))
+                files.add(file);
         }
 
+        // Volumes uploaded together can share a modification date, so they can't be keyed by it
+        files.sort(Comparator.comparing(file -> file.getTimestamp().getTime()));
+
         return files;
     }
 
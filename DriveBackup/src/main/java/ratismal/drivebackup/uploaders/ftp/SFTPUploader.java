@@ -1,5 +1,7 @@
 package ratismal.drivebackup.uploaders.ftp;
 
+import ratismal.drivebackup.archive.ArchiveFormat;
+import ratismal.drivebackup.uploaders.RemoteBackups;
 import ratismal.drivebackup.UploadThread.UploadLogger;
 import ratismal.drivebackup.config.ConfigParser;
 import ratismal.drivebackup.config.ConfigParser.Config;
@@ -7,13 +9,18 @@ import ratismal.drivebackup.config.configSections.BackupMethods.FTPBackupMethod;
 import ratismal.drivebackup.plugin.DriveBackup;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.*;
 import java.util.concurrent.TimeUnit;
 
 import com.google.api.client.util.Strings;
 
 import net.schmizz.sshj.SSHClient;
+import net.schmizz.sshj.sftp.OpenMode;
+import net.schmizz.sshj.sftp.RemoteFile;
 import net.schmizz.sshj.sftp.RemoteResourceInfo;
 import net.schmizz.sshj.sftp.StatefulSFTPClient;
 import net.schmizz.sshj.transport.verification.PromiscuousVerifier;
@@ -38,6 +45,15 @@ public class SFTPUploader {
     private String _localBaseFolder;
     private String _remoteBaseFolder;
 
+    /**
+     * Number of write requests sent to the SFTP server before waiting for them to be acknowledged
+     */
+    private static final int MAX_UNCONFIRMED_WRITES = 16;
+
+    /**
+     * Size of the buffer used to copy data to the SFTP server
+     */
+    private static final int BUFFER_SIZE = 32 * 1024;
     /**
      * Creates an instance of the {@code SFTPUploader} object using the server credentials specified by the user in the {@code config.yml}
      * @throws Exception
@@ -166,11 +182,38 @@ public class SFTPUploader {
      * @throws Exception
      */
     public void uploadFile(File file, String type) throws Exception {
+        try (FileInputStream stream = new FileInputStream(file)) {
+            uploadFile(stream, file.getName(), type);
+        }
+    }
+
+    /**
+     * Uploads the data read from the specified stream to the SFTP server inside a folder for the specified file type
+     * @param stream the stream
+     * @param fileName the name of the file to create
+     * @param type the type of file (ex. plugins, world)
+     * @throws Exception
+     */
+    public void uploadFile(InputStream stream, String fileName, String type) throws Exception {
         resetWorkingDirectory();
         createThenEnter(_remoteBaseFolder);
         createThenEnter(type);
 
-        sftpClient.put(file.getAbsolutePath(), file.getName());
+        try (
+            RemoteFile remoteFile = sftpClient.open(fileName, EnumSet.of(OpenMode.WRITE, OpenMode.CREAT, OpenMode.TRUNC));
+            OutputStream outputStream = remoteFile.new RemoteFileOutputStream(0, MAX_UNCONFIRMED_WRITES)
+        ) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int length;
+            while ((length = stream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, length);
+            }
+        }
+
+        // The index of a backup split into volumes is uploaded last, so it is pruned once all of it is uploaded
+        if (ArchiveFormat.isVolume(fileName)) {
+            return;
+        }
         
         try {
             pruneBackups();
@@ -181,6 +224,20 @@ public class SFTPUploader {
         }
     }
 
+    /**
+     * Deletes the file with the specified name from the SFTP server inside the folder for the specified file type
+     * @param fileName the name of the file
+     * @param type the type of file (ex. plugins, world)
+     * @throws Exception
+     */
+    public void deleteFile(String fileName, String type) throws Exception {
+        resetWorkingDirectory();
+        createThenEnter(_remoteBaseFolder);
+        createThenEnter(type);
+
+        sftpClient.rm(fileName);
+    }
+
     /**
      * Downloads the specified file from the SFTP server into a folder for the specified file type
      * @param filePath the path of the file
@@ -234,36 +291,40 @@ public class SFTPUploader {
         if (fileLimit == -1) {
             return;
         }
-        TreeMap<Date, RemoteResourceInfo> files = getZipFiles();
+        List<List<RemoteResourceInfo>> backups = RemoteBackups.groupByBackup(getZipFiles(), RemoteResourceInfo::getName);
 
-        if (files.size() > fileLimit) {
+        if (backups.size() > fileLimit) {
             logger.info(
                 intl("backup-method-limit-reached"), 
-                "file-count", String.valueOf(files.size()),
+                "file-count", String.valueOf(backups.size()),
                 "upload-method", "(S)FTP",
                 "file-limit", String.valueOf(fileLimit));
 
-            while (files.size() > fileLimit) {
-                sftpClient.rm(files.firstEntry().getValue().getName());
-                files.remove(files.firstEntry().getKey());
+            for (List<RemoteResourceInfo> backup : backups.subList(0, backups.size() - fileLimit)) {
+                for (RemoteResourceInfo file : backup) {
+                    sftpClient.rm(file.getName());
+                }
             }
         }
     }
 
     /**
-     * Returns a list of ZIP files and their modification dates inside the current working directory
+     * Returns a list of the backup files inside the current working directory, ordered by modification date
      * @return the list of files
      * @throws Exception
      */
-    private TreeMap<Date, RemoteResourceInfo> getZipFiles() throws Exception {
-        TreeMap<Date, RemoteResourceInfo> files = new TreeMap<>();
+    private List<RemoteResourceInfo> getZipFiles() throws Exception {
+        List<RemoteResourceInfo> files = new ArrayList<>();
 
         for (RemoteResourceInfo file : sftpClient.ls()) {
-            if (file.getName().endsWith(".zip")) {
-                files.put(new Date(file.getAttributes().getMtime()), file);
+            if (ArchiveFormat.isArchive(file.getName())) {
+                files.add(file);
             }
         }
 
+        // Volumes uploaded together can share a modification date, so they can't be keyed by it
+        files.sort(Comparator.comparingLong(file -> file.getAttributes().getMtime()));
+
         return files;
     }
 
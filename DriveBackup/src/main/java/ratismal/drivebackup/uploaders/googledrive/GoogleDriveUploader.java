@@ -2,10 +2,12 @@ package ratismal.drivebackup.uploaders.googledrive;
 
 import com.google.api.client.auth.oauth2.BearerToken;
 import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.http.AbstractInputStreamContent;
 import com.google.api.client.http.FileContent;
 import com.google.api.client.http.HttpRequest;
 import com.google.api.client.http.HttpRequestInitializer;
 import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.InputStreamContent;
 import com.google.api.client.http.javanet.NetHttpTransport;
 import com.google.api.client.json.JsonFactory;
 import com.google.api.client.json.jackson2.JacksonFactory;
@@ -16,9 +18,13 @@ import okhttp3.Request;
 import okhttp3.RequestBody;
 import okhttp3.Response;
 
+import ratismal.drivebackup.archive.ArchiveFormat;
+import ratismal.drivebackup.archive.BackupManifest;
+import ratismal.drivebackup.uploaders.HashMismatchException;
 import ratismal.drivebackup.uploaders.Uploader;
 import ratismal.drivebackup.uploaders.Authenticator;
 import ratismal.drivebackup.uploaders.Obfusticate;
+import ratismal.drivebackup.uploaders.RemoteBackups;
 import ratismal.drivebackup.uploaders.Authenticator.AuthenticationProvider;
 import ratismal.drivebackup.UploadThread.UploadLogger;
 import ratismal.drivebackup.config.ConfigParser;
@@ -26,10 +32,14 @@ import ratismal.drivebackup.plugin.DriveBackup;
 import ratismal.drivebackup.util.MessageUtil;
 import ratismal.drivebackup.util.NetUtil;
 
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 
@@ -56,6 +66,11 @@ public class GoogleDriveUploader implements Uploader {
     public static final String UPLOADER_NAME = "Google Drive";
     public static final String UPLOADER_ID = "googledrive";
 
+    /**
+     * Number of times a file is uploaded before giving up, if the uploaded file doesn't match
+     */
+    private static final int MAX_UPLOAD_ATTEMPTS = 3;
+
     /**
      * Global instance of the HTTP transport
      */
@@ -181,50 +196,102 @@ public class GoogleDriveUploader implements Uploader {
 
     /**
      * Uploads the specified file to the authenticated user's Google Drive inside a folder for the specified file type
+     * <p>
+     * If the uploaded file doesn't match, it's uploaded again
      * @param file the file
      * @param type the type of file (ex. plugins, world)
      */
     public void uploadFile(java.io.File file, String type) {
-        try {
-            String sharedDriveId = ConfigParser.getConfig().backupMethods.googleDrive.sharedDriveId;
-            String destination = ConfigParser.getConfig().backupStorage.remoteDirectory;
+        for (int attempt = 1; ; attempt++) {
+            try (InputStream stream = new FileInputStream(file)) {
+                uploadFile(stream, file.getName(), file.length(), type);
 
-            retrieveNewAccessToken();
-
-            ArrayList<String> typeFolders = new ArrayList<>();
-            Collections.addAll(typeFolders, destination.split("[/\\\\]"));
-            Collections.addAll(typeFolders, type.split("[/\\\\]"));
+                return;
+            } catch (HashMismatchException exception) {
+                MessageUtil.sendConsoleException(exception);
 
-            File folder = null;
+                if (attempt == MAX_UPLOAD_ATTEMPTS) {
+                    logger.log(intl("backup-method-hash-mismatch"), "file-name", file.getName(), "upload-method", getName());
+                    setErrorOccurred(true);
 
-            for (String typeFolder : typeFolders) {
-                if (typeFolder.equals(".") || typeFolder.equals("..")) {
-                    continue;
+                    return;
                 }
 
-                if (folder == null && !sharedDriveId.isEmpty()) {
-                    folder = createFolder(typeFolder, sharedDriveId);
-                } else if (folder == null) {
-                    folder = createFolder(typeFolder);
-                } else if (!sharedDriveId.isEmpty()) {
-                    folder = createFolder(typeFolder, folder, true);
-                } else {
-                    folder = createFolder(typeFolder, folder, false);
-                }
+                logger.log(intl("backup-method-hash-mismatch-retrying"), "file-name", file.getName(), "upload-method", getName());
+            } catch (IOException exception) {
+                MessageUtil.sendConsoleException(exception);
+                setErrorOccurred(true);
+
+                return;
             }
+        }
+    }
+
+    /**
+     * Uploads the data read from the specified stream to the authenticated user's Google Drive inside a folder for the specified file type
+     * <p>
+     * The data is sent using a resumable upload, so the length doesn't need to be known in advance. Its MD5 hash is
+     * calculated as it's sent, and compared to the hash Google Drive reports for the uploaded file.
+     * @param stream the stream
+     * @param fileName the name of the file to create
+     * @param length the length of the data, or -1 if unknown
+     * @param type the type of file (ex. plugins, world)
+     * @throws HashMismatchException if the uploaded file doesn't match, in which case it was deleted
+     */
+    public void uploadFile(InputStream stream, String fileName, long length, String type) throws HashMismatchException {
+        MessageDigest md5;
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException exception) {
+            throw new IllegalStateException(exception);
+        }
+
+        InputStreamContent content = new InputStreamContent(ArchiveFormat.getMimeType(fileName), new DigestInputStream(stream, md5));
+        if (length >= 0) {
+            content.setLength(length);
+        }
+
+        uploadFile(content, md5, fileName, type);
+    }
+
+    /**
+     * Uploads the specified content to the authenticated user's Google Drive inside a folder for the specified file type
+     * @param content the content of the file
+     * @param md5 the MD5 hash of the content, updated as the content is read
+     * @param fileName the name of the file to create
+     * @param type the type of file (ex. plugins, world)
+     * @throws HashMismatchException if the uploaded file doesn't match, in which case it was deleted
+     */
+    private void uploadFile(AbstractInputStreamContent content, MessageDigest md5, String fileName, String type) throws HashMismatchException {
+        try {
+            String sharedDriveId = ConfigParser.getConfig().backupMethods.googleDrive.sharedDriveId;
+
+            retrieveNewAccessToken();
+
+            File folder = getTypeFolder(type);
 
             File fileMetadata = new File();
-            fileMetadata.setTitle(file.getName());
+            fileMetadata.setTitle(fileName);
             fileMetadata.setDescription("Uploaded by the DriveBackupV2 Minecraft plugin");
-            fileMetadata.setMimeType("application/zip");
+            fileMetadata.setMimeType(content.getType());
 
             ParentReference fileParent = new ParentReference();
             fileParent.setId(folder.getId());
             fileMetadata.setParents(Collections.singletonList(fileParent));
 
-            FileContent fileContent = new FileContent("application/zip", file);
+            File uploadedFile = service.files().insert(fileMetadata, content).setSupportsAllDrives(true).execute();
 
-            service.files().insert(fileMetadata, fileContent).setSupportsAllDrives(true).execute();
+            String hash = BackupManifest.toHex(md5.digest());
+            if (uploadedFile.getMd5Checksum() != null && !uploadedFile.getMd5Checksum().equals(hash)) {
+                service.files().delete(uploadedFile.getId()).setSupportsAllDrives(true).execute();
+
+                throw new HashMismatchException(fileName, hash, uploadedFile.getMd5Checksum());
+            }
+
+            // The index of a backup split into volumes is uploaded last, so it is pruned once all of it is uploaded
+            if (ArchiveFormat.isVolume(fileName)) {
+                return;
+            }
 
             try {
                 pruneBackups(folder);
@@ -237,6 +304,8 @@ public class GoogleDriveUploader implements Uploader {
                 
                 throw e;
             }
+        } catch (HashMismatchException exception) {
+            throw exception;
         } catch (Exception exception) {
             NetUtil.catchException(exception, "www.googleapis.com", logger);
             MessageUtil.sendConsoleException(exception);
@@ -244,6 +313,63 @@ public class GoogleDriveUploader implements Uploader {
         }
     }
 
+    /**
+     * Deletes the file with the specified name from the folder for the specified file type in the authenticated user's Google Drive
+     * @param fileName the name of the file
+     * @param type the type of file (ex. plugins, world)
+     * @throws Exception
+     */
+    public void deleteFile(String fileName, String type) throws Exception {
+        retrieveNewAccessToken();
+
+        File folder = getTypeFolder(type);
+
+        FileList files = service.files().list()
+            .setQ("title='" + fileName.replace("'", "\\'") + "' and '" + folder.getId() + "' in parents and trashed=false")
+            .setSupportsAllDrives(true)
+            .setIncludeItemsFromAllDrives(true)
+            .execute();
+
+        for (File file : files.getItems()) {
+            service.files().delete(file.getId()).setSupportsAllDrives(true).execute();
+        }
+    }
+
+    /**
+     * Gets the folder for the specified file type in the authenticated user's Google Drive, creating it if it doesn't exist
+     * @param type the type of file (ex. plugins, world)
+     * @return the folder
+     * @throws Exception
+     */
+    private File getTypeFolder(String type) throws Exception {
+        String sharedDriveId = ConfigParser.getConfig().backupMethods.googleDrive.sharedDriveId;
+        String destination = ConfigParser.getConfig().backupStorage.remoteDirectory;
+
+        ArrayList<String> typeFolders = new ArrayList<>();
+        Collections.addAll(typeFolders, destination.split("[/\\\\]"));
+        Collections.addAll(typeFolders, type.split("[/\\\\]"));
+
+        File folder = null;
+
+        for (String typeFolder : typeFolders) {
+            if (typeFolder.equals(".") || typeFolder.equals("..")) {
+                continue;
+            }
+
+            if (folder == null && !sharedDriveId.isEmpty()) {
+                folder = createFolder(typeFolder, sharedDriveId);
+            } else if (folder == null) {
+                folder = createFolder(typeFolder);
+            } else if (!sharedDriveId.isEmpty()) {
+                folder = createFolder(typeFolder, folder, true);
+            } else {
+                folder = createFolder(typeFolder, folder, false);
+            }
+        }
+
+        return folder;
+    }
+
     /**
      * Gets whether an error occurred while accessing the authenticated user's Google Drive
      * @return whether an error occurred
@@ -252,6 +378,14 @@ public class GoogleDriveUploader implements Uploader {
         return this.errorOccurred;
     }
 
+    /**
+     * Gets whether files can be uploaded to the authenticated user's Google Drive in parallel
+     * @return whether files can be uploaded concurrently
+     */
+    public boolean supportsConcurrentUploads() {
+        return true;
+    }
+
     /**
      * closes any remaining connectionsretrieveNewAccessToken
      */
@@ -506,26 +640,33 @@ public class GoogleDriveUploader implements Uploader {
     }
 
     /**
-     * Returns a list of files in the specified folder in the authenticated user's Google Drive, ordered by creation date
+     * Returns a list of the ZIP files in the specified folder in the authenticated user's Google Drive, ordered by creation date
      * @param folder the folder containing the files
      * @return a list of files
      * @throws Exception
      */
-    private List<ChildReference> getFiles(File folder) throws Exception {
+    private List<File> getZipFiles(File folder) throws Exception {
 
         //Create a List to store results
-        List<ChildReference> result = new ArrayList<>();
+        List<File> result = new ArrayList<>();
 
         //Set up a request to query all files from all pages.
         //We are also making sure the files are sorted  by created Date. Oldest at the beginning of List.
-        //Drive.Files.List request = service.files().list().setOrderBy("createdDate");
-        //folder.getId();
-        Drive.Children.List request = service.children().list(folder.getId()).setOrderBy("createdDate");
+        Drive.Files.List request = service.files().list()
+            .setQ("'" + folder.getId() + "' in parents and trashed=false")
+            .setOrderBy("createdDate")
+            .setSupportsAllDrives(true)
+            .setIncludeItemsFromAllDrives(true);
         //While there is a page available, request files and add them to the Result List.
         do {
             try {
-                ChildList files = request.execute();
-                result.addAll(files.getItems());
+                FileList files = request.execute();
+                for (File file : files.getItems()) {
+                    // Other files, such as the chunk repository's snapshots and packs, aren't pruned by count
+                    if (ArchiveFormat.isArchive(file.getTitle())) {
+                        result.add(file);
+                    }
+                }
                 request.setPageToken(files.getNextPageToken());
             } catch (IOException e) {
                 MessageUtil.sendConsoleException(e);
@@ -551,22 +692,19 @@ public class GoogleDriveUploader implements Uploader {
             return;
         }
 
-        List<ChildReference> files = getFiles(folder);
-        if (files.size() > fileLimit) {
+        List<List<File>> backups = RemoteBackups.groupByBackup(getZipFiles(folder), File::getTitle);
+        if (backups.size() > fileLimit) {
             logger.info(
                 intl("backup-method-limit-reached"), 
-                "file-count", String.valueOf(files.size()),
+                "file-count", String.valueOf(backups.size()),
                 "upload-method", getName(),
                 "file-limit", String.valueOf(fileLimit));
 
-            for (Iterator<ChildReference> iterator = files.iterator(); iterator.hasNext(); ) {
-                if (files.size() == fileLimit) {
-                    break;
+            for (List<File> backup : backups.subList(0, backups.size() - fileLimit)) {
+                for (File file : backup) {
+                    Drive.Files.Delete removeItem = service.files().delete(file.getId()).setSupportsAllDrives(true);
+                    removeItem.execute();
                 }
-                ChildReference file = iterator.next();
-                Drive.Files.Delete removeItem = service.files().delete(file.getId()).setSupportsAllDrives(true);
-                removeItem.execute();
-                iterator.remove();
             }
         }
     }
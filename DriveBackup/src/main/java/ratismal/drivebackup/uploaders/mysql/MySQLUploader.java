@@ -5,8 +5,13 @@
 
 package ratismal.drivebackup.uploaders.mysql;
 
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.ResultSet;
@@ -79,20 +84,21 @@ public class MySQLUploader {
         try {
             String connectionUrl = "jdbc:mysql://" + host + ":" + port + "/" + name + "?useUnicode=true&useJDBCCompliantTimezoneShift=true&zeroDateTimeBehavior=convertToNull&useLegacyDatetimeCode=false&serverTimezone=UTC&useSSL=" + useSsl;
             Class.forName("com.mysql.cj.jdbc.Driver");
-            Connection connection = DriverManager.getConnection(connectionUrl, username, password);
-
-            stmt = connection.createStatement(ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY);
+            try (Connection connection = DriverManager.getConnection(connectionUrl, username, password)) {
+                // Rows are streamed from the server one at a time, rather than every row of a table being fetched at once
+                stmt = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+                stmt.setFetchSize(Integer.MIN_VALUE);
+
+                File outputFile = new java.io.File("external-backups" + File.separator + type);
+                if (!outputFile.exists()) {
+                    outputFile.mkdirs();
+                }
 
-            String sql = getInsertStatements(name, blacklist);
-    
-            File outputFile = new java.io.File("external-backups" + File.separator + type);
-            if (!outputFile.exists()) {
-                outputFile.mkdirs();
+                // The dump is written as it's generated, so it's never held in memory as a whole
+                try (Writer sql = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(outputFile + File.separator + name + ".sql"), StandardCharsets.UTF_8), 64 * 1024)) {
+                    writeInsertStatements(sql, name, blacklist);
+                }
             }
-    
-            FileOutputStream outputStream = new FileOutputStream(outputFile + File.separator + name + ".sql");
-            outputStream.write(sql.getBytes());
-            outputStream.close();
         } catch (Exception e) {
             MessageUtil.sendConsoleException(e);
             setErrorOccurred(true);
@@ -146,67 +152,46 @@ public class MySQLUploader {
 
 
     /**
-     * Generates the SQL insert statements needed to copy all of the specified remote table's data to the local table
+     * Writes the SQL insert statements needed to copy all of the specified remote table's data to the local table
+     * <p>
+     * Each row is written as it's read, so only one row is held in memory at a time
+     * @param sql the writer to write the statements to
      * @param name the table's name
-     * @return the SQL insert statement
      * @throws SQLException exception
+     * @throws IOException
      */
-    private String getDataInsertStatement(String name) throws SQLException {
-
-        StringBuilder sql = new StringBuilder();
+    private void writeDataInsertStatement(Writer sql, String name) throws SQLException, IOException {
 
         ResultSet rs = stmt.executeQuery("SELECT * FROM " + "`" + name + "`;");
 
-        //move to the last row to get max rows returned
-        rs.last();
-        int rowCount = rs.getRow();
-
-        //there are no records just return empty string
-        if(rowCount <= 0) {
-            return sql.toString();
-        }
-
-        sql.append("\n--").append("\n-- Inserts of ").append(name).append("\n--\n\n");
-
-        //temporarily disable foreign key constraint
-        sql.append("\n/*!40000 ALTER TABLE `").append(name).append("` DISABLE KEYS */;\n");
-
-        sql.append("\n--\n")
-                .append(SQL_START_PATTERN).append(" table insert : ").append(name)
-                .append("\n--\n");
-
-        sql.append("INSERT INTO `").append(name).append("`(");
-
         ResultSetMetaData metaData = rs.getMetaData();
         int columnCount = metaData.getColumnCount();
 
-        //generate the column names that are present
-        //in the returned result set
-        //at this point the insert is INSERT INTO (`col1`, `col2`, ...)
-        for(int i = 0; i < columnCount; i++) {
-            sql.append("`")
-                    .append(metaData.getColumnName( i + 1))
-                    .append("`, ");
-        }
+        StringBuilder row = new StringBuilder();
+        boolean firstRow = true;
 
-        //remove the last whitespace and comma
-        sql.deleteCharAt(sql.length() - 1).deleteCharAt(sql.length() - 1).append(") VALUES \n");
-
-        //now we're going to build the values for data insertion
-        rs.beforeFirst();
         while(rs.next()) {
-            sql.append("(");
-            for(int i = 0; i < columnCount; i++) {
+            //the statement is only started once there is a row, there are no records otherwise
+            if (firstRow) {
+                sql.append(getDataInsertStart(name, metaData, columnCount));
+            } else {
+                //a closing parenthesis and a comma for the previous set of values
+                sql.append("),\n");
+            }
+            firstRow = false;
 
+            row.setLength(0);
+            row.append("(");
+            for(int i = 0; i < columnCount; i++) {
                 int columnType = metaData.getColumnType(i + 1);
                 int columnIndex = i + 1;
 
                 //this is the part where the values are processed based on their type
                 if(rs.getObject(columnIndex) == null) {
-                    sql.append("").append(rs.getObject(columnIndex)).append(", ");
+                    row.append("").append(rs.getObject(columnIndex)).append(", ");
                 }
                 else if( columnType == Types.INTEGER || columnType == Types.TINYINT || columnType == Types.BIT) {
-                    sql.append(rs.getInt(columnIndex)).append(", ");
+                    row.append(rs.getInt(columnIndex)).append(", ");
                 }
                 else {
 
@@ -214,27 +199,26 @@ public class MySQLUploader {
                    //escape the single quotes that might be in the value
                     val = val.replace("'", "\\'");
 
-                    sql.append("'").append(val).append("', ");
+                    row.append("'").append(val).append("', ");
                 }
             }
 
             //now that we're done with a row
             //let's remove the last whitespace and comma
-            sql.deleteCharAt(sql.length() - 1).deleteCharAt(sql.length() - 1);
+            row.deleteCharAt(row.length() - 1).deleteCharAt(row.length() - 1);
 
-            //if this is the last row, just append a closing
-            //parenthesis otherwise append a closing parenthesis and a comma
-            //for the next set of values
-            if(rs.isLast()) {
-                sql.append(")");
-            } else {
-                sql.append("),\n");
-            }
+            sql.append(row);
         }
+        rs.close();
 
-        //now that we are done processing the entire row
-        //let's add the terminator
-        sql.append(";");
+        //there are no records, nothing to insert
+        if (firstRow) {
+            return;
+        }
+
+        //now that we are done processing the entire table
+        //let's close the last set of values and add the terminator
+        sql.append(");");
 
         sql.append("\n--\n")
                 .append(SQL_END_PATTERN).append(" table insert : ").append(name)
@@ -242,20 +226,56 @@ public class MySQLUploader {
 
         //enable FK constraint
         sql.append("\n/*!40000 ALTER TABLE `").append(name).append("` ENABLE KEYS */;\n");
+    }
+
+    /**
+     * Generates the start of the SQL insert statement of the specified table, up to the first set of values
+     * @param name the table's name
+     * @param metaData the columns of the table
+     * @param columnCount the number of columns
+     * @return the start of the SQL insert statement
+     * @throws SQLException exception
+     */
+    private String getDataInsertStart(String name, ResultSetMetaData metaData, int columnCount) throws SQLException {
+
+        StringBuilder sql = new StringBuilder();
+
+        sql.append("\n--").append("\n-- Inserts of ").append(name).append("\n--\n\n");
+
+        //temporarily disable foreign key constraint
+        sql.append("\n/*!40000 ALTER TABLE `").append(name).append("` DISABLE KEYS */;\n");
+
+        sql.append("\n--\n")
+                .append(SQL_START_PATTERN).append(" table insert : ").append(name)
+                .append("\n--\n");
+
+        sql.append("INSERT INTO `").append(name).append("`(");
+
+        //generate the column names that are present
+        //in the returned result set
+        //at this point the insert is INSERT INTO (`col1`, `col2`, ...)
+        for(int i = 0; i < columnCount; i++) {
+            sql.append("`")
+                    .append(metaData.getColumnName( i + 1))
+                    .append("`, ");
+        }
+
+        //remove the last whitespace and comma
+        sql.deleteCharAt(sql.length() - 1).deleteCharAt(sql.length() - 1).append(") VALUES \n");
 
         return sql.toString();
     }
 
     /**
-     * Generates the SQL insert statements needed to recreate the specified remote database locally, excluding the specified tables
+     * Writes the SQL insert statements needed to recreate the specified remote database locally, excluding the specified tables
+     * @param sql the writer to write the statements to
      * @param name the database's name
      * @param blacklist a list of tables to not include
-     * @return the SQL insert statement
      * @throws SQLException exception
+     * @throws IOException
      */
-    private String getInsertStatements(String name, List<String> blacklist) throws SQLException {
+    private void writeInsertStatements(Writer sql, String name, List<String> blacklist) throws SQLException, IOException {
 
-        StringBuilder sql = new StringBuilder();
         sql.append("--");
         sql.append("\n-- Generated by DriveBackupV2");
         sql.append("\n-- http://dev.bukkit.org/projects/drivebackupv2");
@@ -281,7 +301,7 @@ public class MySQLUploader {
 
             try {
                 sql.append(getTableInsertStatement(table.trim()));
-                sql.append(getDataInsertStatement(table.trim()));
+                writeDataInsertStatement(sql, table.trim());
             } catch (SQLException e) {
                 e.printStackTrace();
             }
@@ -290,8 +310,6 @@ public class MySQLUploader {
         sql.append("\n/*!40101 SET SQL_MODE=IFNULL(@OLD_SQL_MODE, '') */;")
                 .append("\n/*!40014 SET FOREIGN_KEY_CHECKS=IF(@OLD_FOREIGN_KEY_CHECKS IS NULL, 1, @OLD_FOREIGN_KEY_CHECKS) */;")
                 .append("\n/*!40101 SET CHARACTER_SET_CLIENT=@OLD_CHARACTER_SET_CLIENT */;");
-
-        return sql.toString();
     }
 
     /**
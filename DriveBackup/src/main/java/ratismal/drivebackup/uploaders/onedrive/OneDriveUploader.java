@@ -9,8 +9,12 @@ import okhttp3.Response;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
+import ratismal.drivebackup.archive.ArchiveFormat;
 import ratismal.drivebackup.uploaders.Authenticator;
+import ratismal.drivebackup.uploaders.ChunkReader;
+import ratismal.drivebackup.uploaders.HashMismatchException;
 import ratismal.drivebackup.uploaders.Obfusticate;
+import ratismal.drivebackup.uploaders.RemoteBackups;
 import ratismal.drivebackup.uploaders.Uploader;
 import ratismal.drivebackup.uploaders.Authenticator.AuthenticationProvider;
 import ratismal.drivebackup.UploadThread.UploadLogger;
@@ -20,10 +24,10 @@ import ratismal.drivebackup.util.MessageUtil;
 import ratismal.drivebackup.util.NetUtil;
 
 import java.io.*;
+import java.security.DigestInputStream;
+import java.util.Base64;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
-import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 
@@ -36,8 +40,6 @@ public class OneDriveUploader implements Uploader {
     private UploadLogger logger;
 
     private boolean errorOccurred;
-    private long totalUploaded;
-    private long lastUploaded;
     private String accessToken = "";
     private String refreshToken;
 
@@ -53,10 +55,10 @@ public class OneDriveUploader implements Uploader {
     private static final int CHUNK_SIZE = 5 * 1024 * 1024;
 
     /**
-     * File upload buffer
+     * Number of times a file is uploaded before giving up, if the uploaded file doesn't match
      */
-    private RandomAccessFile raf;
-    
+    private static final int MAX_UPLOAD_ATTEMPTS = 3;
+
     /**
      * Creates an instance of the {@code OneDriveUploader} object
      */
@@ -66,7 +68,6 @@ public class OneDriveUploader implements Uploader {
         try {
             refreshToken = Authenticator.getRefreshToken(AuthenticationProvider.ONEDRIVE);
             retrieveNewAccessToken();
-            setRanges(new String[0]);
         } catch (Exception e) {
             MessageUtil.sendConsoleException(e);
             setErrorOccurred(true);
@@ -149,37 +150,55 @@ public class OneDriveUploader implements Uploader {
 
     /**
      * Uploads the specified file to the authenticated user's OneDrive inside a folder for the specified file type
+     * <p>
+     * If the uploaded file doesn't match, it's uploaded again
      * @param file the file
      * @param type the type of file (ex. plugins, world)
      */
-    @SuppressWarnings (value="unchecked")
     public void uploadFile(java.io.File file, String type) throws Exception {
-        try {
-            resetRanges();
+        for (int attempt = 1; ; attempt++) {
+            try (FileInputStream stream = new FileInputStream(file)) {
+                uploadFile(stream, file.getName(), file.length(), type);
 
-            String destination = ConfigParser.getConfig().backupStorage.remoteDirectory;
-            
-            ArrayList<String> typeFolders = new ArrayList<>();
-            Collections.addAll(typeFolders, destination.split("/"));
-            Collections.addAll(typeFolders, type.split("[/\\\\]"));
+                return;
+            } catch (HashMismatchException exception) {
+                MessageUtil.sendConsoleException(exception);
 
-            File folder = null;
+                if (attempt == MAX_UPLOAD_ATTEMPTS) {
+                    logger.log(intl("backup-method-hash-mismatch"), "file-name", file.getName(), "upload-method", getName());
+                    setErrorOccurred(true);
 
-            for (String typeFolder : typeFolders) {
-                if (typeFolder.equals(".") || typeFolder.equals("..")) {
-                    continue;
+                    return;
                 }
 
-                if (folder == null) {
-                    folder = createFolder(typeFolder);
-                } else {
-                    folder = createFolder(typeFolder, folder);
-                }
+                logger.log(intl("backup-method-hash-mismatch-retrying"), "file-name", file.getName(), "upload-method", getName());
             }
+        }
+    }
+
+    /**
+     * Uploads the data read from the specified stream to the authenticated user's OneDrive inside a folder for the specified file type
+     * <p>
+     * The length has to be known in advance, as the upload session needs the total size with every chunk. The
+     * QuickXorHash of the data is calculated as it's sent, and compared to the one OneDrive reports for the uploaded
+     * file.
+     * @param stream the stream
+     * @param fileName the name of the file to create
+     * @param length the length of the data
+     * @param type the type of file (ex. plugins, world)
+     * @throws HashMismatchException if the uploaded file doesn't match, in which case it was deleted
+     */
+    public void uploadFile(InputStream stream, String fileName, long length, String type) throws HashMismatchException {
+        if (length < 0) {
+            throw new IllegalArgumentException("OneDrive needs the length of " + fileName + " in advance");
+        }
+
+        try {
+            File folder = getTypeFolder(type);
 
             Request request = new Request.Builder()
                 .addHeader("Authorization", "Bearer " + accessToken)
-                .url("https://graph.microsoft.com/v1.0/me/drive/root:/" + folder.getPath() + "/" + file.getName() + ":/createUploadSession")
+                .url("https://graph.microsoft.com/v1.0/me/drive/root:/" + folder.getPath() + "/" + fileName + ":/createUploadSession")
                 .post(RequestBody.create("{}", jsonMediaType))
                 .build();
 
@@ -189,37 +208,47 @@ public class OneDriveUploader implements Uploader {
 
             String uploadURL = parsedResponse.getString("uploadUrl");
 
-            //Assign our backup to Random Access File
-            raf = new RandomAccessFile(file, "r");
-
-            boolean isComplete = false;
-
-            while (!isComplete) {
-                byte[] bytesToUpload = getChunk();
-
-                request = new Request.Builder()
-                    .addHeader("Content-Range", String.format("bytes %d-%d/%d", getTotalUploaded(), getTotalUploaded() + bytesToUpload.length - 1, file.length()))
-                    .url(uploadURL)
-                    .put(RequestBody.create(bytesToUpload, zipMediaType))
-                    .build();
-
-                response = DriveBackup.httpClient.newCall(request).execute();
-
-                if (getTotalUploaded() + bytesToUpload.length < file.length()) {
-                    try {
-                        parsedResponse = new JSONObject(response.body().string());
+            QuickXorHash quickXorHash = new QuickXorHash();
+            String uploadedHash = null;
+
+            try (ChunkReader chunks = new ChunkReader(new DigestInputStream(stream, quickXorHash), CHUNK_SIZE)) {
+                do {
+                    int chunkLength = chunks.readChunk();
+                    long offset = chunks.getOffset();
+
+                    request = new Request.Builder()
+                        .addHeader("Content-Range", String.format("bytes %d-%d/%d", offset, offset + chunkLength - 1, length))
+                        .url(uploadURL)
+                        .put(RequestBody.create(chunks.getBuffer(), zipMediaType, 0, chunkLength))
+                        .build();
+
+                    response = DriveBackup.httpClient.newCall(request).execute();
+                    boolean chunkUploaded = response.isSuccessful();
+
+                    // The last chunk is responded to with the uploaded file, whose hashes are only included for some accounts
+                    if (chunkUploaded && chunks.isFinished()) {
+                        JSONObject uploadedFile = new JSONObject(response.body().string());
+                        JSONObject hashes = uploadedFile.has("file") ? uploadedFile.getJSONObject("file").optJSONObject("hashes") : null;
+                        uploadedHash = hashes == null ? null : hashes.optString("quickXorHash", null);
+                    }
+                    response.close();
+
+                    if (!chunkUploaded) {
+                        throw new Exception("Couldn't upload bytes " + offset + "-" + (offset + chunkLength - 1) + " of " + fileName);
+                    }
+                } while (!chunks.isFinished());
+            }
 
-                        List<String> nextExpectedRanges = (List<String>) (Object) parsedResponse.getJSONArray("nextExpectedRanges").toList();
+            String hash = Base64.getEncoder().encodeToString(quickXorHash.digest());
+            if (uploadedHash != null && !uploadedHash.equals(hash)) {
+                deleteFile(fileName, type);
 
-                        setRanges(nextExpectedRanges.toArray(new String[nextExpectedRanges.size()]));
-                    } catch (Exception e) {
-                        isComplete = true;
-                    } 
-                } else {
-                    isComplete = true;
-                }
+                throw new HashMismatchException(fileName, hash, uploadedHash);
+            }
 
-                response.close();
+            // The index of a backup split into volumes is uploaded last, so it is pruned once all of it is uploaded
+            if (ArchiveFormat.isVolume(fileName)) {
+                return;
             }
 
             try {
@@ -229,13 +258,67 @@ public class OneDriveUploader implements Uploader {
                 
                 throw e;
             }
+        } catch (HashMismatchException exception) {
+            throw exception;
         } catch (Exception exception) {
             NetUtil.catchException(exception, "graph.microsoft.com", logger);
             MessageUtil.sendConsoleException(exception);
             setErrorOccurred(true);
         }
+    }
+
+    /**
+     * Deletes the file with the specified name from the folder for the specified file type in the authenticated user's OneDrive
+     * @param fileName the name of the file
+     * @param type the type of file (ex. plugins, world)
+     * @throws Exception
+     */
+    public void deleteFile(String fileName, String type) throws Exception {
+        File folder = getTypeFolder(type);
+
+        Request request = new Request.Builder()
+            .addHeader("Authorization", "Bearer " + accessToken)
+            .url("https://graph.microsoft.com/v1.0/me/drive/root:/" + folder.getPath() + "/" + fileName)
+            .delete()
+            .build();
+
+        Response response = DriveBackup.httpClient.newCall(request).execute();
+        boolean deleted = response.isSuccessful() || response.code() == 404;
+        response.close();
+
+        if (!deleted) {
+            throw new Exception("Couldn't delete " + fileName + ", status " + response.code());
+        }
+    }
+
+    /**
+     * Gets the folder for the specified file type in the authenticated user's OneDrive, creating it if it doesn't exist
+     * @param type the type of file (ex. plugins, world)
+     * @return the folder
+     * @throws Exception
+     */
+    private File getTypeFolder(String type) throws Exception {
+        String destination = ConfigParser.getConfig().backupStorage.remoteDirectory;
+
+        ArrayList<String> typeFolders = new ArrayList<>();
+        Collections.addAll(typeFolders, destination.split("/"));
+        Collections.addAll(typeFolders, type.split("[/\\\\]"));
+
+        File folder = null;
+
+        for (String typeFolder : typeFolders) {
+            if (typeFolder.equals(".") || typeFolder.equals("..")) {
+                continue;
+            }
+
+            if (folder == null) {
+                folder = createFolder(typeFolder);
+            } else {
+                folder = createFolder(typeFolder, folder);
+            }
+        }
 
-        raf.close();
+        return folder;
     }
 
     /**
@@ -246,6 +329,14 @@ public class OneDriveUploader implements Uploader {
         return this.errorOccurred;
     }
 
+    /**
+     * Gets whether files can be uploaded to the authenticated user's OneDrive in parallel
+     * @return whether files can be uploaded concurrently
+     */
+    public boolean supportsConcurrentUploads() {
+        return true;
+    }
+
     /**
     * closes any remaining connectionsretrieveNewAccessToken
     */
@@ -444,37 +535,37 @@ public class OneDriveUploader implements Uploader {
         JSONObject parsedResponse = new JSONObject(response.body().string());
         response.close();
 
-        ArrayList<String> fileIDs = new ArrayList<>();
+        ArrayList<JSONObject> files = new ArrayList<>();
 
         JSONArray jsonArray = parsedResponse.getJSONArray("value");
         for (int i = 0; i < jsonArray.length(); i++) {
-            fileIDs.add(jsonArray.getJSONObject(i).getString("id"));
+            JSONObject file = jsonArray.getJSONObject(i);
+
+            // Other files, such as the chunk repository's snapshots and packs, aren't pruned by count
+            if (ArchiveFormat.isArchive(file.getString("name"))) {
+                files.add(file);
+            }
         }
 
-        if(fileLimit < fileIDs.size()){
+        List<List<JSONObject>> backups = RemoteBackups.groupByBackup(files, file -> file.getString("name"));
+
+        if(fileLimit < backups.size()){
             logger.info(
                 intl("backup-method-limit-reached"), 
-                "file-count", String.valueOf(fileIDs.size()),
+                "file-count", String.valueOf(backups.size()),
                 "upload-method", getName(),
                 "file-limit", String.valueOf(fileLimit));
-        }
 
-        for (Iterator<String> iterator = fileIDs.listIterator(); iterator.hasNext(); ) {
-            String fileIDValue = iterator.next();
-            if (fileLimit < fileIDs.size()) {
-                request = new Request.Builder()
-                    .addHeader("Authorization", "Bearer " + accessToken)
-                    .url("https://graph.microsoft.com/v1.0/me/drive/items/" + fileIDValue)
-                    .delete()
-                    .build();
-
-                DriveBackup.httpClient.newCall(request).execute().close();
-                    
-                iterator.remove();
-            }
+            for (List<JSONObject> backup : backups.subList(0, backups.size() - fileLimit)) {
+                for (JSONObject file : backup) {
+                    request = new Request.Builder()
+                        .addHeader("Authorization", "Bearer " + accessToken)
+                        .url("https://graph.microsoft.com/v1.0/me/drive/items/" + file.getString("id"))
+                        .delete()
+                        .build();
 
-            if (fileIDs.size() <= fileLimit){
-                break;
+                    DriveBackup.httpClient.newCall(request).execute().close();
+                }
             }
         }
     }
@@ -543,75 +634,6 @@ public class OneDriveUploader implements Uploader {
         }
     }
 
-    /**
-     * A range of bytes
-     */
-    private static class Range {
-        private final long start;
-        private final long end;
-
-        /**
-         * Creates an instance of the {@code Range} object
-         * @param start the index of the first byte
-         * @param end the index of the last byte
-         */
-        private Range(long start, long end) {
-            this.start = start;
-            this.end = end;
-        }
-    }
-
-    /**
-     * Resets the number of bytes uploaded in the last chunk and the number of bytes uploaded in total
-     */
-    private void resetRanges() {
-    	lastUploaded = 0;
-    	totalUploaded = 0;
-    }
-    
-    /**
-     * Sets the number of bytes uploaded in the last chunk and the number of bytes uploaded in total from the ranges of bytes the OneDrive API requested to be uploaded last
-     * @param stringRanges the ranges of bytes requested
-     */
-    private void setRanges(String[] stringRanges) {
-        Range[] ranges = new Range[stringRanges.length];
-        for (int i = 0; i < stringRanges.length; i++) {
-            long start = Long.parseLong(stringRanges[i].substring(0, stringRanges[i].indexOf('-')));
-
-            String s = stringRanges[i].substring(stringRanges[i].indexOf('-') + 1);
-
-            long end = 0;
-            if (!s.isEmpty()) {
-                end = Long.parseLong(s);
-            }
-
-            ranges[i] = new Range(start, end);
-        }
-
-        if (ranges.length > 0) {
-            totalUploaded = ranges[0].start;
-        }
-    }
-
-    /**
-     * Gets an array of bytes to upload next from the file buffer based on the number of bytes uploaded so far
-     * @return the array of bytes
-     * @throws IOException
-     */
-    private byte[] getChunk() throws IOException {
-
-        byte[] bytes = new byte[CHUNK_SIZE];
-
-        raf.seek(totalUploaded);
-        int read = raf.read(bytes);
-
-        if (read < CHUNK_SIZE) {
-            bytes = Arrays.copyOf(bytes, read);
-        }
-
-        return bytes;
-    }
-
     /**
      * Sets whether an error occurred while accessing the authenticated user's OneDrive
      * @param errorOccurredValue whether an error occurred
@@ -619,12 +641,4 @@ public class OneDriveUploader implements Uploader {
     private void setErrorOccurred(boolean errorOccurredValue) {
         this.errorOccurred = errorOccurredValue;
     }
-
-    /**
-     * Gets the number of bytes uploaded in total
-     * @return the number of bytes
-     */
-    private long getTotalUploaded() {
-        return totalUploaded;
-    }
 }
@@ -0,0 +1,91 @@
+package ratismal.drivebackup.uploaders.onedrive;
+
+import java.security.MessageDigest;
+
+/**
+ * Calculates the hash OneDrive reports as the {@code quickXorHash} of a file
+ * <p>
+ * Each byte is XORed into a 160 bit register, rotated 11 bits further for every byte, and the length of the data is
+ * XORed into the last 64 bits. As the shift repeats every 160 bytes, the bytes 160 apart are XORed together first, so
+ * each byte only costs an XOR. Ported from Microsoft's reference implementation.
+ */
+class QuickXorHash extends MessageDigest {
+    private static final int WIDTH_IN_BITS = 160;
+    private static final int SHIFT = 11;
+    private static final int CELLS = (WIDTH_IN_BITS - 1) / 64 + 1;
+    private static final int BITS_IN_LAST_CELL = WIDTH_IN_BITS - (CELLS - 1) * 64;
+
+    private final long[] data = new long[CELLS];
+    private long lengthSoFar;
+    private int shiftSoFar;
+
+    QuickXorHash() {
+        super("QuickXorHash");
+    }
+
+    @Override
+    protected void engineUpdate(byte input) {
+        engineUpdate(new byte[] { input }, 0, 1);
+    }
+
+    @Override
+    protected void engineUpdate(byte[] input, int offset, int length) {
+        int cell = shiftSoFar / 64;
+        int cellOffset = shiftSoFar % 64;
+        int iterations = Math.min(length, WIDTH_IN_BITS);
+        int end = offset + length;
+
+        for (int i = 0; i < iterations; i++) {
+            boolean isLastCell = cell == CELLS - 1;
+            int bitsInCell = isLastCell ? BITS_IN_LAST_CELL : 64;
+
+            // Every byte 160 bytes apart lands on the same bits
+            int xored = 0;
+            for (int j = offset + i; j < end; j += WIDTH_IN_BITS) {
+                xored ^= input[j] & 0xFF;
+            }
+
+            data[cell] ^= (long) xored << cellOffset;
+            if (cellOffset > bitsInCell - 8) {
+                // The byte straddles two cells
+                data[isLastCell ? 0 : cell + 1] ^= (long) xored >>> (bitsInCell - cellOffset);
+            }
+
+            cellOffset += SHIFT;
+            if (cellOffset >= bitsInCell) {
+                cell = isLastCell ? 0 : cell + 1;
+                cellOffset -= bitsInCell;
+            }
+        }
+
+        shiftSoFar = (int) ((shiftSoFar + (long) SHIFT * (length % WIDTH_IN_BITS)) % WIDTH_IN_BITS);
+        lengthSoFar += length;
+    }
+
+    @Override
+    protected byte[] engineDigest() {
+        byte[] hash = new byte[(WIDTH_IN_BITS - 1) / 8 + 1];
+
+        // Little endian, the last cell only partially
+        for (int i = 0; i < hash.length; i++) {
+            hash[i] = (byte) (data[i / 8] >>> ((i % 8) * 8));
+        }
+
+        for (int i = 0; i < 8; i++) {
+            hash[hash.length - 8 + i] ^= (byte) (lengthSoFar >>> (i * 8));
+        }
+
+        engineReset();
+
+        return hash;
+    }
+
+    @Override
+    protected void engineReset() {
+        for (int i = 0; i < CELLS; i++) {
+            data[i] = 0;
+        }
+        lengthSoFar = 0;
+        shiftSoFar = 0;
+    }
+}
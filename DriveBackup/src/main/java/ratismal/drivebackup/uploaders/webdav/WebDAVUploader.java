@@ -1,5 +1,7 @@
 package ratismal.drivebackup.uploaders.webdav;
 
+import ratismal.drivebackup.archive.ArchiveFormat;
+import ratismal.drivebackup.uploaders.RemoteBackups;
 import ratismal.drivebackup.uploaders.Uploader;
 import ratismal.drivebackup.uploaders.Authenticator.AuthenticationProvider;
 import ratismal.drivebackup.UploadThread.UploadLogger;
@@ -12,6 +14,7 @@ import ratismal.drivebackup.util.NetUtil;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URL;
 import java.util.*;
 import java.util.concurrent.TimeUnit;
@@ -100,13 +103,33 @@ public class WebDAVUploader implements Uploader {
      * @param type the type of file (ex. plugins, world)
      */
     public void uploadFile(File file, String type) {
+        try (FileInputStream fs = new FileInputStream(file)) {
+            uploadFile(fs, file.getName(), file.length(), type);
+        } catch (Exception exception) {
+            NetUtil.catchException(exception, _remoteBaseFolder.getHost(), logger);
+            MessageUtil.sendConsoleException(exception);
+            setErrorOccurred(true);
+        }
+    }
+
+    /**
+     * Uploads the data read from the specified stream to the WebDAV server inside a folder for the specified file type
+     * @param stream the stream
+     * @param fileName the name of the file to create
+     * @param length the length of the data, or -1 if unknown
+     * @param type the type of file (ex. plugins, world)
+     */
+    public void uploadFile(InputStream stream, String fileName, long length, String type) {
         try {
             type = type.replaceAll(".{1,2}[/\\\\]", "");
 
-            FileInputStream fs = new FileInputStream(file);
             createDirectory(_remoteBaseFolder.toString() + "/" + type);
-            sardine.put(new URL(_remoteBaseFolder + "/" + type + "/" + file.getName()).toString(), fs);
-            fs.close();
+            sardine.put(new URL(_remoteBaseFolder + "/" + type + "/" + fileName).toString(), stream);
+
+            // The index of a backup split into volumes is uploaded last, so it is pruned once all of it is uploaded
+            if (ArchiveFormat.isVolume(fileName)) {
+                return;
+            }
 
             try {
                 pruneBackups(type);
@@ -155,6 +178,15 @@ public class WebDAVUploader implements Uploader {
         return this._errorOccurred;
     }
 
+    /**
+     * Gets whether files can be uploaded to the WebDAV server in parallel
+     * @return whether files can be uploaded concurrently
+     */
+    public boolean supportsConcurrentUploads() {
+        // Sardine shares a pool of connections between threads
+        return true;
+    }
+
     /**
      * Gets the name of this upload service
      * @return name of upload service
@@ -175,6 +207,18 @@ public class WebDAVUploader implements Uploader {
         return null;
     }
 
+    /**
+     * Deletes the file with the specified name from the WebDAV server inside the folder for the specified file type
+     * @param fileName the name of the file
+     * @param type the type of file (ex. plugins, world)
+     * @throws Exception
+     */
+    public void deleteFile(String fileName, String type) throws Exception {
+        type = type.replaceAll(".{1,2}[/\\\\]", "");
+
+        sardine.delete(new URL(_remoteBaseFolder + "/" + type + "/" + fileName).toString());
+    }
+
     /**
      * Deletes the oldest files past the number to retain from the FTP server inside the specified folder for the file type
      * <p>
@@ -187,36 +231,40 @@ public class WebDAVUploader implements Uploader {
         if (fileLimit == -1) {
             return;
         }
-        TreeMap<Date, DavResource> files = getZipFiles(type);
+        List<List<DavResource>> backups = RemoteBackups.groupByBackup(getZipFiles(type), DavResource::getName);
 
-        if (files.size() > fileLimit) {
+        if (backups.size() > fileLimit) {
             logger.info(
                 intl("backup-method-limit-reached"), 
-                "file-count", String.valueOf(files.size()),
+                "file-count", String.valueOf(backups.size()),
                 "upload-method", getName(),
                 "file-limit", String.valueOf(fileLimit));
 
-            while (files.size() > fileLimit) {
-                sardine.delete(new URL(_remoteBaseFolder + "/" + type + "/" + files.firstEntry().getValue().getName()).toString());
-                files.remove(files.firstKey());
+            for (List<DavResource> backup : backups.subList(0, backups.size() - fileLimit)) {
+                for (DavResource file : backup) {
+                    sardine.delete(new URL(_remoteBaseFolder + "/" + type + "/" + file.getName()).toString());
+                }
             }
         }
     }
 
     /**
-     * Returns a list of ZIP files and their modification dates inside the current working directory
+     * Returns a list of the backup files inside the folder for the specified file type, ordered by modification date
      * @return the list of files
      * @throws Exception
      */
-    private TreeMap<Date, DavResource> getZipFiles(String type) throws Exception {
-        TreeMap<Date, DavResource> files = new TreeMap<>();
+    private List<DavResource> getZipFiles(String type) throws Exception {
+        List<DavResource> files = new ArrayList<>();
 
         List<DavResource> resources = sardine.list(new URL(_remoteBaseFolder + "/" + type).toString());
         for (DavResource resource : resources) {
-            if (resource.getName().endsWith(".zip"))
-                files.put(resource.getModified(), resource);
+            if (ArchiveFormat.isArchive(resource.getName()))
+                files.add(resource);
         }
 
+        // Volumes uploaded together can share a modification date, so they can't be keyed by it
+        files.sort(Comparator.comparing(DavResource::getModified));
+
         return files;
     }
 
@@ -1,20 +1,38 @@
 package ratismal.drivebackup.util;
 
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
 import java.nio.file.PathMatcher;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class BlacklistEntry {
+    private static final String ALL_CONTENTS = "/**";
+
     private String globPattern;
     private PathMatcher pathMatcher;
-    private int blacklistedFiles;
+    private PathMatcher folderMatcher;
+    private AtomicInteger blacklistedFiles;
+    private AtomicInteger blacklistedFolders;
 
     public BlacklistEntry(String globPattern, PathMatcher pathMatcher) {
         this.globPattern = globPattern;
         this.pathMatcher = pathMatcher;
-        this.blacklistedFiles = 0;
+        this.blacklistedFiles = new AtomicInteger();
+        this.blacklistedFolders = new AtomicInteger();
+
+        // Everything inside a folder matching "pattern" matches "pattern/**", so the folder can be skipped as a whole
+        if (globPattern.endsWith(ALL_CONTENTS) && globPattern.length() > ALL_CONTENTS.length()) {
+            this.folderMatcher = FileSystems.getDefault().getPathMatcher(
+                "glob:" + globPattern.substring(0, globPattern.length() - ALL_CONTENTS.length()));
+        }
     }
 
     public void incBlacklistedFiles() {
-        blacklistedFiles++;
+        blacklistedFiles.incrementAndGet();
+    }
+
+    public void incBlacklistedFolders() {
+        blacklistedFolders.incrementAndGet();
     }
 
     public String getGlobPattern() {
@@ -25,7 +43,20 @@ public class BlacklistEntry {
         return pathMatcher;
     }
 
+    /**
+     * Gets whether the specified folder, and so everything inside it, is blacklisted
+     * @param path the path of the folder
+     * @return whether the folder is blacklisted
+     */
+    public boolean matchesFolder(Path path) {
+        return pathMatcher.matches(path) || (folderMatcher != null && folderMatcher.matches(path));
+    }
+
     public int getBlacklistedFiles() {
-        return blacklistedFiles;
+        return blacklistedFiles.get();
+    }
+
+    public int getBlacklistedFolders() {
+        return blacklistedFolders.get();
     }
 }
@@ -0,0 +1,313 @@
+package ratismal.drivebackup.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import ratismal.drivebackup.archive.BufferPool;
+
+/**
+ * A fixed size, in-memory ring buffer which copies the data written to it by one producer to any number of readers
+ * <p>
+ * The producer blocks while the slowest reader is a full ring behind, so memory use is bounded no matter how much data
+ * passes through. Readers must be created before the producer starts writing, a reader which is closed early stops
+ * holding the producer back.
+ * <p>
+ * The slots are taken from the {@link BufferPool}, and returned once every reader is closed, and the producer is
+ * closed or the transfer failed while the producer wasn't writing.
+ */
+public class BroadcastRingBuffer {
+    private final ByteBuffer[] pooledSlots;
+    private final byte[][] slots;
+    private final int[] slotLengths;
+
+    private final List<Reader> readers = new ArrayList<>();
+    private final Writer writer = new Writer();
+
+    /**
+     * Number of slots published to readers so far
+     */
+    private long published;
+    private long totalBytes;
+    private boolean closed;
+    private boolean writing;
+    private boolean released;
+    private IOException failure;
+
+    /**
+     * Creates an instance of the {@code BroadcastRingBuffer} object
+     * @param slotCount the number of slots in the ring
+     * @param slotSize the size of each slot, in bytes
+     */
+    public BroadcastRingBuffer(int slotCount, int slotSize) {
+        pooledSlots = new ByteBuffer[slotCount];
+        slots = new byte[slotCount][];
+        for (int i = 0; i < slotCount; i++) {
+            pooledSlots[i] = BufferPool.acquire(slotSize);
+            slots[i] = pooledSlots[i].array();
+        }
+        slotLengths = new int[slotCount];
+    }
+
+    /**
+     * Gets the stream the producer writes to
+     * <p>
+     * Closing the stream signals the end of the data to the readers
+     * @return the stream
+     */
+    public OutputStream getOutputStream() {
+        return writer;
+    }
+
+    /**
+     * Creates a new reader, which will receive all data written to the buffer
+     * @return the reader
+     * @throws IllegalStateException if the producer already started writing
+     */
+    public synchronized InputStream newReader() {
+        if (published > 0 || writer.position > 0) {
+            throw new IllegalStateException("Readers must be added before writing starts");
+        }
+
+        Reader reader = new Reader();
+        readers.add(reader);
+        return reader;
+    }
+
+    /**
+     * Aborts the transfer, the readers will throw the specified exception
+     * <p>
+     * The producer doesn't have to be closed afterwards for the slots to be returned to the pool
+     * @param exception the reason the transfer failed
+     */
+    public synchronized void fail(IOException exception) {
+        if (failure == null) {
+            failure = exception;
+        }
+        notifyAll();
+
+        releaseSlots();
+    }
+
+    /**
+     * Gets the total number of bytes written to the buffer
+     * @return the number of bytes
+     */
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * Waits until the slot with the specified sequence number is no longer being read by any reader
+     * @param sequence the sequence number of the slot about to be written
+     * @throws IOException
+     */
+    private synchronized void awaitFreeSlot(long sequence) throws IOException {
+        while (failure == null && minimumReaderSequence() <= sequence - slots.length) {
+            try {
+                wait();
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for readers", exception);
+            }
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Makes the slot currently being written available to the readers
+     * @param length the number of bytes in the slot
+     */
+    private synchronized void publish(int length) {
+        slotLengths[(int) (published % slots.length)] = length;
+        published++;
+        totalBytes += length;
+        notifyAll();
+    }
+
+    private synchronized void closeWriter() {
+        closed = true;
+        notifyAll();
+
+        releaseSlots();
+    }
+
+    /**
+     * Marks the producer as copying into a slot, so the slots aren't returned to the pool while it does
+     * @throws IOException if the transfer failed or the producer was closed
+     */
+    private synchronized void startWriting() throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+
+        writing = true;
+    }
+
+    private synchronized void stopWriting() {
+        writing = false;
+
+        releaseSlots();
+    }
+
+    /**
+     * Returns the slots to the pool once nothing can read or write them anymore
+     * <p>
+     * That's once every reader is closed, and the producer is either closed, or the transfer failed and the producer
+     * isn't in the middle of writing. Readers copy outside the lock, so they always have to be closed first.
+     */
+    private void releaseSlots() {
+        boolean writerDone = closed || (failure != null && !writing);
+        if (!writerDone || !readers.isEmpty() || released) {
+            return;
+        }
+
+        released = true;
+        for (ByteBuffer slot : pooledSlots) {
+            BufferPool.release(slot);
+        }
+    }
+
+    private long minimumReaderSequence() {
+        long minimum = Long.MAX_VALUE;
+        for (Reader reader : readers) {
+            minimum = Math.min(minimum, reader.sequence);
+        }
+        return minimum;
+    }
+
+    private final class Writer extends OutputStream {
+        private int position;
+        private boolean slotReady;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            startWriting();
+
+            try {
+                while (len > 0) {
+                    if (!slotReady) {
+                        awaitFreeSlot(published);
+                        slotReady = true;
+                    }
+
+                    byte[] slot = slots[(int) (published % slots.length)];
+                    int count = Math.min(len, slot.length - position);
+                    System.arraycopy(b, off, slot, position, count);
+                    position += count;
+                    off += count;
+                    len -= count;
+
+                    if (position == slot.length) {
+                        publish(position);
+                        position = 0;
+                        slotReady = false;
+                    }
+                }
+            } finally {
+                stopWriting();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+
+            if (position > 0) {
+                publish(position);
+                position = 0;
+                slotReady = false;
+            }
+
+            closeWriter();
+        }
+    }
+
+    private final class Reader extends InputStream {
+        /**
+         * Sequence number of the slot being read
+         */
+        private long sequence;
+        private int position;
+        private boolean readerClosed;
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+
+            synchronized (BroadcastRingBuffer.this) {
+                while (sequence == published && !closed && failure == null && !readerClosed) {
+                    try {
+                        BroadcastRingBuffer.this.wait();
+                    } catch (InterruptedException exception) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while waiting for data", exception);
+                    }
+                }
+
+                if (failure != null) {
+                    throw new IOException("Backup failed while being streamed", failure);
+                }
+                if (readerClosed) {
+                    throw new IOException("Stream closed");
+                }
+                if (sequence == published) {
+                    return -1;
+                }
+            }
+
+            // The producer never writes to a slot a reader hasn't finished, so the copy can happen outside the lock
+            int slotIndex = (int) (sequence % slots.length);
+            int count = Math.min(len, slotLengths[slotIndex] - position);
+            System.arraycopy(slots[slotIndex], position, b, off, count);
+            position += count;
+
+            if (position == slotLengths[slotIndex]) {
+                synchronized (BroadcastRingBuffer.this) {
+                    sequence++;
+                    position = 0;
+                    BroadcastRingBuffer.this.notifyAll();
+                }
+            }
+
+            return count;
+        }
+
+        @Override
+        public void close() {
+            synchronized (BroadcastRingBuffer.this) {
+                if (!readerClosed) {
+                    readerClosed = true;
+                    readers.remove(this);
+                    BroadcastRingBuffer.this.notifyAll();
+
+                    releaseSlots();
+                }
+            }
+        }
+    }
+}
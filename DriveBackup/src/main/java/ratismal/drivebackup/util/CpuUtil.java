@@ -0,0 +1,134 @@
+package ratismal.drivebackup.util;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+public class CpuUtil {
+    private static final Path CGROUP_ROOT = Paths.get("/sys/fs/cgroup");
+    private static final Path PROCESS_CGROUPS = Paths.get("/proc/self/cgroup");
+
+    private CpuUtil() {
+    }
+
+    /**
+     * Gets the number of cores the server can use
+     * <p>
+     * Includes the CPU quota of the cgroup the server runs in, such as when it runs in a Docker container with a CPU
+     * limit, which older versions of Java don't take into account
+     * @return the number of cores, which may be fractional
+     */
+    public static double getAvailableCores() {
+        double cores = Runtime.getRuntime().availableProcessors();
+
+        double quota = getCgroupQuota();
+        if (quota > 0) {
+            cores = Math.min(cores, quota);
+        }
+
+        return cores;
+    }
+
+    /**
+     * Gets the CPU quota of the cgroup the server runs in, in cores
+     * <p>
+     * With cgroup v2, the quotas of the parent cgroups apply too, so the lowest one is used
+     * @return the quota, or -1 if there is none, or it couldn't be read
+     */
+    private static double getCgroupQuota() {
+        double quota = -1;
+
+        try {
+            for (String line : Files.readAllLines(PROCESS_CGROUPS, StandardCharsets.UTF_8)) {
+                // hierarchy-ID:controllers:path, with an empty controller list for cgroup v2
+                String[] parts = line.split(":", 3);
+                if (parts.length != 3) {
+                    continue;
+                }
+
+                if (parts[0].equals("0") && parts[1].isEmpty()) {
+                    for (Path folder = resolve(CGROUP_ROOT, parts[2]); folder.startsWith(CGROUP_ROOT); folder = folder.getParent()) {
+                        quota = lowest(quota, readQuotaV2(folder.resolve("cpu.max")));
+                    }
+                } else if (("," + parts[1] + ",").contains(",cpu,")) {
+                    for (String mount : new String[] { "cpu", "cpu,cpuacct", "cpuacct,cpu" }) {
+                        Path mountFolder = CGROUP_ROOT.resolve(mount);
+
+                        // Inside a container, its own cgroup is usually mounted as the root
+                        quota = lowest(quota, readQuotaV1(resolve(mountFolder, parts[2])));
+                        quota = lowest(quota, readQuotaV1(mountFolder));
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException exception) {
+            // Not Linux, or no cgroups
+        }
+
+        return quota;
+    }
+
+    /**
+     * Reads a cgroup v2 {@code cpu.max} file, which contains the quota and period, or "max" for no quota
+     * @param file the file
+     * @return the quota in cores, or -1 if there is none
+     */
+    private static double readQuotaV2(Path file) {
+        String[] values = readFirstLine(file).trim().split("\\s+");
+        if (values.length != 2 || values[0].equals("max")) {
+            return -1;
+        }
+
+        return divide(values[0], values[1]);
+    }
+
+    /**
+     * Reads the quota of a cgroup v1 CPU controller, where a quota of -1 means there is none
+     * @param folder the folder of the cgroup
+     * @return the quota in cores, or -1 if there is none
+     */
+    private static double readQuotaV1(Path folder) {
+        return divide(
+            readFirstLine(folder.resolve("cpu.cfs_quota_us")).trim(),
+            readFirstLine(folder.resolve("cpu.cfs_period_us")).trim());
+    }
+
+    private static double divide(String quota, String period) {
+        try {
+            long quotaMicros = Long.parseLong(quota);
+            long periodMicros = Long.parseLong(period);
+
+            if (quotaMicros <= 0 || periodMicros <= 0) {
+                return -1;
+            }
+
+            return (double) quotaMicros / periodMicros;
+        } catch (NumberFormatException exception) {
+            return -1;
+        }
+    }
+
+    private static String readFirstLine(Path file) {
+        try {
+            List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+
+            return lines.isEmpty() ? "" : lines.get(0);
+        } catch (IOException exception) {
+            return "";
+        }
+    }
+
+    private static Path resolve(Path folder, String cgroupPath) {
+        return folder.resolve(cgroupPath.replaceFirst("^/+", "")).normalize();
+    }
+
+    private static double lowest(double quota, double otherQuota) {
+        if (otherQuota <= 0) {
+            return quota;
+        }
+
+        return quota <= 0 ? otherQuota : Math.min(quota, otherQuota);
+    }
+}
@@ -0,0 +1,478 @@
+package ratismal.drivebackup.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.bukkit.Chunk;
+import org.bukkit.World;
+
+import ratismal.drivebackup.plugin.DriveBackup;
+
+/**
+ * Keeps track of which region files of each world may have been written to since the world was last backed up, so
+ * incremental backups don't need to list and stat every region file
+ * <p>
+ * The server only writes a chunk to its region file while the chunk is loaded, or as it's unloaded, so a region is
+ * marked dirty when a chunk in it is loaded or unloaded, and is considered dirty for as long as any of its chunks are
+ * loaded. The same goes for the entity and point of interest region files with the same coordinates.
+ * <p>
+ * The dirty regions of each world are saved as a bitmap whenever the world is saved, and when the plugin is disabled.
+ * If the plugin wasn't disabled cleanly, or didn't track the world before, the world isn't tracked until its next
+ * successful backup, which scans its region files as usual.
+ * <p>
+ * Safe to use from multiple threads
+ */
+public class DirtyRegionTracker {
+    private static final int MAGIC = 0x44425252;
+    private static final int VERSION = 1;
+    private static final Pattern REGION_FILE = Pattern.compile("r\\.(-?\\d+)\\.(-?\\d+)\\.mca");
+    private static final Pattern EXTERNAL_CHUNK_FILE = Pattern.compile("c\\.(-?\\d+)\\.(-?\\d+)\\.mcc");
+    private static final List<String> REGION_FOLDERS = Arrays.asList("region", "entities", "poi");
+
+    private static final Map<String, WorldRegions> worlds = new HashMap<>();
+
+    private DirtyRegionTracker() {
+    }
+
+    /**
+     * Starts tracking the dirty regions of the specified world, picking up where the plugin left off if it was
+     * disabled cleanly
+     * <p>
+     * Must be called on the server thread, as it goes through the loaded chunks
+     * @param world the world
+     */
+    public static synchronized void startTracking(World world) {
+        if (worlds.containsKey(world.getName())) {
+            return;
+        }
+
+        WorldRegions regions = new WorldRegions(world);
+        worlds.put(world.getName(), regions);
+
+        regions.load();
+
+        for (Chunk chunk : world.getLoadedChunks()) {
+            chunkLoaded(world, chunk.getX(), chunk.getZ());
+        }
+
+        // If the server stops without disabling the plugin, the saved regions aren't trusted
+        regions.save(false);
+    }
+
+    /**
+     * Marks the region containing the specified chunk dirty, as the chunk was loaded
+     * @param world the world
+     * @param chunkX the x coordinate of the chunk
+     * @param chunkZ the z coordinate of the chunk
+     */
+    public static synchronized void chunkLoaded(World world, int chunkX, int chunkZ) {
+        WorldRegions regions = worlds.get(world.getName());
+        if (regions == null) {
+            return;
+        }
+
+        long key = getKey(chunkX >> 5, chunkZ >> 5);
+        regions.markDirty(key);
+        regions.loadedChunks.merge(key, 1, Integer::sum);
+    }
+
+    /**
+     * Marks the region containing the specified chunk dirty, as the chunk was unloaded, and so possibly saved
+     * @param world the world
+     * @param chunkX the x coordinate of the chunk
+     * @param chunkZ the z coordinate of the chunk
+     */
+    public static synchronized void chunkUnloaded(World world, int chunkX, int chunkZ) {
+        WorldRegions regions = worlds.get(world.getName());
+        if (regions == null) {
+            return;
+        }
+
+        long key = getKey(chunkX >> 5, chunkZ >> 5);
+        regions.markDirty(key);
+        regions.loadedChunks.computeIfPresent(key, (region, count) -> count > 1 ? count - 1 : null);
+    }
+
+    /**
+     * Saves the dirty regions of the specified world, as it's being saved
+     * @param world the world
+     */
+    public static synchronized void save(World world) {
+        WorldRegions regions = worlds.get(world.getName());
+        if (regions != null) {
+            regions.save(false);
+        }
+    }
+
+    /**
+     * Saves the dirty regions of every world, as the plugin is being disabled
+     * <p>
+     * The regions with loaded chunks are saved as dirty, as the server saves them once the plugin is disabled
+     */
+    public static synchronized void saveAll() {
+        for (WorldRegions regions : worlds.values()) {
+            for (long key : regions.loadedChunks.keySet()) {
+                regions.dirty.set(key);
+            }
+
+            regions.save(true);
+        }
+
+        worlds.clear();
+    }
+
+    /**
+     * Takes a snapshot of the dirty regions of the world stored in the specified folder, before backing it up
+     * @param folder the folder
+     * @return the snapshot, or {@code null} if the folder isn't that of a tracked world
+     */
+    public static synchronized Snapshot snapshot(File folder) {
+        File canonicalFolder;
+        try {
+            canonicalFolder = folder.getCanonicalFile();
+        } catch (IOException exception) {
+            return null;
+        }
+
+        for (WorldRegions regions : worlds.values()) {
+            if (!regions.canonicalFolder.equals(canonicalFolder)) {
+                continue;
+            }
+
+            RegionBitmap dirty = regions.dirty.copy();
+            for (long key : regions.loadedChunks.keySet()) {
+                dirty.set(key);
+            }
+
+            return new Snapshot(regions, dirty, regions.generation, regions.tracked);
+        }
+
+        return null;
+    }
+
+    /**
+     * Marks the regions in the specified snapshot clean, as the world was backed up successfully, and starts trusting
+     * the dirty regions of the world if it didn't already
+     * <p>
+     * Regions marked dirty since the snapshot was taken stay dirty, even if they were already dirty in the snapshot, as
+     * they may have been written to after being backed up
+     * @param snapshot the snapshot
+     */
+    public static synchronized void commit(Snapshot snapshot) {
+        WorldRegions regions = snapshot.regions;
+        if (worlds.get(regions.name) != regions) {
+            // The world was unloaded, or the plugin disabled, since
+            return;
+        }
+
+        for (long key : snapshot.dirty.getKeys()) {
+            Long dirtiedAt = regions.dirtiedAt.get(key);
+            if (dirtiedAt == null || dirtiedAt <= snapshot.generation) {
+                regions.dirty.clear(key);
+                regions.dirtiedAt.remove(key);
+            }
+        }
+
+        regions.tracked = true;
+    }
+
+    private static long getKey(int regionX, int regionZ) {
+        return (long) regionX << 32 | (regionZ & 0xFFFFFFFFL);
+    }
+
+    /**
+     * The dirty regions of a world as of the start of a backup
+     */
+    public static final class Snapshot {
+        private final WorldRegions regions;
+        private final RegionBitmap dirty;
+        private final long generation;
+        private final boolean tracked;
+
+        private Snapshot(WorldRegions regions, RegionBitmap dirty, long generation, boolean tracked) {
+            this.regions = regions;
+            this.dirty = dirty;
+            this.generation = generation;
+            this.tracked = tracked;
+        }
+
+        /**
+         * Gets whether the dirty regions can be trusted, if not, the region files need to be scanned
+         * @return whether the world was tracked since its last backup
+         */
+        public boolean isTracked() {
+            return tracked;
+        }
+
+        /**
+         * Gets the folders of the world containing region files, whether or not they exist
+         * @return the paths of the folders, relative to the world folder
+         */
+        public List<String> getRegionFolders() {
+            return regions.regionFolders;
+        }
+
+        /**
+         * Gets whether the file with the specified name, in one of the region folders, may have been written to
+         * <p>
+         * Files which aren't named after a region or chunk are always considered dirty
+         * @param fileName the name of the file
+         * @return whether the file may have changed since the last backup
+         */
+        public boolean isDirty(String fileName) {
+            Matcher matcher = REGION_FILE.matcher(fileName);
+            int shift = 0;
+            if (!matcher.matches()) {
+                matcher = EXTERNAL_CHUNK_FILE.matcher(fileName);
+                shift = 5;
+
+                if (!matcher.matches()) {
+                    return true;
+                }
+            }
+
+            try {
+                return dirty.get(getKey(Integer.parseInt(matcher.group(1)) >> shift, Integer.parseInt(matcher.group(2)) >> shift));
+            } catch (NumberFormatException exception) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * The dirty regions of a world being tracked
+     */
+    private static final class WorldRegions {
+        private final String name;
+        private final File canonicalFolder;
+        private final File file;
+        private final List<String> regionFolders;
+        private final RegionBitmap dirty = new RegionBitmap();
+        private final Map<Long, Integer> loadedChunks = new HashMap<>();
+        private boolean tracked;
+
+        /**
+         * The generation each region was last marked dirty in, which goes up every time a region is, so a backup only
+         * marks the regions clean that weren't marked dirty again since its snapshot
+         */
+        private final Map<Long, Long> dirtiedAt = new HashMap<>();
+        private long generation;
+
+        private WorldRegions(World world) {
+            this.name = world.getName();
+
+            File folder = world.getWorldFolder();
+            File canonicalFolder;
+            try {
+                canonicalFolder = folder.getCanonicalFile();
+            } catch (IOException exception) {
+                canonicalFolder = folder.getAbsoluteFile();
+            }
+            this.canonicalFolder = canonicalFolder;
+
+            try {
+                this.file = new File(new File(DriveBackup.getInstance().getDataFolder(), "regions"), URLEncoder.encode(name, "UTF-8") + ".bitmap");
+            } catch (UnsupportedEncodingException exception) {
+                throw new IllegalStateException(exception);
+            }
+
+            // The other dimensions of the default worlds are stored in a subfolder
+            String dimensionFolder;
+            switch (world.getEnvironment()) {
+                case NETHER:
+                    dimensionFolder = "DIM-1";
+                    break;
+                case THE_END:
+                    dimensionFolder = "DIM1";
+                    break;
+                default:
+                    dimensionFolder = null;
+                    break;
+            }
+
+            List<String> regionFolders = new ArrayList<>();
+            for (String regionFolder : REGION_FOLDERS) {
+                regionFolders.add(dimensionFolder == null ? regionFolder : new File(dimensionFolder, regionFolder).getPath());
+            }
+            this.regionFolders = Collections.unmodifiableList(regionFolders);
+        }
+
+        private void markDirty(long key) {
+            dirty.set(key);
+            dirtiedAt.put(key, ++generation);
+        }
+
+        /**
+         * Loads the dirty regions saved when the plugin was last disabled, if it was disabled cleanly
+         */
+        private void load() {
+            if (!file.exists()) {
+                return;
+            }
+
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file.toPath())))) {
+                if (in.readInt() != MAGIC || in.readUnsignedByte() != VERSION) {
+                    return;
+                }
+
+                boolean clean = in.readBoolean();
+                boolean wasTracked = in.readBoolean();
+                dirty.read(in);
+
+                tracked = clean && wasTracked;
+            } catch (IOException exception) {
+                dirty.clear();
+                MessageUtil.sendConsoleException(exception);
+            }
+        }
+
+        /**
+         * Saves the dirty regions, replacing the previously saved ones
+         * @param clean whether the plugin is being disabled, so the saved regions are complete
+         */
+        private void save(boolean clean) {
+            File tempFile = new File(file.getPath() + ".tmp");
+
+            try {
+                file.getParentFile().mkdirs();
+
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile.toPath())))) {
+                    out.writeInt(MAGIC);
+                    out.writeByte(VERSION);
+                    out.writeBoolean(clean);
+                    out.writeBoolean(tracked);
+                    dirty.write(out);
+                }
+
+                try {
+                    Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException exception) {
+                    Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+            } catch (IOException exception) {
+                MessageUtil.sendConsoleException(exception);
+            }
+        }
+    }
+
+    /**
+     * A set of regions, stored as a bitmap for each 32 by 32 region area containing any
+     */
+    private static final class RegionBitmap {
+        private static final int TILE_WORDS = 32 * 32 / 64;
+
+        private final Map<Long, long[]> tiles = new HashMap<>();
+
+        private void set(long key) {
+            long[] tile = tiles.computeIfAbsent(getTileKey(key), tileKey -> new long[TILE_WORDS]);
+            int bit = getBit(key);
+            tile[bit >>> 6] |= 1L << bit;
+        }
+
+        private boolean get(long key) {
+            long[] tile = tiles.get(getTileKey(key));
+            int bit = getBit(key);
+
+            return tile != null && (tile[bit >>> 6] & 1L << bit) != 0;
+        }
+
+        private RegionBitmap copy() {
+            RegionBitmap copy = new RegionBitmap();
+            for (Map.Entry<Long, long[]> tile : tiles.entrySet()) {
+                copy.tiles.put(tile.getKey(), tile.getValue().clone());
+            }
+
+            return copy;
+        }
+
+        private void clear(long key) {
+            long tileKey = getTileKey(key);
+            long[] tile = tiles.get(tileKey);
+            if (tile == null) {
+                return;
+            }
+
+            int bit = getBit(key);
+            tile[bit >>> 6] &= ~(1L << bit);
+
+            for (long word : tile) {
+                if (word != 0) {
+                    return;
+                }
+            }
+            tiles.remove(tileKey);
+        }
+
+        /**
+         * Gets the regions in the set
+         * @return the keys of the regions
+         */
+        private List<Long> getKeys() {
+            List<Long> keys = new ArrayList<>();
+            for (Map.Entry<Long, long[]> tile : tiles.entrySet()) {
+                int tileX = (int) (tile.getKey() >> 32);
+                int tileZ = (int) (long) tile.getKey();
+
+                for (int bit = 0; bit < TILE_WORDS * 64; bit++) {
+                    if ((tile.getValue()[bit >>> 6] & 1L << bit) != 0) {
+                        keys.add(getKey(tileX << 5 | bit >>> 5, tileZ << 5 | bit & 31));
+                    }
+                }
+            }
+
+            return keys;
+        }
+
+        private void clear() {
+            tiles.clear();
+        }
+
+        private void write(DataOutputStream out) throws IOException {
+            out.writeInt(tiles.size());
+            for (Map.Entry<Long, long[]> tile : tiles.entrySet()) {
+                out.writeLong(tile.getKey());
+                for (long word : tile.getValue()) {
+                    out.writeLong(word);
+                }
+            }
+        }
+
+        private void read(DataInputStream in) throws IOException {
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                long[] words = new long[TILE_WORDS];
+                long tileKey = in.readLong();
+                for (int j = 0; j < TILE_WORDS; j++) {
+                    words[j] = in.readLong();
+                }
+
+                tiles.put(tileKey, words);
+            }
+        }
+
+        private static long getTileKey(long key) {
+            return getKey((int) (key >> 32) >> 5, (int) key >> 5);
+        }
+
+        private static int getBit(long key) {
+            return ((int) (key >> 32) & 31) << 5 | ((int) key & 31);
+        }
+    }
+}
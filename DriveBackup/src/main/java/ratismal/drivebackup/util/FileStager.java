@@ -0,0 +1,175 @@
+package ratismal.drivebackup.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import ratismal.drivebackup.archive.ArchiveWriter.FailureHandler;
+
+/**
+ * Copies the files to back up into a staging folder, so the backup can be created from the copies while the server
+ * saves again
+ * <p>
+ * On Linux, files are copied in batches with {@code cp --reflink=auto}, which clones them on copy-on-write file
+ * systems, such as Btrfs and XFS, taking a moment regardless of their size, and otherwise copies them within the
+ * kernel. Elsewhere, or if {@code cp} fails, files are copied by Java instead.
+ * <p>
+ * Files aren't hard linked, as the server writes region files in place, so a hard link would change along with the
+ * world as soon as saving resumes.
+ */
+class FileStager {
+    private static final int BATCH_SIZE = 256;
+    private static final boolean IS_LINUX = System.getProperty("os.name", "").toLowerCase(Locale.ROOT).contains("linux");
+
+    private final File sourceFolder;
+    private final File stagingFolder;
+    private boolean useCp = IS_LINUX;
+
+    /**
+     * Creates an instance of the {@code FileStager} object
+     * @param sourceFolder the folder the files are in, or the file itself if a single file is backed up
+     * @param stagingFolder the folder to copy the files to, which should be on the same file system
+     */
+    FileStager(File sourceFolder, File stagingFolder) {
+        this.sourceFolder = sourceFolder;
+        this.stagingFolder = stagingFolder;
+    }
+
+    /**
+     * Copies the specified files to the staging folder, keeping their paths and modification times
+     * @param paths the paths of the files, relative to the source folder
+     * @param failureHandler what to do with files that can't be copied
+     * @return the paths of the files which were copied
+     * @throws IOException if the staging folder couldn't be created
+     */
+    List<String> stage(Iterable<String> paths, FailureHandler failureHandler) throws IOException {
+        List<String> stagedPaths = new ArrayList<>();
+        List<String> batch = new ArrayList<>(BATCH_SIZE);
+
+        for (String path : paths) {
+            if (path.isEmpty()) {
+                // A single file is staged as the staging folder itself
+                if (copy(path, failureHandler)) {
+                    stagedPaths.add(path);
+                }
+
+                continue;
+            }
+
+            batch.add(path);
+            if (batch.size() == BATCH_SIZE) {
+                stageBatch(batch, stagedPaths, failureHandler);
+                batch.clear();
+            }
+        }
+
+        if (!batch.isEmpty()) {
+            stageBatch(batch, stagedPaths, failureHandler);
+        }
+
+        return stagedPaths;
+    }
+
+    /**
+     * Copies a batch of files to the staging folder
+     * @param batch the paths of the files
+     * @param stagedPaths the list to add the paths of the files which were copied to
+     * @param failureHandler what to do with files that can't be copied
+     * @throws IOException if the staging folder couldn't be created
+     */
+    private void stageBatch(List<String> batch, List<String> stagedPaths, FailureHandler failureHandler) throws IOException {
+        Files.createDirectories(stagingFolder.toPath());
+
+        if (useCp && copyWithCp(batch)) {
+            stagedPaths.addAll(batch);
+
+            return;
+        }
+
+        // Copy whatever cp didn't, such as files which vanished or couldn't be read
+        boolean anyCopied = false;
+        for (String path : batch) {
+            File stagedFile = new File(stagingFolder, path);
+            File file = new File(sourceFolder, path);
+
+            if (stagedFile.isFile() && stagedFile.length() == file.length()) {
+                stagedPaths.add(path);
+                anyCopied = true;
+            } else if (copy(path, failureHandler)) {
+                stagedPaths.add(path);
+            }
+        }
+
+        // A cp which copied nothing doesn't support the options, such as BusyBox's
+        if (!anyCopied) {
+            useCp = false;
+        }
+    }
+
+    /**
+     * Copies a batch of files to the staging folder with {@code cp}
+     * @param batch the paths of the files
+     * @return whether every file was copied
+     */
+    private boolean copyWithCp(List<String> batch) {
+        List<String> command = new ArrayList<>(batch.size() + 6);
+        command.add("cp");
+        command.add("--reflink=auto");
+        command.add("--preserve=timestamps");
+        command.add("--parents");
+        command.add("--target-directory=" + stagingFolder.getAbsolutePath());
+        command.add("--");
+        command.addAll(batch);
+
+        try {
+            Process process = new ProcessBuilder(command)
+                .directory(sourceFolder)
+                .redirectErrorStream(true)
+                .start();
+
+            // Nothing is printed unless something failed, which is handled by copying the batch again
+            try (InputStream output = process.getInputStream()) {
+                byte[] buffer = new byte[1024];
+                while (output.read(buffer) != -1);
+            }
+
+            return process.waitFor() == 0;
+        } catch (IOException exception) {
+            // No usable cp, don't try again
+            useCp = false;
+
+            return false;
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+
+            return false;
+        }
+    }
+
+    /**
+     * Copies a file to the staging folder with Java
+     * @param path the path of the file
+     * @param failureHandler what to do if the file can't be copied
+     * @return whether the file was copied
+     */
+    private boolean copy(String path, FailureHandler failureHandler) {
+        File file = new File(sourceFolder, path);
+        File stagedFile = new File(stagingFolder, path);
+
+        try {
+            Files.createDirectories(stagedFile.getAbsoluteFile().getParentFile().toPath());
+            Files.copy(file.toPath(), stagedFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+        } catch (IOException exception) {
+            failureHandler.onFileFailed(file, exception);
+
+            return false;
+        }
+
+        return true;
+    }
+}
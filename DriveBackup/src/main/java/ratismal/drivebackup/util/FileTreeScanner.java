@@ -0,0 +1,365 @@
+package ratismal.drivebackup.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lists the files in a folder on a background thread, handing them over through a bounded queue as they're found
+ * <p>
+ * The files are returned in a fixed, depth-first order, while the subfolders of the folder being returned are listed
+ * ahead in parallel on a fork/join pool. The bounded queue makes scanning wait for the consumer, so memory use doesn't
+ * grow with the number of files.
+ * <p>
+ * Each file is only stat-ed once, folders matching a blacklist glob are skipped without being listed, and the folder
+ * used for backups is recognized by its identity, which is resolved once, rather than by canonicalizing every file
+ */
+class FileTreeScanner implements Closeable {
+    private static final EnumSet<FileVisitOption> FOLLOW_LINKS = EnumSet.of(FileVisitOption.FOLLOW_LINKS);
+
+    /**
+     * Marks the end of the queue, compared by identity
+     */
+    private static final String END = new String();
+
+    private final List<BlacklistEntry> blacklist;
+    private final Set<Path> skippedFolders;
+    private final Path backupFolder;
+    private final Object backupFolderKey;
+    private final BlockingQueue<String> queue;
+    private final Set<Object> visitedFolders = Collections.newSetFromMap(new ConcurrentHashMap<Object, Boolean>());
+    private final Map<File, IOException> unreadableFiles = new ConcurrentHashMap<>();
+
+    private Thread thread;
+    private ForkJoinPool pool;
+    private boolean finished;
+    private volatile IOException failure;
+    private volatile boolean backupFolderSkipped;
+
+    /**
+     * Creates an instance of the {@code FileTreeScanner} object
+     * @param blacklist the blacklist entries of files and folders to not include
+     * @param backupFolder the folder used for backups, which is never included
+     * @param skippedFolders the paths of folders, relative to the folder being scanned, whose files are listed by the 
+     * caller instead
+     * @param capacity the number of files which can be found ahead of the consumer
+     */
+    FileTreeScanner(List<BlacklistEntry> blacklist, File backupFolder, Set<Path> skippedFolders, int capacity) {
+        this.blacklist = blacklist;
+        this.skippedFolders = skippedFolders;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+
+        Path backupFolderPath = null;
+        Object fileKey = null;
+        try {
+            backupFolderPath = backupFolder.toPath().toRealPath();
+            fileKey = Files.readAttributes(backupFolderPath, BasicFileAttributes.class).fileKey();
+        } catch (IOException exception) {
+            // The backup folder doesn't exist yet, so there is nothing in it to skip
+        }
+
+        this.backupFolder = backupFolderPath;
+        this.backupFolderKey = fileKey;
+    }
+
+    /**
+     * Starts scanning the specified folder on a background thread
+     * @param folder the folder
+     * @param threads the number of threads to list subfolders with
+     */
+    void start(final String folder, int threads) {
+        final AtomicInteger threadNumber = new AtomicInteger(1);
+        pool = new ForkJoinPool(threads, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+            @Override
+            public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                thread.setName("DriveBackup-scanner-" + threadNumber.getAndIncrement());
+                return thread;
+            }
+        }, null, false);
+
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    scan(folder);
+                } catch (IOException exception) {
+                    failure = exception;
+                } catch (InterruptedException exception) {
+                    // Closed before the scan finished, nobody is waiting for the rest
+                    return;
+                } finally {
+                    pool.shutdownNow();
+                }
+
+                try {
+                    queue.put(END);
+                } catch (InterruptedException exception) {
+                    // Closed, nobody is waiting for the end
+                }
+            }
+        }, "DriveBackup-scanner");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.currentThread().getPriority());
+        thread.start();
+    }
+
+    /**
+     * Gets the next file found, waiting for the scan if needed
+     * @return the path of the file, relative to the folder being scanned, or {@code null} once all files were returned
+     * @throws IOException if a folder couldn't be listed
+     * @throws InterruptedException
+     */
+    String next() throws IOException, InterruptedException {
+        if (finished) {
+            return null;
+        }
+
+        String file = queue.take();
+        if (file == END) {
+            finished = true;
+
+            if (failure != null) {
+                throw failure;
+            }
+
+            return null;
+        }
+
+        return file;
+    }
+
+    /**
+     * Gets whether the folder used for backups was found, and skipped, while scanning
+     * @return whether the backup folder was skipped
+     */
+    boolean isBackupFolderSkipped() {
+        return backupFolderSkipped;
+    }
+
+    /**
+     * Gets the files and folders which couldn't be read while scanning, such as files deleted while their folder was
+     * listed, which were skipped
+     * <p>
+     * Only final once all files were returned
+     * @return the files, and why they couldn't be read
+     */
+    Map<File, IOException> getUnreadableFiles() {
+        return unreadableFiles;
+    }
+
+    /**
+     * Stops the scan, if it's still in progress
+     */
+    @Override
+    public void close() {
+        if (thread != null) {
+            thread.interrupt();
+        }
+        if (pool != null) {
+            pool.shutdownNow();
+        }
+        queue.clear();
+    }
+
+    /**
+     * Scans the specified folder, putting the files found in the queue
+     * @param folder the folder
+     * @throws IOException if a folder couldn't be listed
+     * @throws InterruptedException if the scanner was closed
+     */
+    private void scan(String folder) throws IOException, InterruptedException {
+        Path root = Paths.get(folder).toRealPath();
+
+        if (backupFolder != null && root.startsWith(backupFolder)) {
+            backupFolderSkipped = true;
+
+            return;
+        }
+
+        BasicFileAttributes attributes = Files.readAttributes(root, BasicFileAttributes.class);
+        if (!attributes.isDirectory()) {
+            // A single file is included as the folder itself
+            if (!isBlacklisted(Paths.get(""))) {
+                queue.put("");
+            }
+
+            return;
+        }
+
+        if (attributes.fileKey() != null) {
+            visitedFolders.add(attributes.fileKey());
+        }
+
+        scanFolder(pool.submit(new ListTask(root, Paths.get(""))));
+    }
+
+    /**
+     * Puts the files in the specified folder, then those in its subfolders, in the queue
+     * @param task the task listing the folder
+     * @throws IOException if a folder couldn't be listed
+     * @throws InterruptedException if the scanner was closed
+     */
+    private void scanFolder(Future<Listing> task) throws IOException, InterruptedException {
+        Listing listing;
+        try {
+            listing = task.get();
+        } catch (ExecutionException exception) {
+            if (exception.getCause() instanceof IOException) {
+                throw (IOException) exception.getCause();
+            }
+
+            throw new IOException("Failed to list folder", exception.getCause());
+        } catch (CancellationException exception) {
+            // The pool was shut down by closing the scanner
+            throw new InterruptedException();
+        }
+
+        // List the subfolders while the consumer works through this folder
+        List<Future<Listing>> subfolderTasks = new ArrayList<>(listing.subfolders.size());
+        for (int i = 0; i < listing.subfolders.size(); i++) {
+            subfolderTasks.add(pool.submit(new ListTask(listing.subfolders.get(i), listing.relativeSubfolders.get(i))));
+        }
+
+        for (String file : listing.files) {
+            queue.put(file);
+        }
+
+        for (Future<Listing> subfolderTask : subfolderTasks) {
+            scanFolder(subfolderTask);
+        }
+    }
+
+    /**
+     * Gets whether the specified subfolder should be scanned
+     * @param folder the folder
+     * @param relativePath the path of the folder, relative to the folder being scanned
+     * @param attributes the attributes of the folder
+     * @return whether to scan the folder
+     */
+    private boolean shouldScan(Path folder, Path relativePath, BasicFileAttributes attributes) {
+        Object fileKey = attributes.fileKey();
+
+        // Verify not backing up previous backups
+        if (backupFolderKey != null ? backupFolderKey.equals(fileKey) : folder.equals(backupFolder)) {
+            backupFolderSkipped = true;
+
+            return false;
+        }
+
+        if (skippedFolders.contains(relativePath)) {
+            return false;
+        }
+
+        for (BlacklistEntry blacklistEntry : blacklist) {
+            if (blacklistEntry.matchesFolder(relativePath)) {
+                blacklistEntry.incBlacklistedFolders();
+
+                return false;
+            }
+        }
+
+        // Don't loop forever if a symbolic link points to a folder containing it
+        return fileKey == null || visitedFolders.add(fileKey);
+    }
+
+    /**
+     * Gets whether the file with the specified path is blacklisted, counting it if so
+     * @param relativePath the path of the file, relative to the folder being scanned
+     * @return whether the file is blacklisted
+     */
+    private boolean isBlacklisted(Path relativePath) {
+        for (BlacklistEntry blacklistEntry : blacklist) {
+            if (blacklistEntry.getPathMatcher().matches(relativePath)) {
+                blacklistEntry.incBlacklistedFiles();
+
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * The files and subfolders directly inside a folder
+     */
+    private static final class Listing {
+        private final List<String> files = new ArrayList<>();
+        private final List<Path> subfolders = new ArrayList<>();
+        private final List<Path> relativeSubfolders = new ArrayList<>();
+    }
+
+    /**
+     * Lists one folder on the pool
+     */
+    private final class ListTask implements Callable<Listing> {
+        private final Path folder;
+        private final Path relativeFolder;
+
+        private ListTask(Path folder, Path relativeFolder) {
+            this.folder = folder;
+            this.relativeFolder = relativeFolder;
+        }
+
+        @Override
+        public Listing call() throws IOException {
+            final Listing listing = new Listing();
+
+            // With a depth of 1, subfolders are visited as files, with their attributes, rather than entered
+            Files.walkFileTree(folder, FOLLOW_LINKS, 1, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                    Path relativePath = relativeFolder.resolve(file.getFileName().toString());
+
+                    if (attributes.isDirectory()) {
+                        if (shouldScan(file, relativePath, attributes)) {
+                            listing.subfolders.add(file);
+                            listing.relativeSubfolders.add(relativePath);
+                        }
+                    } else if (!isBlacklisted(relativePath)) {
+                        listing.files.add(relativePath.toString());
+                    }
+
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException exception) throws IOException {
+                    // Only a folder which can't be listed at all fails the scan
+                    if (file.equals(folder) && relativeFolder.toString().isEmpty()) {
+                        throw exception;
+                    }
+
+                    unreadableFiles.put(file.toFile(), exception);
+
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+
+            return listing;
+        }
+    }
+}
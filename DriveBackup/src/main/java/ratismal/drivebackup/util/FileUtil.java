@@ -1,24 +1,40 @@
 package ratismal.drivebackup.util;
 
 import ratismal.drivebackup.UploadThread.UploadLogger;
+import ratismal.drivebackup.archive.ArchiveFormat;
+import ratismal.drivebackup.archive.ArchiveWriter;
+import ratismal.drivebackup.archive.ArchiveWriter.EntryContent;
+import ratismal.drivebackup.archive.BackupManifest;
+import ratismal.drivebackup.archive.ChecksumManifest;
+import ratismal.drivebackup.archive.ChunkRepository;
+import ratismal.drivebackup.archive.ParallelZipWriter;
+import ratismal.drivebackup.archive.RegionCompaction;
+import ratismal.drivebackup.archive.RegionDelta;
+import ratismal.drivebackup.archive.RegionTranscoding;
+import ratismal.drivebackup.archive.TarWriter;
+import ratismal.drivebackup.archive.VolumeOutputStream;
 import ratismal.drivebackup.config.ConfigParser;
-import ratismal.drivebackup.config.ConfigParser.Config;
+import ratismal.drivebackup.config.configSections.BackupStorage;
 
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.PathMatcher;
 import java.nio.file.Paths;
+import java.security.MessageDigest;
 import java.time.ZonedDateTime;
 import java.util.*;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
 
 import static ratismal.drivebackup.config.Localization.intl;
 
@@ -27,37 +43,88 @@ import static ratismal.drivebackup.config.Localization.intl;
  */
 
 public class FileUtil {
+    /**
+     * Name of the entry listing the files deleted since the previous backup, in incremental backups
+     */
+    public static final String DELETED_FILES_ENTRY = ".drivebackup-deleted";
+
+    /**
+     * Name of the folder inside a location's local backup folder containing its deduplicating chunk repository
+     */
+    public static final String REPOSITORY_FOLDER = "repository";
+
+    /**
+     * Name of the folder inside the local-save-directory the files to back up are staged in
+     */
+    public static final String STAGING_FOLDER = ".staging";
+
+    /**
+     * Number of files the scan of a location can find ahead of the files being compressed
+     */
+    private static final int FILE_QUEUE_CAPACITY = 4096;
+
+    /**
+     * Orders the files of a backup, the volumes by number, followed by the index, followed by the checksums
+     */
+    private static final Comparator<File> VOLUME_ORDER = Comparator
+        .comparing((File file) -> ArchiveFormat.isChecksums(file.getName()))
+        .thenComparing((File file) -> ArchiveFormat.isIndex(file.getName()))
+        .thenComparingInt(file -> file.getName().length())
+        .thenComparing(File::getName);
+
     private UploadLogger logger;
+    private final int threads;
 
     public FileUtil(UploadLogger logger) {
+        this(logger, ConfigParser.getConfig().backupStorage.compressionThreads);
+    }
+
+    /**
+     * Creates an instance of the {@code FileUtil} object
+     * @param logger the logger to report progress and failures to
+     * @param threads the number of threads to scan and compress with, the share of the compression threads a single
+     * backup gets when several run at once
+     */
+    public FileUtil(UploadLogger logger, int threads) {
         this.logger = logger;
+        this.threads = threads;
     }
 
     /**
-     * Gets the local backups in the specified folder as a {@code TreeMap} with their creation date and a reference to them
+     * Gets the local backups in the specified folder as a {@code TreeMap} with their creation date and the files they
+     * consist of
+     * <p>
+     * A backup split into volumes consists of its volumes, in order, followed by its index. Any other backup consists
+     * of a single file. Either is followed by the checksums saved next to the backup, if any.
      * @param location the location of the folder containing the backups
      * @param formatter the format of the file name
      * @return The list of backups
      */
-    public TreeMap<Long, File> getLocalBackups(String location, LocalDateTimeFormatter formatter) {
+    public TreeMap<Long, List<File>> getLocalBackups(String location, LocalDateTimeFormatter formatter) {
         location = escapeBackupLocation(location);
 
-        TreeMap<Long, File> backupList = new TreeMap<>();
         String path = new File(ConfigParser.getConfig().backupStorage.localDirectory).getAbsolutePath() + "/" + location;
         File[] files = new File(path).listFiles();
 
+        Map<String, List<File>> backups = new HashMap<>();
         for (File file : files) {
-            if (file.getName().endsWith(".zip")) {
+            if (ArchiveFormat.isArchive(file.getName())) {
+                backups.computeIfAbsent(ArchiveFormat.getBackupName(file.getName()), name -> new ArrayList<>()).add(file);
+            }
+        }
 
-                String fileName = file.getName();
+        TreeMap<Long, List<File>> backupList = new TreeMap<>();
+        for (Map.Entry<String, List<File>> backup : backups.entrySet()) {
+            String fileName = backup.getKey();
+            List<File> backupFiles = backup.getValue();
+            backupFiles.sort(VOLUME_ORDER);
 
-                try {
-                    ZonedDateTime date = formatter.parse(fileName);
-                    backupList.put(date.toEpochSecond(), file);
-                } catch (Exception e) {
-                    backupList.put(0L, file);
-                    logger.log(intl("local-backup-date-format-invalid"), "file-name", fileName);
-                }
+            try {
+                ZonedDateTime date = formatter.parse(ArchiveFormat.toConfiguredFileName(fileName));
+                backupList.put(date.toEpochSecond(), backupFiles);
+            } catch (Exception e) {
+                backupList.put(0L, backupFiles);
+                logger.log(intl("local-backup-date-format-invalid"), "file-name", fileName);
             }
         }
 
@@ -65,32 +132,26 @@ public class FileUtil {
     }
 
     /**
-     * Creates a local backup zip file for the specified file/folder
+     * Lists the files to include in a backup of the specified file/folder
+     * <p>
+     * If a manifest is specified, only the files which changed since the backup recorded in it are included, once the
+     * list is {@link #verifyBackup(String, BackupFileList) verified}
      * @param location the location of the file or folder
-     * @param formatter the format of the file name
      * @param blacklistGlobs a list of glob patterns of files/folders to not include in the backup
+     * @param manifest the manifest of the previous backup, or {@code null} to include all files
+     * @param full whether to include all files even if a manifest is specified
+     * @param regionDeltas whether to only include the chunks of region files saved since the last full backup, if a 
+     * manifest is specified
+     * @param compactRegions whether to leave out the unused sectors of region files when archiving them
+     * @param transcodeRegions whether to decompress the chunks of region files when archiving them
+     * @return the list of files
      * @throws Exception
      */
-    public void makeBackup(String location, LocalDateTimeFormatter formatter, List<String> blacklistGlobs) throws Exception {
-        Config config = ConfigParser.getConfig();
-
+    public BackupFileList prepareBackup(String location, List<String> blacklistGlobs, BackupManifest manifest, boolean full, boolean regionDeltas, boolean compactRegions, boolean transcodeRegions) throws Exception {
         if (location.charAt(0) == '/') {
             throw new IllegalArgumentException(); 
         }
 
-        ZonedDateTime now = ZonedDateTime.now(config.advanced.dateTimezone);
-        String fileName = formatter.format(now);
-
-        String subfolderName = location;
-        if (isBaseFolder(subfolderName)) {
-            subfolderName = "root";
-        }
-
-        File path = new File(escapeBackupLocation(config.backupStorage.localDirectory + "/" + subfolderName));
-        if (!path.exists()) {
-            path.mkdirs();
-        }
-
         List<BlacklistEntry> blacklist = new ArrayList<>();
         for (String blacklistGlob : blacklistGlobs) {
             BlacklistEntry blacklistEntry = new BlacklistEntry(
@@ -101,11 +162,138 @@ public class FileUtil {
             blacklist.add(blacklistEntry);
         }
 
-        BackupFileList fileList = generateFileList(location, blacklist);
+        DirtyRegionTracker.Snapshot dirtyRegions = null;
+        if (manifest != null && ConfigParser.getConfig().backupStorage.trackDirtyRegions) {
+            dirtyRegions = DirtyRegionTracker.snapshot(new File(location));
+        }
+
+        // The region files of a tracked world are listed here instead, without being stat-ed unless they're dirty
+        boolean listRegions = dirtyRegions != null && dirtyRegions.isTracked() && !full;
+        Set<Path> regionFolders = new HashSet<>();
+        if (listRegions) {
+            for (String regionFolder : dirtyRegions.getRegionFolders()) {
+                regionFolders.add(Paths.get(regionFolder));
+            }
+        }
+
+        BackupFileList fileList = generateFileList(location, blacklist, regionFolders);
+        fileList.setDirtyRegions(dirtyRegions);
+        fileList.compactRegions = compactRegions;
+        fileList.transcodeRegions = transcodeRegions;
+
+        if (manifest != null) {
+            // Comparing to the manifest needs every file, so the list can't be streamed
+            fileList.collect();
+
+            Set<String> cleanRegionFiles = new HashSet<>();
+            if (listRegions) {
+                listRegionFiles(location, regionFolders, blacklist, dirtyRegions, fileList.getList(), cleanRegionFiles);
+            }
+
+            logSkippedFiles(fileList);
+
+            fileList.setChanges(manifest.compare(new File(location), fileList.getList(), full, regionDeltas, cleanRegionFiles));
+        }
+
+        return fileList;
+    }
+
+    /**
+     * Hashes the files which may have changed since the previous backup, leaving out those whose contents didn't, so
+     * the changes can be backed up
+     * <p>
+     * If the files are staged, the staged copies are read, so this can be done once the server saves again
+     * @param location the location of the file or folder
+     * @param fileList the files to include in the backup, as compared to the manifest
+     */
+    public void verifyBackup(String location, BackupFileList fileList) {
+        BackupManifest.Changes changes = fileList.getChanges();
+        if (changes == null) {
+            return;
+        }
+
+        changes.verify(fileList.getSourceFolder(location));
+        fileList.setVerified();
+
+        if (fileList.hasChanges() && !changes.isFull()) {
+            logger.info(
+                intl("local-backup-incremental"),
+                "changed-files-count", String.valueOf(fileList.getList().size()),
+                "deleted-files-count", String.valueOf(fileList.getDeletedFiles().size()));
+        }
+    }
+
+    /**
+     * Lists the files in the region folders of a tracked world, sorting them by whether they may have been written to
+     * since the last backup
+     * <p>
+     * The folders are only listed, rather than walked, so the region files aren't stat-ed
+     * @param location the location of the world folder
+     * @param regionFolders the paths of the region folders, relative to the location
+     * @param blacklist the blacklist entries of files and folders to not include
+     * @param dirtyRegions the dirty regions of the world
+     * @param dirtyFiles the list to add the paths of the files which may have changed to
+     * @param cleanFiles the set to add the paths of the files which haven't changed to
+     */
+    private static void listRegionFiles(String location, Set<Path> regionFolders, List<BlacklistEntry> blacklist, DirtyRegionTracker.Snapshot dirtyRegions, List<String> dirtyFiles, Set<String> cleanFiles) {
+        for (Path regionFolder : regionFolders) {
+            if (isFolderBlacklisted(regionFolder, blacklist)) {
+                continue;
+            }
+
+            String[] fileNames = new File(location, regionFolder.toString()).list();
+            if (fileNames == null) {
+                continue;
+            }
+
+            for (String fileName : fileNames) {
+                Path relativePath = regionFolder.resolve(fileName);
+                if (isFileBlacklisted(relativePath, blacklist)) {
+                    continue;
+                }
+
+                if (dirtyRegions.isDirty(fileName)) {
+                    dirtyFiles.add(relativePath.toString());
+                } else {
+                    cleanFiles.add(relativePath.toString());
+                }
+            }
+        }
+    }
+
+    private static boolean isFolderBlacklisted(Path relativePath, List<BlacklistEntry> blacklist) {
+        for (BlacklistEntry blacklistEntry : blacklist) {
+            if (blacklistEntry.matchesFolder(relativePath)) {
+                blacklistEntry.incBlacklistedFolders();
+
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static boolean isFileBlacklisted(Path relativePath, List<BlacklistEntry> blacklist) {
+        for (BlacklistEntry blacklistEntry : blacklist) {
+            if (blacklistEntry.getPathMatcher().matches(relativePath)) {
+                blacklistEntry.incBlacklistedFiles();
+
+                return true;
+            }
+        }
+
+        return false;
+    }
 
+    /**
+     * Logs the files and folders which weren't included in the backup, once the list of files is complete
+     * @param fileList the list of files
+     */
+    private void logSkippedFiles(BackupFileList fileList) {
         for (BlacklistEntry blacklistEntry : fileList.getBlacklist()) {
             String globPattern = blacklistEntry.getGlobPattern();
             int blacklistedFiles = blacklistEntry.getBlacklistedFiles();
+            int blacklistedFolders = blacklistEntry.getBlacklistedFolders();
 
             if (blacklistedFiles > 0) {
                 logger.info(
@@ -113,16 +301,241 @@ public class FileUtil {
                     "blacklisted-files-count", String.valueOf(blacklistedFiles),
                     "glob-pattern", globPattern);
             }
+
+            if (blacklistedFolders > 0) {
+                logger.info(
+                    intl("local-backup-backlisted-folders"),
+                    "blacklisted-folders-count", String.valueOf(blacklistedFolders),
+                    "glob-pattern", globPattern);
+            }
         }
 
-        int filesInBackupFolder = fileList.getFilesInBackupFolder();
-        if (filesInBackupFolder > 0) {
-            logger.info(
-                intl("local-backup-in-backup-folder"), 
-                "files-in-backup-folder-count", String.valueOf(filesInBackupFolder));
+        if (fileList.isBackupFolderSkipped()) {
+            logger.info(intl("local-backup-in-backup-folder"));
+        }
+
+        for (Map.Entry<File, IOException> unreadableFile : fileList.scanner.getUnreadableFiles().entrySet()) {
+            logFailedToInclude(unreadableFile.getKey(), unreadableFile.getValue());
+        }
+    }
+
+    /**
+     * Copies the specified files into a staging folder, so the backup can be created from the copies once the server
+     * saves again
+     * <p>
+     * The staged copies are deleted when the list of files is closed
+     * @param location the location of the file or folder
+     * @param fileList the files to include in the backup, which is changed to refer to the copies
+     * @throws Exception
+     */
+    public void stageBackup(String location, BackupFileList fileList) throws Exception {
+        if (fileList.isStreamed()) {
+            // Staging needs every file, so the list can't be streamed
+            fileList.collect();
+            logSkippedFiles(fileList);
+        }
+
+        File stagingFolder = getStagingFolder(location);
+        deleteFolder(stagingFolder);
+
+        List<String> stagedFiles = new FileStager(new File(location), stagingFolder).stage(fileList.getFiles(), this::logFailedToInclude);
+        fileList.setStaged(stagingFolder, stagedFiles);
+    }
+
+    /**
+     * Creates a local backup archive file containing the specified files, and saves its checksums next to it
+     * <p>
+     * If a volume size is specified by the user in the {@code config.yml}, the archive is split into volumes of that
+     * size, followed by an index listing them
+     * @param location the location of the file or folder
+     * @param formatter the format of the file name
+     * @param fileList the files to include in the backup
+     * @param format the format of the archive
+     * @param reproducible whether the same files should always result in the same archive
+     * @return the checksums of the archive and the files in it
+     * @throws Exception
+     */
+    public ChecksumManifest makeBackup(String location, LocalDateTimeFormatter formatter, BackupFileList fileList, ArchiveFormat format, boolean reproducible) throws Exception {
+        File path = getBackupFolder(location);
+        String fileName = getBackupFileName(formatter, format);
+        long volumeSize = ConfigParser.getConfig().backupStorage.volumeSize;
+
+        ChecksumManifest checksums;
+        if (volumeSize > 0) {
+            VolumeOutputStream outputStream = new VolumeOutputStream(path, fileName, volumeSize);
+            try {
+                checksums = makeBackup(location, fileList, format, reproducible, outputStream);
+                outputStream.close();
+            } catch (Exception exception) {
+                // Without its index, what was written would look like a complete backup
+                outputStream.delete();
+
+                throw exception;
+            }
+        } else {
+            try (OutputStream outputStream = new FileOutputStream(new File(path, fileName))) {
+                checksums = makeBackup(location, fileList, format, reproducible, outputStream);
+            }
         }
 
-        zipIt(location, path.getPath() + "/" + fileName, fileList);
+        saveChecksums(location, fileName, checksums);
+
+        return checksums;
+    }
+
+    /**
+     * Creates a backup archive containing the specified files, writing it to the specified stream
+     * <p>
+     * The stream isn't closed once the backup is complete
+     * @param location the location of the file or folder
+     * @param fileList the files to include in the backup
+     * @param format the format of the archive
+     * @param reproducible whether the same files should always result in the same archive
+     * @param outputStream the stream to write the archive to
+     * @return the checksums of the archive and the files in it
+     * @throws Exception
+     */
+    public ChecksumManifest makeBackup(String location, BackupFileList fileList, ArchiveFormat format, boolean reproducible, OutputStream outputStream) throws Exception {
+        return writeArchive(location, outputStream, fileList, format, reproducible);
+    }
+
+    /**
+     * Saves the checksums of a backup next to it in the local folder the backups of the specified file/folder are
+     * stored in
+     * <p>
+     * The backup is still usable without its checksums, so failing to save them is only reported
+     * @param location the location of the file or folder
+     * @param fileName the file name of the backup
+     * @param checksums the checksums
+     * @return the file the checksums were saved to, or {@code null} if they couldn't be saved
+     */
+    public File saveChecksums(String location, String fileName, ChecksumManifest checksums) {
+        try {
+            File file = new File(getBackupFolder(location), ArchiveFormat.getChecksumsFileName(fileName));
+            checksums.save(file);
+
+            return file;
+        } catch (Exception exception) {
+            logger.log(intl("local-backup-checksums-save-failed"));
+            MessageUtil.sendConsoleException(exception);
+
+            return null;
+        }
+    }
+
+    /**
+     * Opens the deduplicating chunk repository the backups of the specified file/folder are stored in
+     * @param location the location of the file or folder
+     * @param dictionaries whether to compress small files with a dictionary trained on previous backups
+     * @return the repository
+     * @throws Exception
+     */
+    public static ChunkRepository getRepository(String location, boolean dictionaries) throws Exception {
+        BackupStorage backupStorage = ConfigParser.getConfig().backupStorage;
+
+        return new ChunkRepository(
+            new File(getBackupFolder(location), REPOSITORY_FOLDER),
+            backupStorage.zipCompression,
+            dictionaries,
+            backupStorage.zstdCompression);
+    }
+
+    /**
+     * Creates a snapshot of the specified files in the specified chunk repository
+     * @param location the location of the file or folder
+     * @param formatter the format of the file name, the snapshot is named after it without the {@code .zip} extension
+     * @param fileList the files to include in the snapshot
+     * @param repository the repository
+     * @return the snapshot
+     * @throws Exception
+     */
+    public ChunkRepository.Snapshot makeSnapshot(String location, LocalDateTimeFormatter formatter, BackupFileList fileList, ChunkRepository repository) throws Exception {
+        String name = getBackupFileName(formatter);
+        if (name.endsWith(".zip")) {
+            name = name.substring(0, name.length() - ".zip".length());
+        }
+
+        ChunkRepository.Snapshot snapshot = repository.createSnapshot(name, fileList.getSourceFolder(location), fileList.getFiles(), this::logFailedToInclude);
+
+        if (fileList.isStreamed()) {
+            logSkippedFiles(fileList);
+        }
+
+        logger.info(
+            intl("local-backup-deduplicated"),
+            "chunk-count", String.valueOf(snapshot.getChunkCount()),
+            "new-chunk-count", String.valueOf(snapshot.getNewChunkCount()),
+            "new-size", String.valueOf(snapshot.getNewBytes() / 1024));
+
+        if (snapshot.getDictionaryFile() != null) {
+            logger.info(intl("local-backup-dictionary-trained"), "sample-count", String.valueOf(snapshot.getSampleCount()));
+        }
+
+        return snapshot;
+    }
+
+    /**
+     * Gets the file name of a backup created now
+     * @param formatter the format of the file name
+     * @return the file name
+     */
+    public static String getBackupFileName(LocalDateTimeFormatter formatter) {
+        return formatter.format(ZonedDateTime.now(ConfigParser.getConfig().advanced.dateTimezone));
+    }
+
+    /**
+     * Gets the file name of a backup archive in the specified format created now
+     * @param formatter the format of the file name
+     * @param format the format of the archive, which determines the file extension
+     * @return the file name
+     */
+    public static String getBackupFileName(LocalDateTimeFormatter formatter, ArchiveFormat format) {
+        return format.toFileName(getBackupFileName(formatter));
+    }
+
+    /**
+     * Gets the folder the files of all backup locations are staged in
+     * @return the folder
+     */
+    public static File getStagingFolder() {
+        return new File(ConfigParser.getConfig().backupStorage.localDirectory, STAGING_FOLDER);
+    }
+
+    /**
+     * Gets the folder the files of the specified file/folder are staged in
+     * <p>
+     * It's inside the local-save-directory, so it's never scanned itself, and is usually on the same file system as 
+     * the files being staged
+     * @param location the location of the file or folder
+     * @return the folder, or the staged file if a single file is backed up
+     */
+    private static File getStagingFolder(String location) throws Exception {
+        String subfolderName = location;
+        if (isBaseFolder(subfolderName)) {
+            subfolderName = "root";
+        }
+
+        return new File(getStagingFolder(), escapeBackupLocation(subfolderName));
+    }
+
+    /**
+     * Gets the local folder the backups of the specified file/folder are stored in, creating it if it doesn't exist
+     * @param location the location of the file or folder
+     * @return the folder
+     * @throws Exception
+     */
+    public static File getBackupFolder(String location) throws Exception {
+        String subfolderName = location;
+        if (isBaseFolder(subfolderName)) {
+            subfolderName = "root";
+        }
+
+        File path = new File(escapeBackupLocation(ConfigParser.getConfig().backupStorage.localDirectory + "/" + subfolderName));
+        if (!path.exists()) {
+            path.mkdirs();
+        }
+
+        return path;
     }
 
     /**
@@ -138,7 +551,7 @@ public class FileUtil {
 
         if (localKeepCount != -1) {
             try {
-                TreeMap<Long, File> backupList = getLocalBackups(location, formatter);
+                TreeMap<Long, List<File>> backupList = getLocalBackups(location, formatter);
 
                 if (backupList.size() > localKeepCount) {
                     logger.info(
@@ -149,13 +562,15 @@ public class FileUtil {
                 
 
                 while (backupList.size() > localKeepCount) {
-                    File fileToDelete = backupList.descendingMap().lastEntry().getValue();
+                    List<File> filesToDelete = backupList.descendingMap().lastEntry().getValue();
                     long dateOfFile = backupList.descendingMap().lastKey();
 
-                    if (!fileToDelete.delete()) {
-                        logger.log(
-                            intl("local-backup-file-failed-to-delete"),
-                            "local-backup-name", fileToDelete.getName());
+                    for (File fileToDelete : filesToDelete) {
+                        if (!fileToDelete.delete()) {
+                            logger.log(
+                                intl("local-backup-file-failed-to-delete"),
+                                "local-backup-name", fileToDelete.getName());
+                        }
                     }
                     
                     backupList.remove(dateOfFile);
@@ -168,142 +583,503 @@ public class FileUtil {
     }
 
     /**
-     * Zips files in the specified folder into the specified file location
-     * @param inputFolderPath the path of the zip file to create
-     * @param outputFilePath the path of the folder to put it in
+     * Archives files in the specified folder into the specified stream
+     * <p>
+     * Files are compressed in parallel, using the number of threads this backup compresses with. The archive is hashed
+     * as it's written, and the files as they're read, so the checksums don't need the data to be read again.
+     * <p>
+     * If reproducible, the files are added in sorted order, and the archive writers give them fixed metadata, so the
+     * same files always result in the same archive
+     * @param inputFolderPath the path of the folder to archive
+     * @param outputStream the stream to write the archive to, which is left open
      * @param fileList
+     * @param format the format of the archive
+     * @param reproducible whether the same files should always result in the same archive
+     * @return the checksums of the archive and the files in it
      */
-    private void zipIt(String inputFolderPath, String outputFilePath, BackupFileList fileList) throws Exception {
-        byte[] buffer = new byte[1024];
-        FileOutputStream fileOutputStream;
-        ZipOutputStream zipOutputStream = null;
+    private ChecksumManifest writeArchive(String inputFolderPath, OutputStream outputStream, BackupFileList fileList, ArchiveFormat format, boolean reproducible) throws Exception {
+        BackupStorage backupStorage = ConfigParser.getConfig().backupStorage;
 
         String formattedInputFolderPath = new File(inputFolderPath).getName();
         if (isBaseFolder(inputFolderPath)) {
             formattedInputFolderPath = "root";
         }
 
-        try {
-            fileOutputStream = new FileOutputStream(outputFilePath);
-            zipOutputStream = new ZipOutputStream(fileOutputStream);
-            zipOutputStream.setLevel(ConfigParser.getConfig().backupStorage.zipCompression);
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        long[] archiveSize = new long[1];
 
-            for (String file : fileList.getList()) {
-                zipOutputStream.putNextEntry(new ZipEntry(formattedInputFolderPath + "/" + file));
+        // Closing the archive writer mustn't close the stream, the caller might still need to mark it as failed
+        OutputStream unclosableStream = new FilterOutputStream(outputStream) {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
 
-                try (FileInputStream fileInputStream = new FileInputStream(inputFolderPath + "/" + file)) {
-                    
-                    int len;
-                    while ((len = fileInputStream.read(buffer)) > 0) {
-                        zipOutputStream.write(buffer, 0, len);
-                    }
-                } catch (Exception e) {
-                    String filePath = new File(inputFolderPath, file).getPath();
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                digest.update(b, off, len);
+                archiveSize[0] += len;
+            }
 
-                    if (!filePath.endsWith(".lock")) { // Don't send warning for .lock files, they will always be locked
-                        logger.info(
-                            intl("local-backup-failed-to-include"),
-                            "file-path", filePath);
-                    }
+            @Override
+            public void close() throws IOException {
+                flush();
+            }
+        };
+
+        File inputFolder = fileList.getSourceFolder(inputFolderPath);
+
+        if (reproducible) {
+            if (fileList.isStreamed()) {
+                // The files are found in whatever order the scan gets to them, so the list can't be streamed
+                fileList.collect();
+                logSkippedFiles(fileList);
+            }
+
+            fileList.sort();
+        }
+
+        try (ArchiveWriter archiveWriter = createArchiveWriter(unclosableStream, format, backupStorage, reproducible)) {
+            for (String file : fileList.getFiles()) {
+                File sourceFile = new File(inputFolder, file);
+                String entryName = formattedInputFolderPath + "/" + file;
+
+                RegionDelta.Base regionBase = fileList.getRegionBase(file);
+                if (regionBase != null && addRegionDelta(archiveWriter, sourceFile, entryName, regionBase)) {
+                    continue;
+                }
+
+                if (fileList.transcodeRegions && RegionDelta.isRegionFile(file) && addTranscodedRegion(archiveWriter, sourceFile, entryName)) {
+                    continue;
+                }
+
+                if (fileList.compactRegions && RegionDelta.isRegionFile(file) && addCompactedRegion(archiveWriter, sourceFile, entryName)) {
+                    continue;
                 }
 
-                zipOutputStream.closeEntry();
+                archiveWriter.addFile(sourceFile, entryName);
             }
-            
-            zipOutputStream.close();
-        } catch (Exception exception) {
-            if (zipOutputStream != null) {
-                zipOutputStream.close();
+
+            if (fileList.isStreamed()) {
+                logSkippedFiles(fileList);
+            }
+
+            if (fileList.isIncremental()) {
+                StringBuilder deletedFiles = new StringBuilder();
+                for (String file : fileList.getDeletedFiles()) {
+                    deletedFiles.append(formattedInputFolderPath).append('/').append(file).append('\n');
+                }
+
+                archiveWriter.addData(deletedFiles.toString().getBytes(StandardCharsets.UTF_8), DELETED_FILES_ENTRY, System.currentTimeMillis());
+            }
+
+            archiveWriter.finish();
+
+            if (archiveWriter instanceof ParallelZipWriter) {
+                ParallelZipWriter zipWriter = (ParallelZipWriter) archiveWriter;
+
+                logger.info(
+                    intl("local-backup-compression-summary"),
+                    "stored-size", String.valueOf(zipWriter.getStoredBytes() / 1024),
+                    "deflated-size", String.valueOf(zipWriter.getDeflatedBytes() / 1024),
+                    "compressed-size", String.valueOf(zipWriter.getDeflatedCompressedBytes() / 1024));
             }
 
-            throw exception; 
+            ChecksumManifest checksums = archiveWriter.getChecksums();
+            checksums.setArchive(archiveSize[0], digest.digest());
+
+            return checksums;
         }
     }
 
     /**
-     * A list of files to put in a zip file
+     * Adds the chunks of the specified region file saved since the last full backup to the archive, rather than the 
+     * whole file
+     * @param archiveWriter the archive
+     * @param file the region file
+     * @param entryName the path of the region file inside the archive, which the delta is named after
+     * @param base the version of the region file in the last full backup
+     * @return whether the delta was added, if not, the whole file should be
+     * @throws IOException if writing the archive failed
+     */
+    private static boolean addRegionDelta(ArchiveWriter archiveWriter, File file, String entryName, RegionDelta.Base base) throws IOException {
+        EntryContent delta;
+        try {
+            delta = RegionDelta.create(file, base);
+        } catch (IOException exception) {
+            // Isn't a valid region file, so is backed up as any other file
+            return false;
+        }
+
+        try (EntryContent content = delta) {
+            archiveWriter.addContent(content, entryName + RegionDelta.EXTENSION, System.currentTimeMillis());
+        }
+
+        return true;
+    }
+
+    /**
+     * Adds a copy of the specified region file without its unused sectors to the archive, rather than the file itself
+     * @param archiveWriter the archive
+     * @param file the region file
+     * @param entryName the path of the region file inside the archive
+     * @return whether the compacted copy was added, if not, the file itself should be
+     * @throws IOException if writing the archive failed
+     */
+    private static boolean addCompactedRegion(ArchiveWriter archiveWriter, File file, String entryName) throws IOException {
+        long lastModified = file.lastModified();
+
+        EntryContent compacted;
+        try {
+            compacted = RegionCompaction.compact(file);
+        } catch (IOException exception) {
+            // Isn't a valid region file, so is backed up as any other file
+            return false;
+        }
+
+        try (EntryContent content = compacted) {
+            archiveWriter.addContent(content, entryName, lastModified);
+        }
+
+        return true;
+    }
+
+    /**
+     * Adds a copy of the specified region file with its chunks decompressed to the archive, rather than the file itself,
+     * so compressing the archive can find the redundancy between chunks
+     * @param archiveWriter the archive
+     * @param file the region file
+     * @param entryName the path of the region file inside the archive, which the copy is named after
+     * @return whether the transcoded copy was added, if not, the file itself should be
+     * @throws IOException if writing the archive failed
+     */
+    private static boolean addTranscodedRegion(ArchiveWriter archiveWriter, File file, String entryName) throws IOException {
+        long lastModified = file.lastModified();
+
+        EntryContent transcoded;
+        try {
+            transcoded = RegionTranscoding.transcode(file);
+        } catch (IOException exception) {
+            // Isn't a valid region file, so is backed up as any other file
+            return false;
+        }
+
+        try (EntryContent content = transcoded) {
+            archiveWriter.addContent(content, entryName + RegionTranscoding.EXTENSION, lastModified);
+        }
+
+        return true;
+    }
+
+    /**
+     * Creates a writer for archives in the specified format
+     * @param outputStream the stream to write the archive to
+     * @param format the format of the archive
+     * @param backupStorage the compression settings
+     * @param reproducible whether the same files should always result in the same archive
+     * @return the writer
+     * @throws IOException
+     */
+    private ArchiveWriter createArchiveWriter(OutputStream outputStream, ArchiveFormat format, BackupStorage backupStorage, boolean reproducible) throws IOException {
+        if (format == ArchiveFormat.ZIP_DEFLATE) {
+            return new ParallelZipWriter(
+                outputStream,
+                backupStorage.zipCompression,
+                threads,
+                backupStorage.compressionBlockSize,
+                reproducible,
+                this::logFailedToInclude);
+        }
+
+        return new TarWriter(
+            outputStream,
+            format,
+            backupStorage.zstdCompression,
+            threads,
+            backupStorage.compressionBlockSize,
+            reproducible,
+            this::logFailedToInclude);
+    }
+
+    /**
+     * Warns that the specified file couldn't be included in the backup
+     * @param file the file
+     * @param exception why the file couldn't be included
+     */
+    private void logFailedToInclude(File file, IOException exception) {
+        String filePath = file.getPath();
+
+        if (!filePath.endsWith(".lock")) { // Don't send warning for .lock files, they will always be locked
+            logger.info(
+                intl("local-backup-failed-to-include"),
+                "file-path", filePath);
+        }
+    }
+
+    /**
+     * A list of files to put in a backup
+     * <p>
+     * The files are streamed from a scan running in the background as they're found, unless the list is
+     * {@link #collect() collected} first. Closing the list stops the scan, and deletes the staged copies of the files,
+     * if any.
      * Mutable
      */
-    private static class BackupFileList {
-        int filesInBackupFolder;
+    public static class BackupFileList implements Closeable {
+        FileTreeScanner scanner;
         List<String> fileList;
         List<BlacklistEntry> blacklist;
+        BackupManifest.Changes changes;
+        DirtyRegionTracker.Snapshot dirtyRegions;
+        boolean compactRegions;
+        boolean transcodeRegions;
+        File stagingFolder;
+        boolean iterated;
 
-        BackupFileList(List<BlacklistEntry> blacklist) {
-            this.filesInBackupFolder = 0;
-            this.fileList = new ArrayList<>();
+        BackupFileList(FileTreeScanner scanner, List<BlacklistEntry> blacklist) {
+            this.scanner = scanner;
+            this.fileList = null;
             this.blacklist = blacklist;
         }
 
-        void incFilesInBackupFolder() {
-            filesInBackupFolder++;
+        /**
+         * Waits for the scan to finish, keeping every file found in memory
+         * @throws IOException if a folder couldn't be listed
+         * @throws InterruptedException
+         */
+        void collect() throws IOException, InterruptedException {
+            List<String> files = new ArrayList<>();
+
+            String file;
+            while ((file = scanner.next()) != null) {
+                files.add(file);
+            }
+
+            fileList = files;
         }
 
-        public int getFilesInBackupFolder() {
-            return filesInBackupFolder;
+        /**
+         * Gets whether the files are streamed from the scan, rather than collected
+         * @return whether the list is streamed
+         */
+        boolean isStreamed() {
+            return fileList == null;
         }
 
-        void appendToList(String file) {
-            fileList.add(file);
+        /**
+         * Gets the files to include, which can only be iterated over once if the list is streamed
+         * <p>
+         * If the scan fails, iterating throws an {@code UncheckedIOException}
+         * @return the paths of the files, relative to the location
+         */
+        Iterable<String> getFiles() {
+            if (fileList != null) {
+                return fileList;
+            }
+
+            if (iterated) {
+                throw new IllegalStateException("Streamed file list already iterated over");
+            }
+            iterated = true;
+
+            return new Iterable<String>() {
+                @Override
+                public Iterator<String> iterator() {
+                    return new ScanIterator(scanner);
+                }
+            };
+        }
+
+        /**
+         * Gets whether the folder used for backups was inside the location, and so wasn't included
+         * <p>
+         * Only final once all files were returned
+         * @return whether the backup folder was skipped
+         */
+        public boolean isBackupFolderSkipped() {
+            return scanner.isBackupFolderSkipped();
         }
 
         List<String> getList() {
             return fileList;
         }
 
+        /**
+         * Gets the folder the files are read from, which is the staging folder once they're staged
+         * @param location the location of the file or folder
+         * @return the folder, or the file itself if a single file is backed up
+         */
+        File getSourceFolder(String location) {
+            return stagingFolder != null ? stagingFolder : new File(location);
+        }
+
+        /**
+         * Sorts the collected files, so they're always archived in the same order
+         */
+        void sort() {
+            List<String> files = new ArrayList<>(fileList);
+            Collections.sort(files);
+
+            fileList = files;
+        }
+
+        void setStaged(File stagingFolder, List<String> stagedFiles) {
+            this.stagingFolder = stagingFolder;
+            this.fileList = stagedFiles;
+        }
+
         List<BlacklistEntry> getBlacklist() {
             return blacklist;
         }
-    }
 
-    /**
-     * Generates a list of files to put in the zip created from the specified folder
-     * @param inputFolderPath The path of the folder to create the zip from
-     * @throws Exception
-     */
-    private BackupFileList generateFileList(String inputFolderPath, List<BlacklistEntry> blacklist) throws Exception {
-        BackupFileList fileList = new BackupFileList(blacklist);
+        void setChanges(BackupManifest.Changes changes) {
+            this.changes = changes;
+            this.fileList = changes.getChangedFiles();
+        }
 
-        generateFileList(new File(inputFolderPath), inputFolderPath, fileList);
+        /**
+         * Leaves out the files which turned out to be unchanged once the changes were verified
+         */
+        void setVerified() {
+            if (stagingFolder == null) {
+                fileList = changes.getChangedFiles();
 
-        return fileList;
-    }
+                return;
+            }
 
-    /**
-     * Adds the specified file or folder to the list of files to put in the zip created from the specified folder
-     * @param file the file or folder to add
-     * @param inputFolderPath the path of the folder to create the zip 
-     * @param fileList the list of files to add the specified file or folder to
-     * @throws Exception
-     */
-    private void generateFileList(File file, String inputFolderPath, BackupFileList fileList) throws Exception {
+            // Only the files which were staged can be included
+            Set<String> changedFiles = new HashSet<>(changes.getChangedFiles());
+            List<String> files = new ArrayList<>();
+            for (String file : fileList) {
+                if (changedFiles.contains(file)) {
+                    files.add(file);
+                }
+            }
 
-        if (file.isFile()) {
-            // Verify not backing up previous backups
-            if (file.getCanonicalPath().startsWith(new File(ConfigParser.getConfig().backupStorage.localDirectory).getCanonicalPath())) {
-                fileList.incFilesInBackupFolder();;
+            fileList = files;
+        }
 
-                return;
+        /**
+         * Gets the changes since the previous backup, if this is an incremental backup
+         * @return the changes, or {@code null} if all files are included
+         */
+        public BackupManifest.Changes getChanges() {
+            return changes;
+        }
+
+        void setDirtyRegions(DirtyRegionTracker.Snapshot dirtyRegions) {
+            this.dirtyRegions = dirtyRegions;
+        }
+
+        /**
+         * Gets the dirty regions of the world being backed up, as of when the files were listed
+         * @return the dirty regions, or {@code null} if the location isn't a tracked world
+         */
+        public DirtyRegionTracker.Snapshot getDirtyRegions() {
+            return dirtyRegions;
+        }
+
+        /**
+         * Gets whether the backup only contains the changes since the previous backup
+         * @return whether the backup is incremental
+         */
+        public boolean isIncremental() {
+            return changes != null && !changes.isFull();
+        }
+
+        /**
+         * Gets the version of the specified region file in the last full backup, if a delta of it should be backed up
+         * @param path the path of the file, relative to the location
+         * @return the base, or {@code null} if the whole file should be backed up
+         */
+        RegionDelta.Base getRegionBase(String path) {
+            return changes == null ? null : changes.getRegionBase(path);
+        }
+
+        List<String> getDeletedFiles() {
+            return changes == null ? Collections.<String>emptyList() : changes.getDeletedFiles();
+        }
+
+        /**
+         * Gets whether anything changed since the previous backup
+         * @return whether there is anything to back up
+         */
+        public boolean hasChanges() {
+            return changes == null || changes.hasChanges();
+        }
+
+        /**
+         * Stops the scan, if it's still in progress, and deletes the staged copies of the files
+         */
+        @Override
+        public void close() {
+            scanner.close();
+
+            if (stagingFolder != null) {
+                deleteFolder(stagingFolder);
+                stagingFolder = null;
             }
+        }
+    }
 
-            Path relativePath = Paths.get(inputFolderPath).relativize(file.toPath());
+    /**
+     * Iterates over the files returned by a scan in progress, waiting for each one
+     */
+    private static final class ScanIterator implements Iterator<String> {
+        private final FileTreeScanner scanner;
+        private String next;
+        private boolean fetched;
 
-            for (BlacklistEntry blacklistEntry : fileList.getBlacklist()) {
-                if (blacklistEntry.getPathMatcher().matches(relativePath)) {
-                    blacklistEntry.incBlacklistedFiles();
+        private ScanIterator(FileTreeScanner scanner) {
+            this.scanner = scanner;
+        }
 
-                    return;
+        @Override
+        public boolean hasNext() {
+            if (!fetched) {
+                try {
+                    next = scanner.next();
+                } catch (IOException exception) {
+                    throw new UncheckedIOException(exception);
+                } catch (InterruptedException exception) {
+                    Thread.currentThread().interrupt();
+                    throw new UncheckedIOException(new InterruptedIOException("Interrupted while scanning"));
                 }
+                fetched = true;
             }
 
-            fileList.appendToList(relativePath.toString());
-        } else {
-            for (String filename : file.list()) {
-                generateFileList(new File(file, filename), inputFolderPath, fileList);
+            return next != null;
+        }
+
+        @Override
+        public String next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
             }
+
+            fetched = false;
+            return next;
         }
     }
 
+    /**
+     * Starts scanning the files to put in the archive created from the specified folder
+     * <p>
+     * Subfolders are scanned in parallel, using the number of threads this backup compresses with
+     * @param inputFolderPath The path of the folder to create the archive from
+     * @param blacklist the blacklist entries of files and folders to not include
+     * @param skippedFolders the paths of folders, relative to the folder, to not scan
+     * @return the list of files, streamed from the scan
+     */
+    private BackupFileList generateFileList(String inputFolderPath, List<BlacklistEntry> blacklist, Set<Path> skippedFolders) {
+        BackupStorage backupStorage = ConfigParser.getConfig().backupStorage;
+
+        FileTreeScanner scanner = new FileTreeScanner(blacklist, new File(backupStorage.localDirectory), skippedFolders, FILE_QUEUE_CAPACITY);
+        scanner.start(inputFolderPath, threads);
+
+        return new BackupFileList(scanner, blacklist);
+    }
+
     /**
      * Removes ".." from the location string in order to keep the location's backup folder within the local-save-directory
      * @param location the unescaped location
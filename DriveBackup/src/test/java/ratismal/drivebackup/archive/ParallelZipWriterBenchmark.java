@@ -0,0 +1,152 @@
+package ratismal.drivebackup.archive;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Measures how much memory the {@link ParallelZipWriter} allocates for each file it adds, on the calling thread and its
+ * worker threads together
+ * <p>
+ * Many small files are added once to warm up, then again while the allocated bytes of all threads are measured, using
+ * the HotSpot specific {@link com.sun.management.ThreadMXBean}. Run it with
+ * {@code java -cp target/classes:target/test-classes ratismal.drivebackup.archive.ParallelZipWriterBenchmark [files] [threads]}
+ */
+public class ParallelZipWriterBenchmark {
+    private static final int DEFAULT_FILE_COUNT = 20000;
+    private static final int DEFAULT_THREADS = 4;
+    private static final int ROUNDS = 3;
+
+    public static void main(String[] args) throws IOException {
+        int fileCount = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_FILE_COUNT;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_THREADS;
+
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!threadBean.isThreadAllocatedMemorySupported()) {
+            System.out.println("Measuring allocated memory isn't supported by this JVM");
+            return;
+        }
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+
+        File directory = Files.createTempDirectory("drivebackup-benchmark").toFile();
+        try {
+            File[] files = createFiles(directory, fileCount);
+
+            for (int round = 1; round <= ROUNDS; round++) {
+                long allocated = measure(threadBean, files, threads);
+                System.out.printf("Round %d: %d bytes allocated for %d files, %.1f bytes per file%n", round, allocated, fileCount, (double) allocated / fileCount);
+            }
+        } finally {
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    /**
+     * Writes an archive of the specified files twice over, measuring the memory allocated while adding them the second
+     * time
+     * @param threadBean the bean to get the allocated memory of each thread from
+     * @param files the files
+     * @param threads the number of worker threads to compress with
+     * @return the number of bytes allocated
+     * @throws IOException
+     */
+    private static long measure(com.sun.management.ThreadMXBean threadBean, File[] files, int threads) throws IOException {
+        try (ParallelZipWriter writer = new ParallelZipWriter(new DiscardingOutputStream(), 1, threads, ParallelZipWriter.DEFAULT_BLOCK_SIZE, false, (file, exception) -> {
+            throw new IllegalStateException("Failed to read " + file, exception);
+        })) {
+            for (File file : files) {
+                writer.addFile(file, "warmup/" + file.getName());
+            }
+
+            // The entry names are built beforehand, so only what the writer allocates is measured
+            String[] entryNames = new String[files.length];
+            for (int i = 0; i < files.length; i++) {
+                entryNames[i] = "measured/" + files[i].getName();
+            }
+
+            Map<Long, Long> before = getAllocatedBytes(threadBean);
+            for (int i = 0; i < files.length; i++) {
+                writer.addFile(files[i], entryNames[i]);
+            }
+            writer.finish();
+            Map<Long, Long> after = getAllocatedBytes(threadBean);
+
+            long allocated = 0;
+            for (Map.Entry<Long, Long> thread : after.entrySet()) {
+                Long previous = before.get(thread.getKey());
+                allocated += thread.getValue() - (previous == null ? 0 : previous);
+            }
+
+            return allocated;
+        }
+    }
+
+    /**
+     * Gets the number of bytes allocated by each live thread so far
+     * @param threadBean the bean to get them from
+     * @return the number of bytes, by thread ID
+     */
+    private static Map<Long, Long> getAllocatedBytes(com.sun.management.ThreadMXBean threadBean) {
+        long[] threadIds = threadBean.getAllThreadIds();
+        long[] allocatedBytes = threadBean.getThreadAllocatedBytes(threadIds);
+
+        Map<Long, Long> allocated = new HashMap<>();
+        for (int i = 0; i < threadIds.length; i++) {
+            if (allocatedBytes[i] >= 0) {
+                allocated.put(threadIds[i], allocatedBytes[i]);
+            }
+        }
+
+        return allocated;
+    }
+
+    /**
+     * Creates the specified number of small, config-like text files
+     * @param directory the directory to create them in
+     * @param count the number of files
+     * @return the files
+     * @throws IOException
+     */
+    private static File[] createFiles(File directory, int count) throws IOException {
+        Random random = new Random(0);
+        File[] files = new File[count];
+
+        for (int i = 0; i < count; i++) {
+            StringBuilder contents = new StringBuilder();
+            int lines = 20 + random.nextInt(80);
+            for (int line = 0; line < lines; line++) {
+                contents.append("key-").append(line).append(": ").append(random.nextInt(100000)).append('\n');
+            }
+
+            files[i] = new File(directory, "file-" + i + ".yml");
+            try (OutputStream out = new FileOutputStream(files[i])) {
+                out.write(contents.toString().getBytes(StandardCharsets.UTF_8));
+            }
+        }
+
+        return files;
+    }
+
+    /**
+     * An {@code OutputStream} which drops everything written to it
+     */
+    private static final class DiscardingOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package ratismal.drivebackup.archive;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Checks that archives written by the {@link ParallelZipWriter} can be read back by {@link ZipFile} and
+ * {@link ZipInputStream}, with the same sizes and CRC-32s as the data added
+ * <p>
+ * The archive has an empty entry, single and multi block deflated entries, entries stored as is, in-memory and generated
+ * entries, and a sparse file of over 4 GB, which needs ZIP64 sizes and is flagged as needing them before it's
+ * compressed. Leave the large entry out with the {@code small} argument. Run it with
+ * {@code java -cp target/classes:target/test-classes ratismal.drivebackup.archive.ParallelZipWriterCheck [small]}
+ */
+public class ParallelZipWriterCheck {
+    private static final int BLOCK_SIZE = 256 * 1024;
+    private static final long LARGE_SIZE = (4L << 30) + 3 * BLOCK_SIZE + 123;
+
+    public static void main(String[] args) throws IOException {
+        boolean large = args.length == 0 || !args[0].equals("small");
+
+        File directory = Files.createTempDirectory("drivebackup-check").toFile();
+        try {
+            Map<String, long[]> expected = new LinkedHashMap<>();
+            File archive = new File(directory, "archive.zip");
+
+            try (ParallelZipWriter writer = new ParallelZipWriter(new FileOutputStream(archive), 6, 4, BLOCK_SIZE, false, (file, exception) -> {
+                throw new IllegalStateException("Failed to read " + file, exception);
+            })) {
+                Random random = new Random(0);
+
+                addFile(writer, expected, directory, "empty.txt", new byte[0]);
+                addFile(writer, expected, directory, "config/one-block.yml", text(random, 10 * 1024));
+                addFile(writer, expected, directory, "logs/multi-block.log", text(random, 5 * BLOCK_SIZE + 17));
+                addFile(writer, expected, directory, "world/region/r.0.0.mca", bytes(random, 100 * 1024));
+                addFile(writer, expected, directory, "random-multi-block.bin", bytes(random, 3 * BLOCK_SIZE + 1));
+                addFile(writer, expected, directory, "world/ünicode-日本.dat", text(random, 1000));
+
+                byte[] data = text(random, 2 * BLOCK_SIZE);
+                writer.addData(data, "in-memory.txt", System.currentTimeMillis());
+                expected.put("in-memory.txt", describe(data));
+
+                byte[] generated = text(random, 3 * BLOCK_SIZE + 999);
+                writer.addContent(new GeneratedContent(directory, generated), "generated.txt", System.currentTimeMillis());
+                expected.put("generated.txt", describe(generated));
+
+                if (large) {
+                    File sparse = new File(directory, "large.bin");
+                    try (RandomAccessFile file = new RandomAccessFile(sparse, "rw")) {
+                        file.setLength(LARGE_SIZE);
+                    }
+                    writer.addFile(sparse, "large.bin");
+                    expected.put("large.bin", new long[] { LARGE_SIZE, zerosCrc(LARGE_SIZE) });
+                }
+
+                writer.finish();
+            }
+
+            boolean passed = checkZipFile(archive, expected) & checkZipInputStream(archive, expected);
+            if (!passed) {
+                System.exit(1);
+            }
+        } finally {
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    /**
+     * Reads every entry with {@link ZipFile}, which uses the central directory
+     * @param archive the archive
+     * @param expected the size and CRC-32 of each entry, by name
+     * @return whether all entries matched
+     * @throws IOException
+     */
+    private static boolean checkZipFile(File archive, Map<String, long[]> expected) throws IOException {
+        boolean passed = true;
+
+        try (ZipFile zip = new ZipFile(archive)) {
+            passed &= report("ZipFile", "entry count", expected.size(), zip.size());
+
+            for (Map.Entry<String, long[]> entry : expected.entrySet()) {
+                ZipEntry zipEntry = zip.getEntry(entry.getKey());
+                if (zipEntry == null) {
+                    passed &= report("ZipFile", entry.getKey() + " missing", 0, 1);
+                    continue;
+                }
+
+                passed &= report("ZipFile", entry.getKey() + " recorded CRC", entry.getValue()[1], zipEntry.getCrc());
+                passed &= report("ZipFile", entry.getKey() + " recorded size", entry.getValue()[0], zipEntry.getSize());
+
+                try (InputStream in = zip.getInputStream(zipEntry)) {
+                    long[] read = describe(in);
+                    passed &= report("ZipFile", entry.getKey() + " read CRC", entry.getValue()[1], read[1]);
+                    passed &= report("ZipFile", entry.getKey() + " read size", entry.getValue()[0], read[0]);
+                }
+            }
+        }
+
+        return passed;
+    }
+
+    /**
+     * Reads every entry with {@link ZipInputStream}, which uses the local headers and data descriptors
+     * @param archive the archive
+     * @param expected the size and CRC-32 of each entry, by name
+     * @return whether all entries matched
+     * @throws IOException
+     */
+    private static boolean checkZipInputStream(File archive, Map<String, long[]> expected) throws IOException {
+        boolean passed = true;
+        int count = 0;
+
+        try (ZipInputStream zip = new ZipInputStream(new FileInputStream(archive))) {
+            ZipEntry zipEntry;
+            while ((zipEntry = zip.getNextEntry()) != null) {
+                count++;
+
+                long[] expectedEntry = expected.get(zipEntry.getName());
+                if (expectedEntry == null) {
+                    passed &= report("ZipInputStream", zipEntry.getName() + " unexpected", 0, 1);
+                    continue;
+                }
+
+                // The CRC-32 is also checked against the data descriptor by the stream itself
+                long[] read = describe(zip);
+                passed &= report("ZipInputStream", zipEntry.getName() + " read CRC", expectedEntry[1], read[1]);
+                passed &= report("ZipInputStream", zipEntry.getName() + " read size", expectedEntry[0], read[0]);
+            }
+        }
+
+        passed &= report("ZipInputStream", "entry count", expected.size(), count);
+
+        return passed;
+    }
+
+    private static boolean report(String reader, String check, long expected, long actual) {
+        boolean passed = expected == actual;
+        System.out.println((passed ? "OK      " : "FAILED  ") + reader + ": " + check + ", expected " + expected + ", got " + actual);
+        return passed;
+    }
+
+    private static void addFile(ParallelZipWriter writer, Map<String, long[]> expected, File directory, String entryName, byte[] data) throws IOException {
+        File file = new File(directory, "file-" + expected.size() + entryName.substring(entryName.lastIndexOf('.')));
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(data);
+        }
+
+        writer.addFile(file, entryName);
+        expected.put(entryName, describe(data));
+    }
+
+    /**
+     * Gets the size and CRC-32 of the specified data
+     * @param data the data
+     * @return the size, then the CRC-32
+     */
+    private static long[] describe(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return new long[] { data.length, crc.getValue() };
+    }
+
+    /**
+     * Reads the specified stream to the end, getting the size and CRC-32 of its data
+     * @param in the stream
+     * @return the size, then the CRC-32
+     * @throws IOException
+     */
+    private static long[] describe(InputStream in) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[64 * 1024];
+        long size = 0;
+
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            crc.update(buffer, 0, read);
+            size += read;
+        }
+
+        return new long[] { size, crc.getValue() };
+    }
+
+    private static long zerosCrc(long size) {
+        CRC32 crc = new CRC32();
+        byte[] zeros = new byte[1024 * 1024];
+
+        for (long remaining = size; remaining > 0; remaining -= zeros.length) {
+            crc.update(zeros, 0, (int) Math.min(zeros.length, remaining));
+        }
+
+        return crc.getValue();
+    }
+
+    /**
+     * Generates compressible, config-like text
+     */
+    private static byte[] text(Random random, int length) {
+        StringBuilder text = new StringBuilder();
+        while (text.length() < length) {
+            text.append("key-").append(random.nextInt(1000)).append(": ").append(random.nextInt(100000)).append('\n');
+        }
+        return text.substring(0, length).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] bytes(Random random, int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    /**
+     * Contents generated while the entry is written, in uneven pieces
+     */
+    private static final class GeneratedContent implements ArchiveWriter.EntryContent {
+        private final File file;
+        private final byte[] data;
+
+        private GeneratedContent(File directory, byte[] data) {
+            this.file = new File(directory, "generated");
+            this.data = data;
+        }
+
+        @Override
+        public File getFile() {
+            return file;
+        }
+
+        @Override
+        public long getSize() {
+            return data.length;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            for (int offset = 0; offset < data.length; ) {
+                int length = Math.min(data.length - offset, 1 + offset % 70000);
+                out.write(data, offset, length);
+                offset += length;
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
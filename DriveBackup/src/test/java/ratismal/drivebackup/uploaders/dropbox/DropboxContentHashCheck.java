@@ -0,0 +1,95 @@
+package ratismal.drivebackup.uploaders.dropbox;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+
+/**
+ * Checks {@link DropboxContentHash} against Dropbox's published example, and against hashing each 4 MB block directly
+ * <p>
+ * Dropbox publishes {@code milky-way-nasa.jpg}, in its dropbox-api-content-hasher repository, with the content hash
+ * {@value #MILKY_WAY_HASH}. Run it with
+ * {@code java -cp target/classes:target/test-classes ratismal.drivebackup.uploaders.dropbox.DropboxContentHashCheck [file [hash]]},
+ * where the hash defaults to that of the published example.
+ */
+public class DropboxContentHashCheck {
+    private static final String MILKY_WAY_HASH = "485291fa0ee50c016982abbfa943957bcd231aae0492ccbaa22c58e3997b35e0";
+    private static final int BLOCK_SIZE = 4 * 1024 * 1024;
+
+    public static void main(String[] args) throws IOException, NoSuchAlgorithmException {
+        // With no blocks, the hash is the SHA-256 hash of nothing
+        boolean passed = check("empty", new byte[0], "e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855");
+
+        Random random = new Random(0);
+        for (int size : new int[] { 1, BLOCK_SIZE - 1, BLOCK_SIZE, BLOCK_SIZE + 1, 2 * BLOCK_SIZE + 12345 }) {
+            byte[] data = new byte[size];
+            random.nextBytes(data);
+
+            passed &= check(size + " random bytes", data, toHex(hashBlocks(data)));
+        }
+
+        if (args.length > 0) {
+            passed &= check(args[0], Files.readAllBytes(Paths.get(args[0])), args.length > 1 ? args[1] : MILKY_WAY_HASH);
+        }
+
+        if (!passed) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Hashes the specified data in one update and in pieces, and compares both to the expected hash
+     * @param description what the data is, to print
+     * @param data the data
+     * @param expected the expected hash, hex encoded
+     * @return whether both matched
+     */
+    private static boolean check(String description, byte[] data, String expected) {
+        DropboxContentHash hash = new DropboxContentHash();
+
+        hash.update(data);
+        String whole = toHex(hash.digest());
+
+        Random random = new Random(data.length);
+        for (int offset = 0; offset < data.length; ) {
+            int length = Math.min(data.length - offset, 1 + random.nextInt(1024 * 1024));
+            hash.update(data, offset, length);
+            offset += length;
+        }
+        String pieces = toHex(hash.digest());
+
+        boolean passed = whole.equals(expected) && pieces.equals(expected);
+        System.out.println((passed ? "OK      " : "FAILED  ") + description + ": expected " + expected + ", got " + whole + " whole and " + pieces + " in pieces");
+
+        return passed;
+    }
+
+    /**
+     * Hashes the specified data by hashing each block separately, as the hash is defined
+     * @param data the data
+     * @return the hash
+     * @throws NoSuchAlgorithmException
+     */
+    private static byte[] hashBlocks(byte[] data) throws NoSuchAlgorithmException {
+        MessageDigest overall = MessageDigest.getInstance("SHA-256");
+
+        for (int offset = 0; offset < data.length; offset += BLOCK_SIZE) {
+            MessageDigest block = MessageDigest.getInstance("SHA-256");
+            block.update(data, offset, Math.min(BLOCK_SIZE, data.length - offset));
+            overall.update(block.digest());
+        }
+
+        return overall.digest();
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,101 @@
+package ratismal.drivebackup.uploaders.onedrive;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Base64;
+import java.util.Random;
+
+/**
+ * Checks {@link QuickXorHash} against a direct implementation of its definition, and optionally against the hash
+ * OneDrive reports for a file
+ * <p>
+ * By definition, each byte is XORed into a 160 bit value rotated left by 11 bits for every byte before it, and the
+ * length is XORed into the last 8 bytes. The data is hashed both in one update and in uneven pieces, so the bytes 160
+ * apart are also combined across updates. Run it with
+ * {@code java -cp target/classes:target/test-classes ratismal.drivebackup.uploaders.onedrive.QuickXorHashCheck [file hash]},
+ * where the hash is the Base64 {@code quickXorHash} OneDrive reports for the file.
+ */
+public class QuickXorHashCheck {
+    private static final int WIDTH_IN_BITS = 160;
+    private static final int SHIFT = 11;
+    private static final BigInteger MASK = BigInteger.ONE.shiftLeft(WIDTH_IN_BITS).subtract(BigInteger.ONE);
+
+    public static void main(String[] args) throws IOException {
+        boolean passed = check("empty", new byte[0], "AAAAAAAAAAAAAAAAAAAAAAAAAAA=");
+
+        Random random = new Random(0);
+        for (int size : new int[] { 1, 7, 8, 19, 20, 159, 160, 161, 320, 1000, 65537 }) {
+            byte[] data = new byte[size];
+            random.nextBytes(data);
+
+            passed &= check(size + " random bytes", data, Base64.getEncoder().encodeToString(hashByDefinition(data)));
+        }
+
+        if (args.length == 2) {
+            passed &= check(args[0], Files.readAllBytes(Paths.get(args[0])), args[1]);
+        }
+
+        if (!passed) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Hashes the specified data in one update and in pieces, and compares both to the expected hash
+     * @param description what the data is, to print
+     * @param data the data
+     * @param expected the expected hash, Base64 encoded
+     * @return whether both matched
+     */
+    private static boolean check(String description, byte[] data, String expected) {
+        QuickXorHash hash = new QuickXorHash();
+
+        hash.update(data);
+        String whole = Base64.getEncoder().encodeToString(hash.digest());
+
+        Random random = new Random(data.length);
+        for (int offset = 0; offset < data.length; ) {
+            int length = Math.min(data.length - offset, 1 + random.nextInt(400));
+            hash.update(data, offset, length);
+            offset += length;
+        }
+        String pieces = Base64.getEncoder().encodeToString(hash.digest());
+
+        boolean passed = whole.equals(expected) && pieces.equals(expected);
+        System.out.println((passed ? "OK      " : "FAILED  ") + description + ": expected " + expected + ", got " + whole + " whole and " + pieces + " in pieces");
+
+        return passed;
+    }
+
+    /**
+     * Hashes the specified data one byte at a time, as the hash is defined
+     * @param data the data
+     * @return the hash
+     */
+    private static byte[] hashByDefinition(byte[] data) {
+        BigInteger value = BigInteger.ZERO;
+
+        for (int i = 0; i < data.length; i++) {
+            int shift = (int) ((long) SHIFT * i % WIDTH_IN_BITS);
+            BigInteger shifted = BigInteger.valueOf(data[i] & 0xFF).shiftLeft(shift);
+
+            // Rotate the bits shifted past the width back to the start
+            value = value.xor(shifted.or(shifted.shiftRight(WIDTH_IN_BITS)).and(MASK));
+        }
+
+        byte[] hash = new byte[WIDTH_IN_BITS / 8];
+        byte[] bigEndian = value.toByteArray();
+        for (int i = 0; i < hash.length && i < bigEndian.length; i++) {
+            hash[i] = bigEndian[bigEndian.length - 1 - i];
+        }
+
+        long length = data.length;
+        for (int i = 0; i < 8; i++) {
+            hash[hash.length - 8 + i] ^= (byte) (length >>> (i * 8));
+        }
+
+        return hash;
+    }
+}